@@ -0,0 +1,57 @@
+package ontologizer.benchmark;
+
+import ontologizer.calculation.b2g.B2GParam;
+import ontologizer.calculation.b2g.Bayes2GOCalculation;
+import ontologizer.set.StudySet;
+import ontologizer.statistics.None;
+
+/**
+ * Measures the number of MCMC steps per second of the MGSA sampler on a
+ * random ontology.
+ *
+ * Usage: MCMCSteps [steps] [repetitions]
+ */
+public class MCMCSteps
+{
+	private static final int NUMBER_OF_TERMS = 3000;
+
+	private static final int NUMBER_OF_GENES = 6000;
+
+	public static void main(String[] args)
+	{
+		int steps = args.length > 0 ? Integer.parseInt(args[0]) : 2000000;
+		int repetitions = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+		RandomSetting setting = new RandomSetting(1, NUMBER_OF_TERMS, NUMBER_OF_GENES);
+		StudySet study = setting.study;
+
+		System.err.println(NUMBER_OF_TERMS + " terms, " + NUMBER_OF_GENES + " genes, " + study.getGeneCount() + " study genes");
+
+		double best = 0;
+		for (int r = 0; r <= repetitions; r++)
+		{
+			Bayes2GOCalculation calc = new Bayes2GOCalculation();
+			calc.setSeed(2);
+			calc.setMcmcSteps(steps);
+			calc.setUpdateReportTime(Integer.MAX_VALUE);
+			calc.setAlpha(B2GParam.Type.MCMC);
+			calc.setBeta(B2GParam.Type.MCMC);
+			calc.setExpectedNumber(B2GParam.Type.MCMC);
+
+			long start = System.nanoTime();
+			calc.calculateStudySet(setting.graph, setting.assoc, setting.population, study, new None());
+			long end = System.nanoTime();
+
+			double stepsPerSecond = steps / ((end - start) / 1e9);
+
+			/* The first run is the warm up */
+			if (r > 0)
+			{
+				System.err.println(String.format("Run %d: %.0f steps/s", r, stepsPerSecond));
+				best = Math.max(best, stepsPerSecond);
+			}
+			study.resetCounterAndEnumerator();
+		}
+		System.err.println(String.format("Best: %.0f steps/s", best));
+	}
+}
@@ -0,0 +1,77 @@
+package ontologizer.benchmark;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Random;
+
+import ontologizer.association.Association;
+import ontologizer.association.AssociationContainer;
+import ontologizer.enumeration.GOTermEnumerator;
+import ontologizer.go.Ontology;
+import ontologizer.go.ParentTermID;
+import ontologizer.go.Term;
+import ontologizer.go.TermContainer;
+import ontologizer.go.TermID;
+import ontologizer.go.TermRelation;
+import ontologizer.set.PopulationSet;
+import ontologizer.set.StudySet;
+import ontologizer.types.ByteString;
+
+/**
+ * A random ontology with random annotations and a study set that is
+ * enriched for three terms. Used by the micro benchmarks.
+ */
+public class RandomSetting
+{
+	public Ontology graph;
+	public AssociationContainer assoc;
+	public PopulationSet population;
+	public StudySet study;
+
+	public RandomSetting(long seed, int numberOfTerms, int numberOfGenes)
+	{
+		Random rnd = new Random(seed);
+
+		/* A random DAG, every term has up to three parents among the previous ones */
+		ArrayList<Term> terms = new ArrayList<Term>();
+		terms.add(new Term(new TermID(TermID.DEFAULT_PREFIX, 1), "root"));
+		for (int i = 1; i < numberOfTerms; i++)
+		{
+			ArrayList<ParentTermID> parents = new ArrayList<ParentTermID>();
+			HashSet<TermID> parentIDs = new HashSet<TermID>();
+			int numberOfParents = 1 + rnd.nextInt(Math.min(i, 3));
+			for (int j = 0; j < numberOfParents; j++)
+			{
+				TermID parent = terms.get(rnd.nextInt(i)).getID();
+				if (parentIDs.add(parent))
+					parents.add(new ParentTermID(parent, TermRelation.IS_A));
+			}
+			terms.add(new Term(new TermID(TermID.DEFAULT_PREFIX, i + 1), "term" + (i + 1), null, parents));
+		}
+		graph = new Ontology(new TermContainer(new HashSet<Term>(terms), "", ""));
+
+		assoc = new AssociationContainer();
+		population = new PopulationSet("population");
+		for (int g = 0; g < numberOfGenes; g++)
+		{
+			ByteString gene = new ByteString("gene" + g);
+			population.addGene(gene, "");
+			for (int j = 0; j < 4; j++)
+				assoc.addAssociation(new Association(gene, terms.get(rnd.nextInt(numberOfTerms)).getID()));
+		}
+
+		/* The study set consists of the genes of three terms with some noise */
+		GOTermEnumerator enumerator = population.enumerateGOTerms(graph, assoc);
+		study = new StudySet("study");
+		for (int i = 0; i < 3; i++)
+		{
+			TermID term = terms.get(numberOfTerms / 2 + rnd.nextInt(numberOfTerms / 2)).getID();
+			for (ByteString gene : enumerator.getAnnotatedGenes(term).totalAnnotated)
+				if (rnd.nextDouble() < 0.8)
+					study.addGene(gene, "");
+		}
+		for (ByteString gene : population)
+			if (rnd.nextDouble() < 0.02)
+				study.addGene(gene, "");
+	}
+}
@@ -0,0 +1,102 @@
+package ontologizer.benchmark;
+
+import java.util.List;
+import java.util.Random;
+
+import ontologizer.calculation.b2g.FixedAlphaBetaScore;
+import ontologizer.enumeration.GOTermEnumerator;
+import ontologizer.go.TermID;
+
+/**
+ * Measures the throughput of the score evaluation and of the proposals of
+ * the MGSA score on a random ontology, both for the parameters sampled on
+ * the grid and for the parameters that are integrated out.
+ *
+ * Usage: ScoreThroughput [operations] [repetitions]
+ */
+public class ScoreThroughput
+{
+	private static final int NUMBER_OF_TERMS = 3000;
+
+	private static final int NUMBER_OF_GENES = 6000;
+
+	/** The number of scores whose evaluation is measured, must be a power of two */
+	private static final int NUMBER_OF_SCORES = 16;
+
+	/** Prevents the evaluations from being optimized away */
+	private static double sink;
+
+	/**
+	 * Evaluates the given scores in turn, so the evaluation cannot be
+	 * hoisted out of the loop.
+	 */
+	private static double measureScore(FixedAlphaBetaScore [] scores, int operations)
+	{
+		double sum = 0;
+		int mask = scores.length - 1;
+		long start = System.nanoTime();
+		for (int i = 0; i < operations; i++)
+			sum += scores[i & mask].getScore();
+		long end = System.nanoTime();
+		sink += sum;
+		return operations / ((end - start) / 1e9);
+	}
+
+	private static double measureProposals(FixedAlphaBetaScore score, int operations)
+	{
+		double sum = 0;
+		long start = System.nanoTime();
+		for (int i = 0; i < operations; i++)
+		{
+			score.proposeNewState();
+			sum += score.getScore();
+			if ((i & 1) == 0)
+				score.undoProposal();
+		}
+		long end = System.nanoTime();
+		sink += sum;
+		return operations / ((end - start) / 1e9);
+	}
+
+	public static void main(String[] args)
+	{
+		int operations = args.length > 0 ? Integer.parseInt(args[0]) : 10000000;
+		int repetitions = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+
+		RandomSetting setting = new RandomSetting(1, NUMBER_OF_TERMS, NUMBER_OF_GENES);
+		GOTermEnumerator enumerator = setting.population.enumerateGOTerms(setting.graph, setting.assoc);
+		List<TermID> terms = enumerator.getAllAnnotatedTermsAsList();
+
+		for (int integrate = 0; integrate < 2; integrate++)
+		{
+			/* Scores in different states with some active terms */
+			FixedAlphaBetaScore [] scores = new FixedAlphaBetaScore[NUMBER_OF_SCORES];
+			for (int j = 0; j < scores.length; j++)
+			{
+				scores[j] = new FixedAlphaBetaScore(new Random(j), terms, enumerator, setting.study.getAllGeneNames());
+				scores[j].setIntegrateParams(integrate == 1);
+				for (int i = 0; i < 10000; i++)
+					scores[j].proposeNewState();
+			}
+
+			double bestScore = 0;
+			double bestProposals = 0;
+
+			/* The first run is the warm up */
+			for (int r = 0; r <= repetitions; r++)
+			{
+				double evaluations = measureScore(scores, operations);
+				double proposals = measureProposals(scores[0], operations / 10);
+				if (r > 0)
+				{
+					bestScore = Math.max(bestScore, evaluations);
+					bestProposals = Math.max(bestProposals, proposals);
+				}
+			}
+
+			String mode = integrate == 1 ? "integrated" : "grid";
+			System.err.println(String.format("%s: getScore %.0f/s, proposeNewState+getScore %.0f/s", mode, bestScore, bestProposals));
+		}
+		System.err.println("(" + sink + ")");
+	}
+}
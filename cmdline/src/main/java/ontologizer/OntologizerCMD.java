@@ -139,6 +139,12 @@ public static void main(String[] args)
                 "Filter the gene names by appling rules in a given file (currently only mapping supported)."));
             options.addOption(
                 new Option("o", "outdir", true, "Specfies the directory in which the results will be placed."));
+            options.addOption(new Option(null, "threads", true,
+                "Specifies the number of threads used for the analysis. Defaults to the number of processors"));
+            options.addOption(new Option(null, "server", true,
+                "Keep the ontology, associations and population loaded and analyze study sets that are posted to " +
+                    "http://localhost:<port>/analyze rather than those given by the studyset option. " +
+                    "Metrics are available at /metrics"));
 
             if (resamplingBasedMTCsExists) {
                 options.addOption(new Option("r", "resamplingsteps", true,
@@ -146,6 +152,9 @@ public static void main(String[] args)
                 options.addOption(new Option("t", "sizetolerance", true,
                     "Specifies the percentage at which the actual study set size and " +
                         "the size of the resampled study sets are allowed to differ"));
+                options.addOption(new Option(null, "resamplingcache", true,
+                    "Keep the resampled p values of cached MTCs in a persistent cache of the given size in MiB " +
+                        "that is reused across runs"));
             }
             options.addOption(new Option("v", "version", false, "Shows version information and exits"));
 
@@ -168,7 +177,21 @@ public static void main(String[] args)
             arguments.goTermsOBOFile = getRequiredOptionValue(cmd, 'g');
             arguments.associationFile = getRequiredOptionValue(cmd, 'a');
             arguments.populationFile = getRequiredOptionValue(cmd, 'p');
-            arguments.studySet = getRequiredOptionValue(cmd, 's');
+            int serverPort = -1;
+            if (cmd.hasOption("server")) {
+                try {
+                    serverPort = Integer.parseInt(cmd.getOptionValue("server"));
+                    if (serverPort < 0 || serverPort > 65535) {
+                        throw new Exception();
+                    }
+                } catch (Exception e) {
+                    System.err.println("The server port needs to be an integer between 0 and 65535");
+                    System.exit(-1);
+                }
+                arguments.studySet = cmd.getOptionValue('s');
+            } else {
+                arguments.studySet = getRequiredOptionValue(cmd, 's');
+            }
             arguments.calculationName = cmd.getOptionValue('c');
             arguments.correctionName = cmd.getOptionValue('m');
             arguments.filterOutUnannotatedGenes = cmd.hasOption('i');
@@ -253,6 +276,32 @@ public static void main(String[] args)
                 }
             }
 
+            if (cmd.hasOption("resamplingcache")) {
+                try {
+                    long mib = Long.parseLong(cmd.getOptionValue("resamplingcache"));
+                    if (mib < 1) {
+                        throw new Exception();
+                    }
+                    arguments.resamplingCacheSize = mib * 1024 * 1024;
+                } catch (Exception e) {
+                    System.err.println("The resampling cache size needs to be a positive integer (MiB)");
+                    System.exit(-1);
+                }
+            }
+
+            if (cmd.hasOption("threads")) {
+                try {
+                    int threads = Integer.parseInt(cmd.getOptionValue("threads"));
+                    if (threads < 1) {
+                        throw new Exception();
+                    }
+                    arguments.numberOfThreads = threads;
+                } catch (Exception e) {
+                    System.err.println("The number of threads needs to be a positive integer");
+                    System.exit(-1);
+                }
+            }
+
             /* Evaluate the dot option */
             boolean createDOTFile = cmd.hasOption('d');
             double alpha = 0.05;
@@ -296,36 +345,54 @@ public static void main(String[] args)
             boolean createAnnotations = cmd.hasOption('n');
 
             /* Now issue the calculation */
-            OntologizerCore controller = new OntologizerCore(arguments);
-
-            EnrichedGOTermsResult studySetResult;
-
-            while ((studySetResult = controller.calculateNextStudy()) != null) {
-                /* outfile names are composed of StudySet name, calculation name and correction name */
-                String outBasename = studySetResult.getStudySet().getName()
-                    + "-" + controller.getCalculationName()
-                    + "-" + controller.getTestCorrectionName();
+            final OntologizerCore controller = new OntologizerCore(arguments);
+
+            if (serverPort >= 0) {
+                /* The server keeps running after main() has returned */
+                int threads = arguments.numberOfThreads > 0 ? arguments.numberOfThreads
+                    : Runtime.getRuntime().availableProcessors();
+                new OntologizerServer(controller, serverPort, threads).start();
+                return;
+            }
 
+            final File outputDirectory = new File(outputDirectoryName);
+            final boolean writeDOTFile = createDOTFile;
+            final boolean writeAnnotations = createAnnotations;
+            final double dotAlpha = alpha;
+            final TermID dotRoot = dotRootID;
+
+            /* Results are written as soon as they are available */
+            controller.calculateAll(new OntologizerCore.IStudySetResultHandler()
+            {
+                @Override
+                public void handle(EnrichedGOTermsResult studySetResult) throws IOException
                 {
-                    String tableName = "table-" + outBasename + ".txt";
-                    File outFile = new File(outputDirectoryName, tableName);
-                    studySetResult.writeTable(outFile);
-                }
+                    /* outfile names are composed of StudySet name, calculation name and correction name */
+                    String outBasename = studySetResult.getStudySet().getName()
+                        + "-" + controller.getCalculationName()
+                        + "-" + controller.getTestCorrectionName();
+
+                    {
+                        String tableName = "table-" + outBasename + ".txt";
+                        File outFile = new File(outputDirectory, tableName);
+                        studySetResult.writeTable(outFile);
+                    }
 
-                if (createDOTFile) {
-                    String dotName = "view-" + outBasename + ".dot";
-                    File outFile = new File(outputDirectoryName, dotName);
-                    studySetResult.writeDOT(controller.getGoGraph(), outFile, alpha, true, dotRootID);
-                }
+                    if (writeDOTFile) {
+                        String dotName = "view-" + outBasename + ".dot";
+                        File outFile = new File(outputDirectory, dotName);
+                        studySetResult.writeDOT(controller.getGoGraph(), outFile, dotAlpha, true, dotRoot);
+                    }
 
-                if (createAnnotations) {
-                    String annoName = "anno-" + outBasename + ".txt";
-                    File outFile = new File(outputDirectoryName, annoName);
-                    System.err.println("Writing anno file to " + outFile.getCanonicalPath());
-                    studySetResult.getStudySet().writeSetWithAnnotations(controller.getGoGraph(),
-                        controller.getGoAssociations(), outFile);
+                    if (writeAnnotations) {
+                        String annoName = "anno-" + outBasename + ".txt";
+                        File outFile = new File(outputDirectory, annoName);
+                        System.err.println("Writing anno file to " + outFile.getCanonicalPath());
+                        studySetResult.getStudySet().writeSetWithAnnotations(controller.getGoGraph(),
+                            controller.getGoAssociations(), outFile);
+                    }
                 }
-            }
+            });
         } catch (ParseException e) {
             System.err.println("Unable to parse the command line: " + e.getLocalizedMessage());
             System.exit(-1);
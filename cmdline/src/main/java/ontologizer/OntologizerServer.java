@@ -0,0 +1,366 @@
+package ontologizer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import ontologizer.calculation.EnrichedGOTermsResult;
+import ontologizer.parser.ItemAttribute;
+import ontologizer.set.StudySet;
+import ontologizer.types.ByteString;
+
+/**
+ * A resident server that keeps the ontology, the associations and the population of an {@link OntologizerCore}
+ * loaded and analyzes study sets that are posted via plain HTTP on the loopback interface. The server understands the
+ * following requests:
+ * <ul>
+ * <li><code>POST /analyze?name=&lt;name&gt;</code> analyzes the study set given in the body, which lists one gene
+ * per line with an optional description (the format of study set files). The response is the result table as it is
+ * written for study set files by the command line version. Genes that are not part of the population are removed
+ * from the study set, they are listed in a leading comment line starting with <code>#</code>.</li>
+ * <li><code>GET /metrics</code> returns the request counts, latencies and the throughput as lines of key value
+ * pairs.</li>
+ * </ul>
+ * Requests are read and parsed by a small pool of intake threads, so a slow client doesn't stall other requests. The
+ * study sets are then analyzed by a pool of worker threads, or a single worker if the calculation or the test
+ * correction doesn't allow concurrent analyses. Each worker takes one study set at a time. Study sets wait for a
+ * worker in a bounded queue; if the queue is full, the request is answered with status 503.
+ */
+public class OntologizerServer
+{
+    /** The maximum number of study sets that wait for a worker */
+    private static final int MAX_QUEUED_REQUESTS = 256;
+
+    /** The number of threads that read and parse the requests */
+    private static final int INTAKE_THREADS = 4;
+
+    /** Number of latency buckets, bucket i counts latencies below 2^i microseconds */
+    private static final int LATENCY_BUCKETS = 40;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final AtomicInteger poolNumber = new AtomicInteger();
+
+    /** A pending analysis */
+    private static class Request
+    {
+        HttpExchange exchange;
+
+        StudySet studySet;
+
+        long startTime;
+    }
+
+    private final OntologizerCore core;
+
+    private final int port;
+
+    private final int numberOfWorkers;
+
+    private final AtomicInteger requestNumber = new AtomicInteger();
+
+    private final AtomicLong completed = new AtomicLong();
+
+    private final AtomicLong failed = new AtomicLong();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    private final AtomicLong totalLatency = new AtomicLong();
+
+    private final AtomicLong maxLatency = new AtomicLong();
+
+    private final AtomicLongArray latencyHistogram = new AtomicLongArray(LATENCY_BUCKETS);
+
+    private long startTime;
+
+    private HttpServer server;
+
+    private ExecutorService intake;
+
+    private ThreadPoolExecutor workers;
+
+    /**
+     * Constructs the server.
+     *
+     * @param core the core that has loaded the ontology, the associations and the population.
+     * @param port the port on the loopback interface to listen on.
+     * @param numberOfThreads the number of worker threads.
+     */
+    public OntologizerServer(OntologizerCore core, int port, int numberOfThreads)
+    {
+        this.core = core;
+        this.port = port;
+        this.numberOfWorkers = core.isConcurrent() ? Math.max(1, numberOfThreads) : 1;
+    }
+
+    /**
+     * Starts the server. The method returns immediately, the server runs until {@link #stop()} is called.
+     *
+     * @throws IOException if the server socket couldn't be opened.
+     */
+    public void start() throws IOException
+    {
+        this.core.prepareSharedData();
+
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), this.port), 0);
+        this.server.createContext("/analyze", new HttpHandler()
+        {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                handleAnalyze(exchange);
+            }
+        });
+        this.server.createContext("/metrics", new HttpHandler()
+        {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                handleMetrics(exchange);
+            }
+        });
+
+        String prefix = "Server-" + poolNumber.incrementAndGet() + "-";
+        this.intake = Executors.newFixedThreadPool(INTAKE_THREADS, createThreadFactory(prefix + "intake-"));
+        this.server.setExecutor(this.intake);
+        this.workers = new ThreadPoolExecutor(this.numberOfWorkers, this.numberOfWorkers, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(MAX_QUEUED_REQUESTS), createThreadFactory(prefix + "worker-"));
+
+        this.startTime = System.nanoTime();
+        this.server.start();
+        System.err.println("Listening on " + this.server.getAddress() + " with " + this.numberOfWorkers + " worker(s)");
+    }
+
+    /**
+     * Stops the server. Pending requests are not answered anymore.
+     */
+    public void stop()
+    {
+        this.server.stop(0);
+        this.intake.shutdownNow();
+        this.workers.shutdownNow();
+    }
+
+    /**
+     * Creates a factory for daemon threads of the worker thread group.
+     *
+     * @param prefix the prefix of the names of the threads
+     * @return
+     */
+    private static ThreadFactory createThreadFactory(final String prefix)
+    {
+        return new ThreadFactory()
+        {
+            private final AtomicInteger threadNumber = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(OntologizerThreadGroups.workerThreadGroup, r,
+                    prefix + this.threadNumber.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    /**
+     * Parses the posted study set and queues it for the workers. Requests that don't fit into the queue are answered
+     * with status 503.
+     *
+     * @param exchange
+     * @throws IOException
+     */
+    private void handleAnalyze(HttpExchange exchange) throws IOException
+    {
+        if (!"POST".equals(exchange.getRequestMethod())) {
+            respond(exchange, 405, "Study sets need to be posted\n");
+            return;
+        }
+
+        final Request request = new Request();
+        request.startTime = System.nanoTime();
+        request.exchange = exchange;
+
+        String name = getParameter(exchange, "name");
+        if (name == null) {
+            name = "request-" + this.requestNumber.incrementAndGet();
+        }
+        request.studySet = new StudySet(name);
+
+        try (BufferedReader in =
+            new BufferedReader(new InputStreamReader(exchange.getRequestBody(), UTF8))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (line.length() == 0 || line.startsWith(";") || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\\s+", 2);
+                ItemAttribute attribute = new ItemAttribute();
+                attribute.description = fields.length > 1 ? fields[1] : "";
+                request.studySet.addGene(new ByteString(fields[0]), attribute);
+            }
+        }
+
+        try {
+            this.workers.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    process(request);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            this.rejected.incrementAndGet();
+            respond(exchange, 503, "Too many pending requests\n");
+        }
+    }
+
+    /**
+     * Analyzes the study set of the request and sends the response.
+     *
+     * @param request
+     */
+    private void process(Request request)
+    {
+        try {
+            String response;
+            try {
+                ArrayList<ByteString> removedGenes = new ArrayList<ByteString>();
+                EnrichedGOTermsResult result = this.core.analyzeStudySet(request.studySet, removedGenes);
+                StringWriter table = new StringWriter();
+                PrintWriter out = new PrintWriter(table);
+                if (removedGenes.size() > 0) {
+                    out.print("# Genes not in the population:");
+                    for (ByteString gene : removedGenes) {
+                        out.print(" ");
+                        out.print(gene);
+                    }
+                    out.println();
+                }
+                result.writeTable(out);
+                out.flush();
+                response = table.toString();
+            } catch (Throwable e) {
+                /* Keep the worker alive, even after errors like running out of memory */
+                this.failed.incrementAndGet();
+                respond(request.exchange, 500, "Analysis failed: " + e + "\n");
+                return;
+            }
+            respond(request.exchange, 200, response);
+        } catch (IOException e) {
+            /* The client has gone */
+            this.failed.incrementAndGet();
+            return;
+        }
+
+        long latency = (System.nanoTime() - request.startTime) / 1000;
+        this.completed.incrementAndGet();
+        this.totalLatency.addAndGet(latency);
+        long max;
+        while (latency > (max = this.maxLatency.get())) {
+            if (this.maxLatency.compareAndSet(max, latency)) {
+                break;
+            }
+        }
+        int bucket = Math.min(LATENCY_BUCKETS - 1, 64 - Long.numberOfLeadingZeros(latency));
+        this.latencyHistogram.incrementAndGet(bucket);
+    }
+
+    /**
+     * Returns the upper bound of the latency in milliseconds that the given fraction of requests didn't exceed.
+     *
+     * @param fraction
+     * @param total
+     * @return
+     */
+    private double getLatencyQuantile(double fraction, long total)
+    {
+        long needed = (long) Math.ceil(fraction * total);
+        long count = 0;
+        for (int i = 0; i < LATENCY_BUCKETS; i++) {
+            count += this.latencyHistogram.get(i);
+            if (count >= needed) {
+                return Math.min(1L << i, this.maxLatency.get()) / 1000.0;
+            }
+        }
+        return this.maxLatency.get() / 1000.0;
+    }
+
+    private void handleMetrics(HttpExchange exchange) throws IOException
+    {
+        long total = this.completed.get();
+        double seconds = (System.nanoTime() - this.startTime) / 1e9;
+
+        StringBuilder str = new StringBuilder();
+        str.append("workers ").append(this.numberOfWorkers).append('\n');
+        str.append("completed ").append(total).append('\n');
+        str.append("failed ").append(this.failed.get()).append('\n');
+        str.append("rejected ").append(this.rejected.get()).append('\n');
+        str.append("queued ").append(this.workers.getQueue().size()).append('\n');
+        str.append(String.format("latency_mean_ms %.3f\n", total > 0 ? this.totalLatency.get() / 1000.0 / total : 0));
+        str.append(String.format("latency_p50_ms %.3f\n", getLatencyQuantile(0.5, total)));
+        str.append(String.format("latency_p99_ms %.3f\n", getLatencyQuantile(0.99, total)));
+        str.append(String.format("latency_max_ms %.3f\n", this.maxLatency.get() / 1000.0));
+        str.append(String.format("throughput_per_s %.3f\n", total / seconds));
+        respond(exchange, 200, str.toString());
+    }
+
+    /**
+     * Returns the value of the given query parameter.
+     *
+     * @param exchange
+     * @param name
+     * @return the value or null if the parameter is not given.
+     * @throws IOException
+     */
+    private static String getParameter(HttpExchange exchange, String name) throws IOException
+    {
+        String query = exchange.getRequestURI().getRawQuery();
+        if (query == null) {
+            return null;
+        }
+        for (String param : query.split("&")) {
+            int eq = param.indexOf('=');
+            if (eq > 0 && param.substring(0, eq).equals(name)) {
+                return URLDecoder.decode(param.substring(eq + 1), "UTF-8");
+            }
+        }
+        return null;
+    }
+
+    private static void respond(HttpExchange exchange, int code, String body) throws IOException
+    {
+        byte[] bytes = body.getBytes(UTF8);
+        exchange.getResponseHeaders().set("Content-Type", "text/plain; charset=utf-8");
+        exchange.sendResponseHeaders(code, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+        exchange.close();
+    }
+}
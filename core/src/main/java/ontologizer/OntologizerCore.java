@@ -3,14 +3,28 @@
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import ontologizer.association.AssociationContainer;
 import ontologizer.association.AssociationParser;
+import ontologizer.association.Gene2Associations;
 import ontologizer.association.IAssociationParserProgress;
 import ontologizer.calculation.CalculationRegistry;
 import ontologizer.calculation.EnrichedGOTermsResult;
 import ontologizer.calculation.ICalculation;
+import ontologizer.calculation.IConcurrentCalculation;
+import ontologizer.calculation.TopCalculation;
 import ontologizer.calculation.b2g.B2GParam;
 import ontologizer.calculation.b2g.Bayes2GOCalculation;
 import ontologizer.filter.GeneFilter;
@@ -22,8 +36,12 @@
 import ontologizer.set.StudySet;
 import ontologizer.set.StudySetFactory;
 import ontologizer.set.StudySetList;
+import ontologizer.statistics.AbstractDeterministicTestCorrection;
+import ontologizer.statistics.AbstractResamplingTestCorrection;
 import ontologizer.statistics.AbstractTestCorrection;
+import ontologizer.statistics.Hypergeometric;
 import ontologizer.statistics.IResampling;
+import ontologizer.statistics.ResamplingCache;
 import ontologizer.statistics.TestCorrectionRegistry;
 import ontologizer.types.ByteString;
 
@@ -47,7 +65,7 @@
         /** gene_association.* file (and path) */
         public String associationFile;
 
-        /** Name of the study file (or directory) */
+        /** Name of the study file (or directory), might be null if study sets are only given later */
         public String studySet;
 
         /** Only study input files with this suffix are considered */
@@ -83,8 +101,40 @@
 
         /** Specifies the filter file */
         public String filterFile;
+
+        /**
+         * Maximal size in bytes of the persistent cache for resampled p values, which is kept below the file cache
+         * directory. 0 disables the persistent cache.
+         */
+        public long resamplingCacheSize;
+
+        /**
+         * Number of threads that are used to analyze the study sets and to draw the samples of resampling based mtc
+         * procedures. 0 means that the number of available processors is used.
+         */
+        public int numberOfThreads;
     };
 
+    /**
+     * Receives the results of {@link OntologizerCore#calculateAll(IStudySetResultHandler)}.
+     */
+    public static interface IStudySetResultHandler
+    {
+        /**
+         * Called for every analyzed study set in the order of the study set list and always on the thread that called
+         * calculateAll().
+         *
+         * @param result the result of the study set.
+         * @throws IOException if the result couldn't be processed. This aborts the analysis.
+         */
+        void handle(EnrichedGOTermsResult result) throws IOException;
+    }
+
+    /** Number of study sets that may be in flight per thread */
+    private static final int STUDIES_PER_THREAD = 2;
+
+    private static final AtomicInteger poolNumber = new AtomicInteger();
+
     /** Contains all avaiable GOTerms */
     private TermContainer goTerms;
 
@@ -111,6 +161,15 @@
      */
     private PopulationSet populationSet;
 
+    /** Number of threads used by calculateAll() */
+    private int numberOfThreads;
+
+    /** The optional filter that is applied to all study sets */
+    private GeneFilter geneFilter;
+
+    /** Should genes of study sets be filtered out, from which there exists no annotation? */
+    private boolean filterOutUnannotatedGenes;
+
     /**
      * Construct the object.
      *
@@ -152,6 +211,15 @@ public OntologizerCore(Arguments args) throws FileNotFoundException, IOException
             }
         }
 
+        this.numberOfThreads = args.numberOfThreads > 0 ? args.numberOfThreads
+            : Runtime.getRuntime().availableProcessors();
+        if (this.testCorrection instanceof AbstractResamplingTestCorrection) {
+            ((AbstractResamplingTestCorrection) this.testCorrection).setNumberOfThreads(this.numberOfThreads);
+        }
+        if (this.calculation instanceof TopCalculation) {
+            ((TopCalculation) this.calculation).setNumberOfProcessors(this.numberOfThreads);
+        }
+
         /*
          * Parse the gene_ontology.obo file to get information about all terms. Transfer the information to a
          * TermContainer object.
@@ -165,8 +233,10 @@ public OntologizerCore(Arguments args) throws FileNotFoundException, IOException
         this.goGraph = new Ontology(this.goTerms);
 
         /* create the study list. A directory or a single file might be given */
-        File studyFile = new File(args.studySet);
-        if (studyFile.isDirectory()) {
+        File studyFile = args.studySet != null ? new File(args.studySet) : null;
+        if (studyFile == null) {
+            this.studySetList = new StudySetList("study");
+        } else if (studyFile.isDirectory()) {
             this.studySetList = new StudySetList(args.studySet, args.suffix);
         } else {
             /* Create a study list with a dummy name and add the study manually */
@@ -181,6 +251,7 @@ public OntologizerCore(Arguments args) throws FileNotFoundException, IOException
         if (args.filterFile != null) {
             System.err.println("Parsing filter \"" + args.filterFile + "\"");
             GeneFilter filter = new GeneFilter(new File(args.filterFile));
+            this.geneFilter = filter;
 
             System.err.println("Appling filter");
             this.populationSet.applyFilter(filter);
@@ -244,6 +315,7 @@ public void update(int current)
             study.filterOutDuplicateGenes(this.goAssociations);
         }
 
+        this.filterOutUnannotatedGenes = args.filterOutUnannotatedGenes;
         if (args.filterOutUnannotatedGenes) {
             /* Filter out genes within the study without any annotations */
             for (StudySet study : this.studySetList) {
@@ -253,6 +325,51 @@ public void update(int current)
             /* Filter out genes within the population which doesn't have an annotation */
             this.populationSet.filterOutAssociationlessGenes(this.goAssociations);
         }
+
+        if (this.testCorrection instanceof AbstractResamplingTestCorrection) {
+            setupResamplingCache(args);
+        }
+    }
+
+    /**
+     * Attaches the persistent resampling cache to the test correction. The cache context covers the ontology, the
+     * associations, the population and the calculation. The cache is detached if it is disabled by the arguments.
+     *
+     * @param args
+     * @throws IOException
+     */
+    private void setupResamplingCache(Arguments args) throws IOException
+    {
+        AbstractResamplingTestCorrection resampling = (AbstractResamplingTestCorrection) this.testCorrection;
+        if (args.resamplingCacheSize <= 0) {
+            resampling.setPersistentCache(null, null);
+            return;
+        }
+
+        /* Use the directory of the file cache, but don't configure the file cache as a side effect */
+        File cacheDirectory;
+        if (FileCache.getCacheDirectory() != null) {
+            cacheDirectory = new File(FileCache.getCacheDirectory());
+        } else {
+            File workspace = new File(ontologizer.util.Util.getAppDataDirectory("ontologizer"), "workspace");
+            cacheDirectory = new File(workspace, ".cache");
+        }
+
+        ArrayList<String> population = new ArrayList<String>();
+        for (ByteString gene : this.populationSet) {
+            population.add(gene.toString());
+        }
+        Collections.sort(population);
+
+        /* The files are identified by their contents, so a moved or touched file doesn't invalidate the cache */
+        String context = ResamplingCache.createKey(
+            this.goTerms.getFormatVersion(), this.goTerms.getDate(), this.goGraph.getNumberOfTerms(),
+            ResamplingCache.createFileKey(new File(args.goTermsOBOFile)),
+            ResamplingCache.createFileKey(new File(args.associationFile)),
+            ResamplingCache.createKey(population.toArray()), this.calculation.getName());
+
+        ResamplingCache cache = new ResamplingCache(new File(cacheDirectory, "resampling"), args.resamplingCacheSize);
+        resampling.setPersistentCache(cache, context);
     }
 
     /**
@@ -279,17 +396,220 @@ public void calculate()
         assert(this.populationSet != null);
         this.studySetResultList = new StudySetResultList();
 
+        try {
+            calculateAll(new IStudySetResultHandler()
+            {
+                @Override
+                public void handle(EnrichedGOTermsResult result)
+                {
+                    OntologizerCore.this.studySetResultList.addStudySetResult(result);
+                }
+            });
+        } catch (IOException e) {
+            /* Cannot happen, as the handler doesn't throw */
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Perform the statistical calculation of all studies. The data that is shared among the studies, i.e., the
+     * enumeration of the population, the slim graph and the log factorial table of the hypergeometric distribution,
+     * is built once upfront. Afterwards, the studies are analyzed on a bounded number of threads if both the
+     * calculation and the test correction allow this, i.e., if the calculation implements
+     * {@link IConcurrentCalculation} and the test correction is deterministic. Otherwise, the studies are analyzed one
+     * after another.
+     * <p>
+     * Each result is passed to the handler as soon as it and all results of the preceding studies are available. The
+     * results are passed in the order of the study set list on the calling thread, hence the output doesn't depend on
+     * the number of threads.
+     *
+     * @param handler receives the results.
+     * @throws IOException if the handler failed. The analysis is aborted in this case.
+     */
+    public void calculateAll(IStudySetResultHandler handler) throws IOException
+    {
+        assert(this.populationSet != null);
+
+        prepareSharedData();
+
+        final ArrayList<StudySet> studySets = new ArrayList<StudySet>();
         for (StudySet studySet : this.studySetList) {
-            this.studySetResultList.addStudySetResult(
-                this.calculation.calculateStudySet(this.goGraph, this.goAssociations, this.populationSet, studySet,
-                    this.testCorrection));
-
-            /*
-             * Reset the counter and enumerator items here. It is not necessarily nice to place it here, but for the
-             * moment it's the easiest way
-             */
-            studySet.resetCounterAndEnumerator();
+            studySets.add(studySet);
+        }
+
+        int threads = Math.min(this.numberOfThreads, studySets.size());
+        if (threads <= 1 || !isConcurrent()) {
+            for (StudySet studySet : studySets) {
+                handler.handle(calculateStudySet(studySet));
+            }
+            return;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads, new ThreadFactory()
+        {
+            private final String prefix = "Study-" + poolNumber.incrementAndGet() + "-";
+
+            private final AtomicInteger threadNumber = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(OntologizerThreadGroups.workerThreadGroup, r,
+                    this.prefix + this.threadNumber.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        try {
+            CompletionService<IndexedResult> completionService = new ExecutorCompletionService<IndexedResult>(pool);
+            int studies = studySets.size();
+            EnrichedGOTermsResult[] pending = new EnrichedGOTermsResult[studies];
+            int window = threads * STUDIES_PER_THREAD;
+            int submitted = 0;
+            int next = 0;
+
+            while (next < studies) {
+                /* Keep the number of studies that are in flight, and hence the number of pending results, bounded */
+                while (submitted < studies && submitted - next < window) {
+                    final int index = submitted++;
+                    completionService.submit(new Callable<IndexedResult>()
+                    {
+                        @Override
+                        public IndexedResult call()
+                        {
+                            IndexedResult r = new IndexedResult();
+                            r.index = index;
+                            r.result = calculateStudySet(studySets.get(index));
+                            return r;
+                        }
+                    });
+                }
+
+                IndexedResult r = completionService.take().get();
+                pending[r.index] = r.result;
+
+                /* Pass all results that are now available in order */
+                while (next < studies && pending[next] != null) {
+                    EnrichedGOTermsResult result = pending[next];
+                    pending[next] = null;
+                    next++;
+                    handler.handle(result);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Analysis has been interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /** A result together with the index of its study */
+    private static class IndexedResult
+    {
+        int index;
+
+        EnrichedGOTermsResult result;
+    }
+
+    /**
+     * @return whether the studies may be analyzed concurrently.
+     */
+    public boolean isConcurrent()
+    {
+        return this.calculation instanceof IConcurrentCalculation
+            && this.testCorrection instanceof AbstractDeterministicTestCorrection;
+    }
+
+    /**
+     * Builds the data that is shared among the studies, so that it is not built by the first studies concurrently.
+     * This is done by calculateAll(), but needs to be called before {@link #analyzeStudySet(StudySet, Collection)} is
+     * called concurrently.
+     */
+    public void prepareSharedData()
+    {
+        this.populationSet.enumerateGOTerms(this.goGraph, this.goAssociations);
+        this.goGraph.getSharedSlimGraphView();
+        new Hypergeometric().logfact(this.populationSet.getGeneCount());
+    }
+
+    /**
+     * Perform the statistical calculation of the given study.
+     *
+     * @param studySet
+     * @return the result of the calculation
+     */
+    private EnrichedGOTermsResult calculateStudySet(StudySet studySet)
+    {
+        EnrichedGOTermsResult studySetResult =
+            this.calculation.calculateStudySet(this.goGraph, this.goAssociations, this.populationSet, studySet,
+                this.testCorrection);
+
+        /*
+         * Reset the counter and enumerator items here. It is not necessarily nice to place it here, but for the moment
+         * it's the easiest way
+         */
+        studySet.resetCounterAndEnumerator();
+        return studySetResult;
+    }
+
+    /**
+     * Perform the statistical calculation of a study set that is not part of the study set list, e.g., one that has
+     * been received after the ontology, the associations and the population have been loaded. The study set is
+     * prepared like the study sets given on construction, i.e., the filter is applied and duplicate (and if requested
+     * unannotated) genes are removed. In contrast to those, genes that are not part of the population (neither by
+     * name nor by synonym) can't be added to the population, as the associations have been parsed for the population
+     * genes only. Hence such genes are removed from the study set.
+     * <p>
+     * This method may be called concurrently if {@link #isConcurrent()} returns true and the shared data has been
+     * prepared.
+     *
+     * @param studySet
+     * @param removedGenes receives the genes that have been removed because they are not part of the population.
+     *            May be null.
+     * @return the result of the calculation
+     */
+    public EnrichedGOTermsResult analyzeStudySet(StudySet studySet, Collection<ByteString> removedGenes)
+    {
+        if (this.geneFilter != null) {
+            studySet.applyFilter(this.geneFilter);
+        }
+        studySet.filterOutDuplicateGenes(this.goAssociations);
+
+        /*
+         * The population holds the primary names only, but like in the study sets given on construction, genes may be
+         * referred to by synonyms
+         */
+        ArrayList<ByteString> unknownGenes = new ArrayList<ByteString>();
+        for (ByteString gene : studySet) {
+            if (this.populationSet.contains(gene)) {
+                continue;
+            }
+            Gene2Associations gene2Associations = this.goAssociations.get(gene);
+            if (gene2Associations == null || !this.populationSet.contains(gene2Associations.name())) {
+                unknownGenes.add(gene);
+            }
+        }
+        if (unknownGenes.size() > 0) {
+            studySet.removeGenes(unknownGenes);
+            if (removedGenes != null) {
+                removedGenes.addAll(unknownGenes);
+            }
+        }
+
+        if (this.filterOutUnannotatedGenes) {
+            studySet.filterOutAssociationlessGenes(this.goAssociations);
         }
+        return calculateStudySet(studySet);
     }
 
     private Iterator<StudySet> studySetIter;
@@ -310,17 +630,7 @@ public EnrichedGOTermsResult calculateNextStudy()
             return null;
         }
 
-        StudySet studySet = this.studySetIter.next();
-        EnrichedGOTermsResult studySetResult =
-            this.calculation.calculateStudySet(this.goGraph, this.goAssociations, this.populationSet, studySet,
-                this.testCorrection);
-
-        /*
-         * Reset the counter and enumerator items here. It is not necessarily nice to place it here, but for the moment
-         * it's the easiest way
-         */
-        studySet.resetCounterAndEnumerator();
-        return studySetResult;
+        return calculateStudySet(this.studySetIter.next());
     }
 
     public AssociationContainer getGoAssociations()
@@ -3,11 +3,12 @@
 import ontologizer.statistics.Hypergeometric;
 
 /**
- * This is the abstract base class for all calculation involving the hypergeometric distribution.
+ * This is the abstract base class for all calculation involving the hypergeometric distribution. The hypergeometric
+ * object is thread-safe, subclasses that don't keep per-study state in fields may be run concurrently.
  *
  * @author Sebastian Bauer
  */
-public abstract class AbstractHypergeometricCalculation implements ICalculation
+public abstract class AbstractHypergeometricCalculation implements IConcurrentCalculation
 {
     /**
      * An object responsible for calculation of hypergeometric data
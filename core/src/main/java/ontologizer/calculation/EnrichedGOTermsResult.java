@@ -105,32 +105,45 @@ public void writeTable(File file)
             logger.info("Writing to \"" + file.getCanonicalPath() + "\".");
 
             PrintWriter out = new PrintWriter(file);
+            writeTable(out);
+            out.close();
 
-            /* Write out the table header */
-            AbstractGOTermProperties first = this.list.get(0);
+            logger.info("\"" + file.getCanonicalPath() + "\"" + " successfully written.");
+        } catch (IOException e) {
+            logger.error("Exception occured when writing the table.", e);
+        }
+    }
 
-            out.write(first.propHeaderToString());
+    /**
+     * Writes the table to the given writer. Nothing is written if the result is empty.
+     *
+     * @param out
+     */
+    public void writeTable(PrintWriter out)
+    {
+        if (this.list.isEmpty()) {
+            return;
+        }
 
-            /* Place the result into an own list, so we can sort the results */
-            ArrayList<AbstractGOTermProperties> propsList = new ArrayList<AbstractGOTermProperties>();
-            for (AbstractGOTermProperties props : this) {
-                propsList.add(props);
-            }
-            Collections.sort(propsList);
+        /* Write out the table header */
+        AbstractGOTermProperties first = this.list.get(0);
 
-            /* Write out table contents */
-            for (AbstractGOTermProperties props : propsList) {
-                out.println(props.propLineToString(this.populationGeneCount,
-                    this.studyGeneCount));
-            }
+        out.write(first.propHeaderToString());
 
-            out.flush();
-            out.close();
+        /* Place the result into an own list, so we can sort the results */
+        ArrayList<AbstractGOTermProperties> propsList = new ArrayList<AbstractGOTermProperties>();
+        for (AbstractGOTermProperties props : this) {
+            propsList.add(props);
+        }
+        Collections.sort(propsList);
 
-            logger.info("\"" + file.getCanonicalPath() + "\"" + " successfully written.");
-        } catch (IOException e) {
-            logger.error("Exception occured when writing the table.", e);
+        /* Write out table contents */
+        for (AbstractGOTermProperties props : propsList) {
+            out.println(props.propLineToString(this.populationGeneCount,
+                this.studyGeneCount));
         }
+
+        out.flush();
     }
 
     /**
@@ -0,0 +1,25 @@
+package ontologizer.calculation;
+
+import ontologizer.types.ByteString;
+
+/**
+ * A gene together with its similarity to some query gene.
+ */
+public class GeneSimilarity
+{
+    public final ByteString gene;
+
+    public final double similarity;
+
+    public GeneSimilarity(ByteString gene, double similarity)
+    {
+        this.gene = gene;
+        this.similarity = similarity;
+    }
+
+    @Override
+    public String toString()
+    {
+        return this.gene + "=" + this.similarity;
+    }
+}
@@ -0,0 +1,10 @@
+package ontologizer.calculation;
+
+/**
+ * Marker interface for calculations whose calculateStudySet() may be invoked concurrently for different study sets.
+ * Such calculations keep all per-study state local to the invocation and produce results that don't depend on the
+ * order of the invocations.
+ */
+public interface IConcurrentCalculation extends ICalculation
+{
+}
@@ -0,0 +1,301 @@
+package ontologizer.calculation;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import ontologizer.types.ByteString;
+
+/**
+ * A similarity matrix that is stored in a memory-mapped file, so matrices of genome-wide gene sets don't need to fit
+ * into the heap. The file consists of a header followed by the upper triangle of the matrix packed row by row. The
+ * header contains
+ * <ul>
+ * <li>the magic bytes <code>ONTOSIM1</code>,</li>
+ * <li>the data type of the entries as int, which is their size in bytes (4 for float, 8 for double),</li>
+ * <li>the dimension of the matrix as int,</li>
+ * <li>the names of the genes, each given by the length of its UTF-8 encoding as int and the encoding itself,</li>
+ * <li>zero padding up to a multiple of 8 bytes.</li>
+ * </ul>
+ * All numbers are stored in big endian byte order. As a single mapping is limited to 2 GB, the data is mapped in
+ * chunks. The file is kept open until the matrix is closed. Closing drops the mappings, but the memory is unmapped
+ * only once they are garbage collected, which the platform may require before the file can be deleted or truncated.
+ */
+public class MappedSimilarityMatrix extends SimilarityMatrix implements Closeable
+{
+    /** Data type of matrices whose entries are stored as float */
+    public static final int FLOAT = 4;
+
+    /** Data type of matrices whose entries are stored as double */
+    public static final int DOUBLE = 8;
+
+    private static final byte[] MAGIC = "ONTOSIM1".getBytes(Charset.forName("US-ASCII"));
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /** The size of a chunk is 2^CHUNK_BITS bytes, which is a multiple of all entry sizes */
+    private static final int CHUNK_BITS = 30;
+
+    private static final long CHUNK_MASK = (1L << CHUNK_BITS) - 1;
+
+    private final ByteString[] names;
+
+    private final int n;
+
+    private final int dataType;
+
+    private final RandomAccessFile file;
+
+    /** The mapped data, null once the matrix has been closed */
+    private MappedByteBuffer[] chunks;
+
+    private final boolean writable;
+
+    private MappedSimilarityMatrix(RandomAccessFile file, ByteString[] names, int dataType, long dataOffset,
+        boolean writable) throws IOException
+    {
+        this.file = file;
+        this.names = names;
+        this.n = names.length;
+        this.dataType = dataType;
+        this.writable = writable;
+
+        long dataSize = size(this.n) * dataType;
+        FileChannel channel = file.getChannel();
+        if (channel.size() < dataOffset + dataSize) {
+            throw new IOException("The similarity matrix file is truncated");
+        }
+        MappedByteBuffer[] chunks = new MappedByteBuffer[(int) ((dataSize + CHUNK_MASK) >>> CHUNK_BITS)];
+        for (int k = 0; k < chunks.length; k++) {
+            long start = (long) k << CHUNK_BITS;
+            chunks[k] = channel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY,
+                dataOffset + start, Math.min(dataSize - start, 1L << CHUNK_BITS));
+        }
+        this.chunks = chunks;
+    }
+
+    /**
+     * Creates a new matrix file whose entries are all 0. An existing file is overwritten.
+     *
+     * @param file
+     * @param names the names of the genes that correspond to the rows and columns.
+     * @param dataType either {@link #FLOAT} or {@link #DOUBLE}.
+     * @return the matrix, which can be written to.
+     * @throws IOException
+     */
+    public static MappedSimilarityMatrix create(File file, ByteString[] names, int dataType) throws IOException
+    {
+        if (dataType != FLOAT && dataType != DOUBLE) {
+            throw new IllegalArgumentException("Unsupported data type " + dataType);
+        }
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream header = new DataOutputStream(bytes);
+        header.write(MAGIC);
+        header.writeInt(dataType);
+        header.writeInt(names.length);
+        for (ByteString name : names) {
+            byte[] encoded = name.toString().getBytes(UTF8);
+            header.writeInt(encoded.length);
+            header.write(encoded);
+        }
+        while (header.size() % 8 != 0) {
+            header.write(0);
+        }
+        header.flush();
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(0);
+            raf.write(bytes.toByteArray());
+            raf.setLength(bytes.size() + size(names.length) * dataType);
+            return new MappedSimilarityMatrix(raf, names.clone(), dataType, bytes.size(), true);
+        } catch (IOException | RuntimeException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens an existing matrix file for reading.
+     *
+     * @param file
+     * @return the matrix, which can't be written to.
+     * @throws IOException if the file couldn't be read or is not a matrix file.
+     */
+    public static MappedSimilarityMatrix open(File file) throws IOException
+    {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            long size = raf.length();
+            DataInputStream header =
+                new DataInputStream(new BufferedInputStream(Channels.newInputStream(raf.getChannel())));
+
+            byte[] magic = new byte[MAGIC.length];
+            header.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) {
+                throw new IOException("\"" + file + "\" is not a similarity matrix file");
+            }
+            int dataType = header.readInt();
+            if (dataType != FLOAT && dataType != DOUBLE) {
+                throw new IOException("Unsupported data type " + dataType + " in \"" + file + "\"");
+            }
+            long offset = MAGIC.length + 8;
+
+            /* Each name occupies at least 4 bytes */
+            int n = header.readInt();
+            if (n < 0 || n > (size - offset) / 4) {
+                throw new IOException("Invalid dimension " + n + " in \"" + file + "\"");
+            }
+
+            ByteString[] names = new ByteString[n];
+            for (int i = 0; i < n; i++) {
+                int length = header.readInt();
+                if (length < 0 || length > size - offset - 4) {
+                    throw new IOException("Invalid length " + length + " of name " + i + " in \"" + file + "\"");
+                }
+                byte[] encoded = new byte[length];
+                header.readFully(encoded);
+                names[i] = new ByteString(new String(encoded, UTF8));
+                offset += 4 + encoded.length;
+            }
+            offset = (offset + 7) & ~7L;
+
+            return new MappedSimilarityMatrix(raf, names, dataType, offset, false);
+        } catch (IOException | RuntimeException e) {
+            raf.close();
+            throw e;
+        }
+    }
+
+    /**
+     * @return the names of the genes that correspond to the rows and columns.
+     */
+    public ByteString[] getNames()
+    {
+        return this.names;
+    }
+
+    /**
+     * @return the data type of the entries, either {@link #FLOAT} or {@link #DOUBLE}.
+     */
+    public int getDataType()
+    {
+        return this.dataType;
+    }
+
+    @Override
+    public int getDimension()
+    {
+        return this.n;
+    }
+
+    private MappedByteBuffer[] getChunks()
+    {
+        MappedByteBuffer[] chunks = this.chunks;
+        if (chunks == null) {
+            throw new IllegalStateException("The similarity matrix has been closed");
+        }
+        return chunks;
+    }
+
+    private double read(long index)
+    {
+        long pos = index * this.dataType;
+        MappedByteBuffer chunk = getChunks()[(int) (pos >>> CHUNK_BITS)];
+        if (this.dataType == FLOAT) {
+            return chunk.getFloat((int) (pos & CHUNK_MASK));
+        }
+        return chunk.getDouble((int) (pos & CHUNK_MASK));
+    }
+
+    @Override
+    public double get(int i, int j)
+    {
+        return read(index(this.n, i, j));
+    }
+
+    @Override
+    public void set(int i, int j, double sim)
+    {
+        if (!this.writable) {
+            throw new UnsupportedOperationException("The similarity matrix has been opened for reading");
+        }
+
+        long pos = index(this.n, i, j) * this.dataType;
+        MappedByteBuffer chunk = getChunks()[(int) (pos >>> CHUNK_BITS)];
+        if (this.dataType == FLOAT) {
+            chunk.putFloat((int) (pos & CHUNK_MASK), (float) sim);
+        } else {
+            chunk.putDouble((int) (pos & CHUNK_MASK), sim);
+        }
+    }
+
+    @Override
+    public void getRow(int i, double[] row)
+    {
+        for (int j = 0; j < i; j++) {
+            row[j] = get(j, i);
+        }
+        long index = index(this.n, i, i);
+        for (int j = i; j < this.n; j++) {
+            row[j] = read(index++);
+        }
+    }
+
+    @Override
+    public void visitRows(IRowVisitor visitor)
+    {
+        double[] values = new double[this.n];
+        long index = 0;
+        for (int i = 0; i < this.n; i++) {
+            for (int j = i; j < this.n; j++) {
+                values[j] = read(index++);
+            }
+            if (!visitor.visited(i, values)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Writes all changes to the storage device.
+     */
+    public void force()
+    {
+        if (!this.writable) {
+            return;
+        }
+        for (MappedByteBuffer chunk : getChunks()) {
+            chunk.force();
+        }
+    }
+
+    /**
+     * Writes all changes to the storage device if the matrix has been created and releases the file. The matrix can't
+     * be accessed anymore afterwards.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (this.chunks == null) {
+            return;
+        }
+        try {
+            force();
+        } finally {
+            this.chunks = null;
+            this.file.close();
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package ontologizer.calculation;
+
+/**
+ * A similarity matrix whose upper triangle is packed row by row into a single array on the heap.
+ */
+public class PackedSimilarityMatrix extends SimilarityMatrix
+{
+    private final int n;
+
+    private final double[] values;
+
+    /**
+     * Constructs a matrix of the given dimension with all similarities being 0.
+     *
+     * @param n the dimension, whose upper triangle must fit into an array.
+     */
+    public PackedSimilarityMatrix(int n)
+    {
+        long size = size(n);
+        if (size > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("A similarity matrix of dimension " + n + " doesn't fit into an array");
+        }
+        this.n = n;
+        this.values = new double[(int) size];
+    }
+
+    @Override
+    public int getDimension()
+    {
+        return this.n;
+    }
+
+    @Override
+    public double get(int i, int j)
+    {
+        return this.values[(int) index(this.n, i, j)];
+    }
+
+    @Override
+    public void set(int i, int j, double sim)
+    {
+        this.values[(int) index(this.n, i, j)] = sim;
+    }
+}
@@ -1,6 +1,7 @@
 package ontologizer.calculation;
 
 import java.util.HashSet;
+import java.util.Random;
 import java.util.Set;
 
 import ontologizer.association.AssociationContainer;
@@ -10,13 +11,28 @@
 import ontologizer.set.PopulationSet;
 import ontologizer.set.StudySet;
 import ontologizer.statistics.AbstractTestCorrection;
-import ontologizer.statistics.IPValueCalculation;
+import ontologizer.statistics.IRandomPValueCalculation;
 import ontologizer.statistics.PValue;
 import ontologizer.types.ByteString;
 
 public class ParentChildCalculation extends
     AbstractHypergeometricCalculation
 {
+    /** The parent families of the most recently used population */
+    private ParentFamilyIndex families;
+
+    /**
+     * Returns the parent families of the given population. They are computed only if the population differs from the
+     * one of the previous call.
+     */
+    private synchronized ParentFamilyIndex getFamilies(Ontology graph, PopulationSet populationSet,
+        GOTermEnumerator popTermEnumerator)
+    {
+        if (this.families == null || !this.families.isFor(graph, popTermEnumerator)) {
+            this.families = new ParentFamilyIndex(graph, populationSet, popTermEnumerator, false);
+        }
+        return this.families;
+    }
 
     @Override
     public String getName()
@@ -51,7 +67,7 @@ public EnrichedGOTermsResult calculateStudySet(
          *
          * @author Sebastian Bauer
          */
-        class ParentChildPValuesCalculation implements IPValueCalculation
+        class ParentChildPValuesCalculation implements IRandomPValueCalculation
         {
             /*
              * We basically have the arguments of calculateStudy as fields
@@ -64,6 +80,8 @@ class ParentChildPValuesCalculation implements IPValueCalculation
 
             public GOTermEnumerator popTermEnumerator;
 
+            public ParentFamilyIndex families;
+
             public StudySet observedStudySet;
 
             private PValue[] calculatePValues(StudySet studySet)
@@ -72,6 +90,9 @@ private PValue[] calculatePValues(StudySet studySet)
                 GOTermEnumerator studyTermEnumerator = studySet.enumerateGOTerms(this.graph,
                     this.goAssociations);
 
+                /* Study genes within the parent families are counted via this bitmap if possible */
+                long[] studyGenes = this.families.createBitmap(studySet);
+
                 // PValue p [] = new PValue[populationTermCounter.getTotalNumberOfAnnotatedTerms()];
                 PValue p[] = new PValue[this.popTermEnumerator.getTotalNumberOfAnnotatedTerms()];
                 int i = 0;
@@ -80,7 +101,7 @@ private PValue[] calculatePValues(StudySet studySet)
                 for (TermID term : this.popTermEnumerator) {
                     // calculating properties of term
                     ParentChildGOTermProperties termProp = calculateTerm(term, this.graph,
-                        this.popTermEnumerator, studyTermEnumerator);
+                        this.popTermEnumerator, studyTermEnumerator, studyGenes);
 
                     // adding properties to p Vector
                     p[i++] = termProp;
@@ -108,11 +129,19 @@ public PValue[] calculateRandomPValues()
                     this.populationSet.generateRandomStudySet(this.observedStudySet.getGeneCount()));
             }
 
+            @Override
+            public PValue[] calculateRandomPValues(Random rnd)
+            {
+                return calculatePValues(
+                    this.populationSet.generateRandomStudySet(this.observedStudySet.getGeneCount(), rnd));
+            }
+
             private ParentChildGOTermProperties calculateTerm(
                 TermID term,
                 Ontology graph,
                 GOTermEnumerator popTermEnumerator,
-                GOTermEnumerator studyTermEnumerator)
+                GOTermEnumerator studyTermEnumerator,
+                long[] studyGenes)
             {
                 // counts annotated to term
                 int studyTermCount = studyTermEnumerator.getAnnotatedGenes(term).totalAnnotatedCount();
@@ -134,21 +163,29 @@ private ParentChildGOTermProperties calculateTerm(
                     // getting parents
                     Set<TermID> parents = graph.getTermParents(term);
 
-                    // These will hold the names of all genes directly annotated to parents
-                    HashSet<ByteString> popParentAllGenes = new HashSet<ByteString>();
-                    HashSet<ByteString> studyParentAllGenes = new HashSet<ByteString>();
+                    // number of genes annotated to family (term and parents)
+                    int popFamilyCount;
+                    int studyFamilyCount;
 
-                    // looping over all parents to get the genes and adding all annotated genes to HashSets
-                    for (TermID parent : parents) {
-                        popParentAllGenes.addAll(
-                            popTermEnumerator.getAnnotatedGenes(parent).totalAnnotated);
-                        studyParentAllGenes.addAll(
-                            studyTermEnumerator.getAnnotatedGenes(parent).totalAnnotated);
-                    }
+                    if (studyGenes != null) {
+                        popFamilyCount = this.families.getFamilySize(term);
+                        studyFamilyCount = this.families.countFamilyGenes(term, studyGenes);
+                    } else {
+                        // These will hold the names of all genes directly annotated to parents
+                        HashSet<ByteString> popParentAllGenes = new HashSet<ByteString>();
+                        HashSet<ByteString> studyParentAllGenes = new HashSet<ByteString>();
+
+                        // looping over all parents to get the genes and adding all annotated genes to HashSets
+                        for (TermID parent : parents) {
+                            popParentAllGenes.addAll(
+                                popTermEnumerator.getAnnotatedGenes(parent).totalAnnotated);
+                            studyParentAllGenes.addAll(
+                                studyTermEnumerator.getAnnotatedGenes(parent).totalAnnotated);
+                        }
 
-                    // number of genes annotated to family (term and parents)
-                    int popFamilyCount = popParentAllGenes.size();
-                    int studyFamilyCount = studyParentAllGenes.size();
+                        popFamilyCount = popParentAllGenes.size();
+                        studyFamilyCount = studyParentAllGenes.size();
+                    }
 
                     prop.popFamilyGenes = popFamilyCount;
                     prop.studyFamilyGenes = studyFamilyCount;
@@ -193,6 +230,7 @@ private ParentChildGOTermProperties calculateTerm(
         pValueCalculation.graph = graph;
         pValueCalculation.populationSet = popSet;
         pValueCalculation.popTermEnumerator = popSet.enumerateGOTerms(graph, goAssociations);
+        pValueCalculation.families = getFamilies(graph, popSet, pValueCalculation.popTermEnumerator);
         pValueCalculation.observedStudySet = studySet;
         PValue p[] = testCorrection.adjustPValues(pValueCalculation);
 
@@ -1,6 +1,7 @@
 package ontologizer.calculation;
 
 import java.util.HashSet;
+import java.util.Random;
 import java.util.Set;
 
 import ontologizer.association.AssociationContainer;
@@ -10,13 +11,28 @@
 import ontologizer.set.PopulationSet;
 import ontologizer.set.StudySet;
 import ontologizer.statistics.AbstractTestCorrection;
-import ontologizer.statistics.IPValueCalculation;
+import ontologizer.statistics.IRandomPValueCalculation;
 import ontologizer.statistics.PValue;
 import ontologizer.types.ByteString;
 
 public class ParentChildCutCalculation extends
     AbstractHypergeometricCalculation
 {
+    /** The parent families of the most recently used population */
+    private ParentFamilyIndex families;
+
+    /**
+     * Returns the parent families of the given population. They are computed only if the population differs from the
+     * one of the previous call.
+     */
+    private synchronized ParentFamilyIndex getFamilies(Ontology graph, PopulationSet populationSet,
+        GOTermEnumerator popTermEnumerator)
+    {
+        if (this.families == null || !this.families.isFor(graph, popTermEnumerator)) {
+            this.families = new ParentFamilyIndex(graph, populationSet, popTermEnumerator, true);
+        }
+        return this.families;
+    }
 
     @Override
     public String getName()
@@ -50,7 +66,7 @@ public EnrichedGOTermsResult calculateStudySet(Ontology graph,
          *
          * @author Sebastian Bauer
          */
-        class ParentChildPValuesCalculation implements IPValueCalculation
+        class ParentChildPValuesCalculation implements IRandomPValueCalculation
         {
             /*
              * We basically have the arguments of calculateStudy as fields
@@ -63,6 +79,8 @@ class ParentChildPValuesCalculation implements IPValueCalculation
 
             public GOTermEnumerator popTermEnumerator;
 
+            public ParentFamilyIndex families;
+
             public StudySet observedStudySet;
 
             private PValue[] calculatePValues(StudySet studySet)
@@ -71,6 +89,9 @@ private PValue[] calculatePValues(StudySet studySet)
                 GOTermEnumerator studyTermEnumerator = studySet.enumerateGOTerms(
                     this.graph, this.goAssociations);
 
+                /* Study genes within the parent families are counted via this bitmap if possible */
+                long[] studyGenes = this.families.createBitmap(studySet);
+
                 // PValue p [] = new
                 // PValue[populationTermCounter.getTotalNumberOfAnnotatedTerms()];
                 PValue p[] = new PValue[this.popTermEnumerator.getTotalNumberOfAnnotatedTerms()];
@@ -80,7 +101,7 @@ private PValue[] calculatePValues(StudySet studySet)
                 for (TermID term : this.popTermEnumerator) {
                     // calculating properties of term
                     ParentChildGOTermProperties termProp = calculateTerm(term,
-                        this.graph, this.popTermEnumerator, studyTermEnumerator);
+                        this.graph, this.popTermEnumerator, studyTermEnumerator, studyGenes);
 
                     // adding properties to p Vector
                     p[i++] = termProp;
@@ -108,9 +129,16 @@ public PValue[] calculateRandomPValues()
                     this.populationSet.generateRandomStudySet(this.observedStudySet.getGeneCount()));
             }
 
+            @Override
+            public PValue[] calculateRandomPValues(Random rnd)
+            {
+                return calculatePValues(
+                    this.populationSet.generateRandomStudySet(this.observedStudySet.getGeneCount(), rnd));
+            }
+
             private ParentChildGOTermProperties calculateTerm(TermID term,
                 Ontology graph, GOTermEnumerator popTermEnumerator,
-                GOTermEnumerator studyTermEnumerator)
+                GOTermEnumerator studyTermEnumerator, long[] studyGenes)
             {
                 // counts annotated to term
                 int studyTermCount = studyTermEnumerator.getAnnotatedGenes(term).totalAnnotatedCount();
@@ -132,38 +160,47 @@ private ParentChildGOTermProperties calculateTerm(TermID term,
                     // getting parents
                     Set<TermID> parents = graph.getTermParents(term);
 
-                    // These will hold the names of all genes annotated to all
-                    // parents (intersection)
-                    HashSet<ByteString> popParentCutGenes = new HashSet<ByteString>();
-                    HashSet<ByteString> studyParentCutGenes = new HashSet<ByteString>();
-
-                    boolean initialized = false;
-                    // looping over all parents to
-                    for (TermID parent : parents) {
-                        if (!initialized) // we record all genes annotated to the first parent
-                        {
-                            popParentCutGenes.addAll(popTermEnumerator.getAnnotatedGenes(parent).totalAnnotated);
-                            studyParentCutGenes.addAll(studyTermEnumerator.getAnnotatedGenes(parent).totalAnnotated);
-                            initialized = true;
-                        } else // we delete those which are not amongst the genes of the actual parent
-                        {
-                            // Important: The conversion into a HashSet speeds up the performance of 'retainAll'
-                            // tremendously!
-                            // The reason is that the 'contains' method has linear time for LinkedList as given back by
-                            // 'totalAnnotated'.
-                            HashSet<ByteString> popParentNext = new HashSet<ByteString>();
-                            popParentNext.addAll(popTermEnumerator.getAnnotatedGenes(parent).totalAnnotated);
-                            popParentCutGenes.retainAll(popParentNext);
-
-                            HashSet<ByteString> studyParentNext = new HashSet<ByteString>();
-                            studyParentNext.addAll(studyTermEnumerator.getAnnotatedGenes(parent).totalAnnotated);
-                            studyParentCutGenes.retainAll(studyParentNext);
+                    // number of genes annotated to family (term and parents)
+                    int popFamilyCount;
+                    int studyFamilyCount;
+
+                    if (studyGenes != null) {
+                        popFamilyCount = this.families.getFamilySize(term);
+                        studyFamilyCount = this.families.countFamilyGenes(term, studyGenes);
+                    } else {
+                        // These will hold the names of all genes annotated to all
+                        // parents (intersection)
+                        HashSet<ByteString> popParentCutGenes = new HashSet<ByteString>();
+                        HashSet<ByteString> studyParentCutGenes = new HashSet<ByteString>();
+
+                        boolean initialized = false;
+                        // looping over all parents to
+                        for (TermID parent : parents) {
+                            if (!initialized) // we record all genes annotated to the first parent
+                            {
+                                popParentCutGenes.addAll(popTermEnumerator.getAnnotatedGenes(parent).totalAnnotated);
+                                studyParentCutGenes.addAll(
+                                    studyTermEnumerator.getAnnotatedGenes(parent).totalAnnotated);
+                                initialized = true;
+                            } else // we delete those which are not amongst the genes of the actual parent
+                            {
+                                // Important: The conversion into a HashSet speeds up the performance of 'retainAll'
+                                // tremendously!
+                                // The reason is that the 'contains' method has linear time for LinkedList as given
+                                // back by 'totalAnnotated'.
+                                HashSet<ByteString> popParentNext = new HashSet<ByteString>();
+                                popParentNext.addAll(popTermEnumerator.getAnnotatedGenes(parent).totalAnnotated);
+                                popParentCutGenes.retainAll(popParentNext);
+
+                                HashSet<ByteString> studyParentNext = new HashSet<ByteString>();
+                                studyParentNext.addAll(studyTermEnumerator.getAnnotatedGenes(parent).totalAnnotated);
+                                studyParentCutGenes.retainAll(studyParentNext);
+                            }
                         }
-                    }
 
-                    // number of genes annotated to family (term and parents)
-                    int popFamilyCount = popParentCutGenes.size();
-                    int studyFamilyCount = studyParentCutGenes.size();
+                        popFamilyCount = popParentCutGenes.size();
+                        studyFamilyCount = studyParentCutGenes.size();
+                    }
 
                     prop.popFamilyGenes = popFamilyCount;
                     prop.studyFamilyGenes = studyFamilyCount;
@@ -205,6 +242,7 @@ private ParentChildGOTermProperties calculateTerm(TermID term,
         pValueCalculation.populationSet = popSet;
         pValueCalculation.popTermEnumerator = popSet.enumerateGOTerms(graph,
             goAssociations);
+        pValueCalculation.families = getFamilies(graph, popSet, pValueCalculation.popTermEnumerator);
         pValueCalculation.observedStudySet = studySet;
         PValue p[] = testCorrection.adjustPValues(pValueCalculation);
 
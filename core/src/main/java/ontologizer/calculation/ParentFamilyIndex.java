@@ -0,0 +1,205 @@
+package ontologizer.calculation;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import ontologizer.enumeration.GOTermEnumerator;
+import ontologizer.go.Ontology;
+import ontologizer.go.TermID;
+import ontologizer.set.PopulationSet;
+import ontologizer.types.ByteString;
+
+/**
+ * The population genes of the parent family of every term, i.e., the genes that are annotated to any parent (union) or
+ * to all parents (intersection) of a term. The families depend only on the ontology and the population, hence they are
+ * computed once and shared by the observed and all resampled study sets. The number of study genes within the family
+ * of a term is the size of the intersection of the family with the study set, provided that the genes of the study set
+ * are part of the population.
+ * <p>
+ * Families are stored as bitmaps over the population genes if they are dense and as sorted gene indices otherwise.
+ * Instances are immutable and can be shared among threads.
+ */
+class ParentFamilyIndex
+{
+    private final Ontology graph;
+
+    private final GOTermEnumerator populationTermEnumerator;
+
+    private final HashMap<ByteString, Integer> geneIndex = new HashMap<ByteString, Integer>();
+
+    private final HashMap<TermID, Integer> termIndex = new HashMap<TermID, Integer>();
+
+    /** The dense families, null for sparse ones */
+    private long[][] bitmaps;
+
+    /** The sparse families, null for dense ones */
+    private int[][] indices;
+
+    /** The number of genes in each family */
+    private int[] sizes;
+
+    /**
+     * Computes the parent families of all terms that are annotated in the population.
+     *
+     * @param graph the ontology
+     * @param populationSet the population
+     * @param populationTermEnumerator the enumerator of the population
+     * @param intersection whether the family is the intersection of the parents' genes rather than their union.
+     */
+    ParentFamilyIndex(Ontology graph, PopulationSet populationSet, GOTermEnumerator populationTermEnumerator,
+        boolean intersection)
+    {
+        this.graph = graph;
+        this.populationTermEnumerator = populationTermEnumerator;
+
+        for (ByteString gene : populationSet) {
+            this.geneIndex.put(gene, this.geneIndex.size());
+        }
+        for (ByteString gene : populationTermEnumerator.getGenes()) {
+            if (!this.geneIndex.containsKey(gene)) {
+                this.geneIndex.put(gene, this.geneIndex.size());
+            }
+        }
+
+        int numberOfTerms = populationTermEnumerator.getTotalNumberOfAnnotatedTerms();
+        this.bitmaps = new long[numberOfTerms][];
+        this.indices = new int[numberOfTerms][];
+        this.sizes = new int[numberOfTerms];
+
+        int words = words(this.geneIndex.size());
+        long[] family = new long[words];
+        long[] parentGenes = new long[words];
+
+        for (TermID term : populationTermEnumerator) {
+            int t = this.termIndex.size();
+            this.termIndex.put(term, t);
+
+            if (graph.isRootTerm(term)) {
+                continue;
+            }
+
+            boolean first = true;
+            Arrays.fill(family, 0);
+            for (TermID parent : graph.getTermParents(term)) {
+                List<ByteString> genes = populationTermEnumerator.getAnnotatedGenes(parent).totalAnnotated;
+                if (first || !intersection) {
+                    for (ByteString gene : genes) {
+                        int g = this.geneIndex.get(gene);
+                        family[g >>> 6] |= 1L << g;
+                    }
+                    first = false;
+                } else {
+                    Arrays.fill(parentGenes, 0);
+                    for (ByteString gene : genes) {
+                        int g = this.geneIndex.get(gene);
+                        parentGenes[g >>> 6] |= 1L << g;
+                    }
+                    for (int i = 0; i < words; i++) {
+                        family[i] &= parentGenes[i];
+                    }
+                }
+            }
+
+            int size = 0;
+            for (long w : family) {
+                size += Long.bitCount(w);
+            }
+            this.sizes[t] = size;
+
+            if ((long) size * 32 >= this.geneIndex.size()) {
+                this.bitmaps[t] = family.clone();
+            } else {
+                int[] members = new int[size];
+                int k = 0;
+                for (int i = 0; i < words; i++) {
+                    long w = family[i];
+                    while (w != 0) {
+                        members[k++] = (i << 6) + Long.numberOfTrailingZeros(w);
+                        w &= w - 1;
+                    }
+                }
+                this.indices[t] = members;
+            }
+        }
+    }
+
+    private static int words(int bits)
+    {
+        return (bits + 63) >>> 6;
+    }
+
+    /**
+     * Returns whether the index has been built for the given ontology and population enumeration.
+     *
+     * @param graph
+     * @param populationTermEnumerator
+     * @return
+     */
+    boolean isFor(Ontology graph, GOTermEnumerator populationTermEnumerator)
+    {
+        return this.graph == graph && this.populationTermEnumerator == populationTermEnumerator;
+    }
+
+    /**
+     * Creates the bitmap of the given genes.
+     *
+     * @param genes the genes of a study set.
+     * @return the bitmap or null if at least one gene is not part of the population, in which case the family counts
+     *         of the study set cannot be derived from the index.
+     */
+    long[] createBitmap(Iterable<ByteString> genes)
+    {
+        long[] bitmap = new long[words(this.geneIndex.size())];
+        for (ByteString gene : genes) {
+            Integer g = this.geneIndex.get(gene);
+            if (g == null) {
+                return null;
+            }
+            bitmap[g >>> 6] |= 1L << g;
+        }
+        return bitmap;
+    }
+
+    /**
+     * Returns the number of population genes within the family of the given term.
+     *
+     * @param term
+     * @return
+     */
+    int getFamilySize(TermID term)
+    {
+        Integer t = this.termIndex.get(term);
+        return t != null ? this.sizes[t] : 0;
+    }
+
+    /**
+     * Returns the number of genes of the given bitmap that are within the family of the given term.
+     *
+     * @param term
+     * @param bitmap a bitmap created via {@link #createBitmap(Iterable)}.
+     * @return
+     */
+    int countFamilyGenes(TermID term, long[] bitmap)
+    {
+        Integer t = this.termIndex.get(term);
+        if (t == null) {
+            return 0;
+        }
+
+        int count = 0;
+        long[] family = this.bitmaps[t];
+        if (family != null) {
+            for (int i = 0; i < family.length; i++) {
+                count += Long.bitCount(family[i] & bitmap[i]);
+            }
+        } else if (this.indices[t] != null) {
+            for (int g : this.indices[t]) {
+                if ((bitmap[g >>> 6] & (1L << g)) != 0) {
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+}
@@ -1,8 +1,8 @@
 package ontologizer.calculation;
 
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
 
@@ -23,7 +23,10 @@
  */
 public class ProbabilisticCalculation implements ICalculation
 {
-    /** Run data */
+    /**
+     * Run data. Terms are identified by their index within allTerms. Only the study genes are identified by an index
+     * of their own, as the genes outside of the study set contribute by their number only.
+     */
     private static class Data
     {
         public double p = 0.5;
@@ -44,86 +47,198 @@ public class ProbabilisticCalculation implements ICalculation
 
         public int nsg;
 
-        public Set<TermID> activeTerms = new LinkedHashSet<TermID>();
+        private List<TermID> allTerms;
 
-        /** Active gene nodes connected to at least one active term */
-        private HashMap<ByteString, Integer> Ag = new HashMap<ByteString, Integer>();
+        /** The number of study genes */
+        private int numberOfActiveGenes;
 
-        /* Fixed (initialized from outside) */
-        private GOTermEnumerator popEnumerator;
+        /**
+         * The indices of the study genes annotated to term t are stored in termStudyGenes[termStudyGeneStart[t]] to
+         * termStudyGenes[termStudyGeneStart[t+1]-1].
+         */
+        private int[] termStudyGeneStart;
 
-        private HashSet<ByteString> activeGenes; /* Study genes */
+        private int[] termStudyGenes;
 
-        private HashSet<ByteString> allGenes;
+        /** The number of genes outside of the study set that are annotated to a term */
+        private int[] termOtherGenes;
 
-        private List<TermID> allTerms;
+        /** The number of active terms to which a study gene is annotated */
+        private int[] cover;
+
+        private boolean[] isActive;
+
+        private int numberOfActiveTerms;
+
+        /* The logarithms of the current parameters, see updateLogs() */
+        private double logP;
+
+        private double logQ;
+
+        private double logOneMinusP;
+
+        private double logOneMinusQ;
+
+        /**
+         * Constructs the data.
+         *
+         * @param popEnumerator
+         * @param allTerms the terms that can be active.
+         * @param activeGenes the study genes.
+         */
+        public Data(GOTermEnumerator popEnumerator, List<TermID> allTerms, Set<ByteString> activeGenes)
+        {
+            this.allTerms = allTerms;
+            this.numberOfActiveGenes = activeGenes.size();
+
+            int numberOfTerms = allTerms.size();
+            HashMap<ByteString, Integer> studyGeneIndex = new HashMap<ByteString, Integer>();
+            this.termStudyGeneStart = new int[numberOfTerms + 1];
+            this.termOtherGenes = new int[numberOfTerms];
+
+            /* First pass: index the study genes and determine the degrees */
+            int total = 0;
+            for (int t = 0; t < numberOfTerms; t++) {
+                int studyDegree = 0;
+                for (ByteString g : popEnumerator.getAnnotatedGenes(allTerms.get(t)).totalAnnotated) {
+                    if (activeGenes.contains(g)) {
+                        if (!studyGeneIndex.containsKey(g)) {
+                            studyGeneIndex.put(g, studyGeneIndex.size());
+                        }
+                        studyDegree++;
+                    } else {
+                        /* Inactive terms */
+                        this.termOtherGenes[t]++;
+                        total++;
+                    }
+                }
+                this.termStudyGeneStart[t + 1] = this.termStudyGeneStart[t] + studyDegree;
+            }
+            this.st = total;
+
+            /* Second pass: fill in the study genes */
+            this.termStudyGenes = new int[this.termStudyGeneStart[numberOfTerms]];
+            for (int t = 0; t < numberOfTerms; t++) {
+                int i = this.termStudyGeneStart[t];
+                for (ByteString g : popEnumerator.getAnnotatedGenes(allTerms.get(t)).totalAnnotated) {
+                    Integer idx = studyGeneIndex.get(g);
+                    if (idx != null) {
+                        this.termStudyGenes[i++] = idx;
+                    }
+                }
+            }
+
+            this.cover = new int[studyGeneIndex.size()];
+            this.isActive = new boolean[numberOfTerms];
+        }
 
         /**
          * Switch the given term (i.e., make it active if not active, make it inactive if active)
          *
          * @param t
          */
-        public void switchTerm(TermID t)
+        public void switchTerm(int t)
         {
-            if (this.activeTerms.contains(t)) {
+            int[] cover = this.cover;
+            int[] studyGenes = this.termStudyGenes;
+            int end = this.termStudyGeneStart[t + 1];
+
+            if (this.isActive[t]) {
                 /* Term is going to be deactivated */
-                this.activeTerms.remove(t);
-
-                for (ByteString g : this.popEnumerator.getAnnotatedGenes(t).totalAnnotated) {
-                    if (this.activeGenes.contains(g)) {
-                        Integer cnt = this.Ag.get(g);
-                        if (cnt == 1) {
-                            this.Ag.remove(g);
-                        } else {
-                            this.Ag.put(g, cnt - 1);
-                        }
-                    } else {
-                        /* Gene is inactive but term active */
-                        this.nsg--;
+                this.isActive[t] = false;
+                this.numberOfActiveTerms--;
+
+                for (int i = this.termStudyGeneStart[t]; i < end; i++) {
+                    if (--cover[studyGenes[i]] == 0) {
+                        this.ag--;
                     }
                 }
+                /* Genes that are inactive but whose term was active */
+                this.nsg -= this.termOtherGenes[t];
             } else {
                 /* Term is going to be activated */
-                this.activeTerms.add(t);
-
-                for (ByteString g : this.popEnumerator.getAnnotatedGenes(t).totalAnnotated) {
-                    if (this.activeGenes.contains(g)) {
-                        Integer cnt = this.Ag.get(g);
-                        if (cnt == null) {
-                            this.Ag.put(g, 1);
-                        } else {
-                            this.Ag.put(g, cnt + 1);
-                        }
-                    } else {
-                        /* Gene is inactive but term active */
-                        this.nsg++;
+                this.isActive[t] = true;
+                this.numberOfActiveTerms++;
+
+                for (int i = this.termStudyGeneStart[t]; i < end; i++) {
+                    if (cover[studyGenes[i]]++ == 0) {
+                        this.ag++;
                     }
                 }
+                /* Genes that are inactive but whose term is active */
+                this.nsg += this.termOtherGenes[t];
             }
         }
 
+        /**
+         * Returns the objective for the given counts.
+         *
+         * @param ag the number of active genes connected to at least one active term
+         * @param sg the number of edges connecting inactive genes with active terms
+         * @param numberOfActiveTerms
+         * @return
+         */
+        private double objective(int ag, int sg, int numberOfActiveTerms)
+        {
+            int sn = this.st - sg;
+            int an = this.numberOfActiveGenes - ag;
+            return ag * this.logP + an * this.logQ + sg * this.logOneMinusP + sn * this.logOneMinusQ - this.alpha
+                * numberOfActiveTerms;
+        }
+
         /**
          * The function which should be optimized.
          *
-         * @param data
          * @return
          */
         public double objective()
         {
+            updateLogs();
             calculateParamters();
 
-            double obj;
+            return objective(this.ag, this.sg, this.numberOfActiveTerms);
+        }
 
-            obj =
-                this.ag * Math.log(this.p) + this.an * Math.log(this.q) + this.sg * Math.log(1 - this.p) + this.sn
-                    * Math.log(1 - this.q) - this.alpha
-                        * this.activeTerms.size();
+        /**
+         * Returns the objective as it would be if the given term was switched. The state is left untouched.
+         *
+         * @param t
+         * @return
+         */
+        private double objectiveIfSwitched(int t)
+        {
+            int[] cover = this.cover;
+            int[] studyGenes = this.termStudyGenes;
+            int end = this.termStudyGeneStart[t + 1];
+            int ag = this.ag;
+
+            if (this.isActive[t]) {
+                for (int i = this.termStudyGeneStart[t]; i < end; i++) {
+                    if (cover[studyGenes[i]] == 1) {
+                        ag--;
+                    }
+                }
+                return objective(ag, this.nsg - this.termOtherGenes[t], this.numberOfActiveTerms - 1);
+            }
 
-            return obj;
+            for (int i = this.termStudyGeneStart[t]; i < end; i++) {
+                if (cover[studyGenes[i]] == 0) {
+                    ag++;
+                }
+            }
+            return objective(ag, this.nsg + this.termOtherGenes[t], this.numberOfActiveTerms + 1);
+        }
+
+        private void updateLogs()
+        {
+            this.logP = Math.log(this.p);
+            this.logQ = Math.log(this.q);
+            this.logOneMinusP = Math.log(1 - this.p);
+            this.logOneMinusQ = Math.log(1 - this.q);
         }
 
         /**
-         * Recalculate all parameters based upon the active terms from scratch.
+         * Recalculate the parameters that are derived from the counts of the active terms.
          */
         public void calculateParamters()
         {
@@ -134,24 +249,38 @@ public void calculateParamters()
             /* Number of edges connecting nodes in I with inactive term nodes */
             this.sn = this.st - this.sg;
 
-            /* Active gene nodes connected to at least one active term */
-            this.ag = this.Ag.size();
+            /* Active gene nodes not connected to any active term, ag is maintained by switchTerm() */
+            this.an = this.numberOfActiveGenes - this.ag;
+        }
 
-            /* Active gene nodes not connected to any active term */
-            this.an = this.activeGenes.size() - this.ag;
+        /**
+         * Returns the active terms.
+         *
+         * @return
+         */
+        public Set<TermID> getActiveTerms()
+        {
+            Set<TermID> activeTerms = new HashSet<TermID>();
+            for (int t = 0; t < this.isActive.length; t++) {
+                if (this.isActive[t]) {
+                    activeTerms.add(this.allTerms.get(t));
+                }
+            }
+            return activeTerms;
         }
 
         /**
          * Optimize the objective the for active terms.
          *
-         * @param graph
          * @return
          */
-        private double optimizeForTerms(Ontology graph)
+        private double optimizeForTerms()
         {
             /* No active terms in the init phase. */
-            this.activeTerms.clear();
-            this.Ag.clear();
+            Arrays.fill(this.isActive, false);
+            Arrays.fill(this.cover, 0);
+            this.numberOfActiveTerms = 0;
+            this.ag = 0;
             this.sg = 0;
             this.nsg = 0;
 
@@ -159,23 +288,17 @@ private double optimizeForTerms(Ontology graph)
 
             do {
                 double best = Double.NEGATIVE_INFINITY;
-                TermID bestTerm = null;
-
-                // System.out.println(obj + " " + best + " " + activeTerms.size());
-
-                for (TermID t : this.allTerms) {
-                    switchTerm(t);
+                int bestTerm = -1;
 
-                    double o = objective();
+                for (int t = 0; t < this.isActive.length; t++) {
+                    double o = objectiveIfSwitched(t);
                     if (o > best) {
                         best = o;
                         bestTerm = t;
                     }
-
-                    switchTerm(t);
                 }
 
-                if (bestTerm != null && best > obj) {
+                if (bestTerm != -1 && best > obj) {
                     switchTerm(bestTerm);
                     obj = objective();
                 } else {
@@ -217,22 +340,10 @@ public EnrichedGOTermsResult calculateStudySet(Ontology graph,
         AssociationContainer goAssociations, PopulationSet populationSet,
         StudySet studySet, AbstractTestCorrection testCorrection)
     {
-        Data data = new Data();
-        data.popEnumerator = populationSet.enumerateGOTerms(graph, goAssociations);
-        data.allTerms = data.popEnumerator.getAllAnnotatedTermsAsList();
-        data.allGenes = populationSet.getAllGeneNames();
-        data.activeGenes = studySet.getAllGeneNames();
-
-        int total = 0;
-        for (TermID t : data.allTerms) {
-            /* Inactive terms */
-            for (ByteString g : data.popEnumerator.getAnnotatedGenes(t).totalAnnotated) {
-                if (!data.activeGenes.contains(g)) {
-                    total++;
-                }
-            }
-        }
-        data.st = total;
+        GOTermEnumerator popEnumerator = populationSet.enumerateGOTerms(graph, goAssociations);
+        HashSet<ByteString> allGenes = populationSet.getAllGeneNames();
+        HashSet<ByteString> activeGenes = studySet.getAllGeneNames();
+        Data data = new Data(popEnumerator, popEnumerator.getAllAnnotatedTermsAsList(), activeGenes);
 
         if (Double.isNaN(this.defaultP)) {
             data.p = 0.5;
@@ -241,7 +352,7 @@ public EnrichedGOTermsResult calculateStudySet(Ontology graph,
         }
 
         if (Double.isNaN(this.defaultQ)) {
-            data.q = ((double) data.activeGenes.size()) / data.allGenes.size();
+            data.q = ((double) activeGenes.size()) / allGenes.size();
         } else {
             data.q = this.defaultQ;
         }
@@ -251,7 +362,7 @@ public EnrichedGOTermsResult calculateStudySet(Ontology graph,
         data.calculateParamters();
 
         while (true) {
-            data.optimizeForTerms(graph);
+            data.optimizeForTerms();
 
             data.calculateParamters();
             double pNext = (double) (data.ag) / (data.ag + data.sg);
@@ -262,7 +373,7 @@ public EnrichedGOTermsResult calculateStudySet(Ontology graph,
             }
 
             if (Double.isNaN(pNext) || Double.isNaN(qNext)) {
-                System.err.println("Breaked: #terms=" + data.activeTerms.size() + " ag=" + data.ag + " sg=" + data.sg);
+                System.err.println("Breaked: #terms=" + data.numberOfActiveTerms + " ag=" + data.ag + " sg=" + data.sg);
                 break;
             }
 
@@ -287,11 +398,12 @@ public EnrichedGOTermsResult calculateStudySet(Ontology graph,
         results.setCalculationName("GenGO");
 
         /* Merge results and flag all inactive terms as insignificant */
+        Set<TermID> activeTerms = data.getActiveTerms();
 
-        System.out.println("Found " + data.activeTerms.size() + " terms");
+        System.out.println("Found " + activeTerms.size() + " terms");
 
         for (AbstractGOTermProperties prop : results) {
-            if (!data.activeTerms.contains(prop.goTerm.getID())) {
+            if (!activeTerms.contains(prop.goTerm.getID())) {
                 prop.p = prop.p_adjusted = 1;
                 prop.ignoreAtMTC = true;
             }
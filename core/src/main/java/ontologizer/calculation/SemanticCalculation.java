@@ -1,17 +1,20 @@
 package ontologizer.calculation;
 
 import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Random;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -30,345 +33,6 @@
 import ontologizer.set.StudySet;
 import ontologizer.types.ByteString;
 
-/**
- * Stripped-down-version of the general HashMap function suitable for integer keys and double values.
- *
- * @author Sebastian Bauer
- * @see java.util.HashMap
- */
-class IntHashMapForDoubles
-{
-    /**
-     * The default initial capacity - MUST be a power of two.
-     */
-    static final int DEFAULT_INITIAL_CAPACITY = 16;
-
-    /**
-     * The maximum capacity, used if a higher value is implicitly specified by either of the constructors with
-     * arguments. MUST be a power of two <= 1<<30.
-     */
-    static final int MAXIMUM_CAPACITY = 1 << 30;
-
-    /**
-     * The load factor used when none specified in constructor.
-     */
-    static final float DEFAULT_LOAD_FACTOR = 0.75f;
-
-    /**
-     * The table, resized as necessary. Length MUST Always be a power of two.
-     */
-    transient Entry[] table;
-
-    /**
-     * The number of key-value mappings contained in this map.
-     */
-    transient int size;
-
-    /**
-     * The next size value at which to resize (capacity * load factor).
-     *
-     * @serial
-     */
-    int threshold;
-
-    /**
-     * The load factor for the hash table.
-     *
-     * @serial
-     */
-    final float loadFactor;
-
-    /**
-     * The number of times this HashMap has been structurally modified Structural modifications are those that change
-     * the number of mappings in the HashMap or otherwise modify its internal structure (e.g., rehash). This field is
-     * used to make iterators on Collection-views of the HashMap fail-fast. (See ConcurrentModificationException).
-     */
-    transient volatile int modCount;
-
-    /**
-     * Constructs an empty <tt>HashMap</tt> with the specified initial capacity and load factor.
-     *
-     * @param initialCapacity the initial capacity
-     * @param loadFactor the load factor
-     * @throws IllegalArgumentException if the initial capacity is negative or the load factor is nonpositive
-     */
-    public IntHashMapForDoubles(int initialCapacity, float loadFactor)
-    {
-        if (initialCapacity < 0) {
-            throw new IllegalArgumentException("Illegal initial capacity: " +
-                initialCapacity);
-        }
-        if (initialCapacity > MAXIMUM_CAPACITY) {
-            initialCapacity = MAXIMUM_CAPACITY;
-        }
-        if (loadFactor <= 0 || Float.isNaN(loadFactor)) {
-            throw new IllegalArgumentException("Illegal load factor: " +
-                loadFactor);
-        }
-
-        // Find a power of 2 >= initialCapacity
-        int capacity = 1;
-        while (capacity < initialCapacity) {
-            capacity <<= 1;
-        }
-
-        this.loadFactor = loadFactor;
-        this.threshold = (int) (capacity * loadFactor);
-        this.table = new Entry[capacity];
-        init();
-    }
-
-    /**
-     * Constructs an empty <tt>HashMap</tt> with the specified initial capacity and the default load factor (0.75).
-     *
-     * @param initialCapacity the initial capacity.
-     * @throws IllegalArgumentException if the initial capacity is negative.
-     */
-    public IntHashMapForDoubles(int initialCapacity)
-    {
-        this(initialCapacity, DEFAULT_LOAD_FACTOR);
-    }
-
-    /**
-     * Constructs an empty <tt>HashMap</tt> with the default initial capacity (16) and the default load factor (0.75).
-     */
-    public IntHashMapForDoubles()
-    {
-        this.loadFactor = DEFAULT_LOAD_FACTOR;
-        this.threshold = (int) (DEFAULT_INITIAL_CAPACITY * DEFAULT_LOAD_FACTOR);
-        this.table = new Entry[DEFAULT_INITIAL_CAPACITY];
-        init();
-    }
-
-    // internal utilities
-
-    /**
-     * Initialization hook for subclasses. This method is called in all constructors and pseudo-constructors (clone,
-     * readObject) after HashMap has been initialized but before any entries have been inserted. (In the absence of this
-     * method, readObject would require explicit knowledge of subclasses.)
-     */
-    void init()
-    {
-    }
-
-    /**
-     * Applies a supplemental hash function to a given hashCode, which defends against poor quality hash functions. This
-     * is critical because HashMap uses power-of-two length hash tables, that otherwise encounter collisions for
-     * hashCodes that do not differ in lower bits. Note: Null keys always map to hash 0, thus index 0.
-     */
-    static int hash(int h)
-    {
-        // This function ensures that hashCodes that differ only by
-        // constant multiples at each bit position have a bounded
-        // number of collisions (approximately 8 at default load factor).
-        h ^= (h >>> 20) ^ (h >>> 12);
-        return h ^ (h >>> 7) ^ (h >>> 4);
-    }
-
-    /**
-     * Returns index for hash code h.
-     */
-    static int indexFor(int h, int length)
-    {
-        return h & (length - 1);
-    }
-
-    /**
-     * Returns the number of key-value mappings in this map.
-     *
-     * @return the number of key-value mappings in this map
-     */
-    public int size()
-    {
-        return this.size;
-    }
-
-    /**
-     * Returns <tt>true</tt> if this map contains no key-value mappings.
-     *
-     * @return <tt>true</tt> if this map contains no key-value mappings
-     */
-    public boolean isEmpty()
-    {
-        return this.size == 0;
-    }
-
-    /**
-     * Returns the value to which the specified key is mapped, or {@code null} if this map contains no mapping for the
-     * key.
-     * <p>
-     * More formally, if this map contains a mapping from a key {@code k} to a value {@code v} such that
-     * {@code (key==null ? k==null :
-     * key.equals(k))}, then this method returns {@code v}; otherwise it returns {@code null}. (There can be at most one
-     * such mapping.)
-     * <p>
-     * A return value of {@code null} does not <i>necessarily</i> indicate that the map contains no mapping for the key;
-     * it's also possible that the map explicitly maps the key to {@code null}. The {@link #containsKey containsKey}
-     * operation may be used to distinguish these two cases.
-     *
-     * @see #put(Object, Object)
-     */
-    public double get(int key)
-    {
-        int hash = hash(key);
-        for (Entry e = this.table[indexFor(hash, this.table.length)]; e != null; e = e.next) {
-
-            if (/* e.hash == hash && */e.key == key) {
-                return e.value;
-            }
-        }
-        return Double.NaN;
-    }
-
-    /**
-     * Returns <tt>true</tt> if this map contains a mapping for the specified key.
-     *
-     * @param key The key whose presence in this map is to be tested
-     * @return <tt>true</tt> if this map contains a mapping for the specified key.
-     */
-    public boolean containsKey(int key)
-    {
-        int hash = hash(key);
-        for (Entry e = this.table[indexFor(hash, this.table.length)]; e != null; e = e.next) {
-            if (/* e.hash == hash && */e.key == key) {
-                return true;
-            }
-        }
-        return false;
-    }
-
-    /**
-     * Associates the specified value with the specified key in this map. If the map previously contained a mapping for
-     * the key, the old value is replaced.
-     *
-     * @param key key with which the specified value is to be associated
-     * @param value value to be associated with the specified key
-     * @return the previous value associated with <tt>key</tt>, or <tt>null</tt> if there was no mapping for
-     *         <tt>key</tt>. (A <tt>null</tt> return can also indicate that the map previously associated <tt>null</tt>
-     *         with <tt>key</tt>.)
-     */
-    public void put(int key, double value)
-    {
-        int hash = hash(key);
-        int i = indexFor(hash, this.table.length);
-        for (Entry e = this.table[i]; e != null; e = e.next) {
-            if (/* e.hash == hash && */e.key == key) {
-                e.value = value;
-                return;
-            }
-        }
-
-        this.modCount++;
-        addEntry(hash, key, value, i);
-    }
-
-    /**
-     * Rehashes the contents of this map into a new array with a larger capacity. This method is called automatically
-     * when the number of keys in this map reaches its threshold. If current capacity is MAXIMUM_CAPACITY, this method
-     * does not resize the map, but sets threshold to Integer.MAX_VALUE. This has the effect of preventing future calls.
-     *
-     * @param newCapacity the new capacity, MUST be a power of two; must be greater than current capacity unless current
-     *            capacity is MAXIMUM_CAPACITY (in which case value is irrelevant).
-     */
-    void resize(int newCapacity)
-    {
-        Entry[] oldTable = this.table;
-        int oldCapacity = oldTable.length;
-        if (oldCapacity == MAXIMUM_CAPACITY) {
-            this.threshold = Integer.MAX_VALUE;
-            return;
-        }
-
-        Entry[] newTable = new Entry[newCapacity];
-        transfer(newTable);
-        this.table = newTable;
-        this.threshold = (int) (newCapacity * this.loadFactor);
-    }
-
-    /**
-     * Transfers all entries from current table to newTable.
-     */
-    void transfer(Entry[] newTable)
-    {
-        Entry[] src = this.table;
-        int newCapacity = newTable.length;
-        for (int j = 0; j < src.length; j++) {
-            Entry e = src[j];
-            if (e != null) {
-                src[j] = null;
-                do {
-                    Entry next = e.next;
-                    int i = indexFor(e.hash, newCapacity);
-                    e.next = newTable[i];
-                    newTable[i] = e;
-                    e = next;
-                } while (e != null);
-            }
-        }
-    }
-
-    /**
-     * Removes all of the mappings from this map. The map will be empty after this call returns.
-     */
-    public void clear()
-    {
-        this.modCount++;
-        Entry[] tab = this.table;
-        for (int i = 0; i < tab.length; i++) {
-            tab[i] = null;
-        }
-        this.size = 0;
-    }
-
-    private static final class Entry
-    {
-        final int key;
-
-        double value;
-
-        Entry next;
-
-        final int hash;
-
-        /**
-         * Creates new entry.
-         */
-        Entry(int h, int k, double v, Entry n)
-        {
-            this.value = v;
-            this.next = n;
-            this.key = k;
-            this.hash = h;
-        }
-    }
-
-    /**
-     * Adds a new entry with the specified key, value and hash code to the specified bucket. It is the responsibility of
-     * this method to resize the table if appropriate. Subclass overrides this to alter the behavior of put method.
-     */
-    void addEntry(int hash, int key, double value, int bucketIndex)
-    {
-        Entry e = this.table[bucketIndex];
-
-        this.table[bucketIndex] = new Entry(hash, key, value, e);
-        if (this.size++ >= this.threshold) {
-            resize(2 * this.table.length);
-        }
-    }
-
-    /**
-     * Like addEntry except that this version is used when creating entries as part of Map construction or
-     * "pseudo-construction" (cloning, deserialization). This version needn't worry about resizing the table. Subclass
-     * overrides this to alter the behavior of HashMap(Map), clone, and readObject.
-     */
-    void createEntry(int hash, int key, double value, int bucketIndex)
-    {
-        Entry e = this.table[bucketIndex];
-        this.table[bucketIndex] = new Entry(hash, key, value, e);
-        this.size++;
-    }
-}
-
 public class SemanticCalculation
 {
     private static Logger logger = LoggerFactory.getLogger(SemanticCalculation.class.getCanonicalName());
@@ -380,7 +44,13 @@ void createEntry(int hash, int key, double value, int bucketIndex)
         void update(int update);
     };
 
-    private int numberOfProcessors = 1;// Runtime.getRuntime().availableProcessors();
+    /** The default number of bytes the dense similarity matrix of the terms may occupy */
+    public static final long DEFAULT_CACHE_MEMORY_BUDGET = 128L << 20;
+
+    private int numberOfProcessors = Runtime.getRuntime().availableProcessors();
+
+    /** The pool of the parallel calculations, which is created on first use */
+    private ForkJoinPool pool;
 
     private Ontology graph;
 
@@ -392,14 +62,11 @@ void createEntry(int hash, int key, double value, int bucketIndex)
 
     private int totalAnnotated;
 
-    /** Similarity cache (indexed by term) */
-    private IntHashMapForDoubles[] cache;
-
-    private ReentrantReadWriteLock cacheLock;
+    /** Similarity cache, which may be accessed concurrently */
+    private TermSimilarityCache cache;
 
-    private ReadLock readLock;
-
-    private WriteLock writeLock;
+    /** The ids of the terms to which genes are directly annotated */
+    private int[] annotatedTermIDs;
 
     /**
      * Non-redundant associations (indexed by genes). Objects is an array of terms
@@ -408,7 +75,23 @@ void createEntry(int hash, int key, double value, int bucketIndex)
 
     private HashMap<ByteString, Integer> gene2index = new HashMap<ByteString, Integer>();
 
+    /** The genes in the order of their indices */
+    private ByteString[] genes;
+
     public SemanticCalculation(Ontology g, AssociationContainer assoc)
+    {
+        this(g, assoc, DEFAULT_CACHE_MEMORY_BUDGET);
+    }
+
+    /**
+     * Constructs the calculation.
+     *
+     * @param g
+     * @param assoc
+     * @param cacheMemoryBudget the number of bytes of the cache of term similarities, see
+     *            {@link #setCacheMemoryBudget(long)}.
+     */
+    public SemanticCalculation(Ontology g, AssociationContainer assoc, long cacheMemoryBudget)
     {
         this.graph = g;
         this.goAssociations = assoc;
@@ -421,15 +104,19 @@ public SemanticCalculation(Ontology g, AssociationContainer assoc)
         this.enumerator = this.allGenesStudy.enumerateGOTerms(this.graph, this.goAssociations);
         this.totalAnnotated = this.enumerator.getAnnotatedGenes(this.graph.getRootTerm().getID()).totalAnnotated.size();
 
-        this.cache = new IntHashMapForDoubles[g.maximumTermID()];
-
         /* Making associations non-redundant */
         this.associations = new Object[this.allGenesStudy.getGeneCount()];
+        this.genes = new ByteString[this.allGenesStudy.getGeneCount()];
+        HashSet<Integer> annotatedTerms = new HashSet<Integer>();
         int i = 0;
         for (ByteString gene : this.allGenesStudy) {
             this.gene2index.put(gene, i);
+            this.genes[i] = gene;
 
             ArrayList<TermID> assocList = assoc.get(gene).getAssociations();
+            for (TermID tid : assocList) {
+                annotatedTerms.add(tid.id);
+            }
             HashSet<TermID> inducedNodes = new HashSet<TermID>();
             for (TermID tid : assocList) {
                 inducedNodes.addAll(g.getTermsOfInducedGraph(null, tid));
@@ -456,11 +143,54 @@ public SemanticCalculation(Ontology g, AssociationContainer assoc)
             i++;
         }
 
-        if (this.numberOfProcessors > 1) {
-            this.cacheLock = new ReentrantReadWriteLock();
-            this.readLock = this.cacheLock.readLock();
-            this.writeLock = this.cacheLock.writeLock();
+        this.annotatedTermIDs = new int[annotatedTerms.size()];
+        i = 0;
+        for (int t : annotatedTerms) {
+            this.annotatedTermIDs[i++] = t;
         }
+        this.cache = TermSimilarityCache.create(this.annotatedTermIDs, cacheMemoryBudget);
+    }
+
+    /**
+     * Sets the number of bytes that the similarities of the annotated terms may occupy if they are kept in a dense
+     * matrix. The matrix is allocated when the first similarity is cached. If the matrix doesn't fit, the similarities
+     * are kept in hash tables that grow as needed, which is preferable if only few similarities are queried. Already
+     * cached similarities are discarded.
+     *
+     * @param bytes
+     */
+    public void setCacheMemoryBudget(long bytes)
+    {
+        this.cache = TermSimilarityCache.create(this.annotatedTermIDs, bytes);
+    }
+
+    /**
+     * Sets the number of threads used by {@link #calculate(StudySet, ISemanticCalculationProgress)} and the top-k
+     * queries. Defaults to the number of available processors.
+     *
+     * @param numberOfProcessors
+     */
+    public synchronized void setNumberOfProcessors(int numberOfProcessors)
+    {
+        this.numberOfProcessors = Math.max(1, numberOfProcessors);
+        if (this.pool != null && this.pool.getParallelism() != this.numberOfProcessors) {
+            this.pool.shutdown();
+            this.pool = null;
+        }
+    }
+
+    /**
+     * Returns the pool for parallel calculations with the configured number of threads. The pool is shared by all
+     * calculations of this instance. Its threads are daemons, which terminate when they have been idle for a while.
+     *
+     * @return
+     */
+    private synchronized ForkJoinPool getPool()
+    {
+        if (this.pool == null) {
+            this.pool = new ForkJoinPool(this.numberOfProcessors);
+        }
+        return this.pool;
     }
 
     /**
@@ -515,40 +245,14 @@ private double sim(TermID t1, TermID t2)
             t1 = s;
         }
 
-        if (this.cacheLock != null) {
-            this.readLock.lock();
-        }
-
-        IntHashMapForDoubles map2 = this.cache[t1.id];
-        if (map2 != null) {
-            double val = map2.get(t2.id);
-            if (!Double.isNaN(val)) {
-                if (this.cacheLock != null) {
-                    this.cacheLock.readLock().unlock();
-                }
-                return val;
-            }
-        }
-
-        if (this.cacheLock != null) {
-            /* Upgrade lock, must unlock the read lock manually before */
-            this.readLock.unlock();
-            this.writeLock.lock();
-        }
-
-        /* Create HashMap when needed, but the value is definitively not there */
-        if (map2 == null) {
-            map2 = new IntHashMapForDoubles();
-            this.cache[t1.id] = map2;
+        double val = this.cache.get(t1.id, t2.id);
+        if (!Double.isNaN(val)) {
+            return val;
         }
 
+        /* Concurrent calculations of the same value are harmless */
         double p = -Math.log(p(t1, t2));
-        map2.put(t2.id, p);
-
-        if (this.cacheLock != null) {
-            this.writeLock.unlock();
-        }
-
+        this.cache.put(t1.id, t2.id, p);
         return p;
     }
 
@@ -561,16 +265,23 @@ private double sim(TermID t1, TermID t2)
      */
     private double sim(int g1, int g2)
     {
-        double sim;
-
         if (g1 < 0 || g2 < 0) {
             return 0;
         }
 
-        sim = 0.0;
+        return sim((TermID[]) this.associations[g1], (TermID[]) this.associations[g2]);
+    }
 
-        TermID[] tl1 = (TermID[]) this.associations[g1];
-        TermID[] tl2 = (TermID[]) this.associations[g2];
+    /**
+     * Returns the similarity of two genes given by their non-redundant associations.
+     *
+     * @param tl1
+     * @param tl2
+     * @return
+     */
+    private double sim(TermID[] tl1, TermID[] tl2)
+    {
+        double sim = 0.0;
 
         /*
          * TODO: Research if we can employ sorting omit some or many of the pairs.
@@ -629,233 +340,537 @@ public SemanticResult calculate(StudySet study)
         return calculate(study, null);
     }
 
-    class WorkerThread extends Thread
-    {
-        class Message
-        {
-        };
+    /** The number of genes of the rows and columns of a tile */
+    private static final int TILE_SIZE = 64;
 
-        class BeginWorkMessage extends Message
-        {
-        };
+    /** The minimum time between two progress updates in milliseconds */
+    private static final long PROGRESS_INTERVAL = 200;
 
-        class FinishMessage extends Message
-        {
-        };
+    /**
+     * An all-pairs calculation. The upper triangle of the matrix is divided into tiles of TILE_SIZE rows and columns,
+     * which are computed independently.
+     */
+    private class TiledCalculation
+    {
+        private final SimilarityMatrix matrix;
 
-        /** Where the thread is put in when it is unemployed */
-        private BlockingQueue<WorkerThread> unemployedQueue;
+        /** The indices of the genes within the array of non-redundant associations, -1 for unknown genes */
+        private final int[] indices;
 
-        private BlockingQueue<Message> messageQueue = new LinkedBlockingQueue<Message>();
+        /** The number of tiles per row */
+        private final int tiles;
 
-        private int addPairCount;
+        private final ISemanticCalculationProgress progress;
 
-        private int pairsDone;
+        private final long totalTiles;
 
-        /** Array of entries that need to be processed by this thread */
-        private int[] work;
+        private long tilesDone;
 
-        private final static int WORK_LENGTH = 4000;
+        private long lastUpdate;
 
-        private double[][] mat;
+        /** The associations of the rows and the columns of the current tile of a thread */
+        private final ThreadLocal<TermID[][]> scratch = new ThreadLocal<TermID[][]>()
+        {
+            @Override
+            protected TermID[][] initialValue()
+            {
+                return new TermID[2 * TILE_SIZE][];
+            }
+        };
 
-        private int[] indices;
+        TiledCalculation(SimilarityMatrix matrix, int[] indices, ISemanticCalculationProgress progress)
+        {
+            this.matrix = matrix;
+            this.indices = indices;
+            this.tiles = (indices.length + TILE_SIZE - 1) / TILE_SIZE;
+            this.progress = progress;
+            this.totalTiles = SimilarityMatrix.size(this.tiles);
+        }
 
         /**
-         * @param unemployedQueue defines the queue in which the threads adds itself when a job has been finished.
-         * @param mat the result matrix
-         * @param indices matrix coordinates to coordinates used by the sim() method.
+         * @return the number of tiles of the upper triangle.
          */
-        public WorkerThread(BlockingQueue<WorkerThread> unemployedQueue, double[][] mat, int[] indices)
+        long getNumberOfTiles()
         {
-            this.work = new int[WORK_LENGTH];
-            this.unemployedQueue = unemployedQueue;
-            this.mat = mat;
-            this.indices = indices;
+            return this.totalTiles;
         }
 
-        @Override
-        public void run()
+        /**
+         * Computes the tile with the given index. Tiles are numbered row by row within the upper triangle.
+         *
+         * @param t
+         */
+        void computeTile(long t)
         {
-            try {
-                this.unemployedQueue.put(this);
-
-                while (true) {
-                    Message msg = this.messageQueue.take();
-
-                    if (msg instanceof BeginWorkMessage) {
-                        for (int i = 0; i < this.addPairCount; i += 2) {
-                            int i1 = this.indices[this.work[i]];
-                            int i2 = this.indices[this.work[i + 1]];
-
-                            if (i1 >= 0 || i2 >= 0) {
-                                this.mat[this.work[i]][this.work[i + 1]] = sim(i1, i2);
-                            }
-                        }
-
-                        this.pairsDone = this.addPairCount / 2;
-                        this.addPairCount = 0;
-                        this.unemployedQueue.put(this);
-                    } else {
-                        if (msg instanceof FinishMessage) {
-                            break;
-                        }
-                    }
+            int bi = 0;
+            while (t >= this.tiles - bi) {
+                t -= this.tiles - bi;
+                bi++;
+            }
+            int bj = bi + (int) t;
+
+            int r0 = bi * TILE_SIZE;
+            int r1 = Math.min(r0 + TILE_SIZE, this.indices.length);
+            int c0 = bj * TILE_SIZE;
+            int c1 = Math.min(c0 + TILE_SIZE, this.indices.length);
+
+            TermID[][] terms = this.scratch.get();
+            for (int r = r0; r < r1; r++) {
+                terms[r - r0] = this.indices[r] >= 0 ? (TermID[]) SemanticCalculation.this.associations[this.indices[r]]
+                    : null;
+            }
+            for (int c = c0; c < c1; c++) {
+                terms[TILE_SIZE + c - c0] = this.indices[c] >= 0
+                    ? (TermID[]) SemanticCalculation.this.associations[this.indices[c]] : null;
+            }
+
+            for (int r = r0; r < r1; r++) {
+                TermID[] tl1 = terms[r - r0];
+                for (int c = bi == bj ? r : c0; c < c1; c++) {
+                    TermID[] tl2 = terms[TILE_SIZE + c - c0];
+                    this.matrix.set(r, c, tl1 != null && tl2 != null ? sim(tl1, tl2) : 0);
                 }
-            } catch (InterruptedException e) {
             }
+            tileDone();
         }
 
-        /**
-         * @param g1
-         * @param g2
-         * @return whether there is more place in the queue.
-         */
-        public boolean addPairForWork(int g1, int g2)
+        private void tileDone()
         {
-            this.work[this.addPairCount] = g1;
-            this.work[this.addPairCount + 1] = g2;
-            this.addPairCount += 2;
-            return this.addPairCount < WORK_LENGTH;
+            if (this.progress == null) {
+                return;
+            }
+
+            synchronized (this) {
+                this.tilesDone++;
+                long millis = System.currentTimeMillis();
+                if (millis - this.lastUpdate > PROGRESS_INTERVAL || this.tilesDone == this.totalTiles) {
+                    this.lastUpdate = millis;
+                    this.progress.update((int) Math.min(this.tilesDone, Integer.MAX_VALUE));
+                }
+            }
         }
+    }
 
-        /**
-         * Start working on the feeded pairs.
-         *
-         * @param unemployedQueue
-         * @throws InterruptedException
-         */
-        public void fire() throws InterruptedException
+    /**
+     * Computes a range of tiles by splitting it recursively.
+     */
+    private static class TileRange extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final TiledCalculation calculation;
+
+        private final long from;
+
+        private final long to;
+
+        TileRange(TiledCalculation calculation, long from, long to)
         {
-            this.messageQueue.put(new BeginWorkMessage());
+            this.calculation = calculation;
+            this.from = from;
+            this.to = to;
         }
 
-        public int getPairsDone()
+        @Override
+        protected void compute()
         {
-            return this.pairsDone;
+            if (this.to - this.from == 1) {
+                this.calculation.computeTile(this.from);
+                return;
+            }
+            long mid = (this.from + this.to) >>> 1;
+            invokeAll(new TileRange(this.calculation, this.from, mid), new TileRange(this.calculation, mid, this.to));
         }
+    }
 
-        public void finish() throws InterruptedException
-        {
-            this.messageQueue.put(new FinishMessage());
+    /**
+     * Returns the index of the given gene within the array of non-redundant associations.
+     *
+     * @param g
+     * @return the index or -1 if the gene has no associations.
+     */
+    private int getIndex(ByteString g)
+    {
+        Integer idx = this.gene2index.get(g);
+        if (idx == null) {
+            /* Maybe we can find the gene via a mapping */
+            Gene2Associations o2a = this.goAssociations.get(g);
+            if (o2a != null) {
+                idx = this.gene2index.get(o2a.name());
+            }
         }
+        return idx != null ? idx : -1;
     }
 
+    /**
+     * Returns the indices of the genes of the study within the array of non-redundant associations.
+     *
+     * @param study
+     * @return the indices, which are -1 for genes without associations.
+     */
+    private int[] getIndices(StudySet study)
+    {
+        int[] indices = new int[study.getGeneCount()];
+        int k = 0;
+        for (ByteString g : study) {
+            indices[k++] = getIndex(g);
+        }
+        return indices;
+    }
+
+    /**
+     * Calculates the similarities of all pairs of genes of the study set. The tiles of the matrix are computed in
+     * parallel by a fork-join pool with the configured number of threads.
+     *
+     * @param study
+     * @param progress receives the number of computed tiles, each covering up to 64 x 64 pairs of genes. Updates are
+     *            sent at most every 200 ms, they may be sent from different threads but never concurrently.
+     * @return
+     */
     public SemanticResult calculate(StudySet study, ISemanticCalculationProgress progress)
     {
+        long start = System.currentTimeMillis();
+
+        PackedSimilarityMatrix matrix = new PackedSimilarityMatrix(study.getGeneCount());
+        calculate(study, progress, matrix);
+
         SemanticResult sr = new SemanticResult();
+        sr.matrix = matrix;
+        sr.names = study.getGenes();
+        sr.name = study.getName();
+        sr.assoc = this.goAssociations;
+        sr.g = this.graph;
+        sr.calculation = this;
 
+        long end = System.currentTimeMillis();
+
+        logger.info("Took " + ((end - start) / 1000.0f) + "s for the analysis");
+
+        return sr;
+    }
+
+    /**
+     * Calculates the similarities of all pairs of genes of the study set like
+     * {@link #calculate(StudySet, ISemanticCalculationProgress)} but writes them straight into a memory-mapped file
+     * rather than into the heap, which is needed for genome-wide gene sets.
+     *
+     * @param study
+     * @param progress
+     * @param file the file that receives the matrix. An existing file is overwritten.
+     * @param dataType the data type of the stored similarities, either {@link MappedSimilarityMatrix#FLOAT} or
+     *            {@link MappedSimilarityMatrix#DOUBLE}.
+     * @return the result, which keeps the file open until it is closed.
+     * @throws IOException
+     */
+    public SemanticResult calculate(StudySet study, ISemanticCalculationProgress progress, File file, int dataType)
+        throws IOException
+    {
         long start = System.currentTimeMillis();
 
-        int entries = study.getGeneCount();
+        MappedSimilarityMatrix matrix = MappedSimilarityMatrix.create(file, study.getGenes(), dataType);
+        try {
+            calculate(study, progress, matrix);
+            matrix.force();
+        } catch (RuntimeException | Error e) {
+            /* Don't leak the file and the mappings of a matrix that nobody receives */
+            try {
+                matrix.close();
+            } catch (IOException ce) {
+                e.addSuppressed(ce);
+            }
+            throw e;
+        }
+
+        SemanticResult sr = new SemanticResult();
+        sr.matrix = matrix;
+        sr.names = matrix.getNames();
+        sr.name = study.getName();
+        sr.assoc = this.goAssociations;
+        sr.g = this.graph;
+        sr.calculation = this;
+
+        long end = System.currentTimeMillis();
 
-        double[][] mat = new double[entries][entries];
-        int i = 0, counter = 0;
+        logger.info("Took " + ((end - start) / 1000.0f) + "s for the analysis written to \"" + file + "\"");
 
+        return sr;
+    }
+
+    /**
+     * Calculates the similarities of all pairs of genes of the study set into the given matrix, whose rows and columns
+     * correspond to the genes in the order of the study set's iterator.
+     *
+     * @param study
+     * @param progress
+     * @param matrix
+     */
+    private void calculate(StudySet study, ISemanticCalculationProgress progress, SimilarityMatrix matrix)
+    {
+        TiledCalculation calculation = new TiledCalculation(matrix, getIndices(study), progress);
+        long tiles = calculation.getNumberOfTiles();
         if (progress != null) {
-            progress.init(entries * (entries + 1) / 2);
+            progress.init((int) Math.min(tiles, Integer.MAX_VALUE));
         }
 
-        long millis = System.currentTimeMillis();
+        if (this.numberOfProcessors > 1 && tiles > 1) {
+            getPool().invoke(new TileRange(calculation, 0, tiles));
+        } else {
+            for (long t = 0; t < tiles; t++) {
+                calculation.computeTile(t);
+            }
+        }
+    }
 
-        /*
-         * Create the association mapping, i.e, which gene maps to which entry in the array of non-redundant association
+    /** The minimum number of candidates of a query that are evaluated in parallel */
+    private static final int PARALLEL_CANDIDATES = 256;
+
+    /**
+     * Orders gene similarities by decreasing similarity and increasing index of the gene.
+     */
+    private final Comparator<GeneSimilarity> bestFirst = new Comparator<GeneSimilarity>()
+    {
+        @Override
+        public int compare(GeneSimilarity o1, GeneSimilarity o2)
+        {
+            if (o1.similarity != o2.similarity) {
+                return o1.similarity > o2.similarity ? -1 : 1;
+            }
+            return Integer.compare(SemanticCalculation.this.gene2index.get(o1.gene),
+                SemanticCalculation.this.gene2index.get(o2.gene));
+        }
+    };
+
+    /**
+     * Evaluates the similarities of a query gene to a range of candidate genes by splitting the range recursively.
+     */
+    private class CandidateRange extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final TermID[] query;
+
+        private final int[] candidates;
+
+        private final double[] sims;
+
+        private final int from;
+
+        private final int to;
+
+        CandidateRange(TermID[] query, int[] candidates, double[] sims, int from, int to)
+        {
+            this.query = query;
+            this.candidates = candidates;
+            this.sims = sims;
+            this.from = from;
+            this.to = to;
+        }
+
+        /**
+         * Evaluates the candidates of the range in the current thread.
          */
-        int[] indices = new int[study.getGeneCount()];
-        int k = 0;
-        for (ByteString g : study) {
-            Integer idx = this.gene2index.get(g);
-            if (idx == null) {
-                /* Maybe we can find the gene via a mapping */
-                Gene2Associations o2a = this.goAssociations.get(g);
-                if (o2a != null) {
-                    idx = this.gene2index.get(o2a.name());
-                }
+        void evaluate()
+        {
+            for (int i = this.from; i < this.to; i++) {
+                TermID[] terms = (TermID[]) SemanticCalculation.this.associations[this.candidates[i]];
+                this.sims[i] = sim(this.query, terms);
             }
-            if (idx != null) {
-                indices[k] = idx;
-            } else {
-                indices[k] = -1;
+        }
+
+        @Override
+        protected void compute()
+        {
+            if (this.to - this.from <= PARALLEL_CANDIDATES) {
+                evaluate();
+                return;
             }
-            k++;
+            int mid = (this.from + this.to) >>> 1;
+            invokeAll(new CandidateRange(this.query, this.candidates, this.sims, this.from, mid),
+                new CandidateRange(this.query, this.candidates, this.sims, mid, this.to));
         }
+    }
 
-        if (this.numberOfProcessors > 1) {
-            try {
-                /* Create and start the worker threads and put them in the queue */
-                WorkerThread[] wt = new WorkerThread[this.numberOfProcessors];
-                BlockingQueue<WorkerThread> unemployedQueue = new LinkedBlockingQueue<WorkerThread>();
-                for (int j = 0; j < this.numberOfProcessors; j++) {
-                    wt[j] = new WorkerThread(unemployedQueue, mat, indices);
-                    wt[j].start();
-                }
+    /**
+     * Processes a range of top-k queries by splitting the range recursively. The candidates of a single query are
+     * evaluated by the thread that processes the query.
+     */
+    private class QueryRange extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
 
-                /* Take first unemployed thread */
-                WorkerThread currentWorker = unemployedQueue.take();
-
-                for (i = 0; i < indices.length; i++) {
-                    for (int j = 0; j < indices.length; j++) {
-                        if (!currentWorker.addPairForWork(i, j)) {
-                            currentWorker.fire();
-
-                            /* Take next unemployed thread (may wait if there is no unemployed thread left) */
-                            currentWorker = unemployedQueue.take();
-                            counter += currentWorker.pairsDone;
-                            currentWorker.pairsDone = 0;
-
-                            long newMillis = System.currentTimeMillis();
-                            if (newMillis - millis > 200) {
-                                millis = newMillis;
-                                progress.update(counter);
-                            }
-                        }
-                    }
-                }
+        private final ByteString[] queries;
+
+        private final int k;
+
+        private final List<?>[] results;
+
+        private final int from;
+
+        private final int to;
+
+        QueryRange(ByteString[] queries, int k, List<?>[] results, int from, int to)
+        {
+            this.queries = queries;
+            this.k = k;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
 
-                for (int j = 0; j < this.numberOfProcessors; j++) {
-                    wt[j].finish();
-                    wt[j].join();
+        @Override
+        protected void compute()
+        {
+            if (this.to - this.from == 1) {
+                int query = getIndex(this.queries[this.from]);
+                if (query < 0 || this.k <= 0) {
+                    this.results[this.from] = new ArrayList<GeneSimilarity>();
+                } else {
+                    this.results[this.from] = getMostSimilarGenes(query, this.k, false);
                 }
+                return;
+            }
+            int mid = (this.from + this.to) >>> 1;
+            invokeAll(new QueryRange(this.queries, this.k, this.results, this.from, mid),
+                new QueryRange(this.queries, this.k, this.results, mid, this.to));
+        }
+    }
+
+    /**
+     * Determines the k genes that are most similar to the gene with the given index.
+     * <p>
+     * The similarity of two genes is the largest information content of their shared ancestors, so the query's
+     * ancestors sorted by decreasing information content (its profile) bound the similarity of all genes: a gene
+     * that is not annotated to any of the first ancestors is at most as similar as the next ancestor is informative.
+     * Walking down the profile, the genes annotated to the current ancestor become candidates, which are evaluated,
+     * until the information content falls below the k-th best similarity found so far. All remaining genes are
+     * pruned.
+     *
+     * @param query
+     * @param k
+     * @param parallel whether large sets of candidates should be evaluated in parallel by the pool. Otherwise they are
+     *            evaluated by the current thread.
+     * @return the genes by decreasing similarity
+     */
+    private List<GeneSimilarity> getMostSimilarGenes(int query, int k, boolean parallel)
+    {
+        TermID[] queryTerms = (TermID[]) this.associations[query];
 
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+        HashSet<TermID> ancestors = new HashSet<TermID>();
+        for (TermID t : queryTerms) {
+            ancestors.addAll(this.graph.getTermsOfInducedGraph(null, t));
+        }
+        final HashMap<TermID, Double> ic = new HashMap<TermID, Double>();
+        for (TermID t : ancestors) {
+            ic.put(t, -Math.log(p(t)));
+        }
+        ArrayList<TermID> profile = new ArrayList<TermID>(ancestors);
+        Collections.sort(profile, new Comparator<TermID>()
+        {
+            @Override
+            public int compare(TermID o1, TermID o2)
+            {
+                int c = Double.compare(ic.get(o2), ic.get(o1));
+                return c != 0 ? c : Integer.compare(o1.id, o2.id);
             }
+        });
 
-        } else {
-            /* Single threaded */
-            for (i = 0; i < indices.length; i++) {
-                for (int j = i; j < indices.length; j++) {
-                    mat[i][j] = mat[j][i] = sim(indices[i], indices[j]);
-
-                    if (progress != null) {
-                        if (counter++ % 1000 == 0) {
-                            long newMillis = System.currentTimeMillis();
-                            if (newMillis - millis > 200) {
-                                millis = newMillis;
-                                progress.update(counter);
-                            }
-                        }
-                    }
+        /* The worst of the k best genes is at the head */
+        PriorityQueue<GeneSimilarity> best =
+            new PriorityQueue<GeneSimilarity>(k, Collections.reverseOrder(this.bestFirst));
+        boolean[] visited = new boolean[this.genes.length];
+        visited[query] = true;
+
+        for (TermID t : profile) {
+            double bound = ic.get(t);
+            if (bound <= 0 || (best.size() == k && bound < best.peek().similarity)) {
+                break;
+            }
+
+            List<ByteString> annotated = this.enumerator.getAnnotatedGenes(t).totalAnnotated;
+            int[] candidates = new int[annotated.size()];
+            int numberOfCandidates = 0;
+            for (ByteString gene : annotated) {
+                Integer idx = this.gene2index.get(gene);
+                if (idx != null && !visited[idx]) {
+                    visited[idx] = true;
+                    candidates[numberOfCandidates++] = idx;
                 }
             }
 
-            if (progress != null) {
-                progress.update(counter);
+            double[] sims = new double[numberOfCandidates];
+            CandidateRange range = new CandidateRange(queryTerms, candidates, sims, 0, numberOfCandidates);
+            if (parallel && numberOfCandidates > PARALLEL_CANDIDATES) {
+                getPool().invoke(range);
+            } else {
+                range.evaluate();
             }
 
+            for (int i = 0; i < numberOfCandidates; i++) {
+                if (sims[i] <= 0) {
+                    continue;
+                }
+                GeneSimilarity candidate = new GeneSimilarity(this.genes[candidates[i]], sims[i]);
+                if (best.size() < k) {
+                    best.add(candidate);
+                } else if (this.bestFirst.compare(candidate, best.peek()) < 0) {
+                    best.poll();
+                    best.add(candidate);
+                }
+            }
         }
-        sr.mat = mat;
-        sr.names = study.getGenes();
-        sr.name = study.getName();
-        sr.assoc = this.goAssociations;
-        sr.g = this.graph;
-        sr.calculation = this;
 
-        long end = System.currentTimeMillis();
+        ArrayList<GeneSimilarity> result = new ArrayList<GeneSimilarity>(best);
+        Collections.sort(result, this.bestFirst);
+        return result;
+    }
 
-        logger.info("Took " + ((end - start) / 1000.0f) + "s for the analysis");
+    /**
+     * Returns the k genes that are most similar to the given gene. Genes with a similarity of 0 are not reported.
+     * Ties are broken in favor of the gene that comes first in the associations. The candidates are evaluated with
+     * the configured number of threads if there are many of them.
+     *
+     * @param gene the query gene, which is not part of the result.
+     * @param k
+     * @return the genes by decreasing similarity, which is empty if the query gene has no associations.
+     */
+    public List<GeneSimilarity> getMostSimilarGenes(ByteString gene, int k)
+    {
+        int query = getIndex(gene);
+        if (query < 0 || k <= 0) {
+            return new ArrayList<GeneSimilarity>();
+        }
 
-        return sr;
+        return getMostSimilarGenes(query, k, this.numberOfProcessors > 1);
+    }
+
+    /**
+     * Returns the k genes that are most similar for each of the given genes like
+     * {@link #getMostSimilarGenes(ByteString, int)}. The queries are processed in parallel.
+     *
+     * @param genes
+     * @param k
+     * @return the most similar genes keyed by the query genes in the order of the given collection.
+     */
+    public Map<ByteString, List<GeneSimilarity>> getMostSimilarGenes(Collection<ByteString> genes, int k)
+    {
+        ByteString[] queries = genes.toArray(new ByteString[genes.size()]);
+        List<?>[] results = new List<?>[queries.length];
+
+        if (this.numberOfProcessors < 2 || queries.length < 2) {
+            for (int i = 0; i < queries.length; i++) {
+                results[i] = getMostSimilarGenes(queries[i], k);
+            }
+        } else {
+            getPool().invoke(new QueryRange(queries, k, results, 0, queries.length));
+        }
+
+        LinkedHashMap<ByteString, List<GeneSimilarity>> map = new LinkedHashMap<ByteString, List<GeneSimilarity>>();
+        for (int i = 0; i < queries.length; i++) {
+            @SuppressWarnings("unchecked")
+            List<GeneSimilarity> result = (List<GeneSimilarity>) results[i];
+            map.put(queries[i], result);
+        }
+        return map;
     }
 
     public void calculate()
@@ -20,12 +20,46 @@
 
     public ByteString[] names;
 
-    public double[][] mat;
+    /** The similarities of the genes, whose rows and columns correspond to the names */
+    public SimilarityMatrix matrix;
 
     public String name;
 
     public SemanticCalculation calculation;
 
+    /**
+     * Opens a similarity matrix file that has been written by the out-of-core variant of
+     * {@link SemanticCalculation}'s calculate() (see {@link MappedSimilarityMatrix}). The ontology, the associations
+     * and the calculation of the returned result are not known. The result should be closed when it is no longer
+     * needed.
+     *
+     * @param file
+     * @return the result that refers to the file.
+     * @throws IOException
+     */
+    public static SemanticResult open(File file) throws IOException
+    {
+        MappedSimilarityMatrix matrix = MappedSimilarityMatrix.open(file);
+
+        SemanticResult sr = new SemanticResult();
+        sr.matrix = matrix;
+        sr.names = matrix.getNames();
+        sr.name = file.getName();
+        return sr;
+    }
+
+    /**
+     * Releases the file of a matrix that is stored in a file. Nothing happens for matrices that are kept in the heap.
+     *
+     * @throws IOException
+     */
+    public void close() throws IOException
+    {
+        if (this.matrix instanceof MappedSimilarityMatrix) {
+            ((MappedSimilarityMatrix) this.matrix).close();
+        }
+    }
+
     public void writeTable(File file)
     {
         try {
@@ -42,12 +76,14 @@ public void writeTable(File file)
 
                 out.println();
 
+                double[] row = new double[this.names.length];
                 for (int i = 0; i < this.names.length; i++) {
                     out.print(this.names[i]);
 
+                    this.matrix.getRow(i, row);
                     for (int j = 0; j < this.names.length; j++) {
                         out.print("\t");
-                        out.print(this.mat[i][j]);
+                        out.print(row[j]);
                     }
 
                     out.println();
@@ -0,0 +1,113 @@
+package ontologizer.calculation;
+
+/**
+ * A symmetric matrix of gene similarities of which only the upper triangle including the diagonal is stored.
+ */
+public abstract class SimilarityMatrix
+{
+    /**
+     * A callback for streaming the rows of the matrix.
+     */
+    public static interface IRowVisitor
+    {
+        /**
+         * Called for every row of the matrix in ascending order.
+         *
+         * @param row the index of the row
+         * @param values the similarities of the row. Only the entries of the upper triangle, i.e., the ones from index
+         *            row on, are defined. The array is reused for the next row.
+         * @return false if no further rows should be visited, otherwise true.
+         */
+        boolean visited(int row, double[] values);
+    }
+
+    /**
+     * Returns the number of rows (and columns) of the matrix.
+     *
+     * @return
+     */
+    public abstract int getDimension();
+
+    /**
+     * Returns the similarity at the given position. As the matrix is symmetric, the order of the coordinates doesn't
+     * matter.
+     *
+     * @param i
+     * @param j
+     * @return
+     */
+    public abstract double get(int i, int j);
+
+    /**
+     * Sets the similarity at the given position (and hence at the mirrored position as well). Different positions may
+     * be set concurrently.
+     *
+     * @param i
+     * @param j
+     * @param sim
+     */
+    public abstract void set(int i, int j, double sim);
+
+    /**
+     * Copies a complete row of the matrix, which is also the column of the same index.
+     *
+     * @param i the index of the row
+     * @param row the destination, which needs to have at least {@link #getDimension()} entries.
+     */
+    public void getRow(int i, double[] row)
+    {
+        int n = getDimension();
+        for (int j = 0; j < n; j++) {
+            row[j] = get(i, j);
+        }
+    }
+
+    /**
+     * Streams the upper triangle of the matrix row by row, i.e., in the order in which it is stored.
+     *
+     * @param visitor
+     */
+    public void visitRows(IRowVisitor visitor)
+    {
+        int n = getDimension();
+        double[] values = new double[n];
+        for (int i = 0; i < n; i++) {
+            for (int j = i; j < n; j++) {
+                values[j] = get(i, j);
+            }
+            if (!visitor.visited(i, values)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Returns the position of the given coordinates within the upper triangle stored row by row.
+     *
+     * @param n the dimension of the matrix
+     * @param i
+     * @param j
+     * @return
+     */
+    public static long index(int n, int i, int j)
+    {
+        if (i > j) {
+            int s = i;
+            i = j;
+            j = s;
+        }
+        /* Rows 0..i-1 contain n + (n - 1) + ... + (n - i + 1) entries */
+        return (long) i * n - (long) i * (i - 1) / 2 + (j - i);
+    }
+
+    /**
+     * Returns the number of entries of the upper triangle of a matrix with the given dimension.
+     *
+     * @param n
+     * @return
+     */
+    public static long size(int n)
+    {
+        return (long) n * (n + 1) / 2;
+    }
+}
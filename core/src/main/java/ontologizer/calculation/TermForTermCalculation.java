@@ -1,13 +1,19 @@
 package ontologizer.calculation;
 
+import java.util.Random;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 import ontologizer.association.AssociationContainer;
 import ontologizer.enumeration.GOTermEnumerator;
 import ontologizer.go.Ontology;
+import ontologizer.go.Term;
 import ontologizer.go.TermID;
 import ontologizer.set.PopulationSet;
 import ontologizer.set.StudySet;
 import ontologizer.statistics.AbstractTestCorrection;
-import ontologizer.statistics.IPValueCalculation;
+import ontologizer.statistics.IRandomPValueCalculation;
 import ontologizer.statistics.PValue;
 
 /**
@@ -17,6 +23,8 @@
  */
 public class TermForTermCalculation extends AbstractHypergeometricCalculation
 {
+    private static Logger logger = LoggerFactory.getLogger(TermForTermCalculation.class.getCanonicalName());
+
     @Override
     public String getName()
     {
@@ -45,6 +53,130 @@ public EnrichedGOTermsResult calculateStudySet(
         PopulationSet populationSet,
         StudySet studySet,
         AbstractTestCorrection testCorrection)
+    {
+        return calculateStudySet(graph, goAssociations, populationSet, studySet, testCorrection, null);
+    }
+
+    /**
+     * Recalculates the result of a study set that has been changed since the previous result was calculated, e.g.,
+     * because a few genes have been added or removed. The raw p values of terms whose counts (including the study set
+     * size) are the same as in the previous result are taken over, only the other terms are tested again. As the study
+     * set size enters every test, this pays off most if genes are exchanged. The multiple test correction is always
+     * applied to all terms again.
+     * <p>
+     * The study set should keep its enumerator in between, which is the case if genes are added or removed via the
+     * methods of the study set.
+     *
+     * @param previous the result of a previous calculation of the study set with the same population.
+     * @param graph
+     * @param goAssociations
+     * @param populationSet
+     * @param studySet
+     * @param testCorrection
+     * @return the updated result.
+     */
+    public EnrichedGOTermsResult updateStudySet(
+        EnrichedGOTermsResult previous,
+        Ontology graph,
+        AssociationContainer goAssociations,
+        PopulationSet populationSet,
+        StudySet studySet,
+        AbstractTestCorrection testCorrection)
+    {
+        if (previous.getPopulationGeneCount() != populationSet.getGeneCount()) {
+            previous = null;
+        }
+        return calculateStudySet(graph, goAssociations, populationSet, studySet, testCorrection, previous);
+    }
+
+    /**
+     * Creates the properties of a single term and tests it.
+     *
+     * @param term
+     * @param popGeneCount
+     * @param goidAnnotatedPopGeneCount
+     * @param studyGeneCount
+     * @param goidAnnotatedStudyGeneCount
+     * @return
+     */
+    private TermForTermGOTermProperties testTerm(Term term, int popGeneCount, int goidAnnotatedPopGeneCount,
+        int studyGeneCount, int goidAnnotatedStudyGeneCount)
+    {
+        TermForTermGOTermProperties myP = new TermForTermGOTermProperties();
+        myP.goTerm = term;
+        myP.annotatedStudyGenes = goidAnnotatedStudyGeneCount;
+        myP.annotatedPopulationGenes = goidAnnotatedPopGeneCount;
+
+        if (goidAnnotatedStudyGeneCount != 0) {
+            /*
+             * Imagine the following... In an urn you put popGeneCount number of balls where a color of a ball can be
+             * white or black. The number of balls having white color is goidAnnontatedPopGeneCount (all genes of the
+             * population which are annotated by the current GOID). You choose to draw studyGeneCount number of balls
+             * without replacement. How big is the probability, that you got goidAnnotatedStudyGeneCount white balls
+             * after the whole drawing process?
+             */
+
+            myP.p = this.hyperg.phypergeometric(popGeneCount,
+                (double) goidAnnotatedPopGeneCount / (double) popGeneCount,
+                studyGeneCount, goidAnnotatedStudyGeneCount);
+            myP.p_min = this.hyperg.dhyper(
+                goidAnnotatedPopGeneCount,
+                popGeneCount,
+                goidAnnotatedPopGeneCount,
+                goidAnnotatedPopGeneCount);
+        } else {
+            /* Mark this p value as irrelevant so it isn't considered in a mtc */
+            myP.p = 1.0;
+            myP.ignoreAtMTC = true;
+            myP.p_min = 1.0;
+        }
+        return myP;
+    }
+
+    /**
+     * Returns a copy of the raw properties of the term within the previous result if they can be taken over.
+     *
+     * @param previous the previous result, may be null
+     * @param term
+     * @param goidAnnotatedPopGeneCount
+     * @param studyGeneCount
+     * @param goidAnnotatedStudyGeneCount
+     * @return the copy or null if the term needs to be tested again.
+     */
+    private static TermForTermGOTermProperties reuseTerm(EnrichedGOTermsResult previous, Term term,
+        int goidAnnotatedPopGeneCount, int studyGeneCount, int goidAnnotatedStudyGeneCount)
+    {
+        if (previous == null || previous.getStudyGeneCount() != studyGeneCount) {
+            return null;
+        }
+
+        AbstractGOTermProperties prop = previous.getGOTermProperties(term);
+        if (!(prop instanceof TermForTermGOTermProperties)) {
+            return null;
+        }
+
+        TermForTermGOTermProperties prevP = (TermForTermGOTermProperties) prop;
+        if (prevP.annotatedPopulationGenes != goidAnnotatedPopGeneCount
+            || prevP.annotatedStudyGenes != goidAnnotatedStudyGeneCount) {
+            return null;
+        }
+
+        TermForTermGOTermProperties myP = new TermForTermGOTermProperties();
+        myP.goTerm = term;
+        myP.annotatedStudyGenes = goidAnnotatedStudyGeneCount;
+        myP.annotatedPopulationGenes = goidAnnotatedPopGeneCount;
+        myP.p = prevP.p;
+        myP.p_min = prevP.p_min;
+        return myP;
+    }
+
+    private EnrichedGOTermsResult calculateStudySet(
+        Ontology graph,
+        AssociationContainer goAssociations,
+        PopulationSet populationSet,
+        StudySet studySet,
+        AbstractTestCorrection testCorrection,
+        final EnrichedGOTermsResult previous)
     {
         EnrichedGOTermsResult studySetResult =
             new EnrichedGOTermsResult(graph, goAssociations, studySet, populationSet.getGeneCount());
@@ -56,7 +188,7 @@ public EnrichedGOTermsResult calculateStudySet(
          *
          * @author Sebastian Bauer
          */
-        class SinglePValuesCalculation implements IPValueCalculation
+        class SinglePValuesCalculation implements IRandomPValueCalculation
         {
             public PopulationSet populationSet;
 
@@ -66,7 +198,7 @@ class SinglePValuesCalculation implements IPValueCalculation
 
             public Ontology graph;
 
-            private PValue[] calculatePValues(StudySet studySet)
+            private PValue[] calculatePValues(StudySet studySet, EnrichedGOTermsResult previous)
             {
                 GOTermEnumerator studyTermEnumerator = studySet.enumerateGOTerms(this.graph, this.goAssociations);
                 GOTermEnumerator populationTermEnumerator =
@@ -76,56 +208,41 @@ private PValue[] calculatePValues(StudySet studySet)
 
                 PValue p[] = new PValue[populationTermEnumerator.getTotalNumberOfAnnotatedTerms()];
 
-                TermForTermGOTermProperties myP;
+                int popGeneCount = this.populationSet.getGeneCount();
+                int studyGeneCount = studySet.getGeneCount();
+                int reused = 0;
 
                 for (TermID term : populationTermEnumerator) {
+                    Term goTerm = this.graph.getTerm(term);
                     int goidAnnotatedPopGeneCount =
                         populationTermEnumerator.getAnnotatedGenes(term).totalAnnotatedCount();
-                    int popGeneCount = this.populationSet.getGeneCount();
-                    int studyGeneCount = studySet.getGeneCount();
                     int goidAnnotatedStudyGeneCount = studyTermEnumerator.getAnnotatedGenes(term).totalAnnotatedCount();
 
-                    myP = new TermForTermGOTermProperties();
-                    myP.goTerm = this.graph.getTerm(term);
-                    myP.annotatedStudyGenes = goidAnnotatedStudyGeneCount;
-                    myP.annotatedPopulationGenes = goidAnnotatedPopGeneCount;
-
+                    TermForTermGOTermProperties myP = null;
                     if (goidAnnotatedStudyGeneCount != 0) {
-                        /*
-                         * Imagine the following... In an urn you put popGeneCount number of balls where a color of a
-                         * ball can be white or black. The number of balls having white color is
-                         * goidAnnontatedPopGeneCount (all genes of the population which are annotated by the current
-                         * GOID). You choose to draw studyGeneCount number of balls without replacement. How big is the
-                         * probability, that you got goidAnnotatedStudyGeneCount white balls after the whole drawing
-                         * process?
-                         */
-
-                        myP.p =
-                            TermForTermCalculation.this.hyperg.phypergeometric(popGeneCount,
-                                (double) goidAnnotatedPopGeneCount
-                                    / (double) popGeneCount,
-                                studyGeneCount, goidAnnotatedStudyGeneCount);
-                        myP.p_min = TermForTermCalculation.this.hyperg.dhyper(
-                            goidAnnotatedPopGeneCount,
-                            popGeneCount,
-                            goidAnnotatedPopGeneCount,
-                            goidAnnotatedPopGeneCount);
+                        myP = reuseTerm(previous, goTerm, goidAnnotatedPopGeneCount, studyGeneCount,
+                            goidAnnotatedStudyGeneCount);
+                    }
+                    if (myP != null) {
+                        reused++;
                     } else {
-                        /* Mark this p value as irrelevant so it isn't considered in a mtc */
-                        myP.p = 1.0;
-                        myP.ignoreAtMTC = true;
-                        myP.p_min = 1.0;
+                        myP = testTerm(goTerm, popGeneCount, goidAnnotatedPopGeneCount, studyGeneCount,
+                            goidAnnotatedStudyGeneCount);
                     }
 
                     p[i++] = myP;
                 }
+
+                if (previous != null) {
+                    logger.debug("Took over " + reused + " of " + p.length + " p values of the previous result");
+                }
                 return p;
             }
 
             @Override
             public PValue[] calculateRawPValues()
             {
-                return calculatePValues(this.observedStudySet);
+                return calculatePValues(this.observedStudySet, previous);
             }
 
             @Override
@@ -138,7 +255,14 @@ public int currentStudySetSize()
             public PValue[] calculateRandomPValues()
             {
                 return calculatePValues(
-                    this.populationSet.generateRandomStudySet(this.observedStudySet.getGeneCount()));
+                    this.populationSet.generateRandomStudySet(this.observedStudySet.getGeneCount()), null);
+            }
+
+            @Override
+            public PValue[] calculateRandomPValues(Random rnd)
+            {
+                return calculatePValues(
+                    this.populationSet.generateRandomStudySet(this.observedStudySet.getGeneCount(), rnd), null);
             }
         }
         ;
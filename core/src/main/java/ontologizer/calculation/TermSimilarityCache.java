@@ -0,0 +1,312 @@
+package ontologizer.calculation;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A cache for the similarities of pairs of terms that may be accessed by many threads without locking.
+ * <p>
+ * As the similarity of two terms doesn't change, a value that is computed by two threads at the same time is the same
+ * and it doesn't matter which one is stored. Hence values are published with plain atomic writes and a lost update
+ * only means that a value is computed again later. Values are stored as the complement of their bit pattern, so a
+ * zero entry means that there is no value yet.
+ * <p>
+ * If all pairs of the given terms fit into the memory budget, the similarities are kept in a dense triangular matrix
+ * indexed by the terms. The matrix is allocated when the first similarity is put, which is the only time a lock is
+ * taken. Otherwise the similarities are kept in striped open addressing tables keyed by the term pair. A full stripe
+ * is replaced by a copy of twice the size, which is published via compare-and-set; entries that are put into the old
+ * stripe while it is copied may get lost.
+ */
+abstract class TermSimilarityCache
+{
+    /**
+     * Returns the cached similarity of the two terms.
+     *
+     * @param t1 the id of the first term, which must not be larger than t2
+     * @param t2 the id of the second term
+     * @return the similarity or NaN if it is not cached.
+     */
+    abstract double get(int t1, int t2);
+
+    /**
+     * Caches the similarity of the two terms.
+     *
+     * @param t1 the id of the first term, which must not be larger than t2
+     * @param t2 the id of the second term
+     * @param sim the similarity, must not be NaN.
+     */
+    abstract void put(int t1, int t2, double sim);
+
+    /**
+     * Creates the cache.
+     *
+     * @param termIDs the ids of the terms whose similarities are queried. Similarities of other terms are cached as
+     *            well, but never in the dense matrix.
+     * @param memoryBudget the number of bytes the dense matrix may occupy.
+     * @return the cache
+     */
+    static TermSimilarityCache create(int[] termIDs, long memoryBudget)
+    {
+        long n = termIDs.length;
+        long pairs = n * (n + 1) / 2;
+        if (pairs * 8 <= memoryBudget && pairs <= Integer.MAX_VALUE) {
+            return new Dense(termIDs);
+        }
+        return new Striped();
+    }
+
+    private static long encode(double sim)
+    {
+        return ~Double.doubleToRawLongBits(sim);
+    }
+
+    private static double decode(long value)
+    {
+        return Double.longBitsToDouble(~value);
+    }
+
+    /**
+     * The dense triangular matrix over a fixed set of terms.
+     */
+    private static class Dense extends TermSimilarityCache
+    {
+        /** The matrix index of a term id, -1 if the term is not part of the matrix */
+        private final int[] index;
+
+        /** The row offsets within the matrix */
+        private final long[] rowStart;
+
+        /** The number of entries of the matrix */
+        private final int size;
+
+        /** The entries, which are allocated when the first similarity is put */
+        private volatile AtomicLongArray values;
+
+        /** Catches the terms that are not part of the matrix */
+        private final Striped others = new Striped();
+
+        Dense(int[] termIDs)
+        {
+            int maxID = 0;
+            for (int t : termIDs) {
+                maxID = Math.max(maxID, t);
+            }
+            this.index = new int[maxID + 1];
+            Arrays.fill(this.index, -1);
+
+            int n = 0;
+            for (int t : termIDs) {
+                if (this.index[t] == -1) {
+                    this.index[t] = n++;
+                }
+            }
+
+            this.rowStart = new long[n];
+            long start = 0;
+            for (int i = 0; i < n; i++) {
+                this.rowStart[i] = start - i;
+                start += n - i;
+            }
+            this.size = (int) start;
+        }
+
+        /**
+         * Returns the entries of the matrix, which are allocated on the first call.
+         *
+         * @return
+         */
+        private AtomicLongArray getValues()
+        {
+            AtomicLongArray values = this.values;
+            if (values == null) {
+                synchronized (this) {
+                    values = this.values;
+                    if (values == null) {
+                        this.values = values = new AtomicLongArray(this.size);
+                    }
+                }
+            }
+            return values;
+        }
+
+        /**
+         * Returns the position of the pair within the matrix.
+         *
+         * @return the position or -1 if one of the terms is not part of the matrix.
+         */
+        private int position(int t1, int t2)
+        {
+            if (t2 >= this.index.length) {
+                return -1;
+            }
+            int i1 = this.index[t1];
+            int i2 = this.index[t2];
+            if (i1 < 0 || i2 < 0) {
+                return -1;
+            }
+            if (i1 > i2) {
+                int s = i1;
+                i1 = i2;
+                i2 = s;
+            }
+            return (int) (this.rowStart[i1] + i2);
+        }
+
+        @Override
+        double get(int t1, int t2)
+        {
+            int pos = position(t1, t2);
+            if (pos < 0) {
+                return this.others.get(t1, t2);
+            }
+            AtomicLongArray values = this.values;
+            if (values == null) {
+                return Double.NaN;
+            }
+            long value = values.get(pos);
+            return value == 0 ? Double.NaN : decode(value);
+        }
+
+        @Override
+        void put(int t1, int t2, double sim)
+        {
+            int pos = position(t1, t2);
+            if (pos < 0) {
+                this.others.put(t1, t2, sim);
+                return;
+            }
+            getValues().lazySet(pos, encode(sim));
+        }
+    }
+
+    /**
+     * The striped open addressing tables.
+     */
+    private static class Striped extends TermSimilarityCache
+    {
+        private static final int STRIPE_BITS = 6;
+
+        private static final int INITIAL_CAPACITY = 256;
+
+        /** A single open addressing table with linear probing */
+        private static class Table
+        {
+            final AtomicLongArray keys;
+
+            final AtomicLongArray values;
+
+            final AtomicInteger size = new AtomicInteger();
+
+            final int mask;
+
+            Table(int capacity)
+            {
+                this.keys = new AtomicLongArray(capacity);
+                this.values = new AtomicLongArray(capacity);
+                this.mask = capacity - 1;
+            }
+        }
+
+        private final AtomicReferenceArray<Table> stripes = new AtomicReferenceArray<Table>(1 << STRIPE_BITS);
+
+        Striped()
+        {
+            for (int i = 0; i < this.stripes.length(); i++) {
+                this.stripes.set(i, new Table(INITIAL_CAPACITY));
+            }
+        }
+
+        private static long hash(long key)
+        {
+            long h = key * 0x9E3779B97F4A7C15L;
+            return h ^ (h >>> 29);
+        }
+
+        @Override
+        double get(int t1, int t2)
+        {
+            long key = ~(((long) t1 << 32) | t2);
+            long h = hash(key);
+            Table table = this.stripes.get((int) h & ((1 << STRIPE_BITS) - 1));
+            int slot = (int) (h >>> STRIPE_BITS) & table.mask;
+            for (int i = 0; i <= table.mask; i++) {
+                long k = table.keys.get(slot);
+                if (k == 0) {
+                    return Double.NaN;
+                }
+                if (k == key) {
+                    long value = table.values.get(slot);
+                    return value == 0 ? Double.NaN : decode(value);
+                }
+                slot = (slot + 1) & table.mask;
+            }
+            return Double.NaN;
+        }
+
+        @Override
+        void put(int t1, int t2, double sim)
+        {
+            long key = ~(((long) t1 << 32) | t2);
+            long h = hash(key);
+            int stripe = (int) h & ((1 << STRIPE_BITS) - 1);
+
+            Table table = this.stripes.get(stripe);
+            if (table.size.get() * 2 > table.mask) {
+                Table larger = grow(table);
+                if (this.stripes.compareAndSet(stripe, table, larger)) {
+                    table = larger;
+                } else {
+                    table = this.stripes.get(stripe);
+                }
+            }
+
+            int slot = (int) (h >>> STRIPE_BITS) & table.mask;
+            for (int i = 0; i <= table.mask; i++) {
+                long k = table.keys.get(slot);
+                if (k == 0) {
+                    if (table.keys.compareAndSet(slot, 0, key)) {
+                        table.size.incrementAndGet();
+                        table.values.lazySet(slot, encode(sim));
+                        return;
+                    }
+                    k = table.keys.get(slot);
+                }
+                if (k == key) {
+                    table.values.lazySet(slot, encode(sim));
+                    return;
+                }
+                slot = (slot + 1) & table.mask;
+            }
+
+            /* The table is full, which may only happen under heavy contention. Simply don't cache the value */
+        }
+
+        /**
+         * Returns a copy of the given table with twice the capacity.
+         *
+         * @param table
+         * @return
+         */
+        private static Table grow(Table table)
+        {
+            Table larger = new Table((table.mask + 1) * 2);
+            for (int i = 0; i <= table.mask; i++) {
+                long key = table.keys.get(i);
+                long value = table.values.get(i);
+                if (key == 0 || value == 0) {
+                    continue;
+                }
+                int slot = (int) (hash(key) >>> STRIPE_BITS) & larger.mask;
+                while (larger.keys.get(slot) != 0) {
+                    slot = (slot + 1) & larger.mask;
+                }
+                larger.keys.set(slot, key);
+                larger.values.set(slot, value);
+                larger.size.incrementAndGet();
+            }
+            return larger;
+        }
+    }
+}
@@ -1,19 +1,30 @@
 package ontologizer.calculation;
 
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
 import java.util.Set;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ontologizer.OntologizerThreadGroups;
 import ontologizer.association.AssociationContainer;
 import ontologizer.enumeration.GOTermEnumerator;
-import ontologizer.enumeration.GOTermEnumerator.GOTermAnnotatedGenes;
 import ontologizer.go.Ontology;
 import ontologizer.go.TermID;
 import ontologizer.set.PopulationSet;
 import ontologizer.set.StudySet;
 import ontologizer.statistics.AbstractTestCorrection;
-import ontologizer.statistics.IPValueCalculation;
+import ontologizer.statistics.IRandomPValueCalculation;
 import ontologizer.statistics.PValue;
 import ontologizer.types.ByteString;
 
@@ -21,6 +32,221 @@ public class TopCalculation extends AbstractHypergeometricCalculation
 {
     static final double SIGNIFICANCE_LEVEL = 0.01;
 
+    /** The time after which idle threads of the pool terminate */
+    private static final long KEEP_ALIVE_SECONDS = 10;
+
+    private int numberOfProcessors = Runtime.getRuntime().availableProcessors();
+
+    /** Pool that processes the independent parts of the ontology concurrently, created on first use */
+    private ThreadPoolExecutor pool;
+
+    /**
+     * Sets the number of threads that process the independent parts of the ontology concurrently. Defaults to the
+     * number of available processors.
+     *
+     * @param numberOfProcessors
+     */
+    public synchronized void setNumberOfProcessors(int numberOfProcessors)
+    {
+        this.numberOfProcessors = Math.max(1, numberOfProcessors);
+        if (this.pool != null && this.pool.getMaximumPoolSize() != this.numberOfProcessors) {
+            this.pool.shutdown();
+            this.pool = null;
+        }
+    }
+
+    /**
+     * Returns the pool with the configured number of threads. The pool is shared by all calculations of this
+     * instance. Its threads are daemons, which terminate when they have been idle for a while.
+     *
+     * @return
+     */
+    private synchronized ExecutorService getPool()
+    {
+        if (this.pool == null) {
+            this.pool = new ThreadPoolExecutor(this.numberOfProcessors, this.numberOfProcessors, KEEP_ALIVE_SECONDS,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory()
+                {
+                    private final AtomicInteger threadNumber = new AtomicInteger();
+
+                    @Override
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread t = new Thread(OntologizerThreadGroups.workerThreadGroup, r,
+                            "Topology-Elim-" + this.threadNumber.getAndIncrement());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+            this.pool.allowCoreThreadTimeOut(true);
+        }
+        return this.pool;
+    }
+
+    /**
+     * The part of the elim algorithm that depends only on the ontology and the population. It is built once per
+     * calculation and shared by the observed and all resampled study sets.
+     * <p>
+     * Terms are numbered in the order in which the recursive formulation of elim finishes them, i.e., in depth-first
+     * post order starting from the root and visiting children in the order of {@link Ontology#getTermChildren(TermID)}.
+     * Processing the terms in this order is a bottom-up topological traversal that yields the p values in the same
+     * order as the recursive formulation. Genes are numbered as well, so that sets of genes can be kept as bitmaps.
+     * <p>
+     * Terms that are only reachable via the same child of the root form a part of the ontology that can be processed
+     * independently of the others, e.g., the three name spaces of GO.
+     */
+    private static class ElimStructure
+    {
+        /** The genes of the population */
+        final HashMap<ByteString, Integer> geneIndex = new HashMap<ByteString, Integer>();
+
+        /** The terms in post order, the root is the last one */
+        final ArrayList<TermID> terms = new ArrayList<TermID>();
+
+        final HashMap<TermID, Integer> termIndex = new HashMap<TermID, Integer>();
+
+        /** The children of each term */
+        final ArrayList<int[]> children = new ArrayList<int[]>();
+
+        /** The number of parents of each term */
+        int[] parents;
+
+        /** The population genes annotated to each term, null if there are none */
+        BitSet[] populationGenes;
+
+        /** The index of each term within the p values, -1 if the term isn't annotated in the population */
+        int[] slot;
+
+        int numberOfSlots;
+
+        /** The terms of each independent part in post order */
+        final ArrayList<int[]> parts = new ArrayList<int[]>();
+
+        ElimStructure(Ontology graph, PopulationSet populationSet, GOTermEnumerator populationTermEnumerator)
+        {
+            for (ByteString gene : populationSet) {
+                this.geneIndex.put(gene, this.geneIndex.size());
+            }
+
+            int root = visit(graph, graph.getRootTerm().getID());
+            int n = this.terms.size();
+
+            this.parents = new int[n];
+            for (int[] c : this.children) {
+                for (int child : c) {
+                    this.parents[child]++;
+                }
+            }
+
+            this.populationGenes = new BitSet[n];
+            this.slot = new int[n];
+            for (int t = 0; t < n; t++) {
+                List<ByteString> annotated =
+                    populationTermEnumerator.getAnnotatedGenes(this.terms.get(t)).totalAnnotated;
+                if (annotated.size() == 0) {
+                    this.slot[t] = -1;
+                    continue;
+                }
+                BitSet genes = new BitSet(this.geneIndex.size());
+                for (ByteString gene : annotated) {
+                    Integer g = this.geneIndex.get(gene);
+                    if (g == null) {
+                        /* Shouldn't happen, but count the gene anyway */
+                        g = this.geneIndex.size();
+                        this.geneIndex.put(gene, g);
+                    }
+                    genes.set(g);
+                }
+                this.populationGenes[t] = genes;
+                this.slot[t] = this.numberOfSlots++;
+            }
+
+            createParts(root);
+        }
+
+        /**
+         * Numbers the given term and all its descendants that are not yet numbered in post order.
+         *
+         * @return the number of the term.
+         */
+        private int visit(Ontology graph, TermID term)
+        {
+            Integer index = this.termIndex.get(term);
+            if (index != null) {
+                return index;
+            }
+
+            Set<TermID> d = graph.getTermChildren(term);
+            int[] c = new int[d != null ? d.size() : 0];
+            if (d != null) {
+                int i = 0;
+                for (TermID child : d) {
+                    c[i++] = visit(graph, child);
+                }
+            }
+
+            index = this.terms.size();
+            this.terms.add(term);
+            this.termIndex.put(term, index);
+            this.children.add(c);
+            return index;
+        }
+
+        /**
+         * Splits the terms below the root into parts that don't share any term.
+         */
+        private void createParts(int root)
+        {
+            int[] component = new int[root];
+            for (int t = 0; t < root; t++) {
+                component[t] = t;
+            }
+            for (int t = 0; t < root; t++) {
+                for (int c : this.children.get(t)) {
+                    int a = find(component, t);
+                    int b = find(component, c);
+                    if (a != b) {
+                        component[Math.max(a, b)] = Math.min(a, b);
+                    }
+                }
+            }
+
+            /* Parts are numbered in the order of their first term, their terms remain in post order */
+            int[] part = new int[root];
+            int[] sizes = new int[root];
+            int numberOfParts = 0;
+            for (int t = 0; t < root; t++) {
+                int r = find(component, t);
+                if (r == t) {
+                    part[r] = numberOfParts++;
+                }
+                sizes[part[r]]++;
+            }
+
+            int[][] terms = new int[numberOfParts][];
+            for (int p = 0; p < numberOfParts; p++) {
+                terms[p] = new int[sizes[p]];
+                sizes[p] = 0;
+            }
+            for (int t = 0; t < root; t++) {
+                int p = part[find(component, t)];
+                terms[p][sizes[p]++] = t;
+            }
+            for (int[] p : terms) {
+                this.parts.add(p);
+            }
+        }
+
+        private static int find(int[] component, int t)
+        {
+            while (component[t] != t) {
+                component[t] = component[component[t]];
+                t = component[t];
+            }
+            return t;
+        }
+    }
+
     @Override
     public EnrichedGOTermsResult calculateStudySet(Ontology graph,
         AssociationContainer goAssociations, PopulationSet populationSet,
@@ -36,7 +262,7 @@ public EnrichedGOTermsResult calculateStudySet(Ontology graph,
          *
          * @author Sebastian Bauer
          */
-        class SinglePValuesCalculation implements IPValueCalculation
+        class SinglePValuesCalculation implements IRandomPValueCalculation
         {
             public PopulationSet populationSet;
 
@@ -46,131 +272,241 @@ class SinglePValuesCalculation implements IPValueCalculation
 
             public Ontology graph;
 
-            private HashMap<TermID, HashSet<ByteString>> markedGenesMap;
+            private ElimStructure structure;
+
+            private synchronized ElimStructure getStructure()
+            {
+                if (this.structure == null) {
+                    this.structure = new ElimStructure(this.graph, this.populationSet,
+                        this.populationSet.enumerateGOTerms(this.graph, this.goAssociations));
+                }
+                return this.structure;
+            }
 
             /**
-             * Recursive function performing elim.
+             * Performs elim on the given terms, which must be in post order and closed under descendants. A term's
+             * marked genes are the union of the marked genes of its children plus, if the term is significant, its
+             * study genes. The marked genes of a term are released as soon as all its parents have been processed.
              *
-             * @param populationTermEnumerator
-             * @param studyTermEnumerator
-             * @param studySet
-             * @param term
-             * @param p
-             * @return
+             * @param s the structure
+             * @param terms the terms to process
+             * @param studyGeneCount the number of genes of the study set
+             * @param studyGenes the study genes annotated to each term
+             * @param markedGenes the genes that are marked for each processed term, null if there are none
+             * @param remainingParents the number of parents of each term that have not yet been processed
+             * @param p receives the p values
              */
-            private HashSet<ByteString> calculateTerm(GOTermEnumerator populationTermEnumerator,
-                GOTermEnumerator studyTermEnumerator, StudySet studySet, TermID term, ArrayList<PValue> pList)
+            private void calculateTerms(ElimStructure s, int[] terms, int studyGeneCount, BitSet[] studyGenes,
+                BitSet[] markedGenes, int[] remainingParents, PValue[] p)
             {
-                if (term.id == 5982) {
-                    System.out.println("HUHUHUH" + this.markedGenesMap.containsKey(term));
-                }
-
-                /* Leave early if we already processed this term */
-                if (this.markedGenesMap.containsKey(term)) {
-                    return this.markedGenesMap.get(term);
-                }
+                int popGeneCount = this.populationSet.getGeneCount();
+                BitSet unmarked = new BitSet();
+
+                for (int t : terms) {
+                    /* Determine genes that are marked */
+                    BitSet marked = null;
+                    for (int c : s.children.get(t)) {
+                        BitSet childMarked = markedGenes[c];
+                        if (childMarked != null) {
+                            if (marked == null) {
+                                marked = (BitSet) childMarked.clone();
+                            } else {
+                                marked.or(childMarked);
+                            }
+                        }
+                        if (--remainingParents[c] == 0) {
+                            markedGenes[c] = null;
+                        }
+                    }
 
-                /* Determine genes that are marked */
-                HashSet<ByteString> markedGenes = new HashSet<ByteString>();
-                Set<TermID> d = this.graph.getTermChildren(term);
-                if (d != null) {
-                    for (TermID c : d) {
-                        markedGenes.addAll(calculateTerm(populationTermEnumerator, studyTermEnumerator, studySet, c,
-                            pList));
+                    BitSet populationAnnotated = s.populationGenes[t];
+                    if (populationAnnotated == null) {
+                        markedGenes[t] = marked;
+                        continue;
                     }
+                    BitSet studyAnnotated = studyGenes[t];
+
+                    /* Now calculate the p value */
+                    int goidAnnotatedStudyGeneCount = countUnmarked(studyAnnotated, marked, unmarked);
+                    int goidAnnotatedPopGeneCount = countUnmarked(populationAnnotated, marked, unmarked);
+
+                    TopGOTermProperties myP = new TopGOTermProperties();
+                    myP.goTerm = this.graph.getTerm(s.terms.get(t));
+                    myP.annotatedStudyGenes = studyAnnotated != null ? studyAnnotated.cardinality() : 0;
+                    myP.annotatedPopulationGenes = populationAnnotated.cardinality();
+
+                    if (goidAnnotatedStudyGeneCount != 0) {
+                        /*
+                         * Imagine the following... In an urn you put popGeneCount number of balls where a color of a
+                         * ball can be white or black. The number of balls having white color is
+                         * goidAnnontatedPopGeneCount (all genes of the population which are annotated by the current
+                         * GOID). You choose to draw studyGeneCount number of balls without replacement. How big is the
+                         * probability, that you got goidAnnotatedStudyGeneCount white balls after the whole drawing
+                         * process?
+                         */
+
+                        myP.p =
+                            TopCalculation.this.hyperg.phypergeometric(popGeneCount,
+                                (double) goidAnnotatedPopGeneCount / (double) popGeneCount, studyGeneCount,
+                                goidAnnotatedStudyGeneCount);
+                        myP.p_min =
+                            TopCalculation.this.hyperg.dhyper(goidAnnotatedPopGeneCount, popGeneCount,
+                                goidAnnotatedPopGeneCount,
+                                goidAnnotatedPopGeneCount);
+
+                        if (myP.p < SIGNIFICANCE_LEVEL) {
+                            if (marked == null) {
+                                marked = (BitSet) studyAnnotated.clone();
+                            } else {
+                                marked.or(studyAnnotated);
+                            }
+                        }
+                    } else {
+                        /* Mark this p value as irrelevant so it isn't considered in an mtc */
+                        myP.p = 1.0;
+                        myP.ignoreAtMTC = true;
+                        myP.p_min = 1.0;
+                    }
+                    myP.p_adjusted = myP.p;
+                    p[s.slot[t]] = myP;
+                    markedGenes[t] = marked;
                 }
+            }
 
-                /* Now calculate the p value */
-                int popGeneCount = this.populationSet.getGeneCount();
-                int studyGeneCount = studySet.getGeneCount();
-
-                GOTermAnnotatedGenes studyAnnotatedGenes = studyTermEnumerator.getAnnotatedGenes(term);
+            /**
+             * Returns the number of the given genes that are not marked.
+             *
+             * @param genes the genes, may be null.
+             * @param marked the marked genes, may be null.
+             * @param scratch a bitmap that is used for the calculation.
+             */
+            private int countUnmarked(BitSet genes, BitSet marked, BitSet scratch)
+            {
+                if (genes == null) {
+                    return 0;
+                }
+                if (marked == null) {
+                    return genes.cardinality();
+                }
+                scratch.clear();
+                scratch.or(genes);
+                scratch.andNot(marked);
+                return scratch.cardinality();
+            }
 
-                int goidAnnotatedPopGeneCount = 0;
-                int goidAnnotatedStudyGeneCount = 0;
+            /**
+             * Performs elim on the whole ontology.
+             *
+             * @param studySet the study set
+             * @param parallel whether independent parts of the ontology may be processed concurrently. This is not
+             *            worthwhile for random study sets, as these are usually drawn by several threads already.
+             * @return the p values of all terms that are annotated in the population.
+             */
+            private PValue[] calculatePValues(StudySet studySet, boolean parallel)
+            {
+                final ElimStructure s = getStructure();
+                int n = s.terms.size();
 
-                GOTermAnnotatedGenes annotated = studyTermEnumerator.getAnnotatedGenes(term);
-                for (ByteString gene : annotated.totalAnnotated) {
-                    if (!markedGenes.contains(gene)) {
-                        goidAnnotatedStudyGeneCount++;
+                /* Map the study genes to bitmaps. Genes that aren't in the population get numbers of their own */
+                final BitSet[] studyGenes = new BitSet[n];
+                HashMap<ByteString, Integer> foreignGenes = null;
+                GOTermEnumerator studyTermEnumerator = studySet.enumerateGOTerms(this.graph, this.goAssociations);
+                for (TermID term : studyTermEnumerator) {
+                    Integer t = s.termIndex.get(term);
+                    if (t == null) {
+                        continue;
                     }
-                }
-
-                annotated = populationTermEnumerator.getAnnotatedGenes(term);
-                for (ByteString gene : annotated.totalAnnotated) {
-                    if (!markedGenes.contains(gene)) {
-                        goidAnnotatedPopGeneCount++;
+                    BitSet genes = new BitSet(s.geneIndex.size());
+                    for (ByteString gene : studyTermEnumerator.getAnnotatedGenes(term).totalAnnotated) {
+                        Integer g = s.geneIndex.get(gene);
+                        if (g == null) {
+                            if (foreignGenes == null) {
+                                foreignGenes = new HashMap<ByteString, Integer>();
+                            }
+                            g = foreignGenes.get(gene);
+                            if (g == null) {
+                                g = s.geneIndex.size() + foreignGenes.size();
+                                foreignGenes.put(gene, g);
+                            }
+                        }
+                        genes.set(g);
                     }
-                }
-                /* We have to use the real count here */
-                if (annotated.totalAnnotated.size() == 0) {
-                    this.markedGenesMap.put(term, markedGenes);
-                    return markedGenes;
+                    studyGenes[t] = genes;
                 }
 
-                TopGOTermProperties myP = new TopGOTermProperties();
-                myP.goTerm = this.graph.getTerm(term);
-                myP.annotatedStudyGenes = studyAnnotatedGenes.totalAnnotatedCount();
-                myP.annotatedPopulationGenes = populationTermEnumerator.getAnnotatedGenes(term).totalAnnotatedCount();
-
-                if (goidAnnotatedStudyGeneCount != 0) {
-                    /*
-                     * Imagine the following... In an urn you put popGeneCount number of balls where a color of a ball
-                     * can be white or black. The number of balls having white color is goidAnnontatedPopGeneCount (all
-                     * genes of the population which are annotated by the current GOID). You choose to draw
-                     * studyGeneCount number of balls without replacement. How big is the probability, that you got
-                     * goidAnnotatedStudyGeneCount white balls after the whole drawing process?
-                     */
-
-                    myP.p =
-                        TopCalculation.this.hyperg.phypergeometric(popGeneCount,
-                            (double) goidAnnotatedPopGeneCount / (double) popGeneCount, studyGeneCount,
-                            goidAnnotatedStudyGeneCount);
-                    myP.p_min =
-                        TopCalculation.this.hyperg.dhyper(goidAnnotatedPopGeneCount, popGeneCount,
-                            goidAnnotatedPopGeneCount,
-                            goidAnnotatedPopGeneCount);
-
-                    if (myP.p < SIGNIFICANCE_LEVEL) {
-                        markedGenes.addAll(studyAnnotatedGenes.totalAnnotated);
+                final int studyGeneCount = studySet.getGeneCount();
+                final BitSet[] markedGenes = new BitSet[n];
+                final int[] remainingParents = s.parents.clone();
+                final PValue[] p = new PValue[s.numberOfSlots];
+
+                int numberOfParts = s.parts.size();
+                if (!parallel || numberOfParts < 2) {
+                    for (int[] part : s.parts) {
+                        calculateTerms(s, part, studyGeneCount, studyGenes, markedGenes, remainingParents, p);
                     }
                 } else {
-                    /* Mark this p value as irrelevant so it isn't considered in an mtc */
-                    myP.p = 1.0;
-                    myP.ignoreAtMTC = true;
-                    myP.p_min = 1.0;
+                    /* The parts don't share any term, so they can be processed concurrently */
+                    ArrayList<Future<?>> futures = new ArrayList<Future<?>>(numberOfParts - 1);
+                    for (int i = 1; i < numberOfParts; i++) {
+                        final int[] part = s.parts.get(i);
+                        futures.add(getPool().submit(new Callable<Void>()
+                        {
+                            @Override
+                            public Void call()
+                            {
+                                calculateTerms(s, part, studyGeneCount, studyGenes, markedGenes, remainingParents,
+                                    p);
+                                return null;
+                            }
+                        }));
+                    }
+                    calculateTerms(s, s.parts.get(0), studyGeneCount, studyGenes, markedGenes, remainingParents, p);
+                    waitFor(futures);
                 }
-                myP.p_adjusted = myP.p;
-                pList.add(myP);
-                this.markedGenesMap.put(term, markedGenes);
-                return markedGenes;
+
+                /* Finally, the root */
+                calculateTerms(s, new int[] { n - 1 }, studyGeneCount, studyGenes, markedGenes, remainingParents, p);
+                return p;
             }
 
-            private PValue[] calculatePValues(StudySet studySet)
+            private void waitFor(List<Future<?>> futures)
             {
-                this.markedGenesMap = new HashMap<TermID, HashSet<ByteString>>();
-                GOTermEnumerator studyTermEnumerator = studySet.enumerateGOTerms(this.graph, this.goAssociations);
-                GOTermEnumerator populationTermEnumerator =
-                    this.populationSet.enumerateGOTerms(this.graph, this.goAssociations);
-                ArrayList<PValue> list = new ArrayList<PValue>(100);
-                calculateTerm(populationTermEnumerator, studyTermEnumerator, studySet,
-                    this.graph.getRootTerm().getID(),
-                    list);
-                PValue p[] = new PValue[list.size()];
-                return list.toArray(p);
+                try {
+                    for (Future<?> f : futures) {
+                        f.get();
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RuntimeException("Calculation has been interrupted", e);
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof RuntimeException) {
+                        throw (RuntimeException) e.getCause();
+                    }
+                    if (e.getCause() instanceof Error) {
+                        throw (Error) e.getCause();
+                    }
+                    throw new RuntimeException(e.getCause());
+                }
             }
 
             @Override
             public PValue[] calculateRawPValues()
             {
-                return calculatePValues(this.observedStudySet);
+                return calculatePValues(this.observedStudySet, true);
             }
 
             @Override
             public PValue[] calculateRandomPValues()
             {
                 return calculatePValues(
-                    this.populationSet.generateRandomStudySet(this.observedStudySet.getGeneCount()));
+                    this.populationSet.generateRandomStudySet(this.observedStudySet.getGeneCount()), false);
+            }
+
+            @Override
+            public PValue[] calculateRandomPValues(Random rnd)
+            {
+                return calculatePValues(
+                    this.populationSet.generateRandomStudySet(this.observedStudySet.getGeneCount(), rnd), false);
             }
 
             @Override
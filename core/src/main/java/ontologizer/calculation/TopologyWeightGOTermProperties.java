@@ -1,6 +1,5 @@
 package ontologizer.calculation;
 
-import java.util.HashMap;
 import java.util.HashSet;
 
 import ontologizer.types.ByteString;
@@ -21,9 +20,6 @@ public class TopologyWeightGOTermProperties extends AbstractGOTermProperties
     /** Genes which should be removed for terms in upper levels */
     public HashSet<ByteString> markedGenes;
 
-    /** Weight of the annotated genes */
-    private HashMap<ByteString, Double> weight = new HashMap<ByteString, Double>();
-
     @Override
     public int getNumberOfProperties()
     {
@@ -77,31 +73,4 @@ public boolean isPropertyStudyGeneCount(int propNumber)
     {
         return propNumber == 3;
     }
-
-    /**
-     * Returns the weight of the given gene. If no weight has been set yet, returns 1.
-     *
-     * @param gene
-     * @return
-     */
-    public double getWeight(ByteString gene)
-    {
-        Double w = this.weight.get(gene);
-        if (w == null) {
-            return 1;
-        }
-        return w;
-    }
-
-    /**
-     * Sets the weight.
-     *
-     * @param gene
-     * @param w
-     */
-    public void setWeight(ByteString gene, double w)
-    {
-        this.weight.put(gene, w);
-    }
-
 }
@@ -13,15 +13,13 @@
 import ontologizer.set.PopulationSet;
 import ontologizer.set.StudySet;
 import ontologizer.statistics.AbstractTestCorrection;
-import ontologizer.types.ByteString;
 
 public class TopologyWeightedCalculation extends AbstractHypergeometricCalculation
 {
     static final double SIGNIFICANCE_LEVEL = 0.01;
 
-    private void computeTermSig(PopulationSet populationSet, StudySet studySet, Ontology graph, TermID u,
-        Set<TermID> children, EnrichedGOTermsResult studySetResult, GOTermEnumerator studyTermEnumerator,
-        GOTermEnumerator populationTermEnumerator)
+    private void computeTermSig(Ontology graph, TermID u, Set<TermID> children, EnrichedGOTermsResult studySetResult,
+        GOTermEnumerator studyTermEnumerator, GOTermEnumerator populationTermEnumerator, TopologyWeights weights)
     {
         if (graph.isRootTerm(u)) {
             return;
@@ -29,71 +27,54 @@ private void computeTermSig(PopulationSet populationSet, StudySet studySet, Onto
 
         /* Execute Fisher */
         TopologyWeightGOTermProperties prop =
-            wFisher(populationSet, studySet, graph, u, studySetResult, studyTermEnumerator, populationTermEnumerator);
+            wFisher(graph, u, studySetResult, studyTermEnumerator, populationTermEnumerator, weights);
 
         if (children == null || children.size() == 0) {
             return;
         }
 
-        HashMap<TermID, Double> weights = new HashMap<TermID, Double>();
+        HashMap<TermID, Double> ratios = new HashMap<TermID, Double>();
         HashSet<TermID> sigChildren = new HashSet<TermID>();
         for (TermID child : children) {
             TopologyWeightGOTermProperties childProp =
                 (TopologyWeightGOTermProperties) studySetResult.getGOTermProperties(child);
             double w = sigRatio(childProp.p, prop.p);
-            weights.put(child, w);
+            ratios.put(child, w);
             if (w > 1) {
                 sigChildren.add(child);
             }
         }
 
+        int uIndex = weights.getTermIndex(u);
+
         if (sigChildren.size() == 0) {
             /* Case 1: U is the most significant term in the family */
             for (TermID child : children) {
-                TopologyWeightGOTermProperties childProp =
-                    (TopologyWeightGOTermProperties) studySetResult.getGOTermProperties(child);
-                double w = weights.get(child);
-
-                /* Readjust the weight for every gene annotated to the child */
-                GOTermAnnotatedGenes childAnnotatedGenes = populationTermEnumerator.getAnnotatedGenes(u);
-                for (ByteString gene : childAnnotatedGenes.totalAnnotated) {
-                    childProp.setWeight(gene, childProp.getWeight(gene) * w);
-                }
+                double w = ratios.get(child);
+
+                /* Readjust the weight for every gene annotated to u */
+                weights.multiplyWeights(weights.getTermIndex(child), uIndex, w);
 
                 /* Recalculate the child's significance */
-                wFisher(populationSet, studySet, graph, child, studySetResult, studyTermEnumerator,
-                    populationTermEnumerator);
+                wFisher(graph, child, studySetResult, studyTermEnumerator, populationTermEnumerator, weights);
             }
             return;
         }
 
-        /* Case 2: At least one child is more significant than u */
+        /* Case 2: At least one child is more significant than u. Down-weight the genes of all terms above u */
+        int rootIndex = weights.getTermIndex(graph.getRootTerm().getID());
+        int[] upper = weights.getAncestors(uIndex);
         for (TermID child : sigChildren) {
-            double w = weights.get(child);
-
-            Set<TermID> upper = graph.getTermsOfInducedGraph(graph.getRootTerm().getID(), u);
-            upper.remove(u);
-            upper.remove(graph.getRootTerm().getID());
-
-            for (TermID up : upper) {
-                ensureGOTermPropertiesExistence(graph, up, studySetResult, studyTermEnumerator,
-                    populationTermEnumerator);
-
-                TopologyWeightGOTermProperties upProp =
-                    (TopologyWeightGOTermProperties) studySetResult.getGOTermProperties(up);
+            double w = ratios.get(child);
 
-                GOTermAnnotatedGenes upAnnotatedGenes = populationTermEnumerator.getAnnotatedGenes(up);
-
-                for (ByteString gene : upAnnotatedGenes.totalAnnotated) {
-                    upProp.setWeight(gene, upProp.getWeight(gene) / w);
+            for (int up : upper) {
+                if (up == uIndex || up == rootIndex) {
+                    continue;
                 }
-            }
-        }
 
-        HashSet<TermID> newChildren = new HashSet<TermID>();
-        for (TermID t : children) {
-            if (!sigChildren.contains(t)) {
-                newChildren.add(t);
+                ensureGOTermPropertiesExistence(graph, weights.getTerm(up), studySetResult, studyTermEnumerator,
+                    populationTermEnumerator);
+                weights.divideWeights(up, up, w);
             }
         }
     }
@@ -101,49 +82,26 @@ private void computeTermSig(PopulationSet populationSet, StudySet studySet, Onto
     /**
      * Perform the weighted fisher test.
      *
-     * @param populationSet
-     * @param studySet
      * @param graph
      * @param u
      * @param studySetResult
      * @param studyTermEnumerator
      * @param populationTermEnumerator
+     * @param weights
      * @return
      */
-    private TopologyWeightGOTermProperties wFisher(PopulationSet populationSet,
-        StudySet studySet, Ontology graph, TermID u,
-        EnrichedGOTermsResult studySetResult,
-        GOTermEnumerator studyTermEnumerator,
-        GOTermEnumerator populationTermEnumerator)
+    private TopologyWeightGOTermProperties wFisher(Ontology graph, TermID u, EnrichedGOTermsResult studySetResult,
+        GOTermEnumerator studyTermEnumerator, GOTermEnumerator populationTermEnumerator, TopologyWeights weights)
     {
-
         TopologyWeightGOTermProperties prop = ensureGOTermPropertiesExistence(
             graph, u, studySetResult, studyTermEnumerator,
             populationTermEnumerator);
 
-        GOTermAnnotatedGenes populationAnnotatedGenes = populationTermEnumerator.getAnnotatedGenes(u);
-        GOTermAnnotatedGenes studyAnnotatedGenes = studyTermEnumerator.getAnnotatedGenes(u);
-
-        double goidAnnotatedPopGeneCount = 0;
-        double goidAnnotatedStudyGeneCount = 0;
-        double popGeneCount = 0;
-        double studyGeneCount = 0;
-
-        for (ByteString gene : populationAnnotatedGenes.totalAnnotated) {
-            goidAnnotatedPopGeneCount += prop.getWeight(gene);
-        }
-
-        for (ByteString gene : studyAnnotatedGenes.totalAnnotated) {
-            goidAnnotatedStudyGeneCount += prop.getWeight(gene);
-        }
-
-        for (ByteString gene : populationSet) {
-            popGeneCount += prop.getWeight(gene);
-        }
-
-        for (ByteString gene : studySet) {
-            studyGeneCount += prop.getWeight(gene);
-        }
+        int t = weights.getTermIndex(u);
+        double goidAnnotatedPopGeneCount = weights.getAnnotatedPopulationCount(t);
+        double goidAnnotatedStudyGeneCount = weights.getAnnotatedStudyCount(t);
+        double popGeneCount = weights.getPopulationCount(t);
+        double studyGeneCount = weights.getStudyCount(t);
 
         if (goidAnnotatedStudyGeneCount != 0) {
             prop.p =
@@ -195,6 +153,9 @@ public EnrichedGOTermsResult calculateStudySet(Ontology graph,
         GOTermEnumerator studyTermEnumerator = studySet.enumerateGOTerms(graph, goAssociations);
         GOTermEnumerator populationTermEnumerator = populationSet.enumerateGOTerms(graph, goAssociations);
 
+        TopologyWeights weights =
+            new TopologyWeights(graph, populationSet, studySet, populationTermEnumerator, studyTermEnumerator);
+
         Set<TermID> allAnnotatedTerms = studyTermEnumerator.getAllAnnotatedTermsAsSet();
         GOLevels levels = graph.getGOLevels(allAnnotatedTerms);
 
@@ -210,8 +171,8 @@ public EnrichedGOTermsResult calculateStudySet(Ontology graph,
                     }
                 }
 
-                computeTermSig(populationSet, studySet, graph, t, annotatedDescs, studySetResult, studyTermEnumerator,
-                    populationTermEnumerator);
+                computeTermSig(graph, t, annotatedDescs, studySetResult, studyTermEnumerator,
+                    populationTermEnumerator, weights);
             }
         }
 
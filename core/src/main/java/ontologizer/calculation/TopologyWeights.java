@@ -0,0 +1,339 @@
+package ontologizer.calculation;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import ontologizer.enumeration.GOTermEnumerator;
+import ontologizer.go.Ontology;
+import ontologizer.go.Term;
+import ontologizer.go.TermID;
+import ontologizer.set.PopulationSet;
+import ontologizer.set.StudySet;
+import ontologizer.types.ByteString;
+import sonumina.math.graph.SlimDirectedGraphView;
+
+/**
+ * The gene weights of the topology weighted calculation for a single study set.
+ * <p>
+ * Every term has its own weight for every gene, which is 1 unless changed. Weights of a term are only changed for genes
+ * annotated to the term itself or to one of its parents, hence they are kept sparse over the union of these genes and
+ * allocated when the term's weights are changed first. Genes are identified by their index within the population.
+ * <p>
+ * The weighted counts of a term (population, study, annotated population and annotated study genes) are maintained
+ * incrementally whenever a weight changes rather than being summed up again for every test. Note that the sums are
+ * therefore accumulated in a different order than a plain summation, which may cause differences in the last bits of
+ * fractional counts.
+ */
+class TopologyWeights
+{
+    private static final int[] NO_GENES = new int[0];
+
+    private final Ontology graph;
+
+    private final SlimDirectedGraphView<Term> slim;
+
+    private final GOTermEnumerator populationTermEnumerator;
+
+    private final GOTermEnumerator studyTermEnumerator;
+
+    private final HashMap<ByteString, Integer> geneIndex = new HashMap<ByteString, Integer>();
+
+    /** The study genes as bitmap over the population genes */
+    private final long[] studyGenes;
+
+    /** Scratch bitmap, always cleared after use */
+    private final long[] scratch;
+
+    private final int populationGeneCount;
+
+    private final int studyGeneCount;
+
+    /** The sorted indices of the population genes annotated to a term, indexed by the term's vertex index */
+    private final int[][] genes;
+
+    /** The genes whose weights are kept for a term, null if the weights of the term were not changed yet */
+    private final int[][] weightedGenes;
+
+    /** The weights of the genes in weightedGenes */
+    private final double[][] weights;
+
+    private final boolean[] counted;
+
+    private final double[] populationCount;
+
+    private final double[] studyCount;
+
+    private final double[] annotatedPopulationCount;
+
+    private final double[] annotatedStudyCount;
+
+    /**
+     * Constructs the weights for the given study set. Initially, all weights are 1.
+     *
+     * @param graph
+     * @param populationSet
+     * @param studySet
+     * @param populationTermEnumerator
+     * @param studyTermEnumerator
+     */
+    TopologyWeights(Ontology graph, PopulationSet populationSet, StudySet studySet,
+        GOTermEnumerator populationTermEnumerator, GOTermEnumerator studyTermEnumerator)
+    {
+        this.graph = graph;
+        this.slim = graph.getSharedSlimGraphView();
+        this.populationTermEnumerator = populationTermEnumerator;
+        this.studyTermEnumerator = studyTermEnumerator;
+
+        for (ByteString gene : populationSet) {
+            this.geneIndex.put(gene, this.geneIndex.size());
+        }
+        for (ByteString gene : populationTermEnumerator.getGenes()) {
+            if (!this.geneIndex.containsKey(gene)) {
+                this.geneIndex.put(gene, this.geneIndex.size());
+            }
+        }
+        this.populationGeneCount = populationSet.getGeneCount();
+        this.studyGeneCount = studySet.getGeneCount();
+
+        int words = (this.geneIndex.size() + 63) >>> 6;
+        this.studyGenes = new long[words];
+        this.scratch = new long[words];
+        for (ByteString gene : studySet) {
+            Integer g = this.geneIndex.get(gene);
+            if (g != null) {
+                this.studyGenes[g >>> 6] |= 1L << g;
+            }
+        }
+
+        int numberOfTerms = this.slim.getNumberOfVertices();
+        this.genes = new int[numberOfTerms][];
+        this.weightedGenes = new int[numberOfTerms][];
+        this.weights = new double[numberOfTerms][];
+        this.counted = new boolean[numberOfTerms];
+        this.populationCount = new double[numberOfTerms];
+        this.studyCount = new double[numberOfTerms];
+        this.annotatedPopulationCount = new double[numberOfTerms];
+        this.annotatedStudyCount = new double[numberOfTerms];
+    }
+
+    /**
+     * Returns the vertex index of the given term.
+     *
+     * @param term
+     * @return
+     */
+    int getTermIndex(TermID term)
+    {
+        return this.slim.getVertexIndex(this.graph.getTerm(term));
+    }
+
+    /**
+     * Returns the term of the given vertex index.
+     *
+     * @param t
+     * @return
+     */
+    TermID getTerm(int t)
+    {
+        return this.slim.getVertex(t).getID();
+    }
+
+    /**
+     * Returns the vertex indices of the ancestors of the given term including the term itself.
+     *
+     * @param t
+     * @return
+     */
+    int[] getAncestors(int t)
+    {
+        return this.slim.vertexAncestors[t];
+    }
+
+    private int[] getGenes(int t)
+    {
+        int[] termGenes = this.genes[t];
+        if (termGenes == null) {
+            List<ByteString> annotated =
+                this.populationTermEnumerator.getAnnotatedGenes(getTerm(t)).totalAnnotated;
+            if (annotated.size() == 0) {
+                termGenes = NO_GENES;
+            } else {
+                termGenes = new int[annotated.size()];
+                for (int i = 0; i < termGenes.length; i++) {
+                    termGenes[i] = this.geneIndex.get(annotated.get(i));
+                }
+                Arrays.sort(termGenes);
+            }
+            this.genes[t] = termGenes;
+        }
+        return termGenes;
+    }
+
+    private void ensureCounts(int t)
+    {
+        if (this.counted[t]) {
+            return;
+        }
+        this.populationCount[t] = this.populationGeneCount;
+        this.studyCount[t] = this.studyGeneCount;
+        this.annotatedPopulationCount[t] = getGenes(t).length;
+        this.annotatedStudyCount[t] =
+            this.studyTermEnumerator.getAnnotatedGenes(getTerm(t)).totalAnnotatedCount();
+        this.counted[t] = true;
+    }
+
+    /**
+     * Allocates the weights of the given term, which cover the genes of the term and of its parents.
+     *
+     * @param t
+     */
+    private void ensureWeights(int t)
+    {
+        if (this.weightedGenes[t] != null) {
+            return;
+        }
+
+        int size = 0;
+        for (int g : getGenes(t)) {
+            this.scratch[g >>> 6] |= 1L << g;
+        }
+        for (int p : this.slim.vertexParents[t]) {
+            for (int g : getGenes(p)) {
+                this.scratch[g >>> 6] |= 1L << g;
+            }
+        }
+        for (long w : this.scratch) {
+            size += Long.bitCount(w);
+        }
+
+        int[] domain = new int[size];
+        int k = 0;
+        for (int i = 0; i < this.scratch.length; i++) {
+            long w = this.scratch[i];
+            while (w != 0) {
+                domain[k++] = (i << 6) + Long.numberOfTrailingZeros(w);
+                w &= w - 1;
+            }
+            this.scratch[i] = 0;
+        }
+
+        double[] termWeights = new double[size];
+        Arrays.fill(termWeights, 1);
+        this.weightedGenes[t] = domain;
+        this.weights[t] = termWeights;
+    }
+
+    /**
+     * Multiplies the weights of the term by the given factor for all genes annotated to the source term. The source
+     * must be the term itself or one of its parents.
+     *
+     * @param t the term whose weights are changed
+     * @param source the term that defines the genes
+     * @param factor
+     */
+    void multiplyWeights(int t, int source, double factor)
+    {
+        updateWeights(t, source, factor, false);
+    }
+
+    /**
+     * Divides the weights of the term by the given divisor for all genes annotated to the source term. The source must
+     * be the term itself or one of its parents.
+     *
+     * @param t the term whose weights are changed
+     * @param source the term that defines the genes
+     * @param divisor
+     */
+    void divideWeights(int t, int source, double divisor)
+    {
+        updateWeights(t, source, divisor, true);
+    }
+
+    private void updateWeights(int t, int source, double factor, boolean divide)
+    {
+        ensureCounts(t);
+        ensureWeights(t);
+
+        int[] domain = this.weightedGenes[t];
+        double[] termWeights = this.weights[t];
+        int[] termGenes = getGenes(t);
+        int d = 0;
+        int a = 0;
+        for (int g : getGenes(source)) {
+            while (domain[d] != g) {
+                d++;
+            }
+            while (a < termGenes.length && termGenes[a] < g) {
+                a++;
+            }
+
+            double oldWeight = termWeights[d];
+            double newWeight = divide ? oldWeight / factor : oldWeight * factor;
+            double delta = newWeight - oldWeight;
+            termWeights[d] = newWeight;
+
+            boolean inStudy = (this.studyGenes[g >>> 6] & (1L << g)) != 0;
+            boolean annotated = a < termGenes.length && termGenes[a] == g;
+
+            this.populationCount[t] += delta;
+            if (inStudy) {
+                this.studyCount[t] += delta;
+            }
+            if (annotated) {
+                this.annotatedPopulationCount[t] += delta;
+                if (inStudy) {
+                    this.annotatedStudyCount[t] += delta;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the weighted number of population genes.
+     *
+     * @param t
+     * @return
+     */
+    double getPopulationCount(int t)
+    {
+        ensureCounts(t);
+        return this.populationCount[t];
+    }
+
+    /**
+     * Returns the weighted number of study genes.
+     *
+     * @param t
+     * @return
+     */
+    double getStudyCount(int t)
+    {
+        ensureCounts(t);
+        return this.studyCount[t];
+    }
+
+    /**
+     * Returns the weighted number of population genes annotated to the term.
+     *
+     * @param t
+     * @return
+     */
+    double getAnnotatedPopulationCount(int t)
+    {
+        ensureCounts(t);
+        return this.annotatedPopulationCount[t];
+    }
+
+    /**
+     * Returns the weighted number of study genes annotated to the term.
+     *
+     * @param t
+     * @return
+     */
+    double getAnnotatedStudyCount(int t)
+    {
+        ensureCounts(t);
+        return this.annotatedStudyCount[t];
+    }
+}
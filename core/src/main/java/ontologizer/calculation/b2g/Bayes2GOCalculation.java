@@ -1,15 +1,37 @@
 package ontologizer.calculation.b2g;
 
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InvalidClassException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamClass;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import ontologizer.OntologizerThreadGroups;
 import ontologizer.association.AssociationContainer;
 import ontologizer.calculation.EnrichedGOTermsResult;
 import ontologizer.calculation.ICalculation;
@@ -35,6 +57,30 @@ public class Bayes2GOCalculation implements ICalculation
 {
     private static Logger logger = LoggerFactory.getLogger(Bayes2GOCalculation.class.getCanonicalName());
 
+    /** The number of steps after which the diagnostics of the chains are updated */
+    private static final int DIAGNOSTICS_INTERVAL = 10000;
+
+    /** Used to derive the seeds of the chains from the seed of the calculation */
+    private static final long CHAIN_SEED_INCREMENT = 0x9E3779B97F4A7C15L;
+
+    private static final AtomicInteger poolNumber = new AtomicInteger();
+
+    /** The number of steps after which a chain checks whether its progress should be reported */
+    private static final int REPORT_BLOCK_SIZE = 1000;
+
+    /** The number of steps of a chain that are not recorded */
+    private static final int BURNIN = 20000;
+
+    /**
+     * The number of steps that are not recorded if a chain is warm started, i.e., if it starts from the state of the
+     * previous EM iteration, which is already close to the posterior.
+     */
+    private static final int WARM_START_BURNIN = 2000;
+
+    private static final int CHECKPOINT_MAGIC = 0x4d475341; /* MGSA */
+
+    private static final int CHECKPOINT_VERSION = 2;
+
     private boolean WRITE_STATS_FILE = false;
 
     private long seed = 0;
@@ -59,6 +105,28 @@ public class Bayes2GOCalculation implements ICalculation
 
     private int updateReportTime = 1000; /* Update report time in ms */
 
+    private int numberOfChains = 1;
+
+    private boolean stopOnConvergence = false;
+
+    private double maxRHat = 1.01;
+
+    private double minEss = 400;
+
+    private double[] temperatures = new double[] { 1 };
+
+    private int swapInterval = 100;
+
+    private File checkpointFile;
+
+    private int checkpointStepInterval = 0;
+
+    private long checkpointTimeInterval = 10 * 60 * 1000;
+
+    private boolean acceleratedEm = false;
+
+    private double emTolerance = 0.001;
+
     public Bayes2GOCalculation()
     {
     }
@@ -73,6 +141,16 @@ public Bayes2GOCalculation(Bayes2GOCalculation calc)
         this.calculationProgress = calc.calculationProgress;
         this.takePopulationAsReference = calc.takePopulationAsReference;
         this.mcmcSteps = calc.mcmcSteps;
+        this.numberOfChains = calc.numberOfChains;
+        this.stopOnConvergence = calc.stopOnConvergence;
+        this.maxRHat = calc.maxRHat;
+        this.minEss = calc.minEss;
+        this.temperatures = calc.temperatures.clone();
+        this.swapInterval = calc.swapInterval;
+        this.checkpointStepInterval = calc.checkpointStepInterval;
+        this.checkpointTimeInterval = calc.checkpointTimeInterval;
+        this.acceleratedEm = calc.acceleratedEm;
+        this.emTolerance = calc.emTolerance;
     }
 
     /**
@@ -231,6 +309,139 @@ public void setUpdateReportTime(int updateReportTime)
         this.updateReportTime = updateReportTime;
     }
 
+    /**
+     * Sets the number of independent chains. Chains are run concurrently and their records are merged. With more than
+     * one chain, the R-hat diagnostics become available.
+     *
+     * @param numberOfChains
+     */
+    public void setNumberOfChains(int numberOfChains)
+    {
+        if (numberOfChains < 1) {
+            throw new IllegalArgumentException("At least one chain is required");
+        }
+        this.numberOfChains = numberOfChains;
+    }
+
+    /**
+     * Sets whether the chains should be stopped before the requested number of steps once the convergence criteria
+     * are satisfied.
+     *
+     * @param stopOnConvergence
+     * @see #setConvergenceCriteria(double, double)
+     */
+    public void setStopOnConvergence(boolean stopOnConvergence)
+    {
+        this.stopOnConvergence = stopOnConvergence;
+    }
+
+    /**
+     * Sets the convergence criteria, which must be satisfied by the marginals of all terms as well as alpha, beta and
+     * p. Defaults to an R-hat of 1.01 and an effective sample size of 400.
+     *
+     * @param maxRHat the largest acceptable R-hat value (only considered for multiple chains)
+     * @param minEss the smallest acceptable effective sample size
+     */
+    public void setConvergenceCriteria(double maxRHat, double minEss)
+    {
+        this.maxRHat = maxRHat;
+        this.minEss = minEss;
+    }
+
+    /**
+     * Sets the temperature ladder of the replica exchange (parallel tempering) sampler. For every temperature, each
+     * chain runs a replica that samples the posterior raised to the power of the inverse temperature. Replicas at
+     * neighbouring temperatures propose to swap their states periodically. Only the replica at temperature 1, the
+     * cold one, is recorded. The default ladder consists of the cold temperature only, i.e., no tempering is done.
+     *
+     * @param temperatures the ladder, which must start with 1 and be increasing.
+     */
+    public void setTemperatures(double... temperatures)
+    {
+        if (temperatures.length == 0 || temperatures[0] != 1) {
+            throw new IllegalArgumentException("The temperature ladder must start with 1");
+        }
+        for (int i = 1; i < temperatures.length; i++) {
+            if (temperatures[i] <= temperatures[i - 1]) {
+                throw new IllegalArgumentException("The temperature ladder must be increasing");
+            }
+        }
+        this.temperatures = temperatures.clone();
+    }
+
+    /**
+     * Sets the number of steps after which swaps between replicas of neighbouring temperatures are proposed.
+     *
+     * @param swapInterval
+     */
+    public void setSwapInterval(int swapInterval)
+    {
+        if (swapInterval < 1) {
+            throw new IllegalArgumentException("The swap interval must be positive");
+        }
+        this.swapInterval = swapInterval;
+    }
+
+    /**
+     * Sets the file to which checkpoints of the sampler are written. A checkpoint contains the full state of all
+     * chains and the parameters of the completed EM iterations, so a calculation that was aborted can be continued via
+     * {@link #resumeStudySet(Ontology, AssociationContainer, PopulationSet, StudySet, File)}. Checkpoints are written
+     * between segments of {@value #DIAGNOSTICS_INTERVAL} steps, whenever the step or the time interval has elapsed.
+     *
+     * @param checkpointFile the file or null, if no checkpoints should be written.
+     * @see #setCheckpointStepInterval(int)
+     * @see #setCheckpointTimeInterval(long)
+     */
+    public void setCheckpointFile(File checkpointFile)
+    {
+        this.checkpointFile = checkpointFile;
+    }
+
+    /**
+     * Sets the number of steps after which a checkpoint is written. The steps of all EM iterations are counted.
+     *
+     * @param checkpointStepInterval the interval or 0 if checkpoints should not be written based on steps.
+     */
+    public void setCheckpointStepInterval(int checkpointStepInterval)
+    {
+        this.checkpointStepInterval = checkpointStepInterval;
+    }
+
+    /**
+     * Sets the wall-clock time after which a checkpoint is written. Defaults to ten minutes.
+     *
+     * @param checkpointTimeInterval the interval in ms or 0 if checkpoints should not be written based on time.
+     */
+    public void setCheckpointTimeInterval(long checkpointTimeInterval)
+    {
+        this.checkpointTimeInterval = checkpointTimeInterval;
+    }
+
+    /**
+     * Sets whether the accelerated EM mode should be used for parameters of type {@link B2GParam.Type#EM}. In this
+     * mode, the chains of an EM iteration are warm started from the final states of the previous iteration, the MCMC
+     * steps of an iteration are split among the chains, which run in parallel (see {@link #setNumberOfChains(int)}),
+     * and the iterations stop as soon as the parameters change by less than the EM tolerance.
+     *
+     * @param acceleratedEm
+     * @see #setEmTolerance(double)
+     */
+    public void setAcceleratedEm(boolean acceleratedEm)
+    {
+        this.acceleratedEm = acceleratedEm;
+    }
+
+    /**
+     * Sets the tolerance of the accelerated EM mode. The iterations stop once alpha and beta change by less than the
+     * tolerance and the expected number of terms changes relatively by less than the tolerance. Defaults to 0.001.
+     *
+     * @param emTolerance
+     */
+    public void setEmTolerance(double emTolerance)
+    {
+        this.emTolerance = emTolerance;
+    }
+
     /**
      * Returns whether the given study set has only valued item attributes.
      *
@@ -255,6 +466,45 @@ private static boolean hasOnlyValuedItemAttributes(StudySet studySet)
     public EnrichedGOTermsResult calculateStudySet(Ontology graph,
         AssociationContainer goAssociations, PopulationSet populationSet,
         StudySet studySet)
+    {
+        try {
+            return calculateStudySet(graph, goAssociations, populationSet, studySet, (DataInputStream) null);
+        } catch (IOException e) {
+            /* Only reading a checkpoint can fail */
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Continues a calculation from the given checkpoint. The calculation must be set up in the same way as the one that
+     * has written the checkpoint and the same data must be given. The chains then continue with the same trajectory as
+     * if the calculation had not been aborted.
+     *
+     * @param graph
+     * @param goAssociations
+     * @param populationSet
+     * @param studySet
+     * @param checkpoint the checkpoint file
+     * @return
+     * @throws IOException if the checkpoint cannot be read or doesn't match the calculation.
+     * @see #setCheckpointFile(File)
+     */
+    public EnrichedGOTermsResult resumeStudySet(Ontology graph,
+        AssociationContainer goAssociations, PopulationSet populationSet,
+        StudySet studySet, File checkpoint) throws IOException
+    {
+        byte[] bytes = Files.readAllBytes(checkpoint.toPath());
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            if (in.readInt() != CHECKPOINT_MAGIC || in.readInt() != CHECKPOINT_VERSION) {
+                throw new IOException(checkpoint + " is not a checkpoint of a supported version");
+            }
+            return calculateStudySet(graph, goAssociations, populationSet, studySet, in);
+        }
+    }
+
+    private EnrichedGOTermsResult calculateStudySet(Ontology graph,
+        AssociationContainer goAssociations, PopulationSet populationSet,
+        StudySet studySet, DataInputStream checkpoint) throws IOException
     {
         boolean valuedCalculation;
 
@@ -284,7 +534,7 @@ public EnrichedGOTermsResult calculateStudySet(Ontology graph,
             + studyEnumerator.getGenes().size());
 
         long start = System.currentTimeMillis();
-        calculateByMCMC(graph, result, populationEnumerator, studyEnumerator, populationSet, studySet);// , llr);
+        calculateByMCMC(graph, result, populationEnumerator, studyEnumerator, checkpoint);
         long end = System.currentTimeMillis();
         System.out.println((end - start) + "ms");
         return result;
@@ -303,12 +553,579 @@ public void setUsePrior(boolean usePrior)
         this.usePrior = usePrior;
     }
 
+    /**
+     * A single Markov chain or a replica of a tempered chain. All chains of a calculation sample the same model but
+     * have their own source of randomness, score and starting point. They are advanced in segments of steps, so the
+     * caller can inspect their records or swap temperatures between the segments.
+     */
+    private class Chain
+    {
+        private final int index;
+
+        private Random rnd;
+
+        private FixedAlphaBetaScore bayesScore;
+
+        /** The inverse temperature at which the posterior is sampled */
+        private double inverseTemperature = 1;
+
+        /** Whether the chain samples the untempered posterior, only then states are recorded */
+        private boolean cold = true;
+
+        private BufferedWriter statsFile;
+
+        private int iter;
+
+        private double expectedNumberOfTerms;
+
+        private double score;
+
+        private int step;
+
+        private int numAccepts;
+
+        private int numRejects;
+
+        private double maxScore;
+
+        /** The indices of the terms that were active when the maximum score was reached */
+        private int[] maxScoredTerms;
+
+        private int numberOfMaxScoredTerms;
+
+        private double maxScoredAlpha;
+
+        private double maxScoredBeta;
+
+        private double maxScoredP;
+
+        private int maxWhenSeen;
+
+        private long start;
+
+        private int maxSteps;
+
+        /** The number of steps of the current iteration that are not recorded */
+        private int burnin;
+
+        Chain(int index, Random rnd)
+        {
+            this.index = index;
+            this.rnd = rnd;
+        }
+
+        /**
+         * Prepares the chain for the next (EM) iteration.
+         *
+         * @param iter the index of the iteration
+         * @param bayesScore the score that is sampled in this iteration
+         * @param expectedNumberOfTerms
+         * @param maxSteps
+         * @param numberOfChains the total number of chains including replicas.
+         * @param warmStart whether the chain should start from the final state of the previous iteration.
+         */
+        void init(int iter, FixedAlphaBetaScore bayesScore, double expectedNumberOfTerms, int maxSteps,
+            int numberOfChains, boolean warmStart)
+        {
+            FixedAlphaBetaScore previousScore = this.bayesScore;
+
+            this.iter = iter;
+            this.bayesScore = bayesScore;
+            this.expectedNumberOfTerms = expectedNumberOfTerms;
+            this.maxSteps = maxSteps;
+            this.step = 0;
+            this.numAccepts = 0;
+            this.numRejects = 0;
+
+            this.score = bayesScore.getScore();
+
+            logger.info("Score of empty set: " + this.score);
+
+            if (warmStart) {
+                this.burnin = WARM_START_BURNIN;
+            } else {
+                this.burnin = BURNIN;
+            }
+
+            /*
+             * Provide a starting point. Unless a random start is requested, the first chain starts with the empty set
+             * while the other chains start from sets of different expected sizes, so that the chains are dispersed.
+             */
+            int numberOfStartTerms = 0;
+            if (warmStart) {
+                /* Unless resumed from a checkpoint, there is a previous score */
+                if (previousScore != null) {
+                    int[] activeTerms = new int[previousScore.termsArray.length];
+                    int numberOfActiveTerms = previousScore.getActiveTermIndices(activeTerms);
+                    for (int j = 0; j < numberOfActiveTerms; j++) {
+                        bayesScore.switchState(activeTerms[j]);
+                    }
+                    this.score = bayesScore.getScore();
+                    logger.info("Warm start with " + numberOfActiveTerms + " terms");
+                }
+            } else if (Bayes2GOCalculation.this.randomStart) {
+                numberOfStartTerms =
+                    bayesScore.EXPECTED_NUMBER_OF_TERMS[this.rnd.nextInt(bayesScore.EXPECTED_NUMBER_OF_TERMS.length)];
+            } else if (this.index > 0) {
+                numberOfStartTerms =
+                    bayesScore.EXPECTED_NUMBER_OF_TERMS[this.index * bayesScore.EXPECTED_NUMBER_OF_TERMS.length
+                        / numberOfChains];
+            }
+            if (numberOfStartTerms > 0) {
+                int numberOfTerms = bayesScore.termsArray.length;
+                double pForStart = ((double) numberOfStartTerms) / numberOfTerms;
+
+                for (int j = 0; j < numberOfTerms; j++) {
+                    if (this.rnd.nextDouble() < pForStart) {
+                        bayesScore.switchState(j);
+                    }
+                }
+
+                logger.info("Starting with " + bayesScore.getNumberOfActiveTerms() + " terms (p=" + pForStart + ")");
+
+                this.score = bayesScore.getScore();
+            }
+            logger.info("Score of initial set: " + this.score);
+
+            this.maxScore = this.score;
+            this.maxScoredTerms = new int[bayesScore.termsArray.length];
+            this.numberOfMaxScoredTerms = bayesScore.getActiveTermIndices(this.maxScoredTerms);
+            this.maxScoredAlpha = Double.NaN;
+            this.maxScoredBeta = Double.NaN;
+            this.maxScoredP = Double.NaN;
+            this.maxWhenSeen = -1;
+
+            this.start = System.currentTimeMillis();
+        }
+
+        /**
+         * Performs the given number of steps. Progress is reported between blocks of steps.
+         *
+         * @param steps
+         */
+        void run(int steps)
+        {
+            int end = this.step + steps;
+            while (this.step < end) {
+                int blockEnd = (int) Math.min(end, (long) this.step + REPORT_BLOCK_SIZE);
+                runBlock(blockEnd);
+
+                long now = System.currentTimeMillis();
+                if (now - this.start > Bayes2GOCalculation.this.updateReportTime) {
+                    report();
+                    this.start = now;
+                }
+            }
+        }
+
+        /**
+         * Performs the steps up to the given step. This is the hot path of the sampler, it works on term indices and
+         * does not allocate.
+         *
+         * @param end
+         */
+        private void runBlock(int end)
+        {
+            FixedAlphaBetaScore bayesScore = this.bayesScore;
+            Random rnd = this.rnd;
+            double score = this.score;
+            double inverseTemperature = this.inverseTemperature;
+            boolean cold = this.cold;
+            int burnin = this.burnin;
+
+            for (int t = this.step; t < end; t++) {
+                /* Remember maximum score and terms */
+                if (score > this.maxScore) {
+                    this.maxScore = score;
+                    this.numberOfMaxScoredTerms = bayesScore.getActiveTermIndices(this.maxScoredTerms);
+                    this.maxScoredAlpha = bayesScore.getAlpha();
+                    this.maxScoredBeta = bayesScore.getBeta();
+                    this.maxScoredP = bayesScore.getP();
+                    this.maxWhenSeen = t;
+                }
+
+                long oldPossibilities = bayesScore.getNeighborhoodSize();
+                long r = rnd.nextLong();
+                bayesScore.proposeNewState(r);
+                double newScore = bayesScore.getScore();
+                long newPossibilities = bayesScore.getNeighborhoodSize();
+
+                /* The last quotient is the hasting ratio */
+                double acceptProb =
+                    Math.exp((newScore - score) * inverseTemperature) * oldPossibilities / newPossibilities;
+
+                double u = rnd.nextDouble();
+                if (u >= acceptProb) {
+                    bayesScore.undoProposal();
+                    this.numRejects++;
+                } else {
+                    score = newScore;
+                    this.numAccepts++;
+                }
+
+                if (t > burnin && cold) {
+                    bayesScore.record();
+                }
+
+                if (this.statsFile != null) {
+                    try {
+                        this.statsFile.append(this.iter + "\t" + t + "\t" + acceptProb + "\t" + this.numAccepts + "\t"
+                            + score + "\n");
+                    } catch (IOException e) {
+                    }
+                }
+            }
+
+            this.score = score;
+            this.step = end;
+        }
+
+        private void report()
+        {
+            int t = this.step;
+            logger.info((this.index > 0 ? "Chain " + this.index + ": " : "") + (t * 100L / this.maxSteps)
+                + "% (score=" + this.score + " maxScore=" + this.maxScore + " #terms="
+                + this.bayesScore.getNumberOfActiveTerms() +
+                " accept/reject=" + String.format("%g", (double) this.numAccepts / (double) this.numRejects) +
+                " accept/steps=" + String.format("%g", (double) this.numAccepts / (double) t) +
+                " exp=" + this.expectedNumberOfTerms + " usePrior=" + Bayes2GOCalculation.this.usePrior + ")");
+        }
+
+        /**
+         * Writes the state of the chain, including the state of its score and source of randomness.
+         *
+         * @param out
+         * @throws IOException
+         */
+        void writeState(DataOutput out) throws IOException
+        {
+            out.writeInt(this.step);
+            out.writeInt(this.numAccepts);
+            out.writeInt(this.numRejects);
+            out.writeDouble(this.score);
+            out.writeDouble(this.maxScore);
+            out.writeInt(this.numberOfMaxScoredTerms);
+            for (int i = 0; i < this.numberOfMaxScoredTerms; i++) {
+                out.writeInt(this.maxScoredTerms[i]);
+            }
+            out.writeDouble(this.maxScoredAlpha);
+            out.writeDouble(this.maxScoredBeta);
+            out.writeDouble(this.maxScoredP);
+            out.writeInt(this.maxWhenSeen);
+            writeRandom(out, this.rnd);
+            this.bayesScore.writeState(out);
+        }
+
+        /**
+         * Restores the state that was written by {@link #writeState(DataOutput)}. The chain must have been initialized
+         * for the same iteration.
+         *
+         * @param in
+         * @throws IOException
+         */
+        void readState(DataInput in) throws IOException
+        {
+            this.step = in.readInt();
+            this.numAccepts = in.readInt();
+            this.numRejects = in.readInt();
+            this.score = in.readDouble();
+            this.maxScore = in.readDouble();
+            this.numberOfMaxScoredTerms = in.readInt();
+            if (this.numberOfMaxScoredTerms < 0 || this.numberOfMaxScoredTerms > this.maxScoredTerms.length) {
+                throw new IOException("The saved chain state is invalid");
+            }
+            for (int i = 0; i < this.numberOfMaxScoredTerms; i++) {
+                this.maxScoredTerms[i] = in.readInt();
+            }
+            this.maxScoredAlpha = in.readDouble();
+            this.maxScoredBeta = in.readDouble();
+            this.maxScoredP = in.readDouble();
+            this.maxWhenSeen = in.readInt();
+            this.rnd = readRandom(in);
+            this.bayesScore.rnd = this.rnd;
+            this.bayesScore.readState(in);
+        }
+
+        /**
+         * Returns the terms that were active when the maximum score was reached.
+         *
+         * @return
+         */
+        List<TermID> getMaxScoredTerms()
+        {
+            List<TermID> terms = new ArrayList<TermID>(this.numberOfMaxScoredTerms);
+            for (int i = 0; i < this.numberOfMaxScoredTerms; i++) {
+                terms.add(this.bayesScore.termsArray[this.maxScoredTerms[i]]);
+            }
+            return terms;
+        }
+    }
+
+    /**
+     * The replicas of a chain, one for each temperature of the ladder. Replicas keep their state and source of
+     * randomness while the temperatures are swapped among them, which is equivalent to swapping the states.
+     */
+    private static class ReplicaGroup
+    {
+        private final Chain[] replicas;
+
+        /** The index of the replica that is at the given temperature */
+        private final int[] replicaAt;
+
+        /** Source of randomness for the swap decisions */
+        private Random rnd;
+
+        ReplicaGroup(Chain[] replicas, Random rnd)
+        {
+            this.replicas = replicas;
+            this.replicaAt = new int[replicas.length];
+            this.rnd = rnd;
+        }
+
+        /**
+         * Assigns the temperatures of the ladder to the replicas in their order.
+         *
+         * @param temperatures
+         */
+        void reset(double[] temperatures)
+        {
+            for (int k = 0; k < this.replicaAt.length; k++) {
+                this.replicaAt[k] = k;
+            }
+            assignTemperatures(temperatures);
+        }
+
+        private void assignTemperatures(double[] temperatures)
+        {
+            for (int k = 0; k < this.replicaAt.length; k++) {
+                Chain replica = this.replicas[this.replicaAt[k]];
+                replica.inverseTemperature = 1 / temperatures[k];
+                replica.cold = k == 0;
+            }
+        }
+
+        /**
+         * Proposes a swap for every pair of neighbouring temperatures, starting with the hottest pair.
+         *
+         * @param temperatures
+         * @param attempts the number of swap attempts of each pair, incremented accordingly.
+         * @param accepts the number of accepted swaps of each pair, incremented accordingly.
+         */
+        void proposeSwaps(double[] temperatures, long[] attempts, long[] accepts)
+        {
+            for (int k = this.replicaAt.length - 2; k >= 0; k--) {
+                Chain colder = this.replicas[this.replicaAt[k]];
+                Chain hotter = this.replicas[this.replicaAt[k + 1]];
+
+                double logAcceptProb = (1 / temperatures[k] - 1 / temperatures[k + 1]) * (hotter.score - colder.score);
+                attempts[k]++;
+                if (logAcceptProb >= 0 || this.rnd.nextDouble() < Math.exp(logAcceptProb)) {
+                    int tmp = this.replicaAt[k];
+                    this.replicaAt[k] = this.replicaAt[k + 1];
+                    this.replicaAt[k + 1] = tmp;
+                    accepts[k]++;
+                }
+            }
+            assignTemperatures(temperatures);
+        }
+
+        void writeState(DataOutput out) throws IOException
+        {
+            for (int r : this.replicaAt) {
+                out.writeInt(r);
+            }
+            writeRandom(out, this.rnd);
+        }
+
+        void readState(DataInput in, double[] temperatures) throws IOException
+        {
+            boolean[] seen = new boolean[this.replicaAt.length];
+            for (int k = 0; k < this.replicaAt.length; k++) {
+                int r = in.readInt();
+                if (r < 0 || r >= this.replicaAt.length || seen[r]) {
+                    throw new IOException("The saved replica assignment is invalid");
+                }
+                seen[r] = true;
+                this.replicaAt[k] = r;
+            }
+            this.rnd = readRandom(in);
+            assignTemperatures(temperatures);
+        }
+
+        /**
+         * Returns the scores of all replicas.
+         *
+         * @return
+         */
+        FixedAlphaBetaScore[] getScores()
+        {
+            FixedAlphaBetaScore[] scores = new FixedAlphaBetaScore[this.replicas.length];
+            for (int k = 0; k < scores.length; k++) {
+                scores[k] = this.replicas[k].bayesScore;
+            }
+            return scores;
+        }
+    }
+
+    private static void writeRandom(DataOutput out, Random rnd) throws IOException
+    {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (ObjectOutputStream oos = new ObjectOutputStream(bytes)) {
+            oos.writeObject(rnd);
+        }
+        out.writeInt(bytes.size());
+        out.write(bytes.toByteArray());
+    }
+
+    private static Random readRandom(DataInput in) throws IOException
+    {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+
+        /* Only plain sources of randomness are accepted */
+        try (ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(bytes))
+        {
+            @Override
+            protected Class<?> resolveClass(ObjectStreamClass desc) throws IOException, ClassNotFoundException
+            {
+                if (!desc.getName().equals(Random.class.getName())) {
+                    throw new InvalidClassException(desc.getName(), "Unexpected class in checkpoint");
+                }
+                return super.resolveClass(desc);
+            }
+        }) {
+            return (Random) ois.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+
+    private static void writeCounts(DataOutput out, long[] counts) throws IOException
+    {
+        for (long c : counts) {
+            out.writeLong(c);
+        }
+    }
+
+    private static void readCounts(DataInput in, long[] counts) throws IOException
+    {
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = in.readLong();
+        }
+    }
+
+    /**
+     * Writes a checkpoint of the given state to the checkpoint file. The file is replaced atomically, so a previous
+     * checkpoint survives if the calculation is aborted while writing.
+     */
+    private void writeCheckpoint(long fingerprint, int iter, double alpha, double beta, double expectedNumberOfTerms,
+        List<double[]> emTrajectory, int steps, long[] swapAttempts, long[] swapAccepts,
+        ConvergenceDiagnostics diagnostics, ReplicaGroup[] groups, Chain[] chains)
+    {
+        File file = this.checkpointFile;
+        File tmp = new File(file.getPath() + ".tmp");
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(CHECKPOINT_MAGIC);
+            out.writeInt(CHECKPOINT_VERSION);
+            out.writeLong(fingerprint);
+            out.writeInt(iter);
+            out.writeDouble(alpha);
+            out.writeDouble(beta);
+            out.writeDouble(expectedNumberOfTerms);
+            out.writeInt(emTrajectory.size());
+            for (double[] params : emTrajectory) {
+                for (double param : params) {
+                    out.writeDouble(param);
+                }
+            }
+            out.writeInt(steps);
+            writeCounts(out, swapAttempts);
+            writeCounts(out, swapAccepts);
+            diagnostics.writeState(out);
+            for (ReplicaGroup group : groups) {
+                group.writeState(out);
+            }
+            for (Chain chain : chains) {
+                chain.writeState(out);
+            }
+        } catch (IOException e) {
+            logger.warn("Couldn't write checkpoint " + tmp, e);
+            tmp.delete();
+            return;
+        }
+
+        try {
+            Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("Couldn't rename " + tmp + " to " + file, e);
+            tmp.delete();
+            return;
+        }
+        logger.info("Wrote checkpoint at step " + steps + " of iteration " + iter + " to " + file);
+    }
+
+    /**
+     * Advances all chains by the given number of steps. Several chains are advanced concurrently using the given pool.
+     *
+     * @param chains
+     * @param steps
+     * @param pool the pool, may be null if there is only a single chain.
+     */
+    private static void runChains(Chain[] chains, final int steps, ExecutorService pool)
+    {
+        if (chains.length == 1) {
+            chains[0].run(steps);
+            return;
+        }
+
+        List<Future<?>> futures = new ArrayList<Future<?>>(chains.length);
+        for (final Chain chain : chains) {
+            futures.add(pool.submit(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    chain.run(steps);
+                }
+            }));
+        }
+
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("MCMC has been interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Performs the calculation.
+     *
+     * @param graph
+     * @param result
+     * @param populationEnumerator
+     * @param studyEnumerator
+     * @param checkpoint the checkpoint from which the calculation is resumed, positioned behind the header. May be
+     *            null.
+     * @throws IOException if the checkpoint cannot be read.
+     */
     private void calculateByMCMC(Ontology graph,
         Bayes2GOEnrichedGOTermsResult result,
         GOTermEnumerator populationEnumerator,
         GOTermEnumerator studyEnumerator,
-        PopulationSet populationSet,
-        StudySet studySet)
+        DataInput checkpoint) throws IOException
     {
         List<TermID> allTerms;
 
@@ -318,14 +1135,30 @@ private void calculateByMCMC(Ontology graph,
             allTerms = studyEnumerator.getAllAnnotatedTermsAsList();
         }
 
-        Random rnd;
+        long chainSeed;
         if (this.seed != 0) {
-            rnd = new Random(this.seed);
-            logger.info("Use a random seed of: " + this.seed);
+            chainSeed = this.seed;
         } else {
-            long newSeed = new Random().nextLong();
-            logger.info("Use a random seed of: " + newSeed);
-            rnd = new Random(newSeed);
+            chainSeed = new Random().nextLong();
+        }
+        logger.info("Use a random seed of: " + chainSeed);
+
+        /*
+         * Every chain consists of one replica per temperature. Each replica has its own source of randomness that is
+         * derived from the seed
+         */
+        int numberOfChains = this.numberOfChains;
+        double[] temperatures = this.temperatures;
+        int numberOfTemperatures = temperatures.length;
+        Chain[] chains = new Chain[numberOfChains * numberOfTemperatures];
+        ReplicaGroup[] groups = new ReplicaGroup[numberOfChains];
+        for (int c = 0; c < numberOfChains; c++) {
+            Chain[] replicas = new Chain[numberOfTemperatures];
+            for (int k = 0; k < numberOfTemperatures; k++) {
+                int r = c * numberOfTemperatures + k;
+                replicas[k] = chains[r] = new Chain(r, new Random(chainSeed + r * CHAIN_SEED_INCREMENT));
+            }
+            groups[c] = new ReplicaGroup(replicas, new Random(chainSeed - (c + 1) * CHAIN_SEED_INCREMENT));
         }
 
         boolean doAlphaEm = false;
@@ -385,9 +1218,58 @@ private void calculateByMCMC(Ontology graph,
             maxIter = 1;
         }
 
+        boolean acceleratedEm = doEm && this.acceleratedEm;
+
         logger.info(allTerms.size() + " terms and " + populationEnumerator.getGenes().size()
             + " genes in consideration.");
 
+        /*
+         * Identifies the setup of the calculation, a checkpoint can only be resumed by the same setup. The configured
+         * seed is part of it rather than the seed that is actually used, as the state of the random number generators
+         * is restored from the checkpoint.
+         */
+        long fingerprint = allTerms.hashCode();
+        fingerprint = fingerprint * 31 + populationEnumerator.getGenes().size();
+        fingerprint = fingerprint * 31 + populationEnumerator.getGenes().hashCode();
+        fingerprint = fingerprint * 31 + studyEnumerator.getGenes().size();
+        fingerprint = fingerprint * 31 + studyEnumerator.getGenes().hashCode();
+        fingerprint = fingerprint * 31 + this.seed;
+        fingerprint = fingerprint * 31 + this.mcmcSteps;
+        fingerprint = fingerprint * 31 + numberOfChains;
+        fingerprint = fingerprint * 31 + Arrays.hashCode(temperatures);
+        fingerprint = fingerprint * 31 + maxIter;
+        if (acceleratedEm) {
+            fingerprint = fingerprint * 31 + 1;
+        }
+
+        /* The parameters after each EM iteration */
+        List<double[]> emTrajectory = new ArrayList<double[]>();
+
+        int firstIter = 0;
+        if (checkpoint != null) {
+            if (checkpoint.readLong() != fingerprint) {
+                throw new IOException("The checkpoint was written by a different calculation");
+            }
+            firstIter = checkpoint.readInt();
+            alpha = checkpoint.readDouble();
+            beta = checkpoint.readDouble();
+            expectedNumberOfTerms = checkpoint.readDouble();
+            if (firstIter < 0 || firstIter >= maxIter) {
+                throw new IOException("The checkpoint's iteration is invalid");
+            }
+            int emIterations = checkpoint.readInt();
+            if (emIterations < 0 || emIterations > firstIter) {
+                throw new IOException("The checkpoint's EM trajectory is invalid");
+            }
+            for (int k = 0; k < emIterations; k++) {
+                emTrajectory.add(new double[] { checkpoint.readDouble(), checkpoint.readDouble(),
+                    checkpoint.readDouble() });
+            }
+            logger.info("Resuming from iteration " + firstIter);
+        }
+        int stepsSinceCheckpoint = 0;
+        long lastCheckpointTime = System.currentTimeMillis();
+
         BufferedWriter statsFile = null;
         try {
             if (this.WRITE_STATS_FILE) {
@@ -396,225 +1278,304 @@ private void calculateByMCMC(Ontology graph,
             }
         } catch (IOException e) {
         }
+        chains[0].statsFile = statsFile;
+
+        ExecutorService pool = null;
+        if (chains.length > 1) {
+            int threads = Math.min(chains.length, Runtime.getRuntime().availableProcessors());
+            pool = Executors.newFixedThreadPool(threads, new ThreadFactory()
+            {
+                private final String prefix = "MCMC-" + poolNumber.incrementAndGet() + "-";
+
+                private final AtomicInteger threadNumber = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(OntologizerThreadGroups.workerThreadGroup, r,
+                        this.prefix + this.threadNumber.getAndIncrement());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
 
-        for (int i = 0; i < maxIter; i++) {
-            FixedAlphaBetaScore bayesScore =
-                new FixedAlphaBetaScore(rnd, allTerms, populationEnumerator, studyEnumerator.getGenes());
-            bayesScore.setIntegrateParams(this.integrateParams);
-
-            if (doEm) {
-                System.out.println("EM-Iter(" + i + ")" + alpha + "  " + beta + "  " + expectedNumberOfTerms);
-            } else {
-                System.out.println("MCMC only: " + alpha + "  " + beta + "  " + expectedNumberOfTerms);
-
-            }
+        try {
+            for (int i = firstIter; i < maxIter; i++) {
+                if (doEm) {
+                    System.out.println("EM-Iter(" + i + ")" + alpha + "  " + beta + "  " + expectedNumberOfTerms);
+                } else {
+                    System.out.println("MCMC only: " + alpha + "  " + beta + "  " + expectedNumberOfTerms);
 
-            bayesScore.setAlpha(alpha);
-            if (this.alpha.hasMax()) {
-                bayesScore.setMaxAlpha(this.alpha.getMax());
-            }
-            bayesScore.setBeta(beta);
-            if (this.beta.hasMax()) {
-                bayesScore.setMaxBeta(this.beta.getMax());
-            }
-            bayesScore.setExpectedNumberOfTerms(expectedNumberOfTerms);
-            bayesScore.setUsePrior(this.usePrior);
+                }
 
-            result.setScore(bayesScore);
+                long iterationStart = System.currentTimeMillis();
 
-            int maxSteps = this.mcmcSteps;
-            int burnin = 20000;
-            int numAccepts = 0;
-            int numRejects = 0;
+                /* The accelerated mode splits the steps among the chains */
+                int maxSteps = this.mcmcSteps;
+                if (acceleratedEm) {
+                    maxSteps = (this.mcmcSteps + numberOfChains - 1) / numberOfChains;
+                }
 
-            if (this.calculationProgress != null) {
-                this.calculationProgress.init(maxSteps);
-            }
+                for (Chain chain : chains) {
+                    FixedAlphaBetaScore chainScore =
+                        new FixedAlphaBetaScore(chain.rnd, allTerms, populationEnumerator, studyEnumerator.getGenes());
+                    chainScore.setIntegrateParams(this.integrateParams);
 
-            double score = bayesScore.getScore();
+                    chainScore.setAlpha(alpha);
+                    if (this.alpha.hasMax()) {
+                        chainScore.setMaxAlpha(this.alpha.getMax());
+                    }
+                    chainScore.setBeta(beta);
+                    if (this.beta.hasMax()) {
+                        chainScore.setMaxBeta(this.beta.getMax());
+                    }
+                    chainScore.setExpectedNumberOfTerms(expectedNumberOfTerms);
+                    chainScore.setUsePrior(this.usePrior);
 
-            logger.info("Score of empty set: " + score);
+                    chain.init(i, chainScore, expectedNumberOfTerms, maxSteps, chains.length, acceleratedEm && i > 0);
+                }
+                for (ReplicaGroup group : groups) {
+                    group.reset(temperatures);
+                }
+                long[] swapAttempts = new long[numberOfTemperatures - 1];
+                long[] swapAccepts = new long[numberOfTemperatures - 1];
 
-            /* Provide a starting point */
-            if (this.randomStart) {
-                int numberOfTerms =
-                    bayesScore.EXPECTED_NUMBER_OF_TERMS[rnd.nextInt(bayesScore.EXPECTED_NUMBER_OF_TERMS.length)];
-                double pForStart = ((double) numberOfTerms) / allTerms.size();
+                if (this.calculationProgress != null) {
+                    this.calculationProgress.init(maxSteps);
+                }
 
-                for (int j = 0; j < allTerms.size(); j++) {
-                    if (rnd.nextDouble() < pForStart) {
-                        bayesScore.switchState(j);
+                /* Advance the chains in segments, each segment contributes a batch to the diagnostics */
+                ConvergenceDiagnostics diagnostics = new ConvergenceDiagnostics(allTerms, numberOfChains);
+                int steps = 0;
+                if (checkpoint != null) {
+                    steps = checkpoint.readInt();
+                    readCounts(checkpoint, swapAttempts);
+                    readCounts(checkpoint, swapAccepts);
+                    diagnostics.readState(checkpoint);
+                    for (ReplicaGroup group : groups) {
+                        group.readState(checkpoint, temperatures);
                     }
+                    for (Chain chain : chains) {
+                        chain.readState(checkpoint);
+                    }
+                    checkpoint = null;
+                    logger.info("Resuming at step " + steps);
                 }
+                while (steps < maxSteps) {
+                    int segment = Math.min(DIAGNOSTICS_INTERVAL, maxSteps - steps);
+                    if (numberOfTemperatures == 1) {
+                        runChains(chains, segment, pool);
+                    } else {
+                        for (int done = 0; done < segment;) {
+                            int swapSegment = Math.min(this.swapInterval, segment - done);
+                            runChains(chains, swapSegment, pool);
+                            done += swapSegment;
+
+                            for (ReplicaGroup group : groups) {
+                                group.proposeSwaps(temperatures, swapAttempts, swapAccepts);
+                            }
+                        }
+                    }
+                    steps += segment;
 
-                logger.info("Starting with " + bayesScore.getActiveTerms().size() + " terms (p=" + pForStart + ")");
-
-                score = bayesScore.getScore();
-            }
-            logger.info("Score of initial set: " + score);
+                    for (int c = 0; c < numberOfChains; c++) {
+                        diagnostics.addBatch(c, groups[c].getScores());
+                    }
 
-            double maxScore = score;
-            ArrayList<TermID> maxScoredTerms = bayesScore.getActiveTerms();
-            double maxScoredAlpha = Double.NaN;
-            double maxScoredBeta = Double.NaN;
-            double maxScoredP = Double.NaN;
-            int maxWhenSeen = -1;
+                    stepsSinceCheckpoint += segment;
+                    if (this.checkpointFile != null) {
+                        long now = System.currentTimeMillis();
+                        boolean stepsElapsed =
+                            this.checkpointStepInterval > 0 && stepsSinceCheckpoint >= this.checkpointStepInterval;
+                        boolean timeElapsed =
+                            this.checkpointTimeInterval > 0 && now - lastCheckpointTime >= this.checkpointTimeInterval;
+                        if (stepsElapsed || timeElapsed) {
+                            writeCheckpoint(fingerprint, i, alpha, beta, expectedNumberOfTerms, emTrajectory, steps,
+                                swapAttempts, swapAccepts, diagnostics, groups, chains);
+                            stepsSinceCheckpoint = 0;
+                            lastCheckpointTime = now;
+                        }
+                    }
 
-            long start = System.currentTimeMillis();
+                    if (this.calculationProgress != null) {
+                        this.calculationProgress.update(steps);
+                    }
 
-            for (int t = 0; t < maxSteps; t++) {
-                /* Remember maximum score and terms */
-                if (score > maxScore) {
-                    maxScore = score;
-                    maxScoredTerms = bayesScore.getActiveTerms();
-                    maxScoredAlpha = bayesScore.getAlpha();
-                    maxScoredBeta = bayesScore.getBeta();
-                    maxScoredP = bayesScore.getP();
-                    maxWhenSeen = t;
+                    if (this.stopOnConvergence && diagnostics.isConverged(this.maxRHat, this.minEss)) {
+                        logger.info("Convergence criteria are satisfied after " + steps + " steps");
+                        break;
+                    }
                 }
 
-                long now = System.currentTimeMillis();
-                if (now - start > this.updateReportTime) {
-                    logger.info((t * 100 / maxSteps) + "% (score=" + score + " maxScore=" + maxScore + " #terms="
-                        + bayesScore.getActiveTerms().size() +
-                        " accept/reject=" + String.format("%g", (double) numAccepts / (double) numRejects) +
-                        " accept/steps=" + String.format("%g", (double) numAccepts / (double) t) +
-                        " exp=" + expectedNumberOfTerms + " usePrior=" + this.usePrior + ")");
-                    start = now;
+                logger.info("Max R-hat=" + diagnostics.getMaxRHat() + " min ESS=" + diagnostics.getMinEss());
+                result.setDiagnostics(diagnostics);
 
-                    if (this.calculationProgress != null) {
-                        this.calculationProgress.update(t);
+                if (numberOfTemperatures > 1) {
+                    double[] swapAcceptanceRates = new double[numberOfTemperatures - 1];
+                    for (int k = 0; k < swapAcceptanceRates.length; k++) {
+                        swapAcceptanceRates[k] = (double) swapAccepts[k] / swapAttempts[k];
+                        logger.info("Swap acceptance rate between temperatures " + temperatures[k] + " and "
+                            + temperatures[k + 1] + ": " + swapAcceptanceRates[k]);
                     }
+                    result.setSwapAcceptanceRates(swapAcceptanceRates);
                 }
 
-                long oldPossibilities = bayesScore.getNeighborhoodSize();
-                long r = rnd.nextLong();
-                bayesScore.proposeNewState(r);
-                double newScore = bayesScore.getScore();
-                long newPossibilities = bayesScore.getNeighborhoodSize();
+                /*
+                 * Merge the records of all chains into the score of the first chain. Replicas have recorded only while
+                 * being cold.
+                 */
+                FixedAlphaBetaScore bayesScore = chains[0].bayesScore;
+                int numAccepts = chains[0].numAccepts;
+                int numRejects = chains[0].numRejects;
+                Chain best = chains[0];
+                for (int c = 1; c < chains.length; c++) {
+                    bayesScore.addRecords(chains[c].bayesScore);
+                    numAccepts += chains[c].numAccepts;
+                    numRejects += chains[c].numRejects;
+                    if (chains[c].maxScore > best.maxScore) {
+                        best = chains[c];
+                    }
+                }
 
-                double acceptProb = Math.exp(newScore - score) * oldPossibilities / newPossibilities; /*
-                                                                                                       * last quotient
-                                                                                                       * is the hasting
-                                                                                                       * ratio
-                                                                                                       */
+                result.setScore(bayesScore);
 
-                boolean DEBUG = false;
+                double oldAlpha = alpha;
+                double oldBeta = beta;
+                double oldExpectedNumberOfTerms = expectedNumberOfTerms;
 
-                if (DEBUG) {
-                    System.out.print(bayesScore.getActiveTerms().size() + "  score=" + score + " newScore=" + newScore
-                        + " maxScore=" + maxScore + " a=" + acceptProb);
+                if (doAlphaEm) {
+                    double newAlpha = bayesScore.getAvgN10() / (bayesScore.getAvgN00() + bayesScore.getAvgN10());
+                    if (newAlpha < 0.0000001) {
+                        newAlpha = 0.0000001;
+                    }
+                    if (newAlpha > 0.9999999) {
+                        newAlpha = 0.9999999;
+                    }
+                    System.out.println("alpha=" + alpha + "  newAlpha=" + newAlpha);
+                    alpha = newAlpha;
                 }
 
-                double u = rnd.nextDouble();
-                if (u >= acceptProb) {
-                    bayesScore.undoProposal();
-                    numRejects++;
-                } else {
-                    score = newScore;
-                    numAccepts++;
-                }
-                if (DEBUG) {
-                    System.out.println();
+                if (doBetaEm) {
+                    double newBeta = bayesScore.getAvgN01() / (bayesScore.getAvgN01() + bayesScore.getAvgN11());
+                    if (newBeta < 0.0000001) {
+                        newBeta = 0.0000001;
+                    }
+                    if (newBeta > 0.9999999) {
+                        newBeta = 0.9999999;
+                    }
+                    System.out.println("beta=" + beta + "  newBeta=" + newBeta);
+                    beta = newBeta;
                 }
 
-                if (t > burnin) {
-                    bayesScore.record();
+                if (doPEm) {
+                    double newExpectedNumberOfTerms = bayesScore.getAvgT();
+                    if (newExpectedNumberOfTerms < 0.0000001) {
+                        newExpectedNumberOfTerms = 0.0000001;
+                    }
+                    System.out.println("expectedNumberOfTerms=" + expectedNumberOfTerms + "  newExpectedNumberOfTerms="
+                        + newExpectedNumberOfTerms);
+                    expectedNumberOfTerms = newExpectedNumberOfTerms;
                 }
 
-                if (statsFile != null) {
-                    try {
-                        statsFile.append(i + "\t" + t + "\t" + acceptProb + "\t" + numAccepts + "\t" + score + "\n");
-                    } catch (IOException e) {
+                boolean lastIteration = i == maxIter - 1;
+                if (doEm) {
+                    logger.info("EM iteration " + i + " took " + (System.currentTimeMillis() - iterationStart)
+                        + "ms: alpha=" + alpha + " beta=" + beta + " expectedNumberOfTerms=" + expectedNumberOfTerms);
+                    emTrajectory.add(new double[] { alpha, beta, expectedNumberOfTerms });
+
+                    if (acceleratedEm) {
+                        double change = 0;
+                        if (doAlphaEm) {
+                            change = Math.max(change, Math.abs(alpha - oldAlpha));
+                        }
+                        if (doBetaEm) {
+                            change = Math.max(change, Math.abs(beta - oldBeta));
+                        }
+                        if (doPEm) {
+                            change = Math.max(change,
+                                Math.abs(expectedNumberOfTerms - oldExpectedNumberOfTerms) / oldExpectedNumberOfTerms);
+                        }
+                        if (change < this.emTolerance) {
+                            logger.info("EM converged after " + (i + 1) + " iterations");
+                            lastIteration = true;
+                        }
                     }
                 }
-            }
 
-            if (doAlphaEm) {
-                double newAlpha = bayesScore.getAvgN10() / (bayesScore.getAvgN00() + bayesScore.getAvgN10());
-                if (newAlpha < 0.0000001) {
-                    newAlpha = 0.0000001;
-                }
-                if (newAlpha > 0.9999999) {
-                    newAlpha = 0.9999999;
+                if (lastIteration) {
+                    for (TermID t : allTerms) {
+                        Bayes2GOGOTermProperties prop = new Bayes2GOGOTermProperties();
+                        prop.goTerm = graph.getTerm(t);
+                        prop.annotatedStudyGenes = studyEnumerator.getAnnotatedGenes(t).totalAnnotatedCount();
+                        prop.annotatedPopulationGenes = populationEnumerator.getAnnotatedGenes(t).totalAnnotatedCount();
+                        prop.marg =
+                            ((double) bayesScore.termActivationCounts[bayesScore.term2TermsIdx.get(t)]
+                                / bayesScore.numRecords);
+
+                        /* At the moment, we need these fields for technical reasons */
+                        prop.p =
+                            1 - ((double) bayesScore.termActivationCounts[bayesScore.term2TermsIdx.get(t)]
+                                / bayesScore.numRecords);
+                        prop.p_adjusted = prop.p;
+                        prop.p_min = 0.001;
+
+                        result.addGOTermProperties(prop);
+                    }
                 }
-                System.out.println("alpha=" + alpha + "  newAlpha=" + newAlpha);
-                alpha = newAlpha;
-            }
 
-            if (doBetaEm) {
-                double newBeta = bayesScore.getAvgN01() / (bayesScore.getAvgN01() + bayesScore.getAvgN11());
-                if (newBeta < 0.0000001) {
-                    newBeta = 0.0000001;
-                }
-                if (newBeta > 0.9999999) {
-                    newBeta = 0.9999999;
-                }
-                System.out.println("beta=" + beta + "  newBeta=" + newBeta);
-                beta = newBeta;
-            }
+                System.out.println("numAccepts=" + numAccepts + "  numRejects = " + numRejects);
 
-            if (doPEm) {
-                double newExpectedNumberOfTerms = bayesScore.getAvgT();
-                if (newExpectedNumberOfTerms < 0.0000001) {
-                    newExpectedNumberOfTerms = 0.0000001;
+                /* Print out the term combination which scored max */
+                System.out.println("Term combination that reaches score of " + best.maxScore + " when alpha="
+                    + best.maxScoredAlpha + ", beta=" + best.maxScoredBeta + ", p=" + best.maxScoredP + " at step "
+                    + best.maxWhenSeen);
+                for (TermID tid : best.getMaxScoredTerms()) {
+                    System.out.println(tid.toString() + "/" + graph.getTerm(tid).getName());
                 }
-                System.out.println("expectedNumberOfTerms=" + expectedNumberOfTerms + "  newExpectedNumberOfTerms="
-                    + newExpectedNumberOfTerms);
-                expectedNumberOfTerms = newExpectedNumberOfTerms;
-            }
 
-            if (i == maxIter - 1) {
-                for (TermID t : allTerms) {
-                    Bayes2GOGOTermProperties prop = new Bayes2GOGOTermProperties();
-                    prop.goTerm = graph.getTerm(t);
-                    prop.annotatedStudyGenes = studyEnumerator.getAnnotatedGenes(t).totalAnnotatedCount();
-                    prop.annotatedPopulationGenes = populationEnumerator.getAnnotatedGenes(t).totalAnnotatedCount();
-                    prop.marg =
-                        ((double) bayesScore.termActivationCounts[bayesScore.term2TermsIdx.get(t)]
+                if (Double.isNaN(alpha)) {
+                    for (int j = 0; j < bayesScore.totalAlpha.length; j++) {
+                        System.out.println("alpha(" + bayesScore.ALPHA[j] + ")=" + (double) bayesScore.totalAlpha[j]
                             / bayesScore.numRecords);
+                    }
+                    System.out.println("alpha: R-hat=" + diagnostics.getAlphaRHat() + " ESS="
+                        + diagnostics.getAlphaEss());
+                }
 
-                    /* At the moment, we need these fields for technical reasons */
-                    prop.p =
-                        1 - ((double) bayesScore.termActivationCounts[bayesScore.term2TermsIdx.get(t)]
+                if (Double.isNaN(beta)) {
+                    for (int j = 0; j < bayesScore.totalBeta.length; j++) {
+                        System.out.println("beta(" + bayesScore.BETA[j] + ")=" + (double) bayesScore.totalBeta[j]
                             / bayesScore.numRecords);
-                    prop.p_adjusted = prop.p;
-                    prop.p_min = 0.001;
-
-                    result.addGOTermProperties(prop);
+                    }
+                    System.out.println("beta: R-hat=" + diagnostics.getBetaRHat() + " ESS=" + diagnostics.getBetaEss());
                 }
-            }
-
-            System.out.println("numAccepts=" + numAccepts + "  numRejects = " + numRejects);
-
-            /* Print out the term combination which scored max */
-            System.out.println("Term combination that reaches score of " + maxScore + " when alpha=" + maxScoredAlpha
-                + ", beta=" + maxScoredBeta + ", p=" + maxScoredP + " at step " + maxWhenSeen);
-            for (TermID tid : maxScoredTerms) {
-                System.out.println(tid.toString() + "/" + graph.getTerm(tid).getName());
-            }
 
-            if (Double.isNaN(alpha)) {
-                for (int j = 0; j < bayesScore.totalAlpha.length; j++) {
-                    System.out.println("alpha(" + bayesScore.ALPHA[j] + ")=" + (double) bayesScore.totalAlpha[j]
-                        / bayesScore.numRecords);
+                if (Double.isNaN(expectedNumberOfTerms)) {
+                    for (int j = 0; j < bayesScore.totalExp.length; j++) {
+                        System.out.println("exp(" + bayesScore.EXPECTED_NUMBER_OF_TERMS[j] + ")="
+                            + (double) bayesScore.totalExp[j] / bayesScore.numRecords);
+                    }
+                    System.out.println("p: R-hat=" + diagnostics.getPRHat() + " ESS=" + diagnostics.getPEss());
                 }
-            }
 
-            if (Double.isNaN(beta)) {
-                for (int j = 0; j < bayesScore.totalBeta.length; j++) {
-                    System.out.println("beta(" + bayesScore.BETA[j] + ")=" + (double) bayesScore.totalBeta[j]
-                        / bayesScore.numRecords);
+                if (lastIteration) {
+                    break;
                 }
             }
+        } finally {
+            if (pool != null) {
+                pool.shutdownNow();
+            }
+        }
 
-            if (Double.isNaN(expectedNumberOfTerms)) {
-                for (int j = 0; j < bayesScore.totalExp.length; j++) {
-                    System.out.println("exp(" + bayesScore.EXPECTED_NUMBER_OF_TERMS[j] + ")="
-                        + (double) bayesScore.totalExp[j] / bayesScore.numRecords);
-                }
-
+        if (doEm) {
+            StringBuilder trajectory = new StringBuilder("EM parameter trajectory (alpha, beta, expected terms):");
+            for (double[] params : emTrajectory) {
+                trajectory.append('\n').append(params[0]).append('\t').append(params[1]).append('\t').append(params[2]);
             }
+            logger.info(trajectory.toString());
+            result.setEmTrajectory(emTrajectory.toArray(new double[emTrajectory.size()][]));
         }
 
         if (statsFile != null) {
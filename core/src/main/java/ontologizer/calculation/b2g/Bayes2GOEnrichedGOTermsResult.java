@@ -14,6 +14,12 @@ public class Bayes2GOEnrichedGOTermsResult extends EnrichedGOTermsResult
 {
     private Bayes2GOScore score;
 
+    private ConvergenceDiagnostics diagnostics;
+
+    private double[] swapAcceptanceRates;
+
+    private double[][] emTrajectory;
+
     public Bayes2GOEnrichedGOTermsResult(Ontology go,
         AssociationContainer associations, StudySet studySet,
         int populationGeneCount)
@@ -30,4 +36,52 @@ public Bayes2GOScore getScore()
     {
         return this.score;
     }
+
+    public void setDiagnostics(ConvergenceDiagnostics diagnostics)
+    {
+        this.diagnostics = diagnostics;
+    }
+
+    /**
+     * Returns the convergence diagnostics of the chains.
+     *
+     * @return
+     */
+    public ConvergenceDiagnostics getDiagnostics()
+    {
+        return this.diagnostics;
+    }
+
+    public void setSwapAcceptanceRates(double[] swapAcceptanceRates)
+    {
+        this.swapAcceptanceRates = swapAcceptanceRates;
+    }
+
+    /**
+     * Returns the rates at which swaps between replicas of neighbouring temperatures have been accepted, i.e., the
+     * i-th element refers to the temperatures i and i+1 of the ladder.
+     *
+     * @return the rates or null if no tempering was done.
+     */
+    public double[] getSwapAcceptanceRates()
+    {
+        return this.swapAcceptanceRates;
+    }
+
+    public void setEmTrajectory(double[][] emTrajectory)
+    {
+        this.emTrajectory = emTrajectory;
+    }
+
+    /**
+     * Returns the parameters after each EM iteration, i.e., the i-th element contains alpha, beta and the expected
+     * number of terms after the i-th iteration. Only the iterations that were performed since the calculation was
+     * started or resumed are contained.
+     *
+     * @return the trajectory or null if no EM was done.
+     */
+    public double[][] getEmTrajectory()
+    {
+        return this.emTrajectory;
+    }
 }
@@ -1,5 +1,8 @@
 package ontologizer.calculation.b2g;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
@@ -308,8 +311,19 @@ public void switchState(int toSwitch)
 
     public void exchange(TermID t1, TermID t2)
     {
-        switchState(this.term2TermsIdx.get(t1));
-        switchState(this.term2TermsIdx.get(t2));
+        exchange(this.term2TermsIdx.get(t1), this.term2TermsIdx.get(t2));
+    }
+
+    /**
+     * Exchanges the states of the terms with the given indices.
+     *
+     * @param t1
+     * @param t2
+     */
+    public void exchange(int t1, int t2)
+    {
+        switchState(t1);
+        switchState(t2);
     }
 
     public abstract void undoProposal();
@@ -328,6 +342,124 @@ public void record()
         this.numRecords++;
     }
 
+    /**
+     * Returns the number of recorded states.
+     *
+     * @return
+     */
+    public int getNumRecords()
+    {
+        return this.numRecords;
+    }
+
+    /**
+     * Adds the records of the given score to the records of this score. Both scores must be defined over the same list
+     * of terms, e.g., if they belong to independent chains.
+     *
+     * @param other
+     */
+    public void addRecords(Bayes2GOScore other)
+    {
+        for (int i = 0; i < this.termActivationCounts.length; i++) {
+            this.termActivationCounts[i] += other.termActivationCounts[i];
+        }
+
+        this.numRecords += other.numRecords;
+    }
+
+    /**
+     * Writes the state of the sampler, i.e., the term partition and the records, to the given output.
+     *
+     * @param out
+     * @throws IOException
+     * @see #readState(DataInput)
+     */
+    void writeState(DataOutput out) throws IOException
+    {
+        out.writeInt(this.termsArray.length);
+        out.writeInt(this.numInactiveTerms);
+        for (int t : this.termPartition) {
+            out.writeInt(t);
+        }
+        out.writeInt(this.numRecords);
+        for (int c : this.termActivationCounts) {
+            out.writeInt(c);
+        }
+    }
+
+    /**
+     * Restores a state that was written by {@link #writeState(DataOutput)} of a score that is defined over the same
+     * terms and genes. The order of the term partition is restored as well, so the sampler proposes the same states as
+     * the one whose state was written.
+     *
+     * @param in
+     * @throws IOException
+     */
+    void readState(DataInput in) throws IOException
+    {
+        int numberOfTerms = this.termsArray.length;
+        if (in.readInt() != numberOfTerms) {
+            throw new IOException("The number of terms of the saved state doesn't match");
+        }
+        int numInactiveTerms = in.readInt();
+        int[] termPartition = new int[numberOfTerms];
+        boolean[] seen = new boolean[numberOfTerms];
+        for (int i = 0; i < numberOfTerms; i++) {
+            int t = in.readInt();
+            if (t < 0 || t >= numberOfTerms || seen[t]) {
+                throw new IOException("The saved term partition is invalid");
+            }
+            seen[t] = true;
+            termPartition[i] = t;
+        }
+        if (numInactiveTerms < 0 || numInactiveTerms > numberOfTerms) {
+            throw new IOException("The saved term partition is invalid");
+        }
+        this.numRecords = in.readInt();
+        for (int i = 0; i < numberOfTerms; i++) {
+            this.termActivationCounts[i] = in.readInt();
+        }
+
+        /* Switch to the saved set of active terms, which also restores the gene counts */
+        for (int i = 0; i < numberOfTerms; i++) {
+            if (this.isActive[i]) {
+                switchState(i);
+            }
+        }
+        for (int i = numInactiveTerms; i < numberOfTerms; i++) {
+            switchState(termPartition[i]);
+        }
+
+        /* Now bring the partition into the saved order */
+        for (int i = 0; i < numberOfTerms; i++) {
+            this.termPartition[i] = termPartition[i];
+            this.positionOfTermInPartition[termPartition[i]] = i;
+        }
+    }
+
+    /**
+     * Returns the number of active terms.
+     *
+     * @return
+     */
+    public int getNumberOfActiveTerms()
+    {
+        return this.termsArray.length - this.numInactiveTerms;
+    }
+
+    /**
+     * Copies the indices of the active terms into the given array, which must be large enough to hold all terms.
+     *
+     * @param indices
+     * @return the number of active terms.
+     */
+    public int getActiveTermIndices(int[] indices)
+    {
+        int numberOfActiveTerms = this.termsArray.length - this.numInactiveTerms;
+        System.arraycopy(this.termPartition, this.numInactiveTerms, indices, 0, numberOfActiveTerms);
+        return numberOfActiveTerms;
+    }
+
     public ArrayList<TermID> getActiveTerms()
     {
         ArrayList<TermID> list = new ArrayList<TermID>(this.termsArray.length - this.numInactiveTerms);
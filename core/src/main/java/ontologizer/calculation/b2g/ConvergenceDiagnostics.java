@@ -0,0 +1,408 @@
+package ontologizer.calculation.b2g;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+
+import ontologizer.go.TermID;
+
+/**
+ * Convergence diagnostics of one or more Markov chains that sample the MGSA model. For every term marginal as well as
+ * for alpha, beta and p, the Gelman-Rubin potential scale reduction factor (R-hat) and the effective sample size (ESS)
+ * are determined.
+ * <p>
+ * The diagnostics are based on the records of the chains, which are fed in batches, i.e., after a fixed number of
+ * steps, via {@link #addBatch(int, FixedAlphaBetaScore...)}. R-hat compares the variance between the chains to the
+ * variance within the chains and therefore requires at least two chains. The ESS is estimated via the variance of the
+ * batch means and therefore requires at least two batches with records for each chain.
+ */
+public class ConvergenceDiagnostics
+{
+    private final HashMap<TermID, Integer> term2Idx = new HashMap<TermID, Integer>();
+
+    private final int numberOfTerms;
+
+    private final int numberOfChains;
+
+    /** Index of the alpha quantity, beta and p follow */
+    private final int alphaIdx;
+
+    /** The number of records of each chain */
+    private final long[] records;
+
+    /** The sum of the recorded values of each chain and quantity */
+    private final double[][] sums;
+
+    /** The sum of the squares of the recorded values of each chain and quantity */
+    private final double[][] sumsOfSquares;
+
+    /** The number of batches of each chain */
+    private final int[] batches;
+
+    /** The number of records of each chain that are part of a batch */
+    private final long[] batchRecords;
+
+    /** The sum of the batch means of each chain and quantity */
+    private final double[][] batchMeanSums;
+
+    /** The sum of the squared batch means of each chain and quantity */
+    private final double[][] batchMeanSumsOfSquares;
+
+    /**
+     * Constructs the diagnostics.
+     *
+     * @param terms the terms in the order of the scores that are passed to
+     *            {@link #addBatch(int, FixedAlphaBetaScore...)}.
+     * @param numberOfChains
+     */
+    public ConvergenceDiagnostics(List<TermID> terms, int numberOfChains)
+    {
+        for (TermID t : terms) {
+            this.term2Idx.put(t, this.term2Idx.size());
+        }
+        this.numberOfTerms = terms.size();
+        this.numberOfChains = numberOfChains;
+        this.alphaIdx = this.numberOfTerms;
+
+        int numberOfQuantities = this.numberOfTerms + 3;
+        this.records = new long[numberOfChains];
+        this.sums = new double[numberOfChains][numberOfQuantities];
+        this.sumsOfSquares = new double[numberOfChains][numberOfQuantities];
+        this.batches = new int[numberOfChains];
+        this.batchRecords = new long[numberOfChains];
+        this.batchMeanSums = new double[numberOfChains][numberOfQuantities];
+        this.batchMeanSumsOfSquares = new double[numberOfChains][numberOfQuantities];
+    }
+
+    /**
+     * Feeds the records that the given chain has made since the last call into the diagnostics. If the records of the
+     * chain are spread over several scores, e.g., over the replicas of a tempered chain, all of them must be given.
+     *
+     * @param chain the index of the chain
+     * @param scores the scores of the chain.
+     */
+    public void addBatch(int chain, FixedAlphaBetaScore... scores)
+    {
+        long numRecords = 0;
+        for (FixedAlphaBetaScore score : scores) {
+            numRecords += score.numRecords;
+        }
+        long n = numRecords - this.records[chain];
+        if (n <= 0) {
+            return;
+        }
+
+        double[] chainSums = this.sums[chain];
+        double[] chainSumsOfSquares = this.sumsOfSquares[chain];
+        double[] chainBatchMeanSums = this.batchMeanSums[chain];
+        double[] chainBatchMeanSumsOfSquares = this.batchMeanSumsOfSquares[chain];
+
+        /* Activations are indicators, hence the sum of squares equals the sum */
+        for (int i = 0; i < this.numberOfTerms; i++) {
+            double sum = 0;
+            for (FixedAlphaBetaScore score : scores) {
+                sum += score.termActivationCounts[i];
+            }
+            double mean = (sum - chainSums[i]) / n;
+            chainBatchMeanSums[i] += mean;
+            chainBatchMeanSumsOfSquares[i] += mean * mean;
+            chainSums[i] = sum;
+            chainSumsOfSquares[i] = sum;
+        }
+
+        addParameterBatch(chain, this.alphaIdx, scores, n);
+        addParameterBatch(chain, this.alphaIdx + 1, scores, n);
+        addParameterBatch(chain, this.alphaIdx + 2, scores, n);
+
+        this.records[chain] = numRecords;
+        this.batches[chain]++;
+        this.batchRecords[chain] += n;
+    }
+
+    /**
+     * Writes the accumulated batches to the given output.
+     *
+     * @param out
+     * @throws IOException
+     */
+    void writeState(DataOutput out) throws IOException
+    {
+        out.writeInt(this.numberOfChains);
+        out.writeInt(this.numberOfTerms);
+        for (int c = 0; c < this.numberOfChains; c++) {
+            out.writeLong(this.records[c]);
+            out.writeInt(this.batches[c]);
+            out.writeLong(this.batchRecords[c]);
+            writeValues(out, this.sums[c]);
+            writeValues(out, this.sumsOfSquares[c]);
+            writeValues(out, this.batchMeanSums[c]);
+            writeValues(out, this.batchMeanSumsOfSquares[c]);
+        }
+    }
+
+    /**
+     * Restores the batches that were written by {@link #writeState(DataOutput)} of diagnostics over the same terms and
+     * chains.
+     *
+     * @param in
+     * @throws IOException
+     */
+    void readState(DataInput in) throws IOException
+    {
+        if (in.readInt() != this.numberOfChains || in.readInt() != this.numberOfTerms) {
+            throw new IOException("The saved diagnostics don't match");
+        }
+        for (int c = 0; c < this.numberOfChains; c++) {
+            this.records[c] = in.readLong();
+            this.batches[c] = in.readInt();
+            this.batchRecords[c] = in.readLong();
+            readValues(in, this.sums[c]);
+            readValues(in, this.sumsOfSquares[c]);
+            readValues(in, this.batchMeanSums[c]);
+            readValues(in, this.batchMeanSumsOfSquares[c]);
+        }
+    }
+
+    private static void writeValues(DataOutput out, double[] values) throws IOException
+    {
+        for (double v : values) {
+            out.writeDouble(v);
+        }
+    }
+
+    private static void readValues(DataInput in, double[] values) throws IOException
+    {
+        for (int i = 0; i < values.length; i++) {
+            values[i] = in.readDouble();
+        }
+    }
+
+    private void addParameterBatch(int chain, int q, FixedAlphaBetaScore[] scores, long n)
+    {
+        double sum = 0;
+        double sumOfSquares = 0;
+        for (FixedAlphaBetaScore score : scores) {
+            int[] counts;
+            double[] values;
+            if (q == this.alphaIdx) {
+                counts = score.totalAlpha;
+                values = score.ALPHA;
+            } else if (q == this.alphaIdx + 1) {
+                counts = score.totalBeta;
+                values = score.BETA;
+            } else {
+                counts = score.totalExp;
+                values = new double[counts.length];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = (double) score.EXPECTED_NUMBER_OF_TERMS[i] / score.termsArray.length;
+                }
+            }
+
+            for (int i = 0; i < counts.length; i++) {
+                sum += counts[i] * values[i];
+                sumOfSquares += counts[i] * values[i] * values[i];
+            }
+        }
+
+        double mean = (sum - this.sums[chain][q]) / n;
+        this.batchMeanSums[chain][q] += mean;
+        this.batchMeanSumsOfSquares[chain][q] += mean * mean;
+        this.sums[chain][q] = sum;
+        this.sumsOfSquares[chain][q] = sumOfSquares;
+    }
+
+    /**
+     * Returns the sample variance of the given quantity within the given chain.
+     */
+    private double getVariance(int chain, int q)
+    {
+        long n = this.records[chain];
+        if (n < 2) {
+            return Double.NaN;
+        }
+        double mean = this.sums[chain][q] / n;
+        return Math.max(0, (this.sumsOfSquares[chain][q] - n * mean * mean) / (n - 1));
+    }
+
+    /**
+     * Returns the potential scale reduction factor of the given quantity.
+     */
+    private double getRHat(int q)
+    {
+        int m = this.numberOfChains;
+        if (m < 2) {
+            return Double.NaN;
+        }
+
+        double n = 0;
+        double w = 0;
+        double meanOfMeans = 0;
+        for (int c = 0; c < m; c++) {
+            if (this.records[c] < 2) {
+                return Double.NaN;
+            }
+            n += this.records[c];
+            w += getVariance(c, q);
+            meanOfMeans += this.sums[c][q] / this.records[c];
+        }
+        n /= m;
+        w /= m;
+        meanOfMeans /= m;
+
+        /* The variance of the chain means, i.e., B/n */
+        double b = 0;
+        for (int c = 0; c < m; c++) {
+            double d = this.sums[c][q] / this.records[c] - meanOfMeans;
+            b += d * d;
+        }
+        b /= m - 1;
+
+        if (w == 0) {
+            return b == 0 ? 1 : Double.POSITIVE_INFINITY;
+        }
+        double varPlus = (n - 1) / n * w + b;
+        return Math.sqrt(varPlus / w);
+    }
+
+    /**
+     * Returns the effective sample size of the given quantity summed over all chains.
+     */
+    private double getEss(int q)
+    {
+        double ess = 0;
+        for (int c = 0; c < this.numberOfChains; c++) {
+            int k = this.batches[c];
+            if (k < 2) {
+                return Double.NaN;
+            }
+
+            long n = this.records[c];
+            double variance = getVariance(c, q);
+            double batchSize = (double) this.batchRecords[c] / k;
+            double batchMeanMean = this.batchMeanSums[c][q] / k;
+            double batchMeanVariance =
+                (this.batchMeanSumsOfSquares[c][q] - k * batchMeanMean * batchMeanMean) / (k - 1);
+
+            /* Var(x)/Var(batch mean) estimates the batch size for independent samples */
+            if (variance == 0 || batchMeanVariance <= 0) {
+                ess += n;
+            } else {
+                ess += Math.min(n, n * variance / (batchSize * batchMeanVariance));
+            }
+        }
+        return ess;
+    }
+
+    /**
+     * Returns the potential scale reduction factor (R-hat) of the marginal of the given term.
+     *
+     * @param term
+     * @return the R-hat value or NaN if it cannot be determined.
+     */
+    public double getTermRHat(TermID term)
+    {
+        Integer idx = this.term2Idx.get(term);
+        return idx != null ? getRHat(idx) : Double.NaN;
+    }
+
+    /**
+     * Returns the effective sample size of the marginal of the given term.
+     *
+     * @param term
+     * @return the ESS or NaN if it cannot be determined.
+     */
+    public double getTermEss(TermID term)
+    {
+        Integer idx = this.term2Idx.get(term);
+        return idx != null ? getEss(idx) : Double.NaN;
+    }
+
+    public double getAlphaRHat()
+    {
+        return getRHat(this.alphaIdx);
+    }
+
+    public double getAlphaEss()
+    {
+        return getEss(this.alphaIdx);
+    }
+
+    public double getBetaRHat()
+    {
+        return getRHat(this.alphaIdx + 1);
+    }
+
+    public double getBetaEss()
+    {
+        return getEss(this.alphaIdx + 1);
+    }
+
+    public double getPRHat()
+    {
+        return getRHat(this.alphaIdx + 2);
+    }
+
+    public double getPEss()
+    {
+        return getEss(this.alphaIdx + 2);
+    }
+
+    /**
+     * Returns the largest R-hat value of all quantities.
+     *
+     * @return the largest R-hat or NaN if R-hat cannot be determined.
+     */
+    public double getMaxRHat()
+    {
+        double max = 0;
+        for (int q = 0; q < this.alphaIdx + 3; q++) {
+            double rHat = getRHat(q);
+            if (Double.isNaN(rHat)) {
+                return Double.NaN;
+            }
+            max = Math.max(max, rHat);
+        }
+        return max;
+    }
+
+    /**
+     * Returns the smallest effective sample size of all quantities.
+     *
+     * @return the smallest ESS or NaN if the ESS cannot be determined.
+     */
+    public double getMinEss()
+    {
+        double min = Double.POSITIVE_INFINITY;
+        for (int q = 0; q < this.alphaIdx + 3; q++) {
+            double ess = getEss(q);
+            if (Double.isNaN(ess)) {
+                return Double.NaN;
+            }
+            min = Math.min(min, ess);
+        }
+        return min;
+    }
+
+    /**
+     * Returns whether all quantities satisfy the given criteria. The R-hat criterion is only applied if there are at
+     * least two chains.
+     *
+     * @param maxRHat the largest acceptable R-hat value
+     * @param minEss the smallest acceptable effective sample size
+     * @return
+     */
+    public boolean isConverged(double maxRHat, double minEss)
+    {
+        double ess = getMinEss();
+        if (Double.isNaN(ess) || ess < minEss) {
+            return false;
+        }
+        if (this.numberOfChains < 2) {
+            return true;
+        }
+        double rHat = getMaxRHat();
+        return !Double.isNaN(rHat) && rHat <= maxRHat;
+    }
+}
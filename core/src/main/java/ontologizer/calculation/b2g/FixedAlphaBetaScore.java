@@ -1,5 +1,8 @@
 package ontologizer.calculation.b2g;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.List;
 import java.util.Random;
 import java.util.Set;
@@ -20,9 +23,9 @@ public class FixedAlphaBetaScore extends Bayes2GOScore
 
     private int proposalSwitch;
 
-    private TermID proposalT1;
+    private int proposalT1;
 
-    private TermID proposalT2;
+    private int proposalT2;
 
     protected double[] ALPHA = new double[] { 0.0000001, 0.05, 0.1, 0.15, 0.2, 0.25, 0.3, 0.35, 0.4, 0.45, 0.5, 0.55,
     0.6, 0.65, 0.7, 0.75, 0.8, 0.85, 0.9, 0.95 };
@@ -78,16 +81,55 @@ public class FixedAlphaBetaScore extends Bayes2GOScore
 
     private long totalT;
 
+    /*
+     * The logarithms of the parameters and their complements, either for each point of the grid or for the fixed
+     * value, so the score is evaluated without any call to Math.log().
+     */
+
+    private double[] logAlpha;
+
+    private double[] logOneMinusAlpha;
+
+    private double fixedLogAlpha;
+
+    private double fixedLogOneMinusAlpha;
+
+    private double[] logBeta;
+
+    private double[] logOneMinusBeta;
+
+    private double fixedLogBeta;
+
+    private double fixedLogOneMinusBeta;
+
+    private double[] logP;
+
+    private double[] logOneMinusP;
+
+    private double fixedLogP;
+
+    private double fixedLogOneMinusP;
+
+    /** The log gamma table that is shared by all scores */
+    private static double[] sharedLGamma = new double[0];
+
+    /** The log gamma values used by this score, at least sized to the number of genes and terms */
+    private double[] lGamma;
+
     public void setAlpha(double alpha)
     {
         this.alpha = alpha;
         this.doAlphaMCMC = Double.isNaN(alpha);
+        this.fixedLogAlpha = Math.log(alpha);
+        this.fixedLogOneMinusAlpha = Math.log(1 - alpha);
     }
 
     public void setBeta(double beta)
     {
         this.beta = beta;
         this.doBetaMCMC = Double.isNaN(beta);
+        this.fixedLogBeta = Math.log(beta);
+        this.fixedLogOneMinusBeta = Math.log(1 - beta);
     }
 
     @Override
@@ -95,6 +137,24 @@ public void setExpectedNumberOfTerms(double terms)
     {
         super.setExpectedNumberOfTerms(terms);
         this.doExpMCMC = Double.isNaN(terms);
+        this.fixedLogP = Math.log(this.p);
+        this.fixedLogOneMinusP = Math.log(1 - this.p);
+    }
+
+    /**
+     * Returns the logarithms of the given values.
+     *
+     * @param values
+     * @param complement whether the logarithms of the complements, i.e., 1 - value, should be returned.
+     * @return
+     */
+    private static double[] logs(double[] values, boolean complement)
+    {
+        double[] logs = new double[values.length];
+        for (int i = 0; i < values.length; i++) {
+            logs[i] = Math.log(complement ? 1 - values[i] : values[i]);
+        }
+        return logs;
     }
 
     public void setMaxAlpha(double maxAlpha)
@@ -121,6 +181,8 @@ public void setMaxAlpha(double maxAlpha)
         for (int i = 1; i < 20; i++) {
             this.ALPHA[i] = i * maxAlpha / span;
         }
+        this.logAlpha = logs(this.ALPHA, false);
+        this.logOneMinusAlpha = logs(this.ALPHA, true);
     }
 
     public void setMaxBeta(double maxBeta)
@@ -147,12 +209,37 @@ public void setMaxBeta(double maxBeta)
         for (int i = 1; i < 20; i++) {
             this.BETA[i] = i * maxBeta / span;
         }
-
+        this.logBeta = logs(this.BETA, false);
+        this.logOneMinusBeta = logs(this.BETA, true);
     }
 
     public void setIntegrateParams(boolean integrateParams)
     {
         this.integrateParams = integrateParams;
+        if (integrateParams && this.lGamma == null) {
+            /* The arguments are bounded by the number of genes or terms plus the pseudo counts */
+            this.lGamma = getLogGammaTable(Math.max(this.genes.length, this.termsArray.length) + 3);
+        }
+    }
+
+    /**
+     * Returns a table that contains the log gamma values of at least the given number of integers. The table is
+     * shared and must not be modified.
+     *
+     * @param size
+     * @return
+     */
+    private static synchronized double[] getLogGammaTable(int size)
+    {
+        if (sharedLGamma.length < size) {
+            double[] lGamma = new double[size];
+            lGamma[0] = Double.POSITIVE_INFINITY;
+            for (int a = 3; a < size; a++) {
+                lGamma[a] = Gamma.lgamma(a);
+            }
+            sharedLGamma = lGamma;
+        }
+        return sharedLGamma;
     }
 
     public FixedAlphaBetaScore(Random rnd, List<TermID> termList, GOTermEnumerator populationEnumerator,
@@ -165,6 +252,13 @@ public FixedAlphaBetaScore(Random rnd, List<TermID> termList, GOTermEnumerator p
 
         this.n10 = observedActiveGenes.size();
         this.n00 = this.population.size() - this.n10;
+
+        double[] p = new double[this.EXPECTED_NUMBER_OF_TERMS.length];
+        for (int i = 0; i < p.length; i++) {
+            p[i] = (double) this.EXPECTED_NUMBER_OF_TERMS[i] / this.termsArray.length;
+        }
+        this.logP = logs(p, false);
+        this.logOneMinusP = logs(p, true);
     }
 
     @Override
@@ -197,8 +291,8 @@ public void proposeNewState(long rand)
         long oldPossibilities = getNeighborhoodSize();
 
         this.proposalSwitch = -1;
-        this.proposalT1 = null;
-        this.proposalT2 = null;
+        this.proposalT1 = -1;
+        this.proposalT2 = -1;
         this.oldAlphaIdx = -1;
         this.oldBetaIdx = -1;
         this.oldExpIdx = -1;
@@ -216,8 +310,8 @@ public void proposeNewState(long rand)
                 int activeTermPos = (int) (base / this.numInactiveTerms);
                 int inactiveTermPos = (int) (base % this.numInactiveTerms);
 
-                this.proposalT1 = this.termsArray[this.termPartition[activeTermPos + this.numInactiveTerms]];
-                this.proposalT2 = this.termsArray[this.termPartition[inactiveTermPos]];
+                this.proposalT1 = this.termPartition[activeTermPos + this.numInactiveTerms];
+                this.proposalT2 = this.termPartition[inactiveTermPos];
 
                 exchange(this.proposalT1, this.proposalT2);
             }
@@ -301,21 +395,10 @@ public final double getP()
         return p;
     }
 
-    private final double[] lGamma = new double[20000];
-
     private double logGamma(int a)
     {
-        if (a == 1 || a == 2) {
-            return 0.0;
-        }
-
         if (a < this.lGamma.length) {
-            double lg = this.lGamma[a];
-            if (lg == 0.0) {
-                lg = Gamma.lgamma(a);
-                this.lGamma[a] = lg;
-            }
-            return lg;
+            return this.lGamma[a];
         }
         return Gamma.lgamma(a);
     }
@@ -331,22 +414,43 @@ public double getScore()
         double newScore2;
 
         if (!this.integrateParams) {
-            double alpha;
-            double beta;
-            double p;
+            double logAlpha;
+            double logOneMinusAlpha;
+            double logBeta;
+            double logOneMinusBeta;
 
-            alpha = getAlpha();
-            beta = getBeta();
-            p = getP();
+            if (this.doAlphaMCMC) {
+                logAlpha = this.logAlpha[this.alphaIdx];
+                logOneMinusAlpha = this.logOneMinusAlpha[this.alphaIdx];
+            } else {
+                logAlpha = this.fixedLogAlpha;
+                logOneMinusAlpha = this.fixedLogOneMinusAlpha;
+            }
+
+            if (this.doBetaMCMC) {
+                logBeta = this.logBeta[this.betaIdx];
+                logOneMinusBeta = this.logOneMinusBeta[this.betaIdx];
+            } else {
+                logBeta = this.fixedLogBeta;
+                logOneMinusBeta = this.fixedLogOneMinusBeta;
+            }
 
             newScore2 =
-                Math.log(alpha) * this.n10 + Math.log(1 - alpha) * this.n00 + Math.log(1 - beta) * this.n11
-                    + Math.log(beta) * this.n01;
+                logAlpha * this.n10 + logOneMinusAlpha * this.n00 + logOneMinusBeta * this.n11 + logBeta * this.n01;
 
             if (this.usePrior) {
-                newScore2 +=
-                    Math.log(p) * (this.termsArray.length - this.numInactiveTerms) + Math.log(1 - p)
-                        * this.numInactiveTerms;
+                double logP;
+                double logOneMinusP;
+
+                if (this.doExpMCMC) {
+                    logP = this.logP[this.expIdx];
+                    logOneMinusP = this.logOneMinusP[this.expIdx];
+                } else {
+                    logP = this.fixedLogP;
+                    logOneMinusP = this.fixedLogOneMinusP;
+                }
+                newScore2 += logP * (this.termsArray.length - this.numInactiveTerms) + logOneMinusP
+                    * this.numInactiveTerms;
             }
         } else {
             /* Prior */
@@ -376,7 +480,7 @@ public void undoProposal()
     {
         if (this.proposalSwitch != -1) {
             switchState(this.proposalSwitch);
-        } else if (this.proposalT1 != null) {
+        } else if (this.proposalT1 != -1) {
             exchange(this.proposalT2, this.proposalT1);
         } else if (this.oldAlphaIdx != -1) {
             this.alphaIdx = this.oldAlphaIdx;
@@ -412,6 +516,103 @@ public void record()
         this.totalT += (this.termsArray.length - this.numInactiveTerms);
     }
 
+    @Override
+    public void addRecords(Bayes2GOScore other)
+    {
+        super.addRecords(other);
+
+        FixedAlphaBetaScore o = (FixedAlphaBetaScore) other;
+        this.totalN00 += o.totalN00;
+        this.totalN01 += o.totalN01;
+        this.totalN10 += o.totalN10;
+        this.totalN11 += o.totalN11;
+        this.totalT += o.totalT;
+
+        for (int i = 0; i < this.totalAlpha.length; i++) {
+            this.totalAlpha[i] += o.totalAlpha[i];
+        }
+        for (int i = 0; i < this.totalBeta.length; i++) {
+            this.totalBeta[i] += o.totalBeta[i];
+        }
+        for (int i = 0; i < this.totalExp.length; i++) {
+            this.totalExp[i] += o.totalExp[i];
+        }
+    }
+
+    @Override
+    void writeState(DataOutput out) throws IOException
+    {
+        super.writeState(out);
+
+        out.writeInt(this.alphaIdx);
+        out.writeInt(this.betaIdx);
+        out.writeInt(this.expIdx);
+        writeCounts(out, this.totalAlpha);
+        writeCounts(out, this.totalBeta);
+        writeCounts(out, this.totalExp);
+
+        out.writeInt(this.n00);
+        out.writeInt(this.n01);
+        out.writeInt(this.n10);
+        out.writeInt(this.n11);
+        out.writeLong(this.totalN00);
+        out.writeLong(this.totalN01);
+        out.writeLong(this.totalN10);
+        out.writeLong(this.totalN11);
+        out.writeLong(this.totalT);
+    }
+
+    @Override
+    void readState(DataInput in) throws IOException
+    {
+        super.readState(in);
+
+        this.alphaIdx = readIndex(in, this.ALPHA.length);
+        this.betaIdx = readIndex(in, this.BETA.length);
+        this.expIdx = readIndex(in, this.EXPECTED_NUMBER_OF_TERMS.length);
+        readCounts(in, this.totalAlpha);
+        readCounts(in, this.totalBeta);
+        readCounts(in, this.totalExp);
+
+        /* The current counts follow from the restored terms, hence they serve as a check */
+        if (in.readInt() != this.n00 || in.readInt() != this.n01 || in.readInt() != this.n10
+            || in.readInt() != this.n11) {
+            throw new IOException("The saved state doesn't match the genes of the score");
+        }
+        this.totalN00 = in.readLong();
+        this.totalN01 = in.readLong();
+        this.totalN10 = in.readLong();
+        this.totalN11 = in.readLong();
+        this.totalT = in.readLong();
+    }
+
+    private static void writeCounts(DataOutput out, int[] counts) throws IOException
+    {
+        out.writeInt(counts.length);
+        for (int c : counts) {
+            out.writeInt(c);
+        }
+    }
+
+    private static void readCounts(DataInput in, int[] counts) throws IOException
+    {
+        if (in.readInt() != counts.length) {
+            throw new IOException("The saved histogram doesn't match");
+        }
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = in.readInt();
+        }
+    }
+
+    private static int readIndex(DataInput in, int length) throws IOException
+    {
+        int idx = in.readInt();
+        if (idx < 0 || idx >= length) {
+            throw new IOException("The saved parameter index is invalid");
+        }
+        return idx;
+    }
+
     public double getAvgN00()
     {
         return (double) this.totalN00 / this.numRecords;
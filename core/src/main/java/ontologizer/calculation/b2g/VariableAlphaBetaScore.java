@@ -50,9 +50,9 @@ public void calcLLR()
 
     private int proposalSwitch;
 
-    private TermID proposalT1;
+    private int proposalT1;
 
-    private TermID proposalT2;
+    private int proposalT2;
 
     @Override
     public void hiddenGeneActivated(int gid)
@@ -74,8 +74,8 @@ public void proposeNewState(long rand)
         long oldPossibilities = getNeighborhoodSize();
 
         this.proposalSwitch = -1;
-        this.proposalT1 = null;
-        this.proposalT2 = null;
+        this.proposalT1 = -1;
+        this.proposalT2 = -1;
 
         long choose = Math.abs(rand) % oldPossibilities;
 
@@ -89,8 +89,8 @@ public void proposeNewState(long rand)
             int activeTermPos = (int) (base / this.numInactiveTerms);
             int inactiveTermPos = (int) (base % this.numInactiveTerms);
 
-            this.proposalT1 = this.termsArray[this.termPartition[activeTermPos + this.numInactiveTerms]];
-            this.proposalT2 = this.termsArray[this.termPartition[inactiveTermPos]];
+            this.proposalT1 = this.termPartition[activeTermPos + this.numInactiveTerms];
+            this.proposalT2 = this.termPartition[inactiveTermPos];
 
             exchange(this.proposalT1, this.proposalT2);
         }
@@ -47,6 +47,16 @@ public void incrementDirectCount()
         this.directCount++;
     }
 
+    public void decrementCount()
+    {
+        this.count--;
+    }
+
+    public void decrementDirectCount()
+    {
+        this.directCount--;
+    }
+
     /** Compare on the basis of total counts (direct and implied). */
     @Override
     public int compareTo(AssociationCounter other)
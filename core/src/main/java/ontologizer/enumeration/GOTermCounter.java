@@ -62,6 +62,60 @@ public void add(ArrayList<TermID> ids)
         }
 
         /* Second, add the indirect counts for ids */
+        HashSet<TermID> allTerms = getAncestors(ids);
+
+        /*
+         * When we get here, allTerms has a list of all terms that are directly or indirectly annotated to the present
+         * gene. Each of these terms now needs to be incremented by "1" and "1" only (i.e., avoid duplicate because of
+         * diamond shaped paths or two children of one term being annotated).
+         */
+        Iterator<TermID> it2 = allTerms.iterator();
+        while (it2.hasNext()) {
+            TermID id = it2.next();
+            addTotal(id);
+        }
+    }
+
+    /**
+     * Removes the annotations of an individual gene again, i.e., reverts a previous call to {@link #add(ArrayList)}
+     * with the same ids. Only the terms of the gene's ancestor closure are touched. Terms to which no gene remains
+     * annotated are dropped, so the counter is the same as if the gene was never added.
+     *
+     * @param ids A list of all the GO terms to which <B>an individual gene</B> is annotated directly.
+     */
+    public void remove(ArrayList<TermID> ids)
+    {
+        for (TermID id : ids) {
+            AssociationCounter ac = find(id);
+            if (ac != null) {
+                ac.decrementDirectCount();
+            }
+        }
+
+        for (TermID id : getAncestors(ids)) {
+            HashMap<TermID, AssociationCounter> map = getNamespaceMap(id);
+            if (map == null) {
+                continue;
+            }
+            AssociationCounter ac = map.get(id);
+            if (ac == null) {
+                continue;
+            }
+            ac.decrementCount();
+            if (ac.getCount() == 0) {
+                map.remove(id);
+            }
+        }
+    }
+
+    /**
+     * Returns the given terms and all of their ancestors.
+     *
+     * @param ids
+     * @return
+     */
+    private HashSet<TermID> getAncestors(ArrayList<TermID> ids)
+    {
         final HashSet<TermID> allTerms = new HashSet<>();
         this.graph.walkToSource(ids, new IVisitingGOVertex()
         {
@@ -72,16 +126,31 @@ public boolean visited(Term term)
                 return true;
             }
         });
+        return allTerms;
+    }
 
-        /*
-         * When we get here, allTerms has a list of all terms that are directly or indirectly annotated to the present
-         * gene. Each of these terms now needs to be incremented by "1" and "1" only (i.e., avoid duplicate because of
-         * diamond shaped paths or two children of one term being annotated).
-         */
-        Iterator<TermID> it2 = allTerms.iterator();
-        while (it2.hasNext()) {
-            TermID id = it2.next();
-            addTotal(id);
+    /**
+     * Returns the map that holds the counts of the given term.
+     *
+     * @param id
+     * @return the map or null if the term is not part of any of the three namespaces.
+     */
+    private HashMap<TermID, AssociationCounter> getNamespaceMap(TermID id)
+    {
+        Term gt = this.graph.getTerm(id);
+        if (gt == null) {
+            return null;
+        }
+
+        switch (Namespace.getNamespaceEnum(gt.getNamespace())) {
+            case BIOLOGICAL_PROCESS:
+                return this.processHashMap;
+            case MOLECULAR_FUNCTION:
+                return this.functionHashMap;
+            case CELLULAR_COMPONENT:
+                return this.componentHashMap;
+            default:
+                return null;
         }
     }
 
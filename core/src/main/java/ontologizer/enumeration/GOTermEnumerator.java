@@ -105,16 +105,10 @@ public void push(Gene2Associations geneAssociations, Set<ByteString> evidences)
         for (Association association : geneAssociations) {
             TermID termID = association.getTermID();
 
-            if (!this.graph.isRelevantTermID(termID)) {
+            if (!isConsidered(association, evidences)) {
                 continue;
             }
 
-            if (evidences != null) {
-                if (!evidences.contains(association.getEvidence())) {
-                    continue;
-                }
-            }
-
             GOTermAnnotatedGenes termGenes = this.map.get(termID);
 
             /* Create an entry if it doesn't exist */
@@ -170,6 +164,64 @@ public boolean visited(Term term)
         this.graph.walkToSource(termIDSet, vistingGOVertex);
     }
 
+    /**
+     * Removes the given gene associations from the enumerator, i.e., reverts a previous call to
+     * {@link #push(Gene2Associations, Set)} with the same arguments. Only the terms of the gene's ancestor closure are
+     * touched. Terms to which no gene remains annotated are dropped, so the enumerator is the same as if the gene was
+     * never pushed (apart from the order of the genes within the lists).
+     *
+     * @param geneAssociations the gene associations
+     * @param evidences the evidence codes that were used when the gene was pushed.
+     */
+    public void pop(Gene2Associations geneAssociations, Set<ByteString> evidences)
+    {
+        final ByteString geneName = geneAssociations.name();
+
+        HashSet<TermID> termIDSet = new HashSet<TermID>();
+        for (Association association : geneAssociations) {
+            if (!isConsidered(association, evidences)) {
+                continue;
+            }
+
+            GOTermAnnotatedGenes termGenes = this.map.get(association.getTermID());
+            if (termGenes != null) {
+                termGenes.directAnnotated.remove(geneName);
+            }
+            termIDSet.add(association.getTermID());
+        }
+
+        this.graph.walkToSource(termIDSet, new IVisitingGOVertex()
+        {
+            @Override
+            public boolean visited(Term term)
+            {
+                GOTermAnnotatedGenes termGenes = GOTermEnumerator.this.map.get(term.getID());
+                if (termGenes != null) {
+                    termGenes.totalAnnotated.remove(geneName);
+                    if (termGenes.totalAnnotated.isEmpty()) {
+                        GOTermEnumerator.this.map.remove(term.getID());
+                    }
+                }
+                return true;
+            }
+        });
+    }
+
+    /**
+     * Returns whether the given association is considered by push() and pop().
+     *
+     * @param association
+     * @param evidences
+     * @return
+     */
+    private boolean isConsidered(Association association, Set<ByteString> evidences)
+    {
+        if (!this.graph.isRelevantTermID(association.getTermID())) {
+            return false;
+        }
+        return evidences == null || evidences.contains(association.getEvidence());
+    }
+
     /**
      * Return genes directly or indirectly annotated to the given goTermID.
      *
@@ -81,6 +81,9 @@ public class Ontology implements Iterable<Term>
      */
     private HashMap<String, String> alternativeId2primaryId;
 
+    /** The slim view that is shared among all callers of getSharedSlimGraphView(), created lazily */
+    private volatile SlimDirectedGraphView<Term> sharedSlimGraphView;
+
     /**
      * Construct the GO Graph from the given container.
      *
@@ -212,6 +215,27 @@ public SlimDirectedGraphView<Term> getSlimGraphView()
         return new SlimDirectedGraphView<Term>(this.graph);
     }
 
+    /**
+     * Returns a slim representation of the ontology that is shared among all callers. It is created on first use and
+     * kept until the structure of the ontology changes. Callers must not modify the returned view. As the view is not
+     * modified afterwards, it may be used by several threads concurrently.
+     *
+     * @return the shared slim view.
+     */
+    public SlimDirectedGraphView<Term> getSharedSlimGraphView()
+    {
+        SlimDirectedGraphView<Term> slim = this.sharedSlimGraphView;
+        if (slim == null) {
+            synchronized (this) {
+                slim = this.sharedSlimGraphView;
+                if (slim == null) {
+                    slim = this.sharedSlimGraphView = getSlimGraphView();
+                }
+            }
+        }
+        return slim;
+    }
+
     /**
      * Finds about level 1 terms and fix the root as we assume here that there is only a single root.
      */
@@ -1288,7 +1312,7 @@ public void mergeTerms(Term t1, HashSet<Term> eqTerms)
         }
 
         this.graph.mergeVertices(t1, eqTerms);
-
+        this.sharedSlimGraphView = null;
     }
 
 }
@@ -11,6 +11,7 @@
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Map.Entry;
+import java.util.Random;
 import java.util.Set;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -60,6 +61,18 @@ public class StudySet implements Iterable<ByteString>
     /** Cached GOTermEnumerator */
     private GOTermEnumerator goTermEnumerator;
 
+    /** The associations from which the cached GOTermCounter was built */
+    private AssociationContainer counterAssociations;
+
+    /**
+     * The associations from which the cached GOTermEnumerator was built, null if the enumerator cannot be maintained
+     * incrementally
+     */
+    private AssociationContainer enumeratorAssociations;
+
+    /** The evidences with which the cached GOTermEnumerator was built */
+    private Set<ByteString> enumeratorEvidences;
+
     /** The current random ID. Used for unique study set names */
     private int randomID = 0;
 
@@ -202,39 +215,78 @@ public String getGeneDescription(ByteString name)
      * After all the calculation has been done, you should call this method in order to allow the garbage collector to
      * free the enumerator and counter associated memory.
      */
-    public void resetCounterAndEnumerator()
+    public synchronized void resetCounterAndEnumerator()
     {
         this.goTermCounter = null;
         this.goTermEnumerator = null;
+        this.counterAssociations = null;
+        this.enumeratorAssociations = null;
+        this.enumeratorEvidences = null;
     }
 
     /**
-     * Add an additional gene to the study set.
+     * Updates the cached counter and enumerator in place after a gene has been added or removed, so the next
+     * calculation doesn't need to walk all genes again. Only the terms of the gene's ancestor closure are touched.
+     *
+     * @param geneName the gene that has been added or removed
+     * @param added whether the gene has been added (true) or removed (false)
+     */
+    private synchronized void updateCounterAndEnumerator(ByteString geneName, boolean added)
+    {
+        if (this.goTermCounter != null) {
+            Gene2Associations gene2Associations = this.counterAssociations.get(geneName);
+            if (gene2Associations != null) {
+                if (added) {
+                    this.goTermCounter.add(gene2Associations.getAssociations());
+                } else {
+                    this.goTermCounter.remove(gene2Associations.getAssociations());
+                }
+            }
+        }
+
+        if (this.goTermEnumerator != null) {
+            if (this.enumeratorAssociations == null) {
+                /* Terms that have been removed from the enumerator can't be brought back */
+                this.goTermEnumerator = null;
+                this.enumeratorEvidences = null;
+            } else {
+                Gene2Associations geneAssociations = this.enumeratorAssociations.get(geneName);
+                if (geneAssociations != null) {
+                    if (added) {
+                        this.goTermEnumerator.push(geneAssociations, this.enumeratorEvidences);
+                    } else {
+                        this.goTermEnumerator.pop(geneAssociations, this.enumeratorEvidences);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Add an additional gene to the study set. A cached counter or enumerator is updated accordingly.
      *
      * @param geneName
      * @param description
-     * @note After a gene has been added, countGOTerms() should be called again.
      */
     public void addGene(ByteString geneName, String description)
     {
         ItemAttribute attr = new ItemAttribute();
         attr.description = description;
 
-        this.gene2Attribute.put(geneName, attr);
-
-        resetCounterAndEnumerator();
+        addGene(geneName, attr);
     }
 
     /**
-     * Add an additional gene to the study set.
+     * Add an additional gene to the study set. A cached counter or enumerator is updated accordingly.
      *
      * @param geneName
      * @param attribute
      */
     public void addGene(ByteString geneName, ItemAttribute attribute)
     {
-        this.gene2Attribute.put(geneName, attribute);
-        resetCounterAndEnumerator();
+        if (this.gene2Attribute.put(geneName, attribute) == null) {
+            updateCounterAndEnumerator(geneName, true);
+        }
     }
 
     /**
@@ -371,6 +423,7 @@ public synchronized GOTermCounter countGOTerms(Ontology graph, AssociationContai
         }
 
         this.goTermCounter = new GOTermCounter(graph);
+        this.counterAssociations = associationContainer;
 
         /* Iterate over all gene names and add their annotations to the goTermCounter */
         for (ByteString geneName : this.gene2Attribute.keySet()) {
@@ -396,7 +449,8 @@ public GOTermEnumerator enumerateGOTerms(Ontology graph, AssociationContainer as
 
     /**
      * Enumerate genes annotated for every term. Multiple calls to this method are fast, if the gene set has not been
-     * changed in-between.
+     * changed in-between. The returned enumerator is updated in place when genes are added or removed later, unless a
+     * remover is given.
      *
      * @param graph
      * @param associationContainer
@@ -413,6 +467,8 @@ public synchronized GOTermEnumerator enumerateGOTerms(Ontology graph, Associatio
         }
 
         this.goTermEnumerator = new GOTermEnumerator(graph);
+        this.enumeratorAssociations = remover == null ? associationContainer : null;
+        this.enumeratorEvidences = evidences;
 
         /* Iterate over all gene names and add their annotations to the goTermCounter */
         for (ByteString geneName : this.gene2Attribute.keySet()) {
@@ -453,6 +509,20 @@ public StudySet generateRandomStudySet(int desiredSize)
         return sampler.sampleRandomStudySet(desiredSize);
     }
 
+    /**
+     * Generate a studyset which contains desiredSize random selected genes of the population.
+     *
+     * @param desiredSize specifies the desired size of the studyset.
+     * @param rnd the random number generator used for the selection.
+     * @return the generated random studyset.
+     */
+    public StudySet generateRandomStudySet(int desiredSize, Random rnd)
+    {
+        StudySetSampler sampler = new StudySetSampler(this, rnd);
+
+        return sampler.sampleRandomStudySet(desiredSize);
+    }
+
     public void setName(String newStudySetName)
     {
         this.name = newStudySetName;
@@ -708,8 +778,6 @@ public void applyFilter(GeneFilter filter)
         int mappedGenes = 0;
         int discaredGenes = 0;
 
-        resetCounterAndEnumerator();
-
         HashMap<ByteString, ItemAttribute> newGene2Attributes = new HashMap<ByteString, ItemAttribute>();
 
         for (Entry<ByteString, ItemAttribute> entry : this.gene2Attribute.entrySet()) {
@@ -754,20 +822,62 @@ public void applyFilter(GeneFilter filter)
             + unmappedGenes + " remained unaffected, "
             + discaredGenes + " were discarded");
 
+        HashMap<ByteString, ItemAttribute> oldGene2Attributes = this.gene2Attribute;
         this.gene2Attribute = newGene2Attributes;
+
+        /*
+         * Rebuilding the counter and enumerator walks every gene once, so maintaining them incrementally only pays off
+         * if fewer genes have been changed than have been kept.
+         */
+        ArrayList<ByteString> removed = new ArrayList<ByteString>();
+        ArrayList<ByteString> added = new ArrayList<ByteString>();
+        for (ByteString g : oldGene2Attributes.keySet()) {
+            if (!newGene2Attributes.containsKey(g)) {
+                removed.add(g);
+            }
+        }
+        for (ByteString g : newGene2Attributes.keySet()) {
+            if (!oldGene2Attributes.containsKey(g)) {
+                added.add(g);
+            }
+        }
+        if (removed.size() + added.size() < newGene2Attributes.size()) {
+            for (ByteString g : removed) {
+                updateCounterAndEnumerator(g, false);
+            }
+            for (ByteString g : added) {
+                updateCounterAndEnumerator(g, true);
+            }
+        } else {
+            resetCounterAndEnumerator();
+        }
     }
 
+    /**
+     * Removes the given genes from the study set. A cached counter or enumerator is updated accordingly.
+     *
+     * @param toBeRemoved
+     */
     public void removeGenes(Collection<ByteString> toBeRemoved)
     {
         for (ByteString g : toBeRemoved) {
-            this.gene2Attribute.remove(g);
+            if (this.gene2Attribute.remove(g) != null) {
+                updateCounterAndEnumerator(g, false);
+            }
         }
     }
 
+    /**
+     * Adds the given genes to the study set. A cached counter or enumerator is updated accordingly.
+     *
+     * @param toBeAdded
+     */
     public void addGenes(Collection<ByteString> toBeAdded)
     {
         for (ByteString g : toBeAdded) {
-            this.gene2Attribute.put(g, new ItemAttribute());
+            if (this.gene2Attribute.put(g, new ItemAttribute()) == null) {
+                updateCounterAndEnumerator(g, true);
+            }
         }
     }
 
@@ -0,0 +1,164 @@
+package ontologizer.statistics;
+
+/**
+ * Base class for multiple test corrections whose adjusted p values are a function of the raw p values only, i.e., that
+ * don't need to resample. These corrections provide a bulk API that works directly on primitive arrays, which avoids
+ * the creation of PValue objects when a large number of p values have to be adjusted. The PValue based API is
+ * implemented on top of it.
+ */
+public abstract class AbstractDeterministicTestCorrection extends AbstractTestCorrection
+{
+    /**
+     * Adjust the given raw p values.
+     *
+     * @param raw the raw p values.
+     * @param ignore specifies which p values should be ignored by the correction (i.e., they don't count as tests).
+     *            May be null, in which case no p value is ignored.
+     * @param outAdjusted the array to which the adjusted p values are written. It must have the same length as raw.
+     *            Entries of p values that are ignored are left untouched unless stated otherwise by the
+     *            implementation.
+     */
+    abstract public void adjust(double[] raw, boolean[] ignore, double[] outAdjusted);
+
+    @Override
+    public PValue[] adjustPValues(IPValueCalculation pValueCalculation)
+    {
+        PValue[] p = pValueCalculation.calculateRawPValues();
+        int m = p.length;
+
+        double[] raw = new double[m];
+        boolean[] ignore = new boolean[m];
+        double[] adjusted = new double[m];
+
+        for (int i = 0; i < m; i++) {
+            raw[i] = p[i].p;
+            ignore[i] = p[i].ignoreAtMTC;
+            adjusted[i] = p[i].p_adjusted;
+        }
+
+        adjust(raw, ignore, adjusted);
+
+        for (int i = 0; i < m; i++) {
+            p[i].p_adjusted = adjusted[i];
+        }
+        return p;
+    }
+
+    /**
+     * Returns the number of p values that are not ignored.
+     *
+     * @param raw the raw p values
+     * @param ignore the ignore flags, may be null.
+     * @return the number of relevant p values
+     */
+    protected static int countRelevantPValues(double[] raw, boolean[] ignore)
+    {
+        if (ignore == null) {
+            return raw.length;
+        }
+
+        int pvalsCount = 0;
+        for (int i = 0; i < raw.length; i++) {
+            if (!ignore[i]) {
+                pvalsCount++;
+            }
+        }
+        return pvalsCount;
+    }
+
+    /**
+     * Returns the indices of all p values that are not ignored, sorted increasingly by their raw p value. The sort is
+     * stable, i.e., indices of equal p values stay in their original order.
+     *
+     * @param raw the raw p values
+     * @param ignore the ignore flags, may be null.
+     * @return the sorted indices
+     */
+    protected static int[] getSortedRelevantIndices(double[] raw, boolean[] ignore)
+    {
+        int[] order = new int[countRelevantPValues(raw, ignore)];
+        for (int i = 0, j = 0; i < raw.length; i++) {
+            if (ignore == null || !ignore[i]) {
+                order[j++] = i;
+            }
+        }
+
+        int[] buf = new int[order.length];
+        sortIndices(raw, order, buf, 0, order.length);
+        return order;
+    }
+
+    /**
+     * Stable merge sort of the indices within [from,to) according to the values they refer to.
+     */
+    private static void sortIndices(double[] values, int[] order, int[] buf, int from, int to)
+    {
+        int len = to - from;
+
+        if (len < 8) {
+            /* Insertion sort for small ranges */
+            for (int i = from + 1; i < to; i++) {
+                int idx = order[i];
+                double v = values[idx];
+                int j = i - 1;
+                while (j >= from && v < values[order[j]]) {
+                    order[j + 1] = order[j];
+                    j--;
+                }
+                order[j + 1] = idx;
+            }
+            return;
+        }
+
+        int mid = (from + to) >>> 1;
+        sortIndices(values, order, buf, from, mid);
+        sortIndices(values, order, buf, mid, to);
+
+        /* Already in order? */
+        if (!(values[order[mid]] < values[order[mid - 1]])) {
+            return;
+        }
+
+        System.arraycopy(order, from, buf, from, len);
+        int i = from;
+        int j = mid;
+        int k = from;
+        while (i < mid && j < to) {
+            if (values[buf[j]] < values[buf[i]]) {
+                order[k++] = buf[j++];
+            } else {
+                order[k++] = buf[i++];
+            }
+        }
+        while (i < mid) {
+            order[k++] = buf[i++];
+        }
+        while (j < to) {
+            order[k++] = buf[j++];
+        }
+    }
+
+    /**
+     * Enforce monotony contrains of the adjusted p values (i.e. that adjusted p values of increasing p values is
+     * increasing as well).
+     *
+     * @param adjusted the adjusted p values
+     * @param order the indices of the p values in increasing order of their raw p values.
+     * @see AbstractTestCorrection#enforcePValueMonotony(PValue[])
+     */
+    public static void enforcePValueMonotony(double[] adjusted, int[] order)
+    {
+        int m = order.length;
+
+        /* Do nothing if there are not enough pvalues */
+        if (m < 2) {
+            return;
+        }
+
+        adjusted[order[m - 1]] = Math.min(adjusted[order[m - 1]], 1);
+
+        for (int i = m - 2; i >= 0; i--) {
+            adjusted[order[i]] = Math.min(adjusted[order[i]], adjusted[order[i + 1]]);
+        }
+    }
+}
@@ -1,14 +1,453 @@
 package ontologizer.statistics;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
 public abstract class AbstractResamplingTestCorrection extends AbstractTestCorrection
     implements IResampling
 {
+    private static Logger logger = LoggerFactory.getLogger(AbstractResamplingTestCorrection.class.getCanonicalName());
+
     /** Specifies the number of resampling steps */
     protected int numberOfResamplingSteps = 500;
 
     /** Used for progress update */
     private IResamplingProgress progress;
 
+    /** The number of threads used for resampling */
+    private int numberOfThreads = Runtime.getRuntime().availableProcessors();
+
+    /** The seed used for resampling, null if a random seed should be chosen */
+    private Long seed;
+
+    /** Whether sampled p values are stored with single precision */
+    private boolean singlePrecisionStore;
+
+    /** Sampled p values whose dense size exceeds this number of bytes are spilled to disk, 0 disables spilling */
+    private long spillThreshold;
+
+    /** Directory of the spill files, null for the default temporary directory */
+    private File spillDirectory;
+
+    /** Percentage at which the study set sizes of cached samples may differ from the actual study set size */
+    private int sizeTolerance;
+
+    /** Whether too few cached samples should be complemented rather than replaced */
+    private boolean topUp;
+
+    /** The persistent cache for sampled p values, may be null */
+    private ResamplingCache persistentCache;
+
+    /** Describes everything except for the correction and study set size the sampled p values depend on */
+    private String persistentCacheContext;
+
+    /**
+     * Sets the number of threads that are used to draw the random samples.
+     *
+     * @param numberOfThreads
+     */
+    public void setNumberOfThreads(int numberOfThreads)
+    {
+        this.numberOfThreads = Math.max(1, numberOfThreads);
+    }
+
+    /**
+     * Returns the number of threads that are used to draw the random samples.
+     *
+     * @return
+     */
+    public int getNumberOfThreads()
+    {
+        return this.numberOfThreads;
+    }
+
+    /**
+     * Sets the seed that is used to draw the random samples. For a given seed, the results are the same regardless of
+     * the number of threads.
+     *
+     * @param seed the seed or null, if a random seed should be used for each resampling.
+     */
+    public void setSeed(Long seed)
+    {
+        this.seed = seed;
+    }
+
+    /**
+     * Returns the seed that is used to draw the random samples.
+     *
+     * @return the seed or null, if a random seed is used for each resampling.
+     */
+    public Long getSeed()
+    {
+        return this.seed;
+    }
+
+    /**
+     * Draws the given number of random p value sets using the configured number of threads. Progress is reported to
+     * the progress update instance. The consumer gets the samples in order and on the calling thread.
+     *
+     * @param pValueCalculation the p value calculation.
+     * @param steps the number of samples to draw.
+     * @param consumer the consumer of the samples.
+     */
+    protected void sampleRandomPValues(IPValueCalculation pValueCalculation, int steps,
+        ParallelResampler.ISampleConsumer consumer)
+    {
+        sampleRandomPValues(pValueCalculation, 0, steps, consumer);
+    }
+
+    /**
+     * Draws the random p value sets of the steps within [firstStep, firstStep + steps) using the configured number of
+     * threads. For a fixed seed, the samples of a step are the same regardless of how the steps are split into calls.
+     *
+     * @param pValueCalculation the p value calculation.
+     * @param firstStep the index of the first step.
+     * @param steps the number of samples to draw.
+     * @param consumer the consumer of the samples.
+     */
+    protected void sampleRandomPValues(IPValueCalculation pValueCalculation, int firstStep, int steps,
+        ParallelResampler.ISampleConsumer consumer)
+    {
+        long s = this.seed != null ? this.seed : System.nanoTime();
+        new ParallelResampler(this.numberOfThreads, s).sample(pValueCalculation, firstStep, steps, consumer,
+            this.progress);
+    }
+
+    /**
+     * Sets whether sampled p values should be stored with single precision, which halves the memory requirements of
+     * the caching corrections. Note that the adjusted p values may then slightly differ.
+     *
+     * @param singlePrecisionStore
+     */
+    public void setSinglePrecisionStore(boolean singlePrecisionStore)
+    {
+        this.singlePrecisionStore = singlePrecisionStore;
+    }
+
+    /**
+     * Returns whether sampled p values are stored with single precision.
+     *
+     * @return
+     */
+    public boolean isSinglePrecisionStore()
+    {
+        return this.singlePrecisionStore;
+    }
+
+    /**
+     * Sets the size in bytes above which the sampled p values are kept in a memory-mapped file rather than on the
+     * heap.
+     *
+     * @param spillThreshold the threshold in bytes, 0 to keep all samples on the heap.
+     * @param spillDirectory the directory of the spill files or null for the default temporary directory.
+     */
+    public void setSpillThreshold(long spillThreshold, File spillDirectory)
+    {
+        this.spillThreshold = spillThreshold;
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * Returns the size in bytes above which the sampled p values are kept in a memory-mapped file.
+     *
+     * @return the threshold, 0 if spilling is disabled.
+     */
+    public long getSpillThreshold()
+    {
+        return this.spillThreshold;
+    }
+
+    /**
+     * Creates a store for the given number of samples that are alike the given raw p values. The layout is chosen
+     * according to the settings of this instance and the fraction of the raw p values that are ignored.
+     *
+     * @param samples the number of samples that will be added.
+     * @param rawP the raw p values of the observed data.
+     * @return the new store.
+     */
+    protected PackedPValueSetStore createPValueSetStore(int samples, PValue[] rawP)
+    {
+        int m = rawP.length;
+        long bytes = (long) samples * m * (this.singlePrecisionStore ? 4 : 8);
+
+        if (this.spillThreshold > 0 && bytes > this.spillThreshold) {
+            try {
+                File file = File.createTempFile("ontologizer-pvalues", ".bin", this.spillDirectory);
+                file.deleteOnExit();
+                return new PackedPValueSetStore(m, this.singlePrecisionStore, file, true);
+            } catch (IOException e) {
+                logger.warn("Couldn't create a spill file, keeping the samples on the heap: " + e.getMessage());
+            }
+        }
+
+        int ignored = 0;
+        for (PValue p : rawP) {
+            if (p.ignoreAtMTC) {
+                ignored++;
+            }
+        }
+
+        /* A sparse entry needs an int in addition, so it pays off only if enough p values are ignored */
+        boolean sparse = this.singlePrecisionStore ? ignored * 2 > m : ignored * 3 > m * 2;
+        return new PackedPValueSetStore(samples, m, this.singlePrecisionStore, sparse);
+    }
+
+    /**
+     * Sets the persistent cache that is used by corrections that cache their samples.
+     *
+     * @param cache the cache or null to disable persistent caching.
+     * @param context describes everything the samples depend on apart from the correction, the study set size, the
+     *            number of resampling steps and the seed, e.g., the ontology, the associations, the population and the
+     *            calculation.
+     */
+    public void setPersistentCache(ResamplingCache cache, String context)
+    {
+        this.persistentCache = cache;
+        this.persistentCacheContext = context;
+    }
+
+    /**
+     * Returns the persistent cache.
+     *
+     * @return the cache or null if persistent caching is disabled.
+     */
+    public ResamplingCache getPersistentCache()
+    {
+        return this.persistentCache;
+    }
+
+    private String getPersistentCacheKey(int studySetSize, int samples)
+    {
+        return ResamplingCache.createKey(this.persistentCacheContext, getName(), studySetSize, samples,
+            this.seed != null ? this.seed : "unseeded");
+    }
+
+    /**
+     * Loads previously stored samples from the persistent cache.
+     *
+     * @param studySetSize the size of the study set.
+     * @param setSize the size of each sample.
+     * @param samples the number of samples.
+     * @return the samples or null if they are not available.
+     */
+    protected PackedPValueSetStore loadPersistentSamples(int studySetSize, int setSize, int samples)
+    {
+        if (this.persistentCache == null) {
+            return null;
+        }
+        return this.persistentCache.load(getPersistentCacheKey(studySetSize, samples), setSize, samples,
+            this.singlePrecisionStore);
+    }
+
+    /**
+     * Stores the given samples in the persistent cache, if there is one.
+     *
+     * @param studySetSize the size of the study set.
+     * @param store the samples.
+     */
+    protected void storePersistentSamples(int studySetSize, PackedPValueSetStore store)
+    {
+        if (this.persistentCache == null || store.isSinglePrecision() != this.singlePrecisionStore) {
+            return;
+        }
+        this.persistentCache.store(getPersistentCacheKey(studySetSize, store.size()), store);
+    }
+
+    /**
+     * Sets the percentage at which the study set size for which cached samples have been drawn may differ from the
+     * actual study set size. This is considered only by corrections that cache their samples.
+     */
+    @Override
+    public void setSizeTolerance(int t)
+    {
+        this.sizeTolerance = Math.max(0, t);
+    }
+
+    /**
+     * Returns the size tolerance in percent.
+     */
+    @Override
+    public int getSizeTolerance()
+    {
+        return this.sizeTolerance;
+    }
+
+    /**
+     * Sets whether cached samples that are fewer than the number of resampling steps should be complemented by
+     * drawing only the missing samples rather than by drawing all samples from scratch. The additional samples are
+     * drawn for the actual study set size, so samples that are reused within the size tolerance become stratified
+     * over the study set sizes that requested them.
+     *
+     * @param topUp
+     */
+    public void setTopUp(boolean topUp)
+    {
+        this.topUp = topUp;
+    }
+
+    /**
+     * Returns whether cached samples are complemented.
+     *
+     * @return
+     */
+    public boolean isTopUp()
+    {
+        return this.topUp;
+    }
+
+    /**
+     * Returns the study set size of the cached samples that is closest to the given study set size and within the
+     * size tolerance.
+     *
+     * @param samplesPerSize the cached samples per study set size.
+     * @param studySetSize the actual study set size.
+     * @param setSize the size of each sample.
+     * @return the study set size or -1 if there is no suitable sample.
+     */
+    private int findCachedSize(Map<Integer, PackedPValueSetStore> samplesPerSize, int studySetSize, int setSize)
+    {
+        PackedPValueSetStore exact = samplesPerSize.get(studySetSize);
+        if (exact != null && exact.getSetSize() == setSize) {
+            return studySetSize;
+        }
+
+        int bestSize = -1;
+        double bestRatio = 0.0;
+        for (Map.Entry<Integer, PackedPValueSetStore> entry : samplesPerSize.entrySet()) {
+            int s = entry.getKey();
+            if (entry.getValue().getSetSize() != setSize || s <= 0 || studySetSize <= 0) {
+                continue;
+            }
+
+            double ratio = s >= studySetSize ? ((double) s) / studySetSize : ((double) studySetSize) / s;
+            if (bestSize == -1 || ratio < bestRatio || (ratio == bestRatio && s < bestSize)) {
+                bestRatio = ratio;
+                bestSize = s;
+            }
+        }
+
+        if (bestSize != -1 && bestRatio <= 1 + 0.01 * this.sizeTolerance) {
+            return bestSize;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the samples for the given p value calculation. Samples are taken from the given in-memory cache, with
+     * respect to the size tolerance, or from the persistent cache. If no samples are available, they are drawn and
+     * put into the caches. If too few samples are available, only the missing samples are drawn if top-up is enabled.
+     * <p>
+     * Note that the returned store may contain more samples than the current number of resampling steps, in which case
+     * only the first samples should be considered.
+     *
+     * @param samplesPerSize the in-memory cache, keyed by study set size.
+     * @param pValueCalculation the p value calculation.
+     * @param rawP the raw p values.
+     * @param sortSamples whether each sample should be sorted before it is stored.
+     * @return the store.
+     */
+    protected PackedPValueSetStore getCachedSamples(Map<Integer, PackedPValueSetStore> samplesPerSize,
+        IPValueCalculation pValueCalculation, PValue[] rawP, final boolean sortSamples)
+    {
+        final int steps = this.numberOfResamplingSteps;
+        int studySetSize = pValueCalculation.currentStudySetSize();
+        int m = rawP.length;
+
+        int size = findCachedSize(samplesPerSize, studySetSize, m);
+        PackedPValueSetStore store = null;
+        if (size != -1) {
+            store = samplesPerSize.get(size);
+            if (size == studySetSize) {
+                System.out.println("Using available samples for study set size " + studySetSize);
+            } else {
+                System.out.println("Needing samples for study set size " + studySetSize);
+                System.out.println("Using available samples made for study set size " + size);
+            }
+        } else {
+            store = loadPersistentSamples(studySetSize, m, steps);
+            if (store != null) {
+                System.out.println("Using persistently cached samples for study set size " + studySetSize);
+                size = studySetSize;
+                samplesPerSize.put(size, store);
+            }
+        }
+
+        if (store != null && store.size() >= steps) {
+            return store;
+        }
+
+        boolean fresh;
+        if (store != null && this.topUp) {
+            System.out.println("Drawing " + (steps - store.size()) + " additional samples for study set size "
+                + studySetSize);
+            if (store.isReadOnly()) {
+                /* Samples from the persistent cache cannot be extended, so copy them */
+                PackedPValueSetStore copy = createPValueSetStore(steps, rawP);
+                double[] row = new double[m];
+                for (int b = 0; b < store.size(); b++) {
+                    copy.add(store.getSample(b, row));
+                }
+                closeStores(Arrays.asList(store));
+                store = copy;
+            }
+            fresh = false;
+        } else {
+            System.out.println("Sampling for study set size " + studySetSize + "\nThis may take a while...");
+            if (store != null) {
+                closeStores(Arrays.asList(store));
+                samplesPerSize.remove(size);
+            }
+            store = createPValueSetStore(steps, rawP);
+            size = studySetSize;
+            fresh = true;
+        }
+
+        final PackedPValueSetStore target = store;
+        sampleRandomPValues(pValueCalculation, store.size(), steps - store.size(),
+            new ParallelResampler.ISampleConsumer()
+            {
+                @Override
+                public void consume(int b, PValue[] randomRawP)
+                {
+                    /* Store raw p values of "permuted" data */
+                    if (sortSamples) {
+                        Arrays.sort(randomRawP);
+                    }
+                    target.add(randomRawP);
+
+                    System.out.print("created " + b + " samples out of " + steps + "\r");
+                }
+            });
+        System.out.println();
+
+        samplesPerSize.put(size, store);
+        if (fresh) {
+            storePersistentSamples(studySetSize, store);
+        }
+        return store;
+    }
+
+    /**
+     * Closes the given stores quietly.
+     *
+     * @param stores
+     */
+    protected static void closeStores(Iterable<PackedPValueSetStore> stores)
+    {
+        for (PackedPValueSetStore store : stores) {
+            try {
+                store.close();
+            } catch (IOException e) {
+                logger.warn("Couldn't close p value store: " + e.getMessage());
+            }
+        }
+    }
+
     /**
      * Set the number of resampling steps.
      */
@@ -1,7 +1,5 @@
 package ontologizer.statistics;
 
-import java.util.Arrays;
-
 /**
  * This class implements the BenjaminiHochberg multiple test correction. It controls the FDR for independent and
  * positive regression dependent test statistics. The formular for p value adjustment is: adjusted-p-value = p-value *
@@ -10,24 +8,21 @@
  *
  * @author Sebastian Bauer
  */
-public class BenjaminiHochberg extends AbstractTestCorrection
+public class BenjaminiHochberg extends AbstractDeterministicTestCorrection
 {
     @Override
-    public PValue[] adjustPValues(IPValueCalculation pValueCalculation)
+    public void adjust(double[] raw, boolean[] ignore, double[] outAdjusted)
     {
-        PValue[] p = pValueCalculation.calculateRawPValues();
-        PValue[] relevantP = getRelevantRawPValues(p);
-        Arrays.sort(relevantP);
-        int n = relevantP.length;
+        int[] order = getSortedRelevantIndices(raw, ignore);
+        int n = order.length;
 
         /*
-         * Adjust the p values according to BH. Note that all object within relevantP also are objects within p!
+         * Adjust the p values according to BH.
          */
         for (int r = 0; r < n; r++) {
-            relevantP[r].p_adjusted = relevantP[r].p * n / (r + 1);
+            outAdjusted[order[r]] = raw[order[r]] * n / (r + 1);
         }
-        enforcePValueMonotony(relevantP);
-        return p;
+        enforcePValueMonotony(outAdjusted, order);
     }
 
     @Override
@@ -1,22 +1,18 @@
 package ontologizer.statistics;
 
-import java.util.Arrays;
-
 /**
  * This class implements the Benjamini-Yekutieli multiple test correction. It controls (conservativly) the FDR for any
  * kind of statistics.
  *
  * @author Sebastian Bauer
  */
-public class BenjaminiYekutieli extends AbstractTestCorrection
+public class BenjaminiYekutieli extends AbstractDeterministicTestCorrection
 {
     @Override
-    public PValue[] adjustPValues(IPValueCalculation pValueCalculation)
+    public void adjust(double[] raw, boolean[] ignore, double[] outAdjusted)
     {
-        PValue[] p = pValueCalculation.calculateRawPValues();
-        PValue[] relevantP = getRelevantRawPValues(p);
-        Arrays.sort(relevantP);
-        int n = relevantP.length;
+        int[] order = getSortedRelevantIndices(raw, ignore);
+        int n = order.length;
 
         double h = 0.0;
         for (int l = 1; l <= n; l++) {
@@ -24,13 +20,12 @@ public PValue[] adjustPValues(IPValueCalculation pValueCalculation)
         }
 
         /*
-         * Adjust the p values according to BY. Note that all object within relevantP also are objects within p!
+         * Adjust the p values according to BY.
          */
         for (int r = 0; r < n; r++) {
-            relevantP[r].p_adjusted = relevantP[r].p * n * h / (r + 1);
+            outAdjusted[order[r]] = raw[order[r]] * n * h / (r + 1);
         }
-        enforcePValueMonotony(relevantP);
-        return p;
+        enforcePValueMonotony(outAdjusted, order);
     }
 
     @Override
@@ -11,24 +11,22 @@
  *
  * @author Sebastian Bauer
  */
-public class Bonferroni extends AbstractTestCorrection
+public class Bonferroni extends AbstractDeterministicTestCorrection
 {
     /** The name of the correction method */
     private static final String NAME = "Bonferroni";
 
     @Override
-    public PValue[] adjustPValues(IPValueCalculation pValueCalculation)
+    public void adjust(double[] raw, boolean[] ignore, double[] outAdjusted)
     {
-        PValue[] p = pValueCalculation.calculateRawPValues();
-        int pvalsCount = countRelevantPValues(p);
+        int pvalsCount = countRelevantPValues(raw, ignore);
 
         /* Adjust the values */
-        for (int i = 0; i < p.length; i++) {
-            if (!p[i].ignoreAtMTC) {
-                p[i].p_adjusted = Math.min(1.0, p[i].p * pvalsCount);
+        for (int i = 0; i < raw.length; i++) {
+            if (ignore == null || !ignore[i]) {
+                outAdjusted[i] = Math.min(1.0, raw[i] * pvalsCount);
             }
         }
-        return p;
     }
 
     @Override
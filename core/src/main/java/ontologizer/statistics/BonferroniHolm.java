@@ -6,34 +6,29 @@
  */
 package ontologizer.statistics;
 
-import java.util.Arrays;
-
 /**
  * This class implements the Bonferroni-Holm (or step down) multiple test correction.
  *
  * @author Sebastian Bauer
  */
 
-public class BonferroniHolm extends AbstractTestCorrection
+public class BonferroniHolm extends AbstractDeterministicTestCorrection
 {
     /** The name of the correction method */
     private static final String NAME = "Bonferroni-Holm";
 
     @Override
-    public PValue[] adjustPValues(IPValueCalculation pValueCalculation)
+    public void adjust(double[] raw, boolean[] ignore, double[] outAdjusted)
     {
-        PValue[] p = pValueCalculation.calculateRawPValues();
-        PValue[] relevantP = getRelevantRawPValues(p);
-        Arrays.sort(relevantP);
+        int[] order = getSortedRelevantIndices(raw, ignore);
 
         /*
-         * Adjust the p values. Note that all object within relevantP also are objects within p!
+         * Adjust the p values.
          */
-        for (int i = 0; i < relevantP.length; i++) {
-            relevantP[i].p_adjusted = relevantP[i].p * (relevantP.length - i);
+        for (int i = 0; i < order.length; i++) {
+            outAdjusted[order[i]] = raw[order[i]] * (order.length - i);
         }
-        enforcePValueMonotony(relevantP);
-        return p;
+        enforcePValueMonotony(outAdjusted, order);
     }
 
     @Override
@@ -6,13 +6,15 @@
 /**
  * @author grossman
  */
-public class FDRBySteffenCached extends AbstractTestCorrection
-    implements IResampling
+public class FDRBySteffenCached extends AbstractResamplingTestCorrection
 {
-    /** Specifies the number of resampling steps */
-    private int numberOfResamplingSteps = 1000;
+    private HashMap<Integer, PackedPValueSetStore> sampledPValuesPerSize =
+        new HashMap<Integer, PackedPValueSetStore>();
 
-    private HashMap<Integer, PvalueSetStore> sampledPValuesPerSize = new HashMap<Integer, PvalueSetStore>();
+    public FDRBySteffenCached()
+    {
+        this.numberOfResamplingSteps = 1000;
+    }
 
     @Override
     public String getDescription()
@@ -38,30 +40,9 @@ public PValue[] adjustPValues(IPValueCalculation pvalues)
 
         int m = rawP.length;
 
-        int studySetSize = pvalues.currentStudySetSize();
-
         /* holds the sampled random p values for the current study set size */
-        PvalueSetStore randomSampledPValues;
-
-        if (this.sampledPValuesPerSize.containsKey(studySetSize)) {
-            System.out.println("Using available samples for study set size " + studySetSize);
-            randomSampledPValues = this.sampledPValuesPerSize.get(studySetSize);
-        } else {
-            System.out.println("Sampling for study set size " + studySetSize + "\nThis may take a while...");
-            randomSampledPValues = new PvalueSetStore(this.numberOfResamplingSteps, m);
-            for (int b = 0; b < this.numberOfResamplingSteps; b++) {
-                /* Compute raw p values of "permuted" data */
-                PValue[] randomRawP = pvalues.calculateRandomPValues();
-                Arrays.sort(randomRawP);
-
-                assert(randomRawP.length == m);
-                randomSampledPValues.add(randomRawP);
-
-                System.out.print("created " + b + " samples out of " + this.numberOfResamplingSteps + "\r");
-            }
-            System.out.println();
-            this.sampledPValuesPerSize.put(studySetSize, randomSampledPValues);
-        }
+        PackedPValueSetStore randomSampledPValues =
+            getCachedSamples(this.sampledPValuesPerSize, pvalues, rawP, true);
 
         /* For every P-value determine the adjusted P-value */
 
@@ -73,30 +54,30 @@ public PValue[] adjustPValues(IPValueCalculation pvalues)
          * This will hold the number of rejected tests in the samples at the current level. We assume that sampled
          * p-values are sorted!
          */
-        int[] lastSampleRejects = new int[this.numberOfResamplingSteps];
+        int samples = Math.min(randomSampledPValues.size(), this.numberOfResamplingSteps);
+        int[] lastSampleRejects = new int[samples];
         int lastTotalSampleRejects = 0;
         // initializing
-        int b = 0;
-        for (PValue[] randomRawP : randomSampledPValues) {
+        int b;
+        for (b = 0; b < samples; b++) {
             lastSampleRejects[b] = 0;
-            while (randomRawP[lastSampleRejects[b]].p < lastPValue) {
+            while (lastSampleRejects[b] < m && randomSampledPValues.get(b, lastSampleRejects[b]) < lastPValue) {
                 lastSampleRejects[b]++;
             }
             lastTotalSampleRejects += lastSampleRejects[b];
-            b++;
         }
 
         double lastFDR = 0.0;
-        for (b = 0; b < this.numberOfResamplingSteps; b++) {
+        for (b = 0; b < samples; b++) {
             lastFDR +=
                 (lastSampleRejects[b])
                     / (lastSampleRejects[b] + lastObservedRejections - ((double) lastTotalSampleRejects)
-                        / this.numberOfResamplingSteps);
+                        / samples);
         }
         if (Double.isNaN(lastFDR)) {
             lastFDR = 0;
         } else {
-            lastFDR /= this.numberOfResamplingSteps;
+            lastFDR /= samples;
         }
 
         i = 0;
@@ -124,27 +105,25 @@ public PValue[] adjustPValues(IPValueCalculation pvalues)
             // update counts
             lastObservedRejections += lc;
             lastTotalSampleRejects = 0;
-            b = 0;
-            for (PValue[] randomRawP : randomSampledPValues) {
-                while (randomRawP[lastSampleRejects[b]].p < lastPValue) {
+            for (b = 0; b < samples; b++) {
+                while (lastSampleRejects[b] < m && randomSampledPValues.get(b, lastSampleRejects[b]) < lastPValue) {
                     lastSampleRejects[b]++;
                 }
                 lastTotalSampleRejects += lastSampleRejects[b];
-                b++;
             }
 
             // update FDR
             lastFDR = 0.0;
-            for (b = 0; b < this.numberOfResamplingSteps; b++) {
+            for (b = 0; b < samples; b++) {
                 lastFDR +=
                     lastSampleRejects[b]
                         / (lastSampleRejects[b] + lastObservedRejections - (double) lastTotalSampleRejects
-                            / this.numberOfResamplingSteps);
+                            / samples);
             }
             if (Double.isNaN(lastFDR)) {
                 lastFDR = 0;
             } else {
-                lastFDR /= this.numberOfResamplingSteps;
+                lastFDR /= samples;
                 /*
                  * System.out.println("After: m: " + m + "\ti: " + i + "\tlast P: " + lastPValue +
                  * "\tlastObservedRejections: " + lastObservedRejections + "\tlastFDR: " + lastFDR);
@@ -155,33 +134,10 @@ public PValue[] adjustPValues(IPValueCalculation pvalues)
         return rawP;
     }
 
-    @Override
-    public void setNumberOfResamplingSteps(int n)
-    {
-        this.numberOfResamplingSteps = n;
-    }
-
-    @Override
-    public int getNumberOfResamplingSteps()
-    {
-        return this.numberOfResamplingSteps;
-    }
-
     @Override
     public void resetCache()
     {
-        this.sampledPValuesPerSize = new HashMap<Integer, PvalueSetStore>();
-    }
-
-    @Override
-    public int getSizeTolerance()
-    {
-        return 0;
-    }
-
-    @Override
-    public void setSizeTolerance(int t)
-    {
-
+        closeStores(this.sampledPValuesPerSize.values());
+        this.sampledPValuesPerSize = new HashMap<Integer, PackedPValueSetStore>();
     }
 }
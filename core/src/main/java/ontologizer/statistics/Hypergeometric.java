@@ -1,6 +1,7 @@
 package ontologizer.statistics;
 
-import java.util.Vector;
+import ontologizer.calculation.util.Gamma;
+import sonumina.collections.LongPairDoubleCache;
 
 /**
  * Class with static methods to calculate probabilities according to the hypergeometric distribution.
@@ -12,9 +13,38 @@
 {
 
     /**
-     * This Vector contains log factorials for each index value and acts as a cache.
+     * The initial number of log factorials that are tabulated. This covers the population sizes of all common
+     * organisms, so the table usually never needs to grow.
      */
-    private Vector<Double> lfactorial;
+    private static final int INITIAL_TABLE_SIZE = 65536;
+
+    /**
+     * The maximal number of log factorials that are tabulated, which bounds the shared table to 2 MiB. Log factorials
+     * of larger values are calculated via the lgamma function, which agrees with the table to about 1e-9 at this size.
+     */
+    private static final int MAX_TABLE_SIZE = 1 << 18;
+
+    /**
+     * The log factorial table that is shared among all instances. The array contains the log factorial for each index
+     * value. It is never modified once it has been published, a larger table replaces it instead.
+     */
+    private static volatile double[] lfactorial = createTable(new double[] { 0.0, 0.0 }, INITIAL_TABLE_SIZE);
+
+    /** The default number of entries of the memo cache */
+    public static final int DEFAULT_CACHE_SIZE = 1 << 15;
+
+    /** Tags used to separate the results of the different methods within the memo cache */
+    private static final long TAG_PHYPERGEOMETRIC = 1L << 62;
+
+    private static final long TAG_PHYPER_UPPER = 2L << 62;
+
+    private static final long TAG_PHYPER_LOWER = 3L << 62;
+
+    /** The number of entries of the memo cache, 0 if memoization is disabled */
+    private final int cacheSize;
+
+    /** The memo cache, allocated on first use */
+    private volatile LongPairDoubleCache cache;
 
     /**
      * <P>
@@ -58,6 +88,33 @@ public double phypergeometric(int n, double p, int k, int r)
         int np = (int) java.lang.Math.round(n * p); // Round to nearest int
         int nq = (int) java.lang.Math.round(n * q);
 
+        if (this.cacheSize == 0 || nq != n - np || np < 0 || k < 0) {
+            return phypergeometric(n, np, nq, k, r);
+        }
+
+        LongPairDoubleCache c = getCache();
+        long key1 = ((long) n << 32) | np;
+        long key2 = TAG_PHYPERGEOMETRIC | ((long) k << 31) | r;
+        double sum = c.get(key1, key2);
+        if (Double.isNaN(sum)) {
+            sum = phypergeometric(n, np, nq, k, r);
+            c.put(key1, key2, sum);
+        }
+        return sum;
+    }
+
+    /**
+     * Calculates the upper tail of the hypergeometric distribution by summing up the point probabilities from the top
+     * down to r.
+     *
+     * @param n Number of population genes
+     * @param np Number of population genes in group
+     * @param nq Number of population genes not in group
+     * @param k Number of study genes
+     * @param r Number of study genes in group
+     */
+    private double phypergeometric(int n, int np, int nq, int k, int r)
+    {
         double log_n_choose_k = lNchooseK(n, k);
         int top = k;
         if (np < k) {
@@ -130,6 +187,28 @@ public double dhyper(int x, int N, int M, int n)
      * @return the probability
      */
     public double phyper(int x, int N, int M, int n, boolean lowerTail)
+    {
+        if (this.cacheSize == 0 || x < 0 || N < 0 || M < 0 || n < 0) {
+            return calculatePhyper(x, N, M, n, lowerTail);
+        }
+
+        LongPairDoubleCache c = getCache();
+        long key1 = ((long) N << 32) | M;
+        long key2 = (lowerTail ? TAG_PHYPER_LOWER : TAG_PHYPER_UPPER) | ((long) n << 31) | x;
+        double p = c.get(key1, key2);
+        if (Double.isNaN(p)) {
+            p = calculatePhyper(x, N, M, n, lowerTail);
+            c.put(key1, key2, p);
+        }
+        return p;
+    }
+
+    /**
+     * Calculates P(X > x) or P(X <= x) without consulting the memo cache.
+     *
+     * @see #phyper(int, int, int, int, boolean)
+     */
+    private double calculatePhyper(int x, int N, int M, int n, boolean lowerTail)
     {
         int i;
         int up;
@@ -170,34 +249,97 @@ public double lNchooseK(int n, int k)
 
     /**
      * return the log factorial of i. Use a cache to avoid repeatedly calculating this. If we have a cache miss, fill up
-     * all values from the last valid cache value to the value we currently need.
+     * all values from the last valid cache value to the value we currently need. Values that are beyond the maximal
+     * table size are calculated by the lgamma function.
      */
     public double logfact(int i)
     {
-        /*
-         * Make sure value is already in lfactorial. If not, calculate all values up to that for i
-         */
-        if (i > (this.lfactorial.size() - 1)) {
-            for (int j = this.lfactorial.size(); j <= i; j++) {
-                double lf = this.lfactorial.get(j - 1).doubleValue()
-                    + java.lang.Math.log(j);
-                this.lfactorial.add(j, new Double(lf));
-            }
+        double[] table = lfactorial;
+        if (i < table.length) {
+            return table[i];
         }
 
-        return this.lfactorial.get(i).doubleValue();
+        if (i >= MAX_TABLE_SIZE) {
+            return Gamma.lgamma(i + 1.0);
+        }
+
+        return growTable(i)[i];
     }
 
     /**
-     * Initialize the object lfactorial, which will act as a cache for log factorial calculations.
+     * Ensures that the shared table contains the log factorial of i and returns the table.
+     *
+     * @param i the value whose log factorial is requested.
+     * @return a table that contains at least i + 1 entries.
      */
-    public Hypergeometric()
+    private static synchronized double[] growTable(int i)
     {
+        double[] table = lfactorial;
+        if (i >= table.length) {
+            /* Grow by doubling so that a series of increasing requests stays cheap */
+            int newSize = (int) Math.min(MAX_TABLE_SIZE, Math.max(i + 1L, 2L * table.length));
+            table = createTable(table, newSize);
+            lfactorial = table;
+        }
+        return table;
+    }
 
-        this.lfactorial = new Vector<Double>();
-        this.lfactorial.add(0, new Double(0.0)); /* 0! = 1, therefore let log(0)=0 */
-        this.lfactorial.add(1, new Double(0.0));
+    /**
+     * Creates a new log factorial table of the given size by extending the given table. The values are calculated by
+     * summing up the logarithms in increasing order such that they do not depend on the order of requests.
+     *
+     * @param table the table to extend, must contain at least two entries.
+     * @param newSize the size of the new table.
+     * @return the new table
+     */
+    private static double[] createTable(double[] table, int newSize)
+    {
+        double[] newTable = new double[newSize];
+        System.arraycopy(table, 0, newTable, 0, table.length);
+        for (int j = table.length; j < newSize; j++) {
+            newTable[j] = newTable[j - 1] + java.lang.Math.log(j);
+        }
+        return newTable;
+    }
 
+    /**
+     * Returns the memo cache. The cache is allocated on first use.
+     *
+     * @return the cache
+     */
+    private LongPairDoubleCache getCache()
+    {
+        LongPairDoubleCache c = this.cache;
+        if (c == null) {
+            synchronized (this) {
+                c = this.cache;
+                if (c == null) {
+                    c = this.cache = new LongPairDoubleCache(this.cacheSize);
+                }
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Constructs a new hypergeometric calculation object with a memo cache of default size. The log factorials are
+     * shared among all instances and the memo cache is lock-free, hence instances may be used by several threads
+     * concurrently.
+     */
+    public Hypergeometric()
+    {
+        this(DEFAULT_CACHE_SIZE);
     }
 
+    /**
+     * Constructs a new hypergeometric calculation object. Results of {@link #phypergeometric(int, double, int, int)}
+     * and {@link #phyper(int, int, int, int, boolean)} are memoized in a bounded cache, as the same tuples are queried
+     * again and again when many terms or resampled study sets are processed.
+     *
+     * @param cacheSize the number of entries of the memo cache. Specify 0 to disable memoization.
+     */
+    public Hypergeometric(int cacheSize)
+    {
+        this.cacheSize = cacheSize;
+    }
 }
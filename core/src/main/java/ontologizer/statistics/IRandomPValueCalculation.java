@@ -0,0 +1,21 @@
+package ontologizer.statistics;
+
+import java.util.Random;
+
+/**
+ * Extends the p value calculation by the possibility to calculate random p values using a given random number
+ * generator. Resampling based multiple test corrections use this interface to distribute the resampling over several
+ * threads, hence the implementation of {@link #calculateRandomPValues(Random)} must be thread-safe.
+ */
+public interface IRandomPValueCalculation extends IPValueCalculation
+{
+    /**
+     * Calculate the p values using a random dataset that is drawn using the given random number generator. The same
+     * requirements as for {@link #calculateRandomPValues()} apply. This method may be called by several threads
+     * concurrently, each with its own random number generator.
+     *
+     * @param rnd the random number generator used to draw the random dataset.
+     * @return the p values of the random dataset
+     */
+    PValue[] calculateRandomPValues(Random rnd);
+}
@@ -5,16 +5,15 @@
  *
  * @author Sebastian Bauer
  */
-public class None extends AbstractTestCorrection
+public class None extends AbstractDeterministicTestCorrection
 {
+    /**
+     * Copies the raw p values. Note that this also applies to ignored p values.
+     */
     @Override
-    public PValue[] adjustPValues(IPValueCalculation pValueCalculation)
+    public void adjust(double[] raw, boolean[] ignore, double[] outAdjusted)
     {
-        PValue[] p = pValueCalculation.calculateRawPValues();
-        for (int i = 0; i < p.length; i++) {
-            p[i].p_adjusted = p[i].p;
-        }
-        return p;
+        System.arraycopy(raw, 0, outAdjusted, 0, raw.length);
     }
 
     @Override
@@ -0,0 +1,526 @@
+package ontologizer.statistics;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+ * A compact store for resampled p value sets. Contrary to {@link PvalueSetStore}, the p values are kept in primitive
+ * arrays and can be accessed directly via {@link #get(int, int)} or {@link #getSample(int, double[])}, i.e., without
+ * creating any PValue objects.
+ * <p>
+ * Like in the other stores, only the "p" value and the "ignoreAtMTC" attribute are taken into account. P values that
+ * are marked to be ignored are reported as {@value #IGNORED_VALUE}. The store supports three layouts:
+ * <ul>
+ * <li>dense: the samples are stored one after another in a single contiguous array, i.e., the matrix is stored column
+ * by column with one column per sample.</li>
+ * <li>sparse: only the p values that are not ignored are stored together with their index. This pays off if most of
+ * the p values are ignored.</li>
+ * <li>mapped: like dense, but the data is kept in a memory-mapped file. This is meant for very large runs whose
+ * samples would otherwise not fit into the heap.</li>
+ * </ul>
+ * Each layout can store the values in double or in single precision.
+ */
+public class PackedPValueSetStore implements Closeable
+{
+    /** The value that is reported for p values that are ignored */
+    public static final double IGNORED_VALUE = 1.0;
+
+    /** The maximal number of bytes of a single mapped chunk, the file grows in steps of this size */
+    private static final int MAX_CHUNK_BYTES = 1 << 26;
+
+    private final int setSize;
+
+    private final boolean singlePrecision;
+
+    private final boolean sparse;
+
+    /** The number of stored samples */
+    private int size;
+
+    /** Values of the dense and sparse layouts, only one of them is used */
+    private double[] doubleValues;
+
+    private float[] floatValues;
+
+    /** Number of used entries within the value arrays */
+    private int used;
+
+    /** The sparse layout only: indices of the values */
+    private int[] indices;
+
+    /** The sparse layout only: the values of sample i are in [offsets[i], offsets[i+1]) */
+    private int[] offsets;
+
+    /** The mapped layout only */
+    private File file;
+
+    private boolean deleteOnClose;
+
+    private RandomAccessFile raf;
+
+    private FileChannel channel;
+
+    private ArrayList<ByteBuffer> chunks;
+
+    private int samplesPerChunk;
+
+    /** Position of the first sample within the mapped file */
+    private long dataOffset;
+
+    private boolean readOnly;
+
+    /**
+     * Constructs a dense in-memory store with double precision.
+     *
+     * @param expectedSamples the number of samples that are expected to be added. More samples can be added.
+     * @param setSize the size of each sample.
+     */
+    public PackedPValueSetStore(int expectedSamples, int setSize)
+    {
+        this(expectedSamples, setSize, false, false);
+    }
+
+    /**
+     * Constructs an in-memory store.
+     *
+     * @param expectedSamples the number of samples that are expected to be added. More samples can be added.
+     * @param setSize the size of each sample.
+     * @param singlePrecision whether the values should be stored as floats.
+     * @param sparse whether only values that are not ignored should be stored.
+     */
+    public PackedPValueSetStore(int expectedSamples, int setSize, boolean singlePrecision, boolean sparse)
+    {
+        if (setSize < 0 || expectedSamples < 0) {
+            throw new IllegalArgumentException("Negative size");
+        }
+
+        this.setSize = setSize;
+        this.singlePrecision = singlePrecision;
+        this.sparse = sparse;
+
+        int capacity;
+        if (sparse) {
+            this.offsets = new int[expectedSamples + 1];
+            capacity = Math.max(16, expectedSamples);
+            this.indices = new int[capacity];
+        } else {
+            capacity = checkedCapacity((long) expectedSamples * setSize);
+        }
+
+        if (singlePrecision) {
+            this.floatValues = new float[capacity];
+        } else {
+            this.doubleValues = new double[capacity];
+        }
+    }
+
+    /**
+     * Constructs a dense store that keeps its data in a memory-mapped file.
+     *
+     * @param setSize the size of each sample.
+     * @param singlePrecision whether the values should be stored as floats.
+     * @param file the file to which the data is written. Existing contents are discarded.
+     * @param deleteOnClose whether the file should be deleted when the store is closed.
+     * @throws IOException
+     */
+    public PackedPValueSetStore(int setSize, boolean singlePrecision, File file, boolean deleteOnClose)
+        throws IOException
+    {
+        this(setSize, singlePrecision);
+
+        this.file = file;
+        this.deleteOnClose = deleteOnClose;
+        this.raf = new RandomAccessFile(file, "rw");
+        this.raf.setLength(0);
+        this.channel = this.raf.getChannel();
+    }
+
+    /**
+     * Constructs a read-only store from samples that have been written to a file before. The samples must be stored
+     * densely in native byte order starting at the given offset.
+     *
+     * @param file the file.
+     * @param offset the position of the first sample within the file.
+     * @param setSize the size of each sample.
+     * @param samples the number of samples.
+     * @param singlePrecision whether the values are stored as floats.
+     * @return the store.
+     * @throws IOException if the file is too short or cannot be mapped.
+     */
+    public static PackedPValueSetStore mapReadOnly(File file, long offset, int setSize, int samples,
+        boolean singlePrecision) throws IOException
+    {
+        PackedPValueSetStore store = new PackedPValueSetStore(setSize, singlePrecision);
+        store.file = file;
+        store.dataOffset = offset;
+        store.readOnly = true;
+        store.raf = new RandomAccessFile(file, "r");
+        store.channel = store.raf.getChannel();
+
+        try {
+            if (store.channel.size() < offset + samples * store.getBytesPerSample()) {
+                throw new IOException("File " + file + " is too short");
+            }
+
+            for (int c = 0; c * (long) store.samplesPerChunk < samples; c++) {
+                int chunkSamples = Math.min(store.samplesPerChunk, samples - c * store.samplesPerChunk);
+                ByteBuffer buf = store.channel.map(FileChannel.MapMode.READ_ONLY,
+                    offset + c * store.samplesPerChunk * store.getBytesPerSample(),
+                    chunkSamples * store.getBytesPerSample());
+                buf.order(ByteOrder.nativeOrder());
+                store.chunks.add(buf);
+            }
+        } catch (IOException e) {
+            store.close();
+            throw e;
+        }
+        store.size = samples;
+        return store;
+    }
+
+    /**
+     * Common initialization of the mapped stores.
+     */
+    private PackedPValueSetStore(int setSize, boolean singlePrecision)
+    {
+        if (setSize < 0) {
+            throw new IllegalArgumentException("Negative size");
+        }
+
+        this.setSize = setSize;
+        this.singlePrecision = singlePrecision;
+        this.sparse = false;
+        this.chunks = new ArrayList<ByteBuffer>();
+        this.samplesPerChunk = (int) Math.max(1, MAX_CHUNK_BYTES / Math.max(1, getBytesPerSample()));
+    }
+
+    private static int checkedCapacity(long capacity)
+    {
+        if (capacity > Integer.MAX_VALUE - 8) {
+            throw new IllegalArgumentException("Too many values for an in-memory store, use a mapped store instead");
+        }
+        return (int) capacity;
+    }
+
+    /**
+     * @return the number of bytes a dense sample occupies.
+     */
+    private long getBytesPerSample()
+    {
+        return (long) this.setSize * (this.singlePrecision ? 4 : 8);
+    }
+
+    /**
+     * Ensure that the value arrays can hold the given number of entries.
+     */
+    private void ensureValueCapacity(long needed)
+    {
+        int capacity = this.singlePrecision ? this.floatValues.length : this.doubleValues.length;
+        if (needed <= capacity) {
+            return;
+        }
+
+        int newCapacity = checkedCapacity(Math.max(needed, Math.min((long) capacity * 2, Integer.MAX_VALUE - 8)));
+        if (this.singlePrecision) {
+            this.floatValues = Arrays.copyOf(this.floatValues, newCapacity);
+        } else {
+            this.doubleValues = Arrays.copyOf(this.doubleValues, newCapacity);
+        }
+        if (this.sparse) {
+            this.indices = Arrays.copyOf(this.indices, newCapacity);
+        }
+    }
+
+    /**
+     * Returns the mapped chunk for the given sample, mapping a new one if necessary.
+     */
+    private ByteBuffer getChunk(int sample) throws IOException
+    {
+        int c = sample / this.samplesPerChunk;
+        while (this.chunks.size() <= c) {
+            long chunkBytes = this.samplesPerChunk * getBytesPerSample();
+            ByteBuffer buf = this.channel.map(FileChannel.MapMode.READ_WRITE, this.chunks.size() * chunkBytes,
+                chunkBytes);
+            buf.order(ByteOrder.nativeOrder());
+            this.chunks.add(buf);
+        }
+        return this.chunks.get(c);
+    }
+
+    /**
+     * Add a new sample.
+     *
+     * @param values the p values of the sample. Its length must equal the set size.
+     */
+    public void add(PValue[] values)
+    {
+        add(values, null, values.length);
+    }
+
+    /**
+     * Add a new sample given as plain values, e.g., as obtained by {@link #getSample(int, double[])} of another store.
+     * Values that equal {@value #IGNORED_VALUE} are treated as ignored.
+     *
+     * @param values the values of the sample. Its length must equal the set size.
+     */
+    public void add(double[] values)
+    {
+        add(null, values, values.length);
+    }
+
+    /**
+     * Returns the i-th value of a sample that is given either as PValue array or as plain values.
+     */
+    private static double valueOf(PValue[] pvalues, double[] values, int i)
+    {
+        if (pvalues != null) {
+            return pvalues[i].ignoreAtMTC ? IGNORED_VALUE : pvalues[i].p;
+        }
+        return values[i];
+    }
+
+    private void add(PValue[] pvalues, double[] values, int length)
+    {
+        if (this.readOnly) {
+            throw new IllegalStateException("The store is read-only");
+        }
+        if (length != this.setSize) {
+            throw new IllegalArgumentException(
+                "Expected a sample of size " + this.setSize + " but got one of size " + length);
+        }
+
+        if (this.chunks != null) {
+            addMapped(pvalues, values);
+        } else if (this.sparse) {
+            /* Ignored values are reported as IGNORED_VALUE anyway, so values that equal it needn't to be stored */
+            int nonIgnored = 0;
+            for (int i = 0; i < length; i++) {
+                if (valueOf(pvalues, values, i) != IGNORED_VALUE) {
+                    nonIgnored++;
+                }
+            }
+            ensureValueCapacity((long) this.used + nonIgnored);
+            if (this.size + 1 >= this.offsets.length) {
+                this.offsets = Arrays.copyOf(this.offsets, Math.max(this.offsets.length * 2, this.size + 2));
+            }
+
+            for (int i = 0; i < length; i++) {
+                double v = valueOf(pvalues, values, i);
+                if (v != IGNORED_VALUE) {
+                    this.indices[this.used] = i;
+                    setValue(this.used, v);
+                    this.used++;
+                }
+            }
+            this.offsets[this.size + 1] = this.used;
+        } else {
+            ensureValueCapacity((long) this.used + this.setSize);
+            for (int i = 0; i < length; i++) {
+                setValue(this.used++, valueOf(pvalues, values, i));
+            }
+        }
+        this.size++;
+    }
+
+    private void addMapped(PValue[] pvalues, double[] values)
+    {
+        try {
+            ByteBuffer buf = getChunk(this.size);
+            int pos = (int) ((this.size % this.samplesPerChunk) * getBytesPerSample());
+            for (int i = 0; i < this.setSize; i++) {
+                double v = valueOf(pvalues, values, i);
+                if (this.singlePrecision) {
+                    buf.putFloat(pos, (float) v);
+                    pos += 4;
+                } else {
+                    buf.putDouble(pos, v);
+                    pos += 8;
+                }
+            }
+        } catch (IOException e) {
+            throw new RuntimeException("Couldn't extend the mapped p value store " + this.file, e);
+        }
+    }
+
+    private void setValue(int pos, double v)
+    {
+        if (this.singlePrecision) {
+            this.floatValues[pos] = (float) v;
+        } else {
+            this.doubleValues[pos] = v;
+        }
+    }
+
+    private double getValue(int pos)
+    {
+        if (this.singlePrecision) {
+            return this.floatValues[pos];
+        }
+        return this.doubleValues[pos];
+    }
+
+    /**
+     * Returns a single value of a sample.
+     *
+     * @param sample the index of the sample.
+     * @param index the index of the value within the sample.
+     * @return the p value or {@value #IGNORED_VALUE} if it was ignored.
+     */
+    public double get(int sample, int index)
+    {
+        if (this.chunks != null) {
+            ByteBuffer buf = this.chunks.get(sample / this.samplesPerChunk);
+            int pos = (int) ((sample % this.samplesPerChunk) * getBytesPerSample());
+            if (this.singlePrecision) {
+                return buf.getFloat(pos + index * 4);
+            }
+            return buf.getDouble(pos + index * 8);
+        }
+
+        if (this.sparse) {
+            int from = this.offsets[sample];
+            int to = this.offsets[sample + 1];
+            int i = Arrays.binarySearch(this.indices, from, to, index);
+            if (i < 0) {
+                return IGNORED_VALUE;
+            }
+            return getValue(i);
+        }
+
+        return getValue(sample * this.setSize + index);
+    }
+
+    /**
+     * Copy all values of a sample into the given array.
+     *
+     * @param sample the index of the sample.
+     * @param dest the destination array, must be at least as large as the set size. If null, a new array is
+     *            allocated.
+     * @return the destination array.
+     */
+    public double[] getSample(int sample, double[] dest)
+    {
+        if (dest == null) {
+            dest = new double[this.setSize];
+        }
+
+        if (this.chunks != null) {
+            ByteBuffer buf = this.chunks.get(sample / this.samplesPerChunk);
+            int pos = (int) ((sample % this.samplesPerChunk) * getBytesPerSample());
+            for (int i = 0; i < this.setSize; i++) {
+                if (this.singlePrecision) {
+                    dest[i] = buf.getFloat(pos);
+                    pos += 4;
+                } else {
+                    dest[i] = buf.getDouble(pos);
+                    pos += 8;
+                }
+            }
+        } else if (this.sparse) {
+            Arrays.fill(dest, 0, this.setSize, IGNORED_VALUE);
+            for (int j = this.offsets[sample]; j < this.offsets[sample + 1]; j++) {
+                dest[this.indices[j]] = getValue(j);
+            }
+        } else {
+            int pos = sample * this.setSize;
+            if (this.singlePrecision) {
+                for (int i = 0; i < this.setSize; i++) {
+                    dest[i] = this.floatValues[pos + i];
+                }
+            } else {
+                System.arraycopy(this.doubleValues, pos, dest, 0, this.setSize);
+            }
+        }
+        return dest;
+    }
+
+    /**
+     * @return the number of stored samples.
+     */
+    public int size()
+    {
+        return this.size;
+    }
+
+    /**
+     * @return the number of p values per sample.
+     */
+    public int getSetSize()
+    {
+        return this.setSize;
+    }
+
+    /**
+     * @return whether the values are stored with single precision.
+     */
+    public boolean isSinglePrecision()
+    {
+        return this.singlePrecision;
+    }
+
+    /**
+     * @return whether the store uses the sparse layout.
+     */
+    public boolean isSparse()
+    {
+        return this.sparse;
+    }
+
+    /**
+     * @return the number of bytes occupied by the values of the store.
+     */
+    public long getDataSize()
+    {
+        if (this.sparse) {
+            return (long) this.used * (this.singlePrecision ? 8 : 12);
+        }
+        return this.size * getBytesPerSample();
+    }
+
+    /**
+     * @return whether the store is read-only, i.e., no samples can be added.
+     */
+    public boolean isReadOnly()
+    {
+        return this.readOnly;
+    }
+
+    /**
+     * @return whether the store is backed by a memory-mapped file.
+     */
+    public boolean isMapped()
+    {
+        return this.chunks != null;
+    }
+
+    /**
+     * Releases the resources of a mapped store. The file is either deleted or truncated to the size of the stored
+     * samples. The store must not be used afterwards. Does nothing for in-memory stores.
+     */
+    @Override
+    public void close() throws IOException
+    {
+        if (this.raf == null) {
+            return;
+        }
+
+        this.chunks.clear();
+        if (!this.deleteOnClose && !this.readOnly) {
+            this.raf.setLength(this.size * getBytesPerSample());
+        }
+        this.raf.close();
+        this.raf = null;
+        this.channel = null;
+
+        if (this.deleteOnClose) {
+            this.file.delete();
+        }
+    }
+}
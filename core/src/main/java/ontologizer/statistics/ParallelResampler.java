@@ -0,0 +1,220 @@
+package ontologizer.statistics;
+
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import ontologizer.OntologizerThreadGroups;
+
+/**
+ * Draws the random p value sets of a resampling based multiple test correction using several threads.
+ * <p>
+ * Every resampling step gets its own random number generator whose seed is derived from the base seed and the index of
+ * the step. The sampled p value sets are passed to the consumer in the order of their steps and on the thread that
+ * called {@link #sample(IPValueCalculation, int, ISampleConsumer, IResamplingProgress)}. Hence, for a given seed, the
+ * result doesn't depend on the number of threads and consumers don't need to be thread-safe.
+ * <p>
+ * Only p value calculations that implement {@link IRandomPValueCalculation} are sampled in parallel. Other
+ * calculations are sampled sequentially on the calling thread via {@link IPValueCalculation#calculateRandomPValues()}.
+ */
+public class ParallelResampler
+{
+    /**
+     * Receives the sampled p value sets.
+     */
+    public static interface ISampleConsumer
+    {
+        /**
+         * Called for every sampled p value set in increasing order of the steps.
+         *
+         * @param step the index of the resampling step
+         * @param randomP the p values of the random dataset
+         */
+        void consume(int step, PValue[] randomP);
+    }
+
+    /** A sampled p value set together with its step */
+    private static class Sample
+    {
+        int step;
+
+        PValue[] p;
+    }
+
+    /** Number of steps that may be in flight per thread */
+    private static final int STEPS_PER_THREAD = 4;
+
+    private static final AtomicInteger poolNumber = new AtomicInteger();
+
+    private final int numberOfThreads;
+
+    private final long seed;
+
+    /**
+     * Constructs a new resampler.
+     *
+     * @param numberOfThreads the number of threads to use.
+     * @param seed the base seed from which the seeds of the individual steps are derived.
+     */
+    public ParallelResampler(int numberOfThreads, long seed)
+    {
+        this.numberOfThreads = Math.max(1, numberOfThreads);
+        this.seed = seed;
+    }
+
+    /**
+     * Returns the seed that is used for the random number generator of the given step. The seeds of consecutive steps
+     * are mixed using the SplitMix64 finalizer, which yields statistically independent streams.
+     *
+     * @param seed the base seed
+     * @param step the step
+     * @return the seed of the step
+     */
+    public static long seedForStep(long seed, long step)
+    {
+        long z = seed + (step + 1) * 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    /**
+     * Returns the random number generator for the given step.
+     *
+     * @param step the step
+     * @return the random number generator
+     */
+    public Random createRandom(int step)
+    {
+        return new Random(seedForStep(this.seed, step));
+    }
+
+    /**
+     * Draws the given number of random p value sets.
+     *
+     * @param pValueCalculation the p value calculation
+     * @param steps the number of resampling steps
+     * @param consumer the consumer of the sampled p value sets
+     * @param progress used for progress notifications, may be null. Notifications are issued on the calling thread.
+     */
+    public void sample(IPValueCalculation pValueCalculation, int steps, ISampleConsumer consumer,
+        IResamplingProgress progress)
+    {
+        sample(pValueCalculation, 0, steps, consumer, progress);
+    }
+
+    /**
+     * Draws the random p value sets of the steps within [firstStep, firstStep + steps). This can be used to continue
+     * a previous resampling without repeating its random numbers.
+     *
+     * @param pValueCalculation the p value calculation
+     * @param firstStep the index of the first step
+     * @param steps the number of resampling steps
+     * @param consumer the consumer of the sampled p value sets
+     * @param progress used for progress notifications, may be null. Notifications are issued on the calling thread.
+     */
+    public void sample(IPValueCalculation pValueCalculation, int firstStep, int steps, ISampleConsumer consumer,
+        IResamplingProgress progress)
+    {
+        if (progress != null) {
+            progress.init(steps);
+        }
+
+        if (!(pValueCalculation instanceof IRandomPValueCalculation)) {
+            for (int b = 0; b < steps; b++) {
+                consumer.consume(firstStep + b, pValueCalculation.calculateRandomPValues());
+                if (progress != null) {
+                    progress.update(b + 1);
+                }
+            }
+            return;
+        }
+
+        final IRandomPValueCalculation randomCalculation = (IRandomPValueCalculation) pValueCalculation;
+
+        if (this.numberOfThreads == 1) {
+            for (int b = 0; b < steps; b++) {
+                consumer.consume(firstStep + b, randomCalculation.calculateRandomPValues(createRandom(firstStep + b)));
+                if (progress != null) {
+                    progress.update(b + 1);
+                }
+            }
+            return;
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(this.numberOfThreads, new ThreadFactory()
+        {
+            private final String prefix = "Resampling-" + poolNumber.incrementAndGet() + "-";
+
+            private final AtomicInteger threadNumber = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(OntologizerThreadGroups.workerThreadGroup, r,
+                    this.prefix + this.threadNumber.getAndIncrement());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        try {
+            CompletionService<Sample> completionService = new ExecutorCompletionService<Sample>(pool);
+            PValue[][] pending = new PValue[steps][];
+            int window = this.numberOfThreads * STEPS_PER_THREAD;
+            int submitted = 0;
+            int next = 0;
+
+            while (next < steps) {
+                /* Keep the number of steps that are in flight bounded */
+                while (submitted < steps && submitted - next < window) {
+                    final int step = firstStep + submitted++;
+                    completionService.submit(new Callable<Sample>()
+                    {
+                        @Override
+                        public Sample call()
+                        {
+                            Sample s = new Sample();
+                            s.step = step;
+                            s.p = randomCalculation.calculateRandomPValues(createRandom(step));
+                            return s;
+                        }
+                    });
+                }
+
+                Sample s = completionService.take().get();
+                pending[s.step - firstStep] = s.p;
+
+                /* Pass all samples that are now available in order */
+                while (next < steps && pending[next] != null) {
+                    consumer.consume(firstStep + next, pending[next]);
+                    pending[next] = null;
+                    next++;
+
+                    if (progress != null) {
+                        progress.update(next);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Resampling has been interrupted", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+}
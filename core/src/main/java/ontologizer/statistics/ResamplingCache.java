@@ -0,0 +1,333 @@
+package ontologizer.statistics;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A persistent cache for sampled null distributions. Each entry is a {@link PackedPValueSetStore} that is kept in a
+ * file of its own, which is memory-mapped when the entry is loaded. Entries are identified by a key that should cover
+ * everything the samples depend on, e.g., the ontology, the associations, the population, the calculation, the study
+ * set size and the number of resampling steps. See {@link #createKey(Object...)}.
+ * <p>
+ * The total size of the cache is bounded. If it is exceeded, the least recently used entries are removed. Entries are
+ * validated on load, invalid entries are removed.
+ */
+public class ResamplingCache
+{
+    private static Logger logger = LoggerFactory.getLogger(ResamplingCache.class.getCanonicalName());
+
+    private static final int MAGIC = 0x4f505653; /* OPVS */
+
+    private static final int VERSION = 1;
+
+    private static final String SUFFIX = ".pvs";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File directory;
+
+    private final long maxSize;
+
+    /**
+     * Constructs a new cache.
+     *
+     * @param directory the directory in which the entries are stored. It is created if it doesn't exist.
+     * @param maxSize the maximal total size of all entries in bytes.
+     * @throws IOException if the directory cannot be created.
+     */
+    public ResamplingCache(File directory, long maxSize) throws IOException
+    {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Cannot create resampling cache directory " + directory);
+        }
+        this.directory = directory;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * @return the directory in which the entries are stored.
+     */
+    public File getDirectory()
+    {
+        return this.directory;
+    }
+
+    /**
+     * Creates a key from the given components.
+     *
+     * @param components the components, their string representation is used.
+     * @return the key, a hex encoded SHA-256 hash.
+     */
+    public static String createKey(Object... components)
+    {
+        MessageDigest md = createDigest();
+        for (Object c : components) {
+            md.update(String.valueOf(c).getBytes(UTF8));
+            md.update((byte) 0);
+        }
+        return toHex(md.digest());
+    }
+
+    /**
+     * Creates a key from the contents of the given file. Unlike its path or modification time, the key of a file
+     * doesn't change if the file is moved or touched, but does change whenever it is replaced by a different one.
+     *
+     * @param file
+     * @return the key, a hex encoded SHA-256 hash.
+     * @throws IOException if the file could not be read.
+     */
+    public static String createFileKey(File file) throws IOException
+    {
+        MessageDigest md = createDigest();
+        try (InputStream in = new FileInputStream(file)) {
+            byte[] buf = new byte[65536];
+            int read;
+            while ((read = in.read(buf)) != -1) {
+                md.update(buf, 0, read);
+            }
+        }
+        return toHex(md.digest());
+    }
+
+    private static MessageDigest createDigest()
+    {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            /* Every Java platform must support SHA-256 */
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String toHex(byte[] digest)
+    {
+        StringBuilder str = new StringBuilder();
+        for (byte b : digest) {
+            str.append(String.format("%02x", b & 0xff));
+        }
+        return str.toString();
+    }
+
+    private File getFile(String key)
+    {
+        return new File(this.directory, key + SUFFIX);
+    }
+
+    /**
+     * Returns the samples that are stored for the given key. The returned store is read-only and must be closed by the
+     * caller.
+     *
+     * @param key the key
+     * @param setSize the expected size of each sample.
+     * @param samples the expected number of samples.
+     * @param singlePrecision the expected precision.
+     * @return the store or null if there is no valid entry for the key.
+     */
+    public PackedPValueSetStore load(String key, int setSize, int samples, boolean singlePrecision)
+    {
+        File file = getFile(key);
+        if (!file.exists()) {
+            return null;
+        }
+
+        long dataOffset;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (raf.readInt() != MAGIC || raf.readInt() != VERSION) {
+                return invalid(file, "unknown format");
+            }
+            if (!raf.readUTF().equals(key)) {
+                return invalid(file, "key mismatch");
+            }
+            boolean littleEndian = raf.readBoolean();
+            if (littleEndian != (ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN)) {
+                return invalid(file, "foreign byte order");
+            }
+            if (raf.readInt() != setSize || raf.readInt() != samples || raf.readBoolean() != singlePrecision) {
+                /* The entry itself may be fine, so keep it */
+                logger.warn("Resampling cache entry " + file + " doesn't match the requested dimensions");
+                return null;
+            }
+            long checksum = raf.readLong();
+            dataOffset = raf.getFilePointer();
+
+            long dataSize = (long) samples * setSize * (singlePrecision ? 4 : 8);
+            if (raf.length() != dataOffset + dataSize) {
+                return invalid(file, "truncated");
+            }
+            if (checksum(raf.getChannel(), dataOffset) != checksum) {
+                return invalid(file, "checksum mismatch");
+            }
+        } catch (IOException e) {
+            return invalid(file, e.getMessage());
+        }
+
+        try {
+            PackedPValueSetStore store =
+                PackedPValueSetStore.mapReadOnly(file, dataOffset, setSize, samples, singlePrecision);
+
+            /* Mark as recently used */
+            file.setLastModified(System.currentTimeMillis());
+            return store;
+        } catch (IOException e) {
+            logger.warn("Couldn't map resampling cache entry " + file, e);
+            return null;
+        }
+    }
+
+    private static PackedPValueSetStore invalid(File file, String reason)
+    {
+        logger.warn("Removing invalid resampling cache entry " + file + ": " + reason);
+        file.delete();
+        return null;
+    }
+
+    private static long checksum(FileChannel channel, long offset) throws IOException
+    {
+        CRC32 crc = new CRC32();
+        ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+        long pos = offset;
+        int read;
+        while ((read = channel.read(buf, pos)) > 0) {
+            crc.update(buf.array(), 0, read);
+            pos += read;
+            buf.clear();
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Stores the given samples under the given key. An existing entry is replaced. Afterwards, the least recently used
+     * entries are removed until the total size of the cache fits into the limit. Errors are logged but otherwise
+     * ignored.
+     *
+     * @param key the key
+     * @param store the samples
+     */
+    public void store(String key, PackedPValueSetStore store)
+    {
+        int setSize = store.getSetSize();
+        int samples = store.size();
+        boolean singlePrecision = store.isSinglePrecision();
+
+        if ((long) samples * setSize * (singlePrecision ? 4 : 8) > this.maxSize) {
+            return;
+        }
+
+        File file = getFile(key);
+        File tmp = new File(this.directory, key + ".tmp");
+
+        try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw")) {
+            raf.setLength(0);
+            raf.writeInt(MAGIC);
+            raf.writeInt(VERSION);
+            raf.writeUTF(key);
+            raf.writeBoolean(ByteOrder.nativeOrder() == ByteOrder.LITTLE_ENDIAN);
+            raf.writeInt(setSize);
+            raf.writeInt(samples);
+            raf.writeBoolean(singlePrecision);
+            long checksumPos = raf.getFilePointer();
+            raf.writeLong(0);
+
+            FileChannel channel = raf.getChannel();
+            long pos = raf.getFilePointer();
+            CRC32 crc = new CRC32();
+            ByteBuffer buf = ByteBuffer.allocate(setSize * (singlePrecision ? 4 : 8));
+            buf.order(ByteOrder.nativeOrder());
+            double[] row = new double[setSize];
+
+            for (int b = 0; b < samples; b++) {
+                store.getSample(b, row);
+                buf.clear();
+                for (int i = 0; i < setSize; i++) {
+                    if (singlePrecision) {
+                        buf.putFloat((float) row[i]);
+                    } else {
+                        buf.putDouble(row[i]);
+                    }
+                }
+                crc.update(buf.array(), 0, buf.position());
+                buf.flip();
+                while (buf.hasRemaining()) {
+                    pos += channel.write(buf, pos);
+                }
+            }
+
+            raf.seek(checksumPos);
+            raf.writeLong(crc.getValue());
+        } catch (IOException e) {
+            logger.warn("Couldn't write resampling cache entry " + file, e);
+            tmp.delete();
+            return;
+        }
+
+        file.delete();
+        if (!tmp.renameTo(file)) {
+            logger.warn("Couldn't rename " + tmp + " to " + file);
+            tmp.delete();
+            return;
+        }
+
+        evict();
+    }
+
+    /**
+     * Remove the least recently used entries until the total size fits into the limit.
+     */
+    private void evict()
+    {
+        File[] files = this.directory.listFiles(new FileFilter()
+        {
+            @Override
+            public boolean accept(File pathname)
+            {
+                return pathname.isFile() && pathname.getName().endsWith(SUFFIX);
+            }
+        });
+        if (files == null) {
+            return;
+        }
+
+        long total = 0;
+        final long[] lastModified = new long[files.length];
+        Integer[] order = new Integer[files.length];
+        for (int i = 0; i < files.length; i++) {
+            total += files[i].length();
+            lastModified[i] = files[i].lastModified();
+            order[i] = i;
+        }
+
+        Arrays.sort(order, new Comparator<Integer>()
+        {
+            @Override
+            public int compare(Integer o1, Integer o2)
+            {
+                return Long.compare(lastModified[o1], lastModified[o2]);
+            }
+        });
+
+        for (int i = 0; i < order.length && total > this.maxSize; i++) {
+            File f = files[order[i]];
+            long len = f.length();
+            if (f.delete()) {
+                logger.info("Evicted resampling cache entry " + f);
+                total -= len;
+            }
+        }
+    }
+}
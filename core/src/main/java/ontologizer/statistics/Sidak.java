@@ -3,24 +3,22 @@
 /**
  * @author Sebastian Bauer
  */
-public class Sidak extends AbstractTestCorrection
+public class Sidak extends AbstractDeterministicTestCorrection
 {
     /** The name of the correction method */
     private static final String NAME = "Sidak";
 
     @Override
-    public PValue[] adjustPValues(IPValueCalculation pValueCalculation)
+    public void adjust(double[] raw, boolean[] ignore, double[] outAdjusted)
     {
-        PValue[] p = pValueCalculation.calculateRawPValues();
-        int pvalsCount = countRelevantPValues(p);
+        int pvalsCount = countRelevantPValues(raw, ignore);
 
         /* Adjust the values */
-        for (int i = 0; i < p.length; i++) {
-            if (!p[i].ignoreAtMTC) {
-                p[i].p_adjusted = 1 - Math.pow(1.0 - p[i].p, pvalsCount);
+        for (int i = 0; i < raw.length; i++) {
+            if (ignore == null || !ignore[i]) {
+                outAdjusted[i] = 1 - Math.pow(1.0 - raw[i], pvalsCount);
             }
         }
-        return p;
     }
 
     @Override
@@ -61,7 +61,7 @@ public PValue[] adjustPValues(IPValueCalculation pvalues)
         Arrays.sort(sortedRawPValues);
 
         /* this will hold the minima of the sampled p-values */
-        double[] sampledMinP = new double[this.numberOfResamplingSteps];
+        final double[] sampledMinP;
 
         int studySetSize = pvalues.currentStudySetSize();
 
@@ -71,24 +71,25 @@ public PValue[] adjustPValues(IPValueCalculation pvalues)
         } else { // we have to sample
             System.out.println("Sampling for study set size " + studySetSize + "\nThis may take a while...");
 
-            initProgress(this.numberOfResamplingSteps);
-
-            for (int b = 0; b < this.numberOfResamplingSteps; b++) {
-                /* create random sample */
-                PValue[] randomRawP = pvalues.calculateRandomPValues();
-
-                if (randomRawP.length > 0) {
-                    /* determine minimal p-value in sample */
-                    double minP = randomRawP[0].p;
-                    for (i = 1; i < randomRawP.length; i++) {
-                        minP = Math.min(minP, randomRawP[i].p);
+            sampledMinP = new double[this.numberOfResamplingSteps];
+            sampleRandomPValues(pvalues, this.numberOfResamplingSteps, new ParallelResampler.ISampleConsumer()
+            {
+                @Override
+                public void consume(int b, PValue[] randomRawP)
+                {
+                    if (randomRawP.length > 0) {
+                        /* determine minimal p-value in sample */
+                        double minP = randomRawP[0].p;
+                        for (int i = 1; i < randomRawP.length; i++) {
+                            minP = Math.min(minP, randomRawP[i].p);
+                        }
+                        sampledMinP[b] = minP;
                     }
-                    sampledMinP[b] = minP;
-                }
 
-                updateProgress(b);
-                System.out.print("created " + b + " samples out of " + this.numberOfResamplingSteps + "\r");
-            }
+                    System.out.print("created " + b + " samples out of "
+                        + WestfallYoungSingleStep.this.numberOfResamplingSteps + "\r");
+                }
+            });
             /* sort sampled minimal p-values according to size */
             Arrays.sort(sampledMinP);
 
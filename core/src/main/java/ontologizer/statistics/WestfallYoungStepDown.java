@@ -2,11 +2,24 @@
 
 import java.util.Arrays;
 
-public class WestfallYoungStepDown extends AbstractTestCorrection
-    implements IResampling
+public class WestfallYoungStepDown extends AbstractResamplingTestCorrection
 {
-    /** Specifies the number of resampling steps */
-    private int numberOfResamplingSteps = 1000;
+    /** Quantile of the normal distribution used for the confidence intervals of the sequential mode (99.7%) */
+    private static final double CONFIDENCE_Z = 3.0;
+
+    /** The significance level of the sequential mode, NaN if the sequential mode is disabled */
+    private double sequentialAlpha = Double.NaN;
+
+    /** The number of samples between two decisions of the sequential mode */
+    private int sequentialBatchSize = 100;
+
+    /** The number of permutations that have been used per term in the last adjustment */
+    private int[] permutationsUsed;
+
+    public WestfallYoungStepDown()
+    {
+        this.numberOfResamplingSteps = 1000;
+    }
 
     @Override
     public String getDescription()
@@ -51,7 +64,6 @@ public PValue[] adjustPValues(IPValueCalculation pvalues)
         /* Calculate raw P-values */
         PValue[] rawP = pvalues.calculateRawPValues();
 
-        double[] q = new double[rawP.length];
         int[] count = new int[rawP.length];
 
         /* Sort the raw P-values and remember their original index */
@@ -71,54 +83,197 @@ public PValue[] adjustPValues(IPValueCalculation pvalues)
             r[i] = sortedRawPValues[i].index;
         }
 
-        /* Now "permute" */
-        System.out.println("Sampling " + this.numberOfResamplingSteps + " random study sets\nThis may take a while...");
-        for (int b = 0; b < this.numberOfResamplingSteps; b++) {
-            /* Compute raw p values of "permuted" data */
-            PValue[] randomRawP = pvalues.calculateRandomPValues();
+        int[] used = new int[m];
+        boolean[] frozen = new boolean[m];
+
+        if (isSequential()) {
+            sampleSequentially(pvalues, rawP, r, count, used, frozen);
+        } else {
+            /* Now "permute" */
+            System.out.println(
+                "Sampling " + this.numberOfResamplingSteps + " random study sets\nThis may take a while...");
+            sampleBatch(pvalues, rawP, r, count, used, frozen, 0, this.numberOfResamplingSteps);
+            System.out.println("Done!");
+        }
 
-            assert(randomRawP.length == rawP.length);
+        /* Enforce monotony contraints, the terms may be based on different numbers of permutations */
+        double lastP = 0;
+        for (i = 0; i < m; i++) {
+            double p = (i == 0 ? count[i] : Math.max(1, count[i])) / (double) used[i];
+            lastP = Math.max(lastP, p);
 
-            /* Compute the successive minima of raw p values */
-            q[m - 1] = randomRawP[r[m - 1]].p;
-            for (i = m - 2; i >= 0; i--) {
-                q[i] = Math.min(q[i + 1], randomRawP[r[i]].p);
+            /* Calculate the adjusted p values */
+            rawP[r[i]].p_adjusted = lastP;
+        }
+
+        this.permutationsUsed = new int[m];
+        for (i = 0; i < m; i++) {
+            this.permutationsUsed[r[i]] = used[i];
+        }
+        return rawP;
+    }
+
+    /**
+     * Draws the given samples and counts the exceedances of all terms that are not frozen.
+     *
+     * @param pvalues the p value calculation.
+     * @param rawP the raw p values.
+     * @param r the indices of the raw p values in increasing order of the raw p values.
+     * @param count the exceedances per sorted term.
+     * @param used the number of permutations per sorted term.
+     * @param frozen the frozen terms.
+     * @param firstStep the first step to draw.
+     * @param steps the number of steps to draw.
+     */
+    private void sampleBatch(IPValueCalculation pvalues, final PValue[] rawP, final int[] r, final int[] count,
+        final int[] used, final boolean[] frozen, int firstStep, int steps)
+    {
+        final int m = rawP.length;
+        final double[] q = new double[m];
+
+        sampleRandomPValues(pvalues, firstStep, steps, new ParallelResampler.ISampleConsumer()
+        {
+            @Override
+            public void consume(int b, PValue[] randomRawP)
+            {
+                assert(randomRawP.length == rawP.length);
+
+                /* Compute the successive minima of raw p values */
+                q[m - 1] = randomRawP[r[m - 1]].p;
+                for (int i = m - 2; i >= 0; i--) {
+                    q[i] = Math.min(q[i + 1], randomRawP[r[i]].p);
+                }
+
+                /* Count up */
+                for (int i = 0; i < m; i++) {
+                    if (frozen[i]) {
+                        continue;
+                    }
+                    if (q[i] <= rawP[r[i]].p) {
+                        count[i]++;
+                    }
+                    used[i]++;
+                }
+
+                System.out.print(b + "\r");
             }
+        });
+    }
+
+    /**
+     * Sequential Monte Carlo in the style of Besag and Clifford. Samples are drawn in batches. After each batch, a
+     * confidence interval for the p value of each term is determined. Terms whose interval lies completely below or
+     * above the significance level are frozen, i.e., their estimate is not refined any further. Sampling stops once
+     * the adjusted p values of all terms, which are the cumulative maxima of the p values, are decided or the number
+     * of resampling steps is reached.
+     */
+    private void sampleSequentially(IPValueCalculation pvalues, PValue[] rawP, int[] r, int[] count, int[] used,
+        boolean[] frozen)
+    {
+        int m = rawP.length;
+        int drawn = 0;
+
+        System.out.println("Sampling up to " + this.numberOfResamplingSteps + " random study sets sequentially");
+        while (drawn < this.numberOfResamplingSteps) {
+            int steps = Math.min(this.sequentialBatchSize, this.numberOfResamplingSteps - drawn);
+            sampleBatch(pvalues, rawP, r, count, used, frozen, drawn, steps);
+            drawn += steps;
 
-            /* Count up */
-            for (i = 0; i < m; i++) {
-                if (q[i] <= rawP[r[i]].p) {
-                    count[i]++;
+            boolean allDecided = true;
+            double maxLower = 0;
+            double maxUpper = 0;
+            for (int i = 0; i < m; i++) {
+                double lower = wilsonBound(count[i], used[i], -CONFIDENCE_Z);
+                double upper = wilsonBound(count[i], used[i], CONFIDENCE_Z);
+
+                if (lower > this.sequentialAlpha || upper < this.sequentialAlpha) {
+                    frozen[i] = true;
+                }
+
+                maxLower = Math.max(maxLower, lower);
+                maxUpper = Math.max(maxUpper, upper);
+                if (!(maxLower > this.sequentialAlpha || maxUpper < this.sequentialAlpha)) {
+                    allDecided = false;
                 }
             }
 
-            System.out.print(b + "\r");
+            if (allDecided) {
+                break;
+            }
         }
-        System.out.println("Done!");
+        System.out.println("Done after " + drawn + " samples!");
+    }
 
-        /* Enforce monotony contraints */
-        int c = count[0];
-        for (i = 1; i < m; i++) {
-            c = count[i] = Math.max(1, Math.max(c, count[i]));
+    /**
+     * Returns a bound of the Wilson score interval of a binomial proportion.
+     *
+     * @param k the number of successes.
+     * @param n the number of trials.
+     * @param z the quantile of the normal distribution, negative for the lower bound.
+     * @return the bound.
+     */
+    static double wilsonBound(int k, int n, double z)
+    {
+        if (n == 0) {
+            return z < 0 ? 0 : 1;
         }
 
-        /* Calculate the adjusted p values */
-        for (i = 0; i < m; i++) {
-            rawP[r[i]].p_adjusted = ((double) count[i]) / this.numberOfResamplingSteps;
-        }
-        return rawP;
+        double p = k / (double) n;
+        double z2 = z * z;
+        double center = p + z2 / (2 * n);
+        double spread = z * Math.sqrt(p * (1 - p) / n + z2 / (4.0 * n * n));
+        return Math.min(1, Math.max(0, (center + spread) / (1 + z2 / n)));
     }
 
-    @Override
-    public void setNumberOfResamplingSteps(int n)
+    /**
+     * Enables the sequential mode. In this mode, the resampling stops as soon as it is decided for every term whether
+     * its adjusted p value is below or above the given significance level. Then, the p values of the terms may be
+     * based on fewer permutations than the number of resampling steps, see {@link #getPermutationsUsed()}.
+     *
+     * @param alpha the significance level or NaN to disable the sequential mode.
+     */
+    public void setSequentialAlpha(double alpha)
     {
-        this.numberOfResamplingSteps = n;
+        this.sequentialAlpha = alpha;
     }
 
-    @Override
-    public int getNumberOfResamplingSteps()
+    /**
+     * Returns the significance level of the sequential mode.
+     *
+     * @return the significance level or NaN if the sequential mode is disabled.
+     */
+    public double getSequentialAlpha()
+    {
+        return this.sequentialAlpha;
+    }
+
+    /**
+     * Sets the number of samples that are drawn between two decisions in the sequential mode.
+     *
+     * @param batchSize
+     */
+    public void setSequentialBatchSize(int batchSize)
+    {
+        this.sequentialBatchSize = Math.max(1, batchSize);
+    }
+
+    /**
+     * @return whether the sequential mode is enabled.
+     */
+    public boolean isSequential()
+    {
+        return this.sequentialAlpha > 0 && this.sequentialAlpha < 1;
+    }
+
+    /**
+     * Returns the number of permutations that have been used for each term in the last call of
+     * {@link #adjustPValues(IPValueCalculation)}. The array is indexed like the raw p values of the calculation.
+     *
+     * @return the number of permutations per term or null if no adjustment has been done yet.
+     */
+    public int[] getPermutationsUsed()
     {
-        return this.numberOfResamplingSteps;
+        return this.permutationsUsed;
     }
 
     @Override
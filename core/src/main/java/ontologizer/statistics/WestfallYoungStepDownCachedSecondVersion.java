@@ -3,14 +3,15 @@
 import java.util.Arrays;
 import java.util.HashMap;
 
-public class WestfallYoungStepDownCachedSecondVersion extends AbstractTestCorrection
-    implements IResampling
+public class WestfallYoungStepDownCachedSecondVersion extends AbstractResamplingTestCorrection
 {
-    /** Specifies the number of resampling steps */
-    private int numberOfResamplingSteps = 1000;
+    private HashMap<Integer, PackedPValueSetStore> sampledPValuesPerSize =
+        new HashMap<Integer, PackedPValueSetStore>();
 
-    private HashMap<Integer, PvalueSetStoreSecondVersion> sampledPValuesPerSize =
-        new HashMap<Integer, PvalueSetStoreSecondVersion>();
+    public WestfallYoungStepDownCachedSecondVersion()
+    {
+        this.numberOfResamplingSteps = 1000;
+    }
 
     @Override
     public String getDescription()
@@ -75,35 +76,20 @@ public PValue[] adjustPValues(IPValueCalculation pvalueCalc)
             r[i] = sortedRawPValues[i].index;
         }
 
-        int studySetSize = pvalueCalc.currentStudySetSize();
-
         /* holds the sampled random p values for the current study set size */
-        PvalueSetStoreSecondVersion randomSampledPValues;
-
-        if (this.sampledPValuesPerSize.containsKey(studySetSize)) {
-            System.out.println("Using available samples for study set size " + studySetSize);
-            randomSampledPValues = this.sampledPValuesPerSize.get(studySetSize);
-        } else {
-            System.out.println("Sampling for study set size " + studySetSize + "\nThis may take a while...");
-            randomSampledPValues = new PvalueSetStoreSecondVersion(this.numberOfResamplingSteps, m);
-            for (int b = 0; b < this.numberOfResamplingSteps; b++) {
-                /* Compute raw p values of "permuted" data */
-                randomSampledPValues.add(pvalueCalc.calculateRandomPValues());
-
-                System.out.print("created " + b + " samples out of " + this.numberOfResamplingSteps + "\r");
-            }
-            this.sampledPValuesPerSize.put(studySetSize, randomSampledPValues);
-        }
+        PackedPValueSetStore randomSampledPValues =
+            getCachedSamples(this.sampledPValuesPerSize, pvalueCalc, rawP, false);
 
         /* Now "permute" */
-        for (PValue[] randomRawP : randomSampledPValues) {
-            /* Compute raw p values of "permuted" data */
-            // PValue [] randomRawP = randomSampledPValues[b];
+        double[] randomRawP = new double[m];
+        int samples = Math.min(randomSampledPValues.size(), this.numberOfResamplingSteps);
+        for (int b = 0; b < samples; b++) {
+            randomSampledPValues.getSample(b, randomRawP);
 
             /* Compute the successive minima of raw p values */
-            q[m - 1] = randomRawP[r[m - 1]].p;
+            q[m - 1] = randomRawP[r[m - 1]];
             for (i = m - 2; i >= 0; i--) {
-                q[i] = Math.min(q[i + 1], randomRawP[r[i]].p);
+                q[i] = Math.min(q[i + 1], randomRawP[r[i]]);
             }
 
             /* Count up */
@@ -122,7 +108,7 @@ public PValue[] adjustPValues(IPValueCalculation pvalueCalc)
 
         /* Calculate the adjusted p values */
         for (i = 0; i < m; i++) {
-            rawP[r[i]].p_adjusted = ((double) count[i]) / this.numberOfResamplingSteps;
+            rawP[r[i]].p_adjusted = ((double) count[i]) / samples;
         }
         return rawP;
     }
@@ -133,32 +119,17 @@ public void setNumberOfResamplingSteps(int n)
         if (n != this.numberOfResamplingSteps) {
             this.numberOfResamplingSteps = n;
 
-            /* Clear the cache */
-            this.sampledPValuesPerSize = new HashMap<Integer, PvalueSetStoreSecondVersion>();
+            /* Clear the cache unless the samples can be complemented */
+            if (!isTopUp()) {
+                resetCache();
+            }
         }
     }
 
-    @Override
-    public int getNumberOfResamplingSteps()
-    {
-        return this.numberOfResamplingSteps;
-    }
-
     @Override
     public void resetCache()
     {
-        this.sampledPValuesPerSize = new HashMap<Integer, PvalueSetStoreSecondVersion>();
-    }
-
-    @Override
-    public int getSizeTolerance()
-    {
-        return 0;
-    }
-
-    @Override
-    public void setSizeTolerance(int t)
-    {
-
+        closeStores(this.sampledPValuesPerSize.values());
+        this.sampledPValuesPerSize = new HashMap<Integer, PackedPValueSetStore>();
     }
 }
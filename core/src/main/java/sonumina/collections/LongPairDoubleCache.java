@@ -0,0 +1,144 @@
+package sonumina.collections;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A bounded cache that maps a pair of longs to a double value. The cache is open-addressed and keeps all its data in
+ * primitive arrays, hence neither keys nor values are boxed. It is meant to memoize the results of pure functions, so
+ * it is allowed to forget entries: if all slots that a key may occupy are taken, an old entry is replaced.
+ * <p>
+ * The cache can be used by several threads concurrently without any locking. Each slot is guarded by a stamp that is
+ * odd while the slot is written. Writers claim a slot by incrementing the stamp via CAS and readers only accept a slot
+ * if its stamp was even and did not change while reading the slot. A writer that cannot claim its slot simply drops
+ * the entry.
+ */
+public class LongPairDoubleCache
+{
+    /** Number of consecutive slots a key may occupy */
+    private static final int PROBES = 4;
+
+    /** Stamp of the slots, 0 means never written, odd means being written */
+    private final AtomicIntegerArray stamps;
+
+    /** The two keys of each slot, stored at index 2 * slot and 2 * slot + 1 */
+    private final AtomicLongArray keys;
+
+    /** The bits of the double values of each slot */
+    private final AtomicLongArray values;
+
+    /** The number of slots minus 1 */
+    private final int mask;
+
+    /**
+     * Constructs a new cache.
+     *
+     * @param capacity the number of entries the cache can hold at most. It is rounded up to the next power of two.
+     */
+    public LongPairDoubleCache(int capacity)
+    {
+        if (capacity < 1 || capacity > (1 << 29)) {
+            throw new IllegalArgumentException("Illegal capacity: " + capacity);
+        }
+
+        int slots = Math.max(PROBES, Integer.highestOneBit(capacity - 1) << 1);
+        this.mask = slots - 1;
+        this.stamps = new AtomicIntegerArray(slots);
+        this.keys = new AtomicLongArray(slots * 2);
+        this.values = new AtomicLongArray(slots);
+    }
+
+    /**
+     * Returns the maximum number of entries of this cache.
+     *
+     * @return the capacity
+     */
+    public int capacity()
+    {
+        return this.mask + 1;
+    }
+
+    /**
+     * Calculates the home slot of the given key pair.
+     */
+    private int slotFor(long key1, long key2)
+    {
+        long h = key1 * 0x9E3779B97F4A7C15L + key2;
+        h = (h ^ (h >>> 32)) * 0xBF58476D1CE4E5B9L;
+        h ^= h >>> 29;
+        return (int) h & this.mask;
+    }
+
+    /**
+     * Returns the value that is associated to the given key pair.
+     *
+     * @param key1 the first key
+     * @param key2 the second key
+     * @return the value or {@link Double#NaN} if the key pair is not contained in the cache.
+     */
+    public double get(long key1, long key2)
+    {
+        int home = slotFor(key1, key2);
+
+        for (int i = 0; i < PROBES; i++) {
+            int slot = (home + i) & this.mask;
+            int stamp = this.stamps.get(slot);
+            if (stamp == 0) {
+                /* Slots are occupied in probe order, so the key cannot be behind an empty slot */
+                break;
+            }
+            if ((stamp & 1) != 0) {
+                continue;
+            }
+
+            long k1 = this.keys.get(2 * slot);
+            long k2 = this.keys.get(2 * slot + 1);
+            long v = this.values.get(slot);
+
+            if (k1 == key1 && k2 == key2 && this.stamps.get(slot) == stamp) {
+                return Double.longBitsToDouble(v);
+            }
+        }
+        return Double.NaN;
+    }
+
+    /**
+     * Associates the value to the given key pair. An existing entry may be replaced by this operation. If another
+     * thread writes to the same slot at the same time, the entry is dropped.
+     *
+     * @param key1 the first key
+     * @param key2 the second key
+     * @param value the value
+     */
+    public void put(long key1, long key2, double value)
+    {
+        int home = slotFor(key1, key2);
+        int slot = -1;
+        int stamp = 0;
+
+        for (int i = 0; i < PROBES; i++) {
+            int s = (home + i) & this.mask;
+            int st = this.stamps.get(s);
+            if (st == 0 || (this.keys.get(2 * s) == key1 && this.keys.get(2 * s + 1) == key2)) {
+                slot = s;
+                stamp = st;
+                break;
+            }
+        }
+
+        if (slot == -1) {
+            /* All probe slots are taken, evict one of them chosen by the value bits */
+            slot = (home + (int) (Double.doubleToRawLongBits(value) & (PROBES - 1))) & this.mask;
+            stamp = this.stamps.get(slot);
+        }
+
+        if ((stamp & 1) != 0 || !this.stamps.compareAndSet(slot, stamp, stamp + 1)) {
+            return;
+        }
+
+        this.keys.set(2 * slot, key1);
+        this.keys.set(2 * slot + 1, key2);
+        this.values.set(slot, Double.doubleToRawLongBits(value));
+        this.stamps.set(slot, stamp + 2);
+    }
+}
@@ -373,7 +373,7 @@ private void updateGraph(ByteString g1, ByteString g2)
     public void setResult(SemanticResult result)
     {
         this.result = result;
-        this.semanticSimilarityNatModel.setValues(result.mat);
+        this.semanticSimilarityNatModel.setValues(result.matrix);
         this.semanticSimilarityNatModel.setNames(result.names);
         this.natTable.updateResize();
     }
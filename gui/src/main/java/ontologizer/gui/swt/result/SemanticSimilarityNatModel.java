@@ -8,11 +8,12 @@
 import net.sourceforge.nattable.data.IDataProvider;
 import net.sourceforge.nattable.model.DefaultNatTableModel;
 import net.sourceforge.nattable.renderer.DefaultRowHeaderRenderer;
+import ontologizer.calculation.SimilarityMatrix;
 import ontologizer.types.ByteString;
 
 public class SemanticSimilarityNatModel extends DefaultNatTableModel
 {
-    private double[][] values;
+    private SimilarityMatrix values;
 
     private ByteString[] names;
 
@@ -26,7 +27,7 @@ public int getColumnCount()
                 if (SemanticSimilarityNatModel.this.values == null) {
                     return 0;
                 }
-                return SemanticSimilarityNatModel.this.values[0].length;
+                return SemanticSimilarityNatModel.this.values.getDimension();
             };
 
             @Override
@@ -35,13 +36,13 @@ public int getRowCount()
                 if (SemanticSimilarityNatModel.this.values == null) {
                     return 0;
                 }
-                return SemanticSimilarityNatModel.this.values.length;
+                return SemanticSimilarityNatModel.this.values.getDimension();
             };
 
             @Override
             public Object getValue(int x, int y)
             {
-                return String.format("%g", SemanticSimilarityNatModel.this.values[x][y]);
+                return String.format("%g", SemanticSimilarityNatModel.this.values.get(x, y));
             }
         };
         DefaultBodyConfig dbc = new DefaultBodyConfig(dataProvider);
@@ -77,7 +78,7 @@ public String getColumnHeaderLabel(int col)
         setColumnHeaderConfig(columnHeaderConfig);
     }
 
-    public void setValues(double[][] values)
+    public void setValues(SimilarityMatrix values)
     {
         this.values = values;
     }
@@ -92,6 +93,6 @@ public double getValue(int x, int y)
         if (x < 0 || y < 0) {
             return Double.NaN;
         }
-        return this.values[x][y];
+        return this.values.get(x, y);
     }
 }
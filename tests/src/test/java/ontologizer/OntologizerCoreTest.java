@@ -0,0 +1,242 @@
+package ontologizer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import ontologizer.calculation.AbstractGOTermProperties;
+import ontologizer.calculation.EnrichedGOTermsResult;
+import ontologizer.go.OBOParserException;
+import ontologizer.set.StudySet;
+import ontologizer.types.ByteString;
+
+public class OntologizerCoreTest
+{
+    private static final String OBO_FILE = "data/gene_ontology.1_2.obo.gz";
+
+    private static final String ASSOCIATION_FILE = "data/gene_association.sgd.gz";
+
+    private static final int STUDIES = 7;
+
+    private File populationFile;
+
+    private File studyDirectory;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        /* Take the population from the annotated genes */
+        LinkedHashSet<String> genes = new LinkedHashSet<String>();
+        try (BufferedReader in = new BufferedReader(
+            new InputStreamReader(new GZIPInputStream(new FileInputStream(ASSOCIATION_FILE))))) {
+            String line;
+            while ((line = in.readLine()) != null && genes.size() < 3000) {
+                if (line.startsWith("!")) {
+                    continue;
+                }
+                genes.add(line.split("\t")[2]);
+            }
+        }
+        List<String> population = new ArrayList<String>(genes);
+
+        this.populationFile = File.createTempFile("population", ".txt");
+        this.populationFile.deleteOnExit();
+        write(this.populationFile, population);
+
+        this.studyDirectory = File.createTempFile("studies", "");
+        this.studyDirectory.delete();
+        this.studyDirectory.mkdirs();
+        this.studyDirectory.deleteOnExit();
+
+        Random rnd = new Random(11);
+        for (int i = 0; i < STUDIES; i++) {
+            Collections.shuffle(population, rnd);
+            File studyFile = new File(this.studyDirectory, "study" + i + ".txt");
+            studyFile.deleteOnExit();
+            write(studyFile, population.subList(0, 20 + i * 30));
+        }
+    }
+
+    private static void write(File file, List<String> genes) throws IOException
+    {
+        try (PrintWriter out = new PrintWriter(file)) {
+            for (String gene : genes) {
+                out.println(gene);
+            }
+        }
+    }
+
+    private OntologizerCore createCore(String calculation, String correction, int threads, File studySet)
+        throws IOException, OBOParserException
+    {
+        OntologizerCore.Arguments args = new OntologizerCore.Arguments();
+        args.goTermsOBOFile = OBO_FILE;
+        args.associationFile = ASSOCIATION_FILE;
+        args.populationFile = this.populationFile.getAbsolutePath();
+        args.studySet = studySet != null ? studySet.getAbsolutePath() : null;
+        args.suffix = ".txt";
+        args.calculationName = calculation;
+        args.correctionName = correction;
+        args.numberOfThreads = threads;
+        return new OntologizerCore(args);
+    }
+
+    private static void addLines(List<String> lines, EnrichedGOTermsResult result)
+    {
+        for (AbstractGOTermProperties prop : result) {
+            lines.add(prop.propLineToString(result.getPopulationGeneCount(), result.getStudyGeneCount()));
+        }
+    }
+
+    private List<String> analyze(String calculation, String correction, int threads)
+        throws IOException, OBOParserException
+    {
+        final ArrayList<String> lines = new ArrayList<String>();
+        OntologizerCore core = createCore(calculation, correction, threads, this.studyDirectory);
+        core.calculateAll(new OntologizerCore.IStudySetResultHandler()
+        {
+            @Override
+            public void handle(EnrichedGOTermsResult result)
+            {
+                lines.add(result.getStudySet().getName());
+                addLines(lines, result);
+            }
+        });
+        return lines;
+    }
+
+    /**
+     * Returns a population gene together with a synonym that unambiguously refers to it and is not a gene name.
+     */
+    private String[] findSynonym() throws IOException
+    {
+        HashSet<String> names = new HashSet<String>();
+        HashMap<String, String> synonym2gene = new HashMap<String, String>();
+        HashSet<String> ambiguous = new HashSet<String>();
+        try (BufferedReader in = new BufferedReader(
+            new InputStreamReader(new GZIPInputStream(new FileInputStream(ASSOCIATION_FILE))))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.startsWith("!")) {
+                    continue;
+                }
+                String[] fields = line.split("\t");
+                names.add(fields[2]);
+                for (String synonym : fields[10].split("\\|")) {
+                    String gene = synonym2gene.put(synonym, fields[2]);
+                    if (gene != null && !gene.equals(fields[2])) {
+                        ambiguous.add(synonym);
+                    }
+                }
+            }
+        }
+        List<String> population = readLines(this.populationFile);
+        for (String gene : population.subList(0, 200)) {
+            for (Map.Entry<String, String> entry : synonym2gene.entrySet()) {
+                String synonym = entry.getKey();
+                if (entry.getValue().equals(gene) && synonym.length() > 0 && !synonym.equalsIgnoreCase(gene)
+                    && !names.contains(synonym) && !ambiguous.contains(synonym)) {
+                    return new String[] { gene, synonym };
+                }
+            }
+        }
+        throw new AssertionError("No synonym found");
+    }
+
+    private static List<String> readLines(File file) throws IOException
+    {
+        ArrayList<String> lines = new ArrayList<String>();
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file)))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                lines.add(line);
+            }
+        }
+        return lines;
+    }
+
+    @Test
+    public void testBatchIndependentOfThreads() throws IOException, OBOParserException
+    {
+        List<String> sequential = analyze("Parent-Child-Union", "Benjamini-Hochberg", 1);
+        List<String> parallel = analyze("Parent-Child-Union", "Benjamini-Hochberg", 4);
+
+        Assert.assertTrue(sequential.size() > STUDIES);
+        Assert.assertEquals(sequential, parallel);
+    }
+
+    @Test
+    public void testAnalyzeStudySetWithSynonym() throws IOException, OBOParserException
+    {
+        String[] synonym = findSynonym();
+        List<String> genes = new ArrayList<String>(readLines(this.populationFile).subList(0, 200));
+        Collections.shuffle(genes, new Random(3));
+        genes = genes.subList(0, 60);
+        genes.remove(synonym[0]);
+        genes.add(synonym[0]);
+        List<String> synonymGenes = new ArrayList<String>(genes);
+        synonymGenes.set(genes.size() - 1, synonym[1]);
+
+        /* The file based run */
+        File directory = File.createTempFile("synonym", "");
+        directory.delete();
+        directory.mkdirs();
+        File studyFile = new File(directory, "synonym.txt");
+        write(studyFile, synonymGenes);
+        final ArrayList<String> expected = new ArrayList<String>();
+        try {
+            createCore("Term-For-Term", "Bonferroni", 1, directory)
+                .calculateAll(new OntologizerCore.IStudySetResultHandler()
+                {
+                    @Override
+                    public void handle(EnrichedGOTermsResult result)
+                    {
+                        addLines(expected, result);
+                    }
+                });
+        } finally {
+            studyFile.delete();
+            directory.delete();
+        }
+        Assert.assertTrue(expected.size() > 0);
+
+        /* The study sets analyzed after loading, as done by the server */
+        OntologizerCore core = createCore("Term-For-Term", "Bonferroni", 1, null);
+        ArrayList<ByteString> removed = new ArrayList<ByteString>();
+        StudySet synonymStudy = new StudySet("synonym");
+        for (String gene : synonymGenes) {
+            synonymStudy.addGene(new ByteString(gene), "");
+        }
+        ArrayList<String> actual = new ArrayList<String>();
+        addLines(actual, core.analyzeStudySet(synonymStudy, removed));
+        Assert.assertEquals(0, removed.size());
+        Assert.assertEquals(expected, actual);
+
+        StudySet study = new StudySet("primary");
+        for (String gene : genes) {
+            study.addGene(new ByteString(gene), "");
+        }
+        study.addGene(new ByteString("NOT_A_GENE"), "");
+        actual.clear();
+        addLines(actual, core.analyzeStudySet(study, removed));
+        Assert.assertEquals(Arrays.asList(new ByteString("NOT_A_GENE")), removed);
+        Assert.assertEquals(expected, actual);
+    }
+}
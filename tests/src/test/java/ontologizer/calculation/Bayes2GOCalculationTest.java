@@ -8,6 +8,7 @@
 import java.util.HashSet;
 import java.util.Random;
 
+import org.junit.Assert;
 import org.junit.Test;
 
 import ontologizer.FileCache;
@@ -17,6 +18,8 @@
 import ontologizer.calculation.b2g.B2GParam;
 import ontologizer.calculation.b2g.Bayes2GOCalculation;
 import ontologizer.calculation.b2g.Bayes2GOEnrichedGOTermsResult;
+import ontologizer.calculation.b2g.Bayes2GOGOTermProperties;
+import ontologizer.calculation.b2g.ConvergenceDiagnostics;
 import ontologizer.dotwriter.AbstractDotAttributesProvider;
 import ontologizer.dotwriter.GODOTWriter;
 import ontologizer.enumeration.GOTermEnumerator;
@@ -185,6 +188,255 @@ public void testBayes2GOParameterIntegratedOut()
         calc.calculateStudySet(ontology, assoc, scs.pop, scs.study, new None());
     }
 
+    private static Bayes2GOEnrichedGOTermsResult calculateWithChains(SingleCalculationSetting scs, Ontology ontology,
+        AssociationContainer assoc, int numberOfChains, boolean stopOnConvergence)
+    {
+        Bayes2GOCalculation calc = new Bayes2GOCalculation();
+        calc.setSeed(2);
+        calc.setMcmcSteps(300000);
+        calc.setAlpha(B2GParam.Type.MCMC);
+        calc.setBeta(B2GParam.Type.MCMC);
+        calc.setExpectedNumber(B2GParam.Type.MCMC);
+        calc.setNumberOfChains(numberOfChains);
+        calc.setStopOnConvergence(stopOnConvergence);
+        calc.setConvergenceCriteria(1.05, 100);
+
+        return (Bayes2GOEnrichedGOTermsResult) calc.calculateStudySet(ontology, assoc, scs.pop, scs.study,
+            new None());
+    }
+
+    @Test
+    public void testBayes2GOMultipleChains()
+    {
+        InternalOntology internalOntology = new InternalOntology();
+
+        final HashMap<TermID, Double> wantedActiveTerms = new HashMap<>(); /* Terms that are active */
+        wantedActiveTerms.put(new TermID("GO:0000010"), 0.10);
+        wantedActiveTerms.put(new TermID("GO:0000004"), 0.10);
+
+        AssociationContainer assoc = internalOntology.assoc;
+        Ontology ontology = internalOntology.graph;
+
+        SingleCalculationSetting scs =
+            SingleCalculationSetting.create(new Random(1), wantedActiveTerms, 0.25, ontology, assoc);
+
+        Bayes2GOEnrichedGOTermsResult result = calculateWithChains(scs, ontology, assoc, 4, false);
+        Bayes2GOEnrichedGOTermsResult again = calculateWithChains(scs, ontology, assoc, 4, false);
+
+        /* The chains are seeded, hence the merged marginals are reproducible */
+        HashMap<TermID, Double> marginals = new HashMap<>();
+        for (AbstractGOTermProperties prop : result) {
+            marginals.put(prop.goTerm.getID(), ((Bayes2GOGOTermProperties) prop).marg);
+        }
+        for (AbstractGOTermProperties prop : again) {
+            Assert.assertEquals(marginals.get(prop.goTerm.getID()), ((Bayes2GOGOTermProperties) prop).marg, 0);
+        }
+
+        for (TermID t : wantedActiveTerms.keySet()) {
+            Assert.assertTrue(marginals.get(t) > 0.5);
+        }
+
+        ConvergenceDiagnostics diagnostics = result.getDiagnostics();
+        Assert.assertTrue(diagnostics.getMaxRHat() >= 1);
+        Assert.assertTrue(diagnostics.getMaxRHat() < 1.1);
+        Assert.assertTrue(diagnostics.getMinEss() > 0);
+        Assert.assertTrue(diagnostics.getAlphaRHat() < 1.1);
+        Assert.assertTrue(diagnostics.getTermEss(new TermID("GO:0000010")) <= 4 * 300000);
+
+        /* Stopping early yields fewer records */
+        Bayes2GOEnrichedGOTermsResult early = calculateWithChains(scs, ontology, assoc, 4, true);
+        Assert.assertTrue(early.getDiagnostics().isConverged(1.05, 100));
+        Assert.assertTrue(early.getScore().getNumRecords() < result.getScore().getNumRecords());
+    }
+
+    @Test
+    public void testBayes2GOTempering()
+    {
+        InternalOntology internalOntology = new InternalOntology();
+
+        final HashMap<TermID, Double> wantedActiveTerms = new HashMap<>(); /* Terms that are active */
+        wantedActiveTerms.put(new TermID("GO:0000010"), 0.10);
+        wantedActiveTerms.put(new TermID("GO:0000004"), 0.10);
+
+        AssociationContainer assoc = internalOntology.assoc;
+        Ontology ontology = internalOntology.graph;
+
+        SingleCalculationSetting scs =
+            SingleCalculationSetting.create(new Random(1), wantedActiveTerms, 0.25, ontology, assoc);
+
+        Bayes2GOCalculation calc = new Bayes2GOCalculation();
+        calc.setSeed(2);
+        calc.setMcmcSteps(200000);
+        calc.setAlpha(B2GParam.Type.MCMC);
+        calc.setBeta(B2GParam.Type.MCMC);
+        calc.setExpectedNumber(B2GParam.Type.MCMC);
+        calc.setNumberOfChains(2);
+        calc.setTemperatures(1, 2, 4);
+
+        Bayes2GOEnrichedGOTermsResult result =
+            (Bayes2GOEnrichedGOTermsResult) calc.calculateStudySet(ontology, assoc, scs.pop, scs.study, new None());
+
+        double[] rates = result.getSwapAcceptanceRates();
+        Assert.assertEquals(2, rates.length);
+        for (double rate : rates) {
+            Assert.assertTrue(rate > 0 && rate <= 1);
+        }
+
+        /* Only the cold replica of each chain is recorded */
+        Assert.assertEquals(2 * (200000 - 20001), result.getScore().getNumRecords());
+
+        for (AbstractGOTermProperties prop : result) {
+            if (wantedActiveTerms.containsKey(prop.goTerm.getID())) {
+                Assert.assertTrue(((Bayes2GOGOTermProperties) prop).marg > 0.5);
+            }
+        }
+    }
+
+    @Test
+    public void testBayes2GOAcceleratedEm()
+    {
+        InternalOntology internalOntology = new InternalOntology();
+
+        final HashMap<TermID, Double> wantedActiveTerms = new HashMap<>(); /* Terms that are active */
+        wantedActiveTerms.put(new TermID("GO:0000010"), 0.10);
+        wantedActiveTerms.put(new TermID("GO:0000004"), 0.10);
+
+        AssociationContainer assoc = internalOntology.assoc;
+        Ontology ontology = internalOntology.graph;
+
+        SingleCalculationSetting scs =
+            SingleCalculationSetting.create(new Random(1), wantedActiveTerms, 0.25, ontology, assoc);
+
+        Bayes2GOCalculation calc = new Bayes2GOCalculation();
+        calc.setSeed(2);
+        calc.setMcmcSteps(200000);
+        calc.setAlpha(B2GParam.Type.EM);
+        calc.setBeta(B2GParam.Type.EM);
+        calc.setExpectedNumber(B2GParam.Type.EM);
+        calc.setNumberOfChains(2);
+        calc.setAcceleratedEm(true);
+        calc.setEmTolerance(0.01);
+
+        Bayes2GOEnrichedGOTermsResult result =
+            (Bayes2GOEnrichedGOTermsResult) calc.calculateStudySet(ontology, assoc, scs.pop, scs.study, new None());
+
+        double[][] trajectory = result.getEmTrajectory();
+        Assert.assertTrue(trajectory.length > 1 && trajectory.length < 12);
+        double[] last = trajectory[trajectory.length - 1];
+        double[] previous = trajectory[trajectory.length - 2];
+        Assert.assertEquals(previous[0], last[0], 0.01);
+        Assert.assertEquals(previous[1], last[1], 0.01);
+
+        /* The steps are split among the chains, warm started chains have a shorter burnin */
+        Assert.assertEquals(2 * (100000 - 2001), result.getScore().getNumRecords());
+
+        for (AbstractGOTermProperties prop : result) {
+            if (wantedActiveTerms.containsKey(prop.goTerm.getID())) {
+                Assert.assertTrue(((Bayes2GOGOTermProperties) prop).marg > 0.5);
+            }
+        }
+    }
+
+    /**
+     * Thrown by the progress to simulate an aborted calculation.
+     */
+    private static class AbortException extends RuntimeException
+    {
+        private static final long serialVersionUID = 1L;
+    }
+
+    private static Bayes2GOCalculation createCheckpointCalculation()
+    {
+        Bayes2GOCalculation calc = new Bayes2GOCalculation();
+        calc.setSeed(3);
+        calc.setMcmcSteps(40000);
+        calc.setAlpha(B2GParam.Type.EM);
+        calc.setBeta(B2GParam.Type.MCMC);
+        calc.setExpectedNumber(B2GParam.Type.MCMC);
+        calc.setNumberOfChains(2);
+        calc.setTemperatures(1, 2);
+        calc.setSwapInterval(50);
+        return calc;
+    }
+
+    @Test
+    public void testBayes2GOCheckpoint() throws IOException
+    {
+        InternalOntology internalOntology = new InternalOntology();
+
+        final HashMap<TermID, Double> wantedActiveTerms = new HashMap<>(); /* Terms that are active */
+        wantedActiveTerms.put(new TermID("GO:0000010"), 0.10);
+        wantedActiveTerms.put(new TermID("GO:0000004"), 0.10);
+
+        AssociationContainer assoc = internalOntology.assoc;
+        Ontology ontology = internalOntology.graph;
+
+        SingleCalculationSetting scs =
+            SingleCalculationSetting.create(new Random(1), wantedActiveTerms, 0.25, ontology, assoc);
+
+        Bayes2GOEnrichedGOTermsResult expected = (Bayes2GOEnrichedGOTermsResult) createCheckpointCalculation()
+            .calculateStudySet(ontology, assoc, scs.pop, scs.study, new None());
+        scs.study.resetCounterAndEnumerator();
+
+        /* Abort the calculation in the middle of the fourth EM iteration, after a checkpoint has been written */
+        File checkpoint = File.createTempFile("mgsa", ".checkpoint");
+        checkpoint.deleteOnExit();
+        Bayes2GOCalculation calc = createCheckpointCalculation();
+        calc.setCheckpointFile(checkpoint);
+        calc.setCheckpointStepInterval(10000);
+        calc.setProgress(new ICalculationProgress()
+        {
+            private int iterations;
+
+            @Override
+            public void init(int max)
+            {
+                this.iterations++;
+            }
+
+            @Override
+            public void update(int current)
+            {
+                if (this.iterations == 4 && current == 30000) {
+                    throw new AbortException();
+                }
+            }
+        });
+        try {
+            calc.calculateStudySet(ontology, assoc, scs.pop, scs.study, new None());
+            Assert.fail("The calculation should have been aborted");
+        } catch (AbortException e) {
+        }
+        scs.study.resetCounterAndEnumerator();
+
+        Bayes2GOEnrichedGOTermsResult resumed = (Bayes2GOEnrichedGOTermsResult) createCheckpointCalculation()
+            .resumeStudySet(ontology, assoc, scs.pop, scs.study, checkpoint);
+
+        Assert.assertEquals(expected.getScore().getNumRecords(), resumed.getScore().getNumRecords());
+        Assert.assertEquals(expected.getSize(), resumed.getSize());
+        for (AbstractGOTermProperties prop : expected) {
+            Bayes2GOGOTermProperties resumedProp =
+                (Bayes2GOGOTermProperties) resumed.getGOTermProperties(prop.goTerm.getID());
+            Assert.assertEquals(((Bayes2GOGOTermProperties) prop).marg, resumedProp.marg, 0);
+        }
+        Assert.assertEquals(expected.getDiagnostics().getMaxRHat(), resumed.getDiagnostics().getMaxRHat(), 0);
+        Assert.assertArrayEquals(expected.getSwapAcceptanceRates(), resumed.getSwapAcceptanceRates(), 0);
+        Assert.assertEquals(expected.getEmTrajectory().length, resumed.getEmTrajectory().length);
+        for (int i = 0; i < expected.getEmTrajectory().length; i++) {
+            Assert.assertArrayEquals(expected.getEmTrajectory()[i], resumed.getEmTrajectory()[i], 0);
+        }
+
+        /* A calculation with a different seed must not continue the checkpoint */
+        scs.study.resetCounterAndEnumerator();
+        Bayes2GOCalculation other = createCheckpointCalculation();
+        other.setSeed(4);
+        try {
+            other.resumeStudySet(ontology, assoc, scs.pop, scs.study, checkpoint);
+            Assert.fail("The checkpoint should have been rejected");
+        } catch (IOException e) {
+        }
+    }
+
     public static Ontology graph;
 
     public static AssociationContainer assoc;
@@ -2,6 +2,7 @@
 
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
@@ -12,11 +13,13 @@
 import ontologizer.association.AssociationContainer;
 import ontologizer.calculation.Bayes2GOCalculationTest.SingleCalculationSetting;
 import ontologizer.calculation.b2g.FixedAlphaBetaScore;
+import ontologizer.calculation.util.Gamma;
 import ontologizer.enumeration.GOTermEnumerator;
 import ontologizer.go.Ontology;
 import ontologizer.go.Term;
 import ontologizer.go.TermID;
 import ontologizer.internal.InternalOntology;
+import ontologizer.types.ByteString;
 import sonumina.math.graph.SlimDirectedGraphView;
 
 public class FixedAlphaBetaScoreTest
@@ -109,4 +112,93 @@ public void testWithIntegratedOutParameter()
         }
         Assert.assertEquals(expectedMax, foundMax, 0.001);
     }
+
+    private static double logBeta(int a, int b)
+    {
+        return Gamma.lgamma(a) + Gamma.lgamma(b) - Gamma.lgamma(a + b);
+    }
+
+    /**
+     * Checks the score of random states against a direct evaluation of the likelihood and prior.
+     */
+    private static void checkScoreAgainstFormula(boolean integrateParams)
+    {
+        InternalOntology internalOntology = new InternalOntology();
+
+        final HashMap<TermID, Double> wantedActiveTerms = new HashMap<>(); /* Terms that are active */
+        wantedActiveTerms.put(new TermID("GO:0000010"), 0.10);
+        wantedActiveTerms.put(new TermID("GO:0000004"), 0.10);
+
+        AssociationContainer assoc = internalOntology.assoc;
+        Ontology ontology = internalOntology.graph;
+
+        SingleCalculationSetting sss =
+            SingleCalculationSetting.create(new Random(1), wantedActiveTerms, 0.25, ontology, assoc);
+        GOTermEnumerator popEnumerator = sss.pop.enumerateGOTerms(ontology, assoc);
+        List<TermID> terms = popEnumerator.getAllAnnotatedTermsAsList();
+        HashSet<ByteString> observed = new HashSet<>(sss.study.getAllGeneNames());
+        FixedAlphaBetaScore fabs = new FixedAlphaBetaScore(new Random(3), terms, popEnumerator, observed);
+        fabs.setIntegrateParams(integrateParams);
+
+        for (int i = 0; i < 1000; i++) {
+            fabs.proposeNewState();
+
+            HashSet<ByteString> hidden = new HashSet<>();
+            List<TermID> active = fabs.getActiveTerms();
+            for (TermID t : active) {
+                hidden.addAll(popEnumerator.getAnnotatedGenes(t).totalAnnotated);
+            }
+            int n00 = 0;
+            int n01 = 0;
+            int n10 = 0;
+            int n11 = 0;
+            for (ByteString gene : popEnumerator.getGenes()) {
+                boolean h = hidden.contains(gene);
+                boolean o = observed.contains(gene);
+                if (h) {
+                    if (o) {
+                        n11++;
+                    } else {
+                        n01++;
+                    }
+                } else {
+                    if (o) {
+                        n10++;
+                    } else {
+                        n00++;
+                    }
+                }
+            }
+            int m1 = active.size();
+            int m0 = terms.size() - m1;
+
+            double expected;
+            if (integrateParams) {
+                expected = logBeta(1 + n10, 1 + n00) + logBeta(1 + n01, 1 + n11) + logBeta(1 + m1, 1 + m0);
+            } else {
+                double alpha = fabs.getAlpha();
+                double beta = fabs.getBeta();
+                double p = fabs.getP();
+                expected = Math.log(alpha) * n10 + Math.log(1 - alpha) * n00 + Math.log(1 - beta) * n11
+                    + Math.log(beta) * n01 + Math.log(p) * m1 + Math.log(1 - p) * m0;
+            }
+            Assert.assertEquals(expected, fabs.getScore(), Math.abs(expected) * 1e-12);
+
+            if (i % 3 == 0) {
+                fabs.undoProposal();
+            }
+        }
+    }
+
+    @Test
+    public void testScoreAgainstFormula()
+    {
+        checkScoreAgainstFormula(false);
+    }
+
+    @Test
+    public void testIntegratedScoreAgainstFormula()
+    {
+        checkScoreAgainstFormula(true);
+    }
 }
@@ -0,0 +1,88 @@
+package ontologizer.calculation;
+
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ontologizer.enumeration.GOTermEnumerator;
+import ontologizer.go.TermID;
+import ontologizer.internal.InternalOntology;
+import ontologizer.set.PopulationSet;
+import ontologizer.set.StudySet;
+import ontologizer.statistics.None;
+import ontologizer.types.ByteString;
+
+public class ParentChildCalculationTest
+{
+    private static ArrayList<ParentChildGOTermProperties> calculate(ICalculation calculation,
+        InternalOntology internal, PopulationSet population, StudySet study)
+    {
+        EnrichedGOTermsResult result =
+            calculation.calculateStudySet(internal.graph, internal.assoc, population, study, new None());
+        study.resetCounterAndEnumerator();
+
+        ArrayList<ParentChildGOTermProperties> props = new ArrayList<ParentChildGOTermProperties>();
+        for (AbstractGOTermProperties prop : result) {
+            props.add((ParentChildGOTermProperties) prop);
+        }
+        return props;
+    }
+
+    /**
+     * Checks that the family counts derived from the precomputed families are the same as those derived from the
+     * annotations of the study set. The latter are used if the study set contains a gene that is not part of the
+     * population.
+     */
+    private static void checkFamilies(ICalculation calculation)
+    {
+        InternalOntology internal = new InternalOntology();
+        PopulationSet population = new PopulationSet();
+        population.addGenes(internal.assoc.getAllAnnotatedGenes());
+        GOTermEnumerator enumerator = population.enumerateGOTerms(internal.graph, internal.assoc);
+
+        Random rnd = new Random(5);
+        int nontrivial = 0;
+        for (int i = 1; i <= 11; i++) {
+            StudySet study = new StudySet("study");
+            for (ByteString gene : enumerator.getAnnotatedGenes(new TermID(TermID.DEFAULT_PREFIX, i)).totalAnnotated) {
+                if (rnd.nextBoolean()) {
+                    study.addGene(gene, "");
+                }
+            }
+            ArrayList<ParentChildGOTermProperties> expected = calculate(calculation, internal, population, study);
+
+            study.addGene(new ByteString("not-in-population"), "");
+            ArrayList<ParentChildGOTermProperties> actual = calculate(calculation, internal, population, study);
+
+            Assert.assertEquals(expected.size(), actual.size());
+            for (int j = 0; j < expected.size(); j++) {
+                ParentChildGOTermProperties e = expected.get(j);
+                ParentChildGOTermProperties a = actual.get(j);
+                Assert.assertEquals(e.goTerm.getID(), a.goTerm.getID());
+                Assert.assertEquals(e.popFamilyGenes, a.popFamilyGenes);
+                Assert.assertEquals(e.studyFamilyGenes, a.studyFamilyGenes);
+                Assert.assertEquals(e.p, a.p, 0);
+                Assert.assertEquals(e.p_min, a.p_min, 0);
+                Assert.assertEquals(e.ignoreAtMTC, a.ignoreAtMTC);
+                if (!e.ignoreAtMTC) {
+                    nontrivial++;
+                }
+            }
+        }
+        Assert.assertTrue(nontrivial > 0);
+    }
+
+    @Test
+    public void testUnionFamilies()
+    {
+        checkFamilies(new ParentChildCalculation());
+    }
+
+    @Test
+    public void testIntersectionFamilies()
+    {
+        checkFamilies(new ParentChildCutCalculation());
+    }
+}
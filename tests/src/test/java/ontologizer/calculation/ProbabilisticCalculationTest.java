@@ -1,17 +1,25 @@
 package ontologizer.calculation;
 
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
 
+import org.junit.Assert;
 import org.junit.Test;
 
 import ontologizer.association.Association;
 import ontologizer.association.AssociationContainer;
+import ontologizer.enumeration.GOTermEnumerator;
 import ontologizer.go.Ontology;
 import ontologizer.go.ParentTermID;
 import ontologizer.go.Term;
 import ontologizer.go.TermContainer;
 import ontologizer.go.TermID;
 import ontologizer.go.TermRelation;
+import ontologizer.internal.InternalOntology;
 import ontologizer.set.PopulationSet;
 import ontologizer.set.StudySet;
 import ontologizer.statistics.None;
@@ -19,6 +27,174 @@
 
 public class ProbabilisticCalculationTest
 {
+    /**
+     * A straightforward implementation of the greedy optimization that keeps the state in hash maps and evaluates the
+     * objective by switching terms.
+     */
+    private static class ReferenceGenGO
+    {
+        private double p;
+
+        private double q;
+
+        private double alpha = 3;
+
+        private int st;
+
+        private int nsg;
+
+        private Set<TermID> activeTerms = new LinkedHashSet<TermID>();
+
+        private HashMap<ByteString, Integer> ag = new HashMap<ByteString, Integer>();
+
+        private GOTermEnumerator popEnumerator;
+
+        private Set<ByteString> activeGenes;
+
+        private List<TermID> allTerms;
+
+        private void switchTerm(TermID t)
+        {
+            boolean activate = this.activeTerms.add(t);
+            if (!activate) {
+                this.activeTerms.remove(t);
+            }
+            for (ByteString g : this.popEnumerator.getAnnotatedGenes(t).totalAnnotated) {
+                if (this.activeGenes.contains(g)) {
+                    Integer cnt = this.ag.get(g);
+                    int newCnt = (cnt == null ? 0 : cnt) + (activate ? 1 : -1);
+                    if (newCnt == 0) {
+                        this.ag.remove(g);
+                    } else {
+                        this.ag.put(g, newCnt);
+                    }
+                } else {
+                    this.nsg += activate ? 1 : -1;
+                }
+            }
+        }
+
+        private double objective()
+        {
+            int ag = this.ag.size();
+            int an = this.activeGenes.size() - ag;
+            int sg = this.nsg;
+            int sn = this.st - sg;
+            return ag * Math.log(this.p) + an * Math.log(this.q) + sg * Math.log(1 - this.p) + sn
+                * Math.log(1 - this.q) - this.alpha * this.activeTerms.size();
+        }
+
+        private void optimizeForTerms()
+        {
+            this.activeTerms.clear();
+            this.ag.clear();
+            this.nsg = 0;
+
+            double obj = objective();
+            while (true) {
+                double best = Double.NEGATIVE_INFINITY;
+                TermID bestTerm = null;
+                for (TermID t : this.allTerms) {
+                    switchTerm(t);
+                    double o = objective();
+                    if (o > best) {
+                        best = o;
+                        bestTerm = t;
+                    }
+                    switchTerm(t);
+                }
+                if (bestTerm == null || best <= obj) {
+                    break;
+                }
+                switchTerm(bestTerm);
+                obj = objective();
+            }
+        }
+
+        public Set<TermID> calculate(Ontology graph, AssociationContainer assoc, PopulationSet population,
+            StudySet study)
+        {
+            this.popEnumerator = population.enumerateGOTerms(graph, assoc);
+            this.allTerms = this.popEnumerator.getAllAnnotatedTermsAsList();
+            this.activeGenes = study.getAllGeneNames();
+            for (TermID t : this.allTerms) {
+                for (ByteString g : this.popEnumerator.getAnnotatedGenes(t).totalAnnotated) {
+                    if (!this.activeGenes.contains(g)) {
+                        this.st++;
+                    }
+                }
+            }
+
+            this.p = 0.5;
+            this.q = ((double) this.activeGenes.size()) / population.getGeneCount();
+            while (true) {
+                optimizeForTerms();
+
+                int ag = this.ag.size();
+                int an = this.activeGenes.size() - ag;
+                int sg = this.nsg;
+                int sn = this.st - sg;
+                double pNext = (double) ag / (ag + sg);
+                double qNext = (double) an / (an + sn);
+                if (Double.isNaN(pNext) || Double.isNaN(qNext) || Math.abs(qNext - this.q) < 0.0001
+                    || Math.abs(pNext - this.p) < 0.0001) {
+                    break;
+                }
+                this.p = pNext;
+                this.q = qNext;
+            }
+            return this.activeTerms;
+        }
+    }
+
+    @Test
+    public void testAgainstReference()
+    {
+        InternalOntology internal = new InternalOntology();
+        PopulationSet population = new PopulationSet();
+        population.addGenes(internal.assoc.getAllAnnotatedGenes());
+        GOTermEnumerator enumerator = population.enumerateGOTerms(internal.graph, internal.assoc);
+
+        Random rnd = new Random(11);
+        int active = 0;
+        for (int i = 1; i <= 11; i++) {
+            StudySet study = new StudySet("study");
+            for (ByteString gene : enumerator.getAnnotatedGenes(new TermID(TermID.DEFAULT_PREFIX, i)).totalAnnotated) {
+                if (rnd.nextInt(4) != 0) {
+                    study.addGene(gene, "");
+                }
+            }
+            for (ByteString gene : population) {
+                if (rnd.nextInt(20) == 0) {
+                    study.addGene(gene, "");
+                }
+            }
+
+            Set<TermID> expected = new ReferenceGenGO().calculate(internal.graph, internal.assoc, population, study);
+            study.resetCounterAndEnumerator();
+
+            EnrichedGOTermsResult tft = new TermForTermCalculation().calculateStudySet(internal.graph,
+                internal.assoc, population, study, new None());
+            study.resetCounterAndEnumerator();
+
+            EnrichedGOTermsResult result = new ProbabilisticCalculation().calculateStudySet(internal.graph,
+                internal.assoc, population, study, new None());
+            study.resetCounterAndEnumerator();
+
+            for (AbstractGOTermProperties prop : result) {
+                TermID id = prop.goTerm.getID();
+                if (expected.contains(id)) {
+                    Assert.assertEquals(tft.getGOTermProperties(id).p, prop.p, 0);
+                    active++;
+                } else {
+                    Assert.assertEquals(1, prop.p, 0);
+                    Assert.assertTrue(prop.ignoreAtMTC);
+                }
+            }
+        }
+        Assert.assertTrue(active > 0);
+    }
+
     @Test
     public void testCalculateStudySet()
     {
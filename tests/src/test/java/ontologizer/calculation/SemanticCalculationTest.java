@@ -0,0 +1,328 @@
+package ontologizer.calculation;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ontologizer.go.TermID;
+import ontologizer.internal.InternalOntology;
+import ontologizer.set.StudySet;
+import ontologizer.types.ByteString;
+
+public class SemanticCalculationTest
+{
+    private static double referenceSim(InternalOntology internal, SemanticCalculation calc, ByteString g1,
+        ByteString g2)
+    {
+        double sim = 0;
+        for (TermID t1 : internal.assoc.get(g1).getAssociations()) {
+            for (TermID t2 : internal.assoc.get(g2).getAssociations()) {
+                double p = 1.0;
+                for (TermID t : internal.graph.getSharedParents(t1, t2)) {
+                    p = Math.min(p, calc.p(t));
+                }
+                sim = Math.max(sim, -Math.log(p));
+            }
+        }
+        return sim;
+    }
+
+    private static void checkAgainstReference(long budget)
+    {
+        InternalOntology internal = new InternalOntology();
+        SemanticCalculation calc = new SemanticCalculation(internal.graph, internal.assoc);
+        calc.setCacheMemoryBudget(budget);
+
+        ArrayList<ByteString> genes = new ArrayList<ByteString>(internal.assoc.getAllAnnotatedGenes());
+        int positive = 0;
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < genes.size(); i += 3) {
+                for (int j = 0; j < genes.size(); j += 5) {
+                    double expected = referenceSim(internal, calc, genes.get(i), genes.get(j));
+                    double actual = calc.sim(genes.get(i), genes.get(j));
+                    Assert.assertEquals(expected, actual, 0);
+                    if (actual > 0) {
+                        positive++;
+                    }
+                }
+            }
+        }
+        Assert.assertTrue(positive > 0);
+    }
+
+    @Test
+    public void testDenseCache()
+    {
+        checkAgainstReference(SemanticCalculation.DEFAULT_CACHE_MEMORY_BUDGET);
+    }
+
+    @Test
+    public void testHashedCache()
+    {
+        checkAgainstReference(0);
+    }
+
+    @Test
+    public void testConcurrentHashedCache() throws InterruptedException
+    {
+        final TermSimilarityCache cache = TermSimilarityCache.create(new int[0], 0);
+        final AtomicInteger errors = new AtomicInteger();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final int offset = t;
+            threads[t] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    for (int i = 0; i < 20000; i++) {
+                        int t1 = (i * 7 + offset) % 3000;
+                        int t2 = t1 + i % 50;
+                        double sim = t1 * 0.5 + t2;
+                        double cached = cache.get(t1, t2);
+                        if (!Double.isNaN(cached) && cached != sim) {
+                            errors.incrementAndGet();
+                        }
+                        cache.put(t1, t2, sim);
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        Assert.assertEquals(0, errors.get());
+
+        int found = 0;
+        for (int t1 = 0; t1 < 3000; t1++) {
+            for (int t2 = t1; t2 < t1 + 50; t2++) {
+                double cached = cache.get(t1, t2);
+                if (!Double.isNaN(cached)) {
+                    Assert.assertEquals(t1 * 0.5 + t2, cached, 0);
+                    found++;
+                }
+            }
+        }
+        Assert.assertTrue(found > 0);
+        Assert.assertTrue(Double.isNaN(cache.get(4000, 4001)));
+    }
+
+    @Test
+    public void testConcurrentCalculation()
+    {
+        InternalOntology internal = new InternalOntology();
+        StudySet study = new StudySet("study");
+        for (ByteString gene : internal.assoc.getAllAnnotatedGenes()) {
+            study.addGene(gene, "");
+        }
+        study.addGene(new ByteString("unannotated"), "");
+
+        SemanticCalculation single = new SemanticCalculation(internal.graph, internal.assoc);
+        single.setNumberOfProcessors(1);
+        SemanticResult expected = single.calculate(study);
+
+        SemanticCalculation concurrent = new SemanticCalculation(internal.graph, internal.assoc);
+        concurrent.setNumberOfProcessors(4);
+        concurrent.setCacheMemoryBudget(0);
+        final int[] progress = new int[2];
+        SemanticResult actual = concurrent.calculate(study, new SemanticCalculation.ISemanticCalculationProgress()
+        {
+            @Override
+            public void init(int max)
+            {
+                progress[0] = max;
+            }
+
+            @Override
+            public void update(int update)
+            {
+                progress[1] = update;
+            }
+        });
+
+        Assert.assertEquals(progress[0], progress[1]);
+        int n = expected.matrix.getDimension();
+        Assert.assertEquals(study.getGeneCount(), n);
+        Assert.assertEquals(n, actual.matrix.getDimension());
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                Assert.assertEquals(expected.matrix.get(i, j), actual.matrix.get(i, j), 0);
+                Assert.assertEquals(actual.matrix.get(i, j), actual.matrix.get(j, i), 0);
+            }
+            if (actual.names[i].toString().equals("unannotated")) {
+                for (int j = 0; j < n; j++) {
+                    Assert.assertEquals(0, actual.matrix.get(i, j), 0);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testPackedIndex()
+    {
+        int n = 7;
+        PackedSimilarityMatrix matrix = new PackedSimilarityMatrix(n);
+        long k = 0;
+        for (int i = 0; i < n; i++) {
+            for (int j = i; j < n; j++) {
+                Assert.assertEquals(k++, SimilarityMatrix.index(n, i, j));
+                matrix.set(j, i, i * 10 + j);
+            }
+        }
+        Assert.assertEquals(SimilarityMatrix.size(n), k);
+        Assert.assertEquals(36, matrix.get(6, 3), 0);
+        Assert.assertEquals(36, matrix.get(3, 6), 0);
+    }
+
+    @Test
+    public void testMappedCalculation() throws IOException
+    {
+        InternalOntology internal = new InternalOntology();
+        StudySet study = new StudySet("study");
+        for (ByteString gene : internal.assoc.getAllAnnotatedGenes()) {
+            study.addGene(gene, "");
+        }
+
+        SemanticCalculation calc = new SemanticCalculation(internal.graph, internal.assoc);
+        SemanticResult expected = calc.calculate(study);
+        final int n = expected.matrix.getDimension();
+
+        for (int dataType : new int[] { MappedSimilarityMatrix.DOUBLE, MappedSimilarityMatrix.FLOAT }) {
+            File file = File.createTempFile("ontologizer", ".sim");
+            file.deleteOnExit();
+
+            SemanticResult written = calc.calculate(study, null, file, dataType);
+            SemanticResult read = SemanticResult.open(file);
+            Assert.assertArrayEquals(expected.names, read.names);
+            Assert.assertEquals(n, read.matrix.getDimension());
+
+            double[] row = new double[n];
+            for (int i = 0; i < n; i++) {
+                read.matrix.getRow(i, row);
+                for (int j = 0; j < n; j++) {
+                    double sim = expected.matrix.get(i, j);
+                    if (dataType == MappedSimilarityMatrix.FLOAT) {
+                        sim = (float) sim;
+                    }
+                    Assert.assertEquals(sim, written.matrix.get(i, j), 0);
+                    Assert.assertEquals(sim, read.matrix.get(j, i), 0);
+                    Assert.assertEquals(sim, row[j], 0);
+                }
+            }
+
+            final SimilarityMatrix matrix = read.matrix;
+            final int[] rows = new int[1];
+            matrix.visitRows(new SimilarityMatrix.IRowVisitor()
+            {
+                @Override
+                public boolean visited(int row, double[] values)
+                {
+                    Assert.assertEquals(rows[0]++, row);
+                    for (int j = row; j < n; j++) {
+                        Assert.assertEquals(matrix.get(row, j), values[j], 0);
+                    }
+                    return true;
+                }
+            });
+            Assert.assertEquals(n, rows[0]);
+
+            try {
+                read.matrix.set(0, 0, 1);
+                Assert.fail();
+            } catch (UnsupportedOperationException e) {
+            }
+
+            written.close();
+            read.close();
+            try {
+                read.matrix.get(0, 0);
+                Assert.fail();
+            } catch (IllegalStateException e) {
+            }
+
+            /* Corrupt the length of the first name, then the dimension */
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.seek(16);
+                raf.writeInt(-1);
+            }
+            assertCorrupt(file);
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.seek(16);
+                raf.writeInt(Integer.MAX_VALUE);
+            }
+            assertCorrupt(file);
+            try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+                raf.seek(12);
+                raf.writeInt(Integer.MAX_VALUE);
+            }
+            assertCorrupt(file);
+            Assert.assertTrue(file.delete());
+        }
+    }
+
+    private static void assertCorrupt(File file)
+    {
+        try {
+            SemanticResult.open(file);
+            Assert.fail();
+        } catch (IOException e) {
+        }
+    }
+
+    @Test
+    public void testMostSimilarGenes()
+    {
+        InternalOntology internal = new InternalOntology();
+        SemanticCalculation calc = new SemanticCalculation(internal.graph, internal.assoc);
+        calc.setNumberOfProcessors(1);
+        SemanticCalculation concurrent = new SemanticCalculation(internal.graph, internal.assoc);
+        concurrent.setNumberOfProcessors(4);
+
+        ArrayList<ByteString> genes = new ArrayList<ByteString>(internal.assoc.getAllAnnotatedGenes());
+        int k = 5;
+        Map<ByteString, List<GeneSimilarity>> batch = concurrent.getMostSimilarGenes(genes, k);
+        Assert.assertEquals(genes, new ArrayList<ByteString>(batch.keySet()));
+
+        for (ByteString query : genes) {
+            ArrayList<Double> expected = new ArrayList<Double>();
+            for (ByteString gene : genes) {
+                double sim = calc.sim(query, gene);
+                if (!gene.equals(query) && sim > 0) {
+                    expected.add(sim);
+                }
+            }
+            Collections.sort(expected, Collections.reverseOrder());
+
+            List<GeneSimilarity> result = calc.getMostSimilarGenes(query, k);
+            Assert.assertEquals(Math.min(k, expected.size()), result.size());
+            HashSet<ByteString> found = new HashSet<ByteString>();
+            for (int i = 0; i < result.size(); i++) {
+                GeneSimilarity gs = result.get(i);
+                Assert.assertEquals(expected.get(i), gs.similarity, 0);
+                Assert.assertEquals(calc.sim(query, gs.gene), gs.similarity, 0);
+                Assert.assertTrue(found.add(gs.gene));
+            }
+            Assert.assertFalse(found.contains(query));
+
+            List<GeneSimilarity> parallel = concurrent.getMostSimilarGenes(query, k);
+            Assert.assertEquals(result.size(), parallel.size());
+            Assert.assertEquals(result.size(), batch.get(query).size());
+            for (int i = 0; i < result.size(); i++) {
+                Assert.assertEquals(result.get(i).gene, parallel.get(i).gene);
+                Assert.assertEquals(result.get(i).gene, batch.get(query).get(i).gene);
+            }
+        }
+
+        Assert.assertEquals(0, calc.getMostSimilarGenes(new ByteString("unannotated"), k).size());
+    }
+}
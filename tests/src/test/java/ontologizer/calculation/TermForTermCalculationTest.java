@@ -0,0 +1,163 @@
+package ontologizer.calculation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ontologizer.enumeration.GOTermCounter;
+import ontologizer.enumeration.GOTermEnumerator;
+import ontologizer.go.TermID;
+import ontologizer.internal.InternalOntology;
+import ontologizer.set.PopulationSet;
+import ontologizer.set.StudySet;
+import ontologizer.statistics.Bonferroni;
+import ontologizer.types.ByteString;
+
+public class TermForTermCalculationTest
+{
+    private static StudySet copy(StudySet study)
+    {
+        StudySet copy = new StudySet("copy");
+        for (ByteString gene : study) {
+            copy.addGene(gene, "");
+        }
+        return copy;
+    }
+
+    private static void assertSameCounts(InternalOntology internal, StudySet study, GOTermEnumerator enumerator,
+        GOTermCounter counter)
+    {
+        StudySet fresh = copy(study);
+        GOTermEnumerator expectedEnumerator = fresh.enumerateGOTerms(internal.graph, internal.assoc);
+        GOTermCounter expectedCounter = fresh.countGOTerms(internal.graph, internal.assoc);
+
+        Assert.assertEquals(expectedEnumerator.getAllAnnotatedTermsAsSet(), enumerator.getAllAnnotatedTermsAsSet());
+        for (TermID t : expectedEnumerator) {
+            List<ByteString> expectedGenes = expectedEnumerator.getAnnotatedGenes(t).totalAnnotated;
+            List<ByteString> genes = enumerator.getAnnotatedGenes(t).totalAnnotated;
+            Assert.assertEquals(expectedGenes.size(), genes.size());
+            Assert.assertEquals(new HashSet<ByteString>(expectedGenes), new HashSet<ByteString>(genes));
+            Assert.assertEquals(expectedEnumerator.getAnnotatedGenes(t).directAnnotatedCount(),
+                enumerator.getAnnotatedGenes(t).directAnnotatedCount());
+        }
+
+        Assert.assertEquals(expectedCounter.getTotalNumberOfAnnotatedTerms(), counter.getTotalNumberOfAnnotatedTerms());
+        for (TermID t : expectedCounter) {
+            Assert.assertEquals(expectedCounter.getCount(t), counter.getCount(t));
+            Assert.assertEquals(expectedCounter.getDirectCount(t), counter.getDirectCount(t));
+        }
+    }
+
+    @Test
+    public void testIncrementalCounts()
+    {
+        InternalOntology internal = new InternalOntology();
+        ArrayList<ByteString> genes = new ArrayList<ByteString>(internal.assoc.getAllAnnotatedGenes());
+
+        Random rnd = new Random(11);
+        StudySet study = new StudySet("study");
+        for (ByteString gene : genes) {
+            if (rnd.nextInt(4) == 0) {
+                study.addGene(gene, "");
+            }
+        }
+        GOTermEnumerator enumerator = study.enumerateGOTerms(internal.graph, internal.assoc);
+        GOTermCounter counter = study.countGOTerms(internal.graph, internal.assoc);
+
+        for (int i = 0; i < 200; i++) {
+            ByteString gene = genes.get(rnd.nextInt(genes.size()));
+            switch (rnd.nextInt(3)) {
+                case 0:
+                    study.addGene(gene, "");
+                    break;
+                case 1:
+                    study.removeGenes(Arrays.asList(gene));
+                    break;
+                default:
+                    study.addGenes(Arrays.asList(gene, genes.get(rnd.nextInt(genes.size()))));
+                    break;
+            }
+
+            /* The cached instances are maintained in place */
+            Assert.assertSame(enumerator, study.enumerateGOTerms(internal.graph, internal.assoc));
+            Assert.assertSame(counter, study.countGOTerms(internal.graph, internal.assoc));
+            if (i % 10 == 0) {
+                assertSameCounts(internal, study, enumerator, counter);
+            }
+        }
+
+        /* Remove all genes again */
+        study.removeGenes(study.getAllGeneNames());
+        Assert.assertEquals(0, enumerator.getTotalNumberOfAnnotatedTerms());
+        Assert.assertEquals(0, counter.getTotalNumberOfAnnotatedTerms());
+    }
+
+    @Test
+    public void testIncrementalUpdate()
+    {
+        InternalOntology internal = new InternalOntology();
+        PopulationSet population = new PopulationSet();
+        population.addGenes(internal.assoc.getAllAnnotatedGenes());
+        ArrayList<ByteString> genes = new ArrayList<ByteString>(internal.assoc.getAllAnnotatedGenes());
+
+        Random rnd = new Random(13);
+        StudySet study = new StudySet("study");
+        for (ByteString gene : genes) {
+            if (rnd.nextInt(5) == 0) {
+                study.addGene(gene, "");
+            }
+        }
+
+        TermForTermCalculation calculation = new TermForTermCalculation();
+        EnrichedGOTermsResult result =
+            calculation.calculateStudySet(internal.graph, internal.assoc, population, study, new Bonferroni());
+
+        int significant = 0;
+        for (int i = 0; i < 20; i++) {
+            /* Toggle a gene, and exchange two genes every other step to keep the study set size */
+            ByteString gene = genes.get(rnd.nextInt(genes.size()));
+            ArrayList<ByteString> toggled = new ArrayList<ByteString>();
+            toggled.add(gene);
+            if ((i & 1) != 0) {
+                ByteString other = genes.get(rnd.nextInt(genes.size()));
+                if (study.contains(other) != study.contains(gene)) {
+                    toggled.add(other);
+                }
+            }
+            for (ByteString g : toggled) {
+                if (study.contains(g)) {
+                    study.removeGenes(Arrays.asList(g));
+                } else {
+                    study.addGene(g, "");
+                }
+            }
+
+            result = calculation.updateStudySet(result, internal.graph, internal.assoc, population, study,
+                new Bonferroni());
+            EnrichedGOTermsResult expected = new TermForTermCalculation().calculateStudySet(internal.graph,
+                internal.assoc, population, copy(study), new Bonferroni());
+
+            Assert.assertEquals(expected.getSize(), result.getSize());
+            Assert.assertEquals(expected.getStudyGeneCount(), result.getStudyGeneCount());
+            for (AbstractGOTermProperties e : expected) {
+                TermForTermGOTermProperties a =
+                    (TermForTermGOTermProperties) result.getGOTermProperties(e.goTerm.getID());
+                Assert.assertNotNull(a);
+                Assert.assertEquals(e.annotatedStudyGenes, a.annotatedStudyGenes);
+                Assert.assertEquals(e.annotatedPopulationGenes, a.annotatedPopulationGenes);
+                Assert.assertEquals(e.p, a.p, 0);
+                Assert.assertEquals(e.p_adjusted, a.p_adjusted, 0);
+                Assert.assertEquals(e.p_min, a.p_min, 0);
+                if (a.p < 1) {
+                    significant++;
+                }
+            }
+        }
+        Assert.assertTrue(significant > 0);
+    }
+}
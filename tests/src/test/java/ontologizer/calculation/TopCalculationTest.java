@@ -0,0 +1,244 @@
+package ontologizer.calculation;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ontologizer.association.Association;
+import ontologizer.association.AssociationContainer;
+import ontologizer.enumeration.GOTermEnumerator;
+import ontologizer.enumeration.GOTermEnumerator.GOTermAnnotatedGenes;
+import ontologizer.go.Ontology;
+import ontologizer.go.ParentTermID;
+import ontologizer.go.Term;
+import ontologizer.go.TermContainer;
+import ontologizer.go.TermID;
+import ontologizer.go.TermRelation;
+import ontologizer.internal.InternalOntology;
+import ontologizer.set.PopulationSet;
+import ontologizer.set.StudySet;
+import ontologizer.statistics.Hypergeometric;
+import ontologizer.statistics.None;
+import ontologizer.types.ByteString;
+
+public class TopCalculationTest
+{
+    /**
+     * A straightforward implementation of elim that keeps the marked genes in hash sets.
+     */
+    private static class ReferenceElim
+    {
+        private Ontology graph;
+
+        private GOTermEnumerator populationTermEnumerator;
+
+        private GOTermEnumerator studyTermEnumerator;
+
+        private int popGeneCount;
+
+        private int studyGeneCount;
+
+        private Hypergeometric hyperg = new Hypergeometric();
+
+        private HashMap<TermID, HashSet<ByteString>> markedGenesMap = new HashMap<TermID, HashSet<ByteString>>();
+
+        private ArrayList<TopGOTermProperties> props = new ArrayList<TopGOTermProperties>();
+
+        private HashSet<ByteString> calculateTerm(TermID term)
+        {
+            if (this.markedGenesMap.containsKey(term)) {
+                return this.markedGenesMap.get(term);
+            }
+
+            HashSet<ByteString> markedGenes = new HashSet<ByteString>();
+            Set<TermID> d = this.graph.getTermChildren(term);
+            if (d != null) {
+                for (TermID c : d) {
+                    markedGenes.addAll(calculateTerm(c));
+                }
+            }
+
+            GOTermAnnotatedGenes studyAnnotated = this.studyTermEnumerator.getAnnotatedGenes(term);
+            GOTermAnnotatedGenes popAnnotated = this.populationTermEnumerator.getAnnotatedGenes(term);
+
+            int studyCount = 0;
+            for (ByteString gene : studyAnnotated.totalAnnotated) {
+                if (!markedGenes.contains(gene)) {
+                    studyCount++;
+                }
+            }
+            int popCount = 0;
+            for (ByteString gene : popAnnotated.totalAnnotated) {
+                if (!markedGenes.contains(gene)) {
+                    popCount++;
+                }
+            }
+            if (popAnnotated.totalAnnotated.size() == 0) {
+                this.markedGenesMap.put(term, markedGenes);
+                return markedGenes;
+            }
+
+            TopGOTermProperties myP = new TopGOTermProperties();
+            myP.goTerm = this.graph.getTerm(term);
+            myP.annotatedStudyGenes = studyAnnotated.totalAnnotatedCount();
+            myP.annotatedPopulationGenes = popAnnotated.totalAnnotatedCount();
+            if (studyCount != 0) {
+                myP.p = this.hyperg.phypergeometric(this.popGeneCount, (double) popCount / (double) this.popGeneCount,
+                    this.studyGeneCount, studyCount);
+                myP.p_min = this.hyperg.dhyper(popCount, this.popGeneCount, popCount, popCount);
+                if (myP.p < TopCalculation.SIGNIFICANCE_LEVEL) {
+                    markedGenes.addAll(studyAnnotated.totalAnnotated);
+                }
+            } else {
+                myP.p = 1.0;
+                myP.ignoreAtMTC = true;
+                myP.p_min = 1.0;
+            }
+            this.props.add(myP);
+            this.markedGenesMap.put(term, markedGenes);
+            return markedGenes;
+        }
+
+        public ArrayList<TopGOTermProperties> calculate(Ontology graph, AssociationContainer assoc,
+            PopulationSet population, StudySet study)
+        {
+            this.graph = graph;
+            this.populationTermEnumerator = population.enumerateGOTerms(graph, assoc);
+            this.studyTermEnumerator = study.enumerateGOTerms(graph, assoc);
+            this.popGeneCount = population.getGeneCount();
+            this.studyGeneCount = study.getGeneCount();
+            calculateTerm(graph.getRootTerm().getID());
+            return this.props;
+        }
+    }
+
+    /**
+     * Compares the results of the calculation with the results of the reference.
+     *
+     * @param numberOfProcessors the number of threads that process the independent parts of the ontology.
+     * @return the number of significant terms.
+     */
+    private static int check(Ontology graph, AssociationContainer assoc, PopulationSet population, StudySet study,
+        int numberOfProcessors)
+    {
+        ArrayList<TopGOTermProperties> expected = new ArrayList<TopGOTermProperties>();
+        for (TopGOTermProperties prop : new ReferenceElim().calculate(graph, assoc, population, study)) {
+            if (prop.annotatedStudyGenes != 0) {
+                expected.add(prop);
+            }
+        }
+
+        TopCalculation calculation = new TopCalculation();
+        calculation.setNumberOfProcessors(numberOfProcessors);
+        EnrichedGOTermsResult result = calculation.calculateStudySet(graph, assoc, population, study, new None());
+        study.resetCounterAndEnumerator();
+
+        int i = 0;
+        int significant = 0;
+        for (AbstractGOTermProperties actual : result) {
+            TopGOTermProperties e = expected.get(i++);
+            Assert.assertEquals(e.goTerm.getID(), actual.goTerm.getID());
+            Assert.assertEquals(e.annotatedStudyGenes, actual.annotatedStudyGenes);
+            Assert.assertEquals(e.annotatedPopulationGenes, actual.annotatedPopulationGenes);
+            Assert.assertEquals(e.p, actual.p, 0);
+            Assert.assertEquals(e.p_min, actual.p_min, 0);
+            Assert.assertEquals(e.ignoreAtMTC, actual.ignoreAtMTC);
+            if (e.p < TopCalculation.SIGNIFICANCE_LEVEL) {
+                significant++;
+            }
+        }
+        Assert.assertEquals(expected.size(), i);
+        return significant;
+    }
+
+    /**
+     * Creates a study set that is enriched in the genes annotated to the given term.
+     */
+    private static StudySet createStudySet(Ontology graph, AssociationContainer assoc, PopulationSet population,
+        TermID term, Random rnd)
+    {
+        GOTermEnumerator enumerator = population.enumerateGOTerms(graph, assoc);
+        StudySet study = new StudySet("study");
+        for (ByteString gene : enumerator.getAnnotatedGenes(term).totalAnnotated) {
+            if (rnd.nextInt(3) != 0) {
+                study.addGene(gene, "");
+            }
+        }
+        for (ByteString gene : population) {
+            if (rnd.nextInt(20) == 0) {
+                study.addGene(gene, "");
+            }
+        }
+        return study;
+    }
+
+    @Test
+    public void testInternalOntology()
+    {
+        InternalOntology internal = new InternalOntology();
+        PopulationSet population = new PopulationSet();
+        population.addGenes(internal.assoc.getAllAnnotatedGenes());
+
+        Random rnd = new Random(2);
+        int significant = 0;
+        for (int i = 1; i <= 11; i++) {
+            StudySet study = createStudySet(internal.graph, internal.assoc, population,
+                new TermID(TermID.DEFAULT_PREFIX, i), rnd);
+            significant += check(internal.graph, internal.assoc, population, study, 2);
+        }
+        Assert.assertTrue(significant > 0);
+    }
+
+    @Test
+    public void testIndependentParts()
+    {
+        /* Three name spaces with random DAGs, which are processed concurrently */
+        Random rnd = new Random(3);
+        HashSet<Term> terms = new HashSet<Term>();
+        ArrayList<ArrayList<Term>> namespaces = new ArrayList<ArrayList<Term>>();
+        int id = 1;
+        for (int n = 0; n < 3; n++) {
+            ArrayList<Term> namespace = new ArrayList<Term>();
+            namespace.add(new Term(new TermID(TermID.DEFAULT_PREFIX, id++), "root" + n));
+            for (int i = 1; i < 60; i++) {
+                ArrayList<ParentTermID> parents = new ArrayList<ParentTermID>();
+                int numberOfParents = 1 + rnd.nextInt(Math.min(i, 3));
+                HashSet<TermID> parentIDs = new HashSet<TermID>();
+                for (int j = 0; j < numberOfParents; j++) {
+                    TermID parent = namespace.get(rnd.nextInt(i)).getID();
+                    if (parentIDs.add(parent)) {
+                        parents.add(new ParentTermID(parent, TermRelation.IS_A));
+                    }
+                }
+                namespace.add(new Term(new TermID(TermID.DEFAULT_PREFIX, id++), "term" + id, null, parents));
+            }
+            terms.addAll(namespace);
+            namespaces.add(namespace);
+        }
+        Ontology graph = new Ontology(new TermContainer(terms, "", ""));
+
+        AssociationContainer assoc = new AssociationContainer();
+        PopulationSet population = new PopulationSet();
+        for (int g = 0; g < 2000; g++) {
+            ByteString gene = new ByteString("gene" + g);
+            population.addGene(gene, "");
+            for (int j = 0; j < 3; j++) {
+                Term term = namespaces.get(j).get(rnd.nextInt(60));
+                assoc.addAssociation(new Association(gene, term.getID()));
+            }
+        }
+
+        int significant = 0;
+        for (int i = 0; i < 5; i++) {
+            Term term = namespaces.get(i % 3).get(30 + rnd.nextInt(30));
+            StudySet study = createStudySet(graph, assoc, population, term.getID(), rnd);
+            significant += check(graph, assoc, population, study, 1 + i % 3);
+        }
+        Assert.assertTrue(significant > 0);
+    }
+}
@@ -0,0 +1,212 @@
+package ontologizer.calculation;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ontologizer.association.AssociationContainer;
+import ontologizer.enumeration.GOTermEnumerator;
+import ontologizer.go.Ontology;
+import ontologizer.go.Ontology.GOLevels;
+import ontologizer.go.TermID;
+import ontologizer.internal.InternalOntology;
+import ontologizer.set.PopulationSet;
+import ontologizer.set.StudySet;
+import ontologizer.statistics.Hypergeometric;
+import ontologizer.statistics.None;
+import ontologizer.types.ByteString;
+
+public class TopologyWeightedCalculationTest
+{
+    /**
+     * A straightforward implementation of the weighted algorithm that keeps the weights in hash maps and sums them up
+     * for every test.
+     */
+    private static class ReferenceWeighted
+    {
+        private Ontology graph;
+
+        private PopulationSet populationSet;
+
+        private StudySet studySet;
+
+        private GOTermEnumerator populationTermEnumerator;
+
+        private GOTermEnumerator studyTermEnumerator;
+
+        private Hypergeometric hyperg = new Hypergeometric();
+
+        private HashMap<TermID, HashMap<ByteString, Double>> weights =
+            new HashMap<TermID, HashMap<ByteString, Double>>();
+
+        private HashMap<TermID, Double> p = new HashMap<TermID, Double>();
+
+        private double getWeight(TermID term, ByteString gene)
+        {
+            HashMap<ByteString, Double> w = this.weights.get(term);
+            if (w == null || !w.containsKey(gene)) {
+                return 1;
+            }
+            return w.get(gene);
+        }
+
+        private void setWeight(TermID term, ByteString gene, double w)
+        {
+            if (!this.weights.containsKey(term)) {
+                this.weights.put(term, new HashMap<ByteString, Double>());
+            }
+            this.weights.get(term).put(gene, w);
+        }
+
+        private double wFisher(TermID u)
+        {
+            double popAnnot = 0;
+            double studyAnnot = 0;
+            double pop = 0;
+            double study = 0;
+            for (ByteString gene : this.populationTermEnumerator.getAnnotatedGenes(u).totalAnnotated) {
+                popAnnot += getWeight(u, gene);
+            }
+            for (ByteString gene : this.studyTermEnumerator.getAnnotatedGenes(u).totalAnnotated) {
+                studyAnnot += getWeight(u, gene);
+            }
+            for (ByteString gene : this.populationSet) {
+                pop += getWeight(u, gene);
+            }
+            for (ByteString gene : this.studySet) {
+                study += getWeight(u, gene);
+            }
+
+            double pValue = 1;
+            if (studyAnnot != 0) {
+                pValue = this.hyperg.phypergeometric((int) Math.ceil(pop), Math.ceil(popAnnot) / Math.ceil(pop),
+                    (int) study, (int) studyAnnot);
+            }
+            this.p.put(u, pValue);
+            return pValue;
+        }
+
+        private void computeTermSig(TermID u, Set<TermID> children)
+        {
+            if (this.graph.isRootTerm(u)) {
+                return;
+            }
+
+            double pu = wFisher(u);
+            if (children.size() == 0) {
+                return;
+            }
+
+            HashMap<TermID, Double> ratios = new HashMap<TermID, Double>();
+            HashSet<TermID> sigChildren = new HashSet<TermID>();
+            for (TermID child : children) {
+                double w = pu / this.p.get(child);
+                ratios.put(child, w);
+                if (w > 1) {
+                    sigChildren.add(child);
+                }
+            }
+
+            if (sigChildren.size() == 0) {
+                for (TermID child : children) {
+                    for (ByteString gene : this.populationTermEnumerator.getAnnotatedGenes(u).totalAnnotated) {
+                        setWeight(child, gene, getWeight(child, gene) * ratios.get(child));
+                    }
+                    wFisher(child);
+                }
+                return;
+            }
+
+            for (TermID child : sigChildren) {
+                Set<TermID> upper = this.graph.getTermsOfInducedGraph(this.graph.getRootTerm().getID(), u);
+                upper.remove(u);
+                upper.remove(this.graph.getRootTerm().getID());
+                for (TermID up : upper) {
+                    for (ByteString gene : this.populationTermEnumerator.getAnnotatedGenes(up).totalAnnotated) {
+                        setWeight(up, gene, getWeight(up, gene) / ratios.get(child));
+                    }
+                    if (!this.p.containsKey(up)) {
+                        this.p.put(up, 0.0);
+                    }
+                }
+            }
+        }
+
+        public HashMap<TermID, Double> calculate(Ontology graph, AssociationContainer assoc, PopulationSet population,
+            StudySet study)
+        {
+            this.graph = graph;
+            this.populationSet = population;
+            this.studySet = study;
+            this.populationTermEnumerator = population.enumerateGOTerms(graph, assoc);
+            this.studyTermEnumerator = study.enumerateGOTerms(graph, assoc);
+
+            Set<TermID> allAnnotatedTerms = this.studyTermEnumerator.getAllAnnotatedTermsAsSet();
+            GOLevels levels = graph.getGOLevels(allAnnotatedTerms);
+            for (int i = levels.getMaxLevel(); i >= 0; i--) {
+                for (TermID t : levels.getLevelTermSet(i)) {
+                    HashSet<TermID> annotatedChildren = new HashSet<TermID>();
+                    for (TermID d : graph.getTermChildren(t)) {
+                        if (allAnnotatedTerms.contains(d)) {
+                            annotatedChildren.add(d);
+                        }
+                    }
+                    computeTermSig(t, annotatedChildren);
+                }
+            }
+            return this.p;
+        }
+    }
+
+    @Test
+    public void testAgainstReference()
+    {
+        InternalOntology internal = new InternalOntology();
+        PopulationSet population = new PopulationSet();
+        population.addGenes(internal.assoc.getAllAnnotatedGenes());
+        GOTermEnumerator enumerator = population.enumerateGOTerms(internal.graph, internal.assoc);
+
+        Random rnd = new Random(7);
+        int significant = 0;
+        for (int i = 1; i <= 11; i++) {
+            StudySet study = new StudySet("study");
+            for (ByteString gene : enumerator.getAnnotatedGenes(new TermID(TermID.DEFAULT_PREFIX, i)).totalAnnotated) {
+                if (rnd.nextInt(3) != 0) {
+                    study.addGene(gene, "");
+                }
+            }
+            for (ByteString gene : population) {
+                if (rnd.nextInt(10) == 0) {
+                    study.addGene(gene, "");
+                }
+            }
+            /* Genes outside of the population keep their weight */
+            study.addGene(new ByteString("not-in-population"), "");
+
+            HashMap<TermID, Double> expected =
+                new ReferenceWeighted().calculate(internal.graph, internal.assoc, population, study);
+            study.resetCounterAndEnumerator();
+
+            EnrichedGOTermsResult result = new TopologyWeightedCalculation().calculateStudySet(internal.graph,
+                internal.assoc, population, study, new None());
+            study.resetCounterAndEnumerator();
+
+            int terms = 0;
+            for (AbstractGOTermProperties prop : result) {
+                Double e = expected.get(prop.goTerm.getID());
+                Assert.assertNotNull(e);
+                Assert.assertEquals(e, prop.p, e * 1e-9);
+                if (prop.p > 0 && prop.p < 1) {
+                    significant++;
+                }
+                terms++;
+            }
+            Assert.assertEquals(expected.size(), terms);
+        }
+        Assert.assertTrue(significant > 0);
+    }
+}
@@ -40,4 +40,41 @@ public void testPhyper()
         // drawing more white than available in total
         Assert.assertTrue(this.hyper.phyper(10, 8, 5, 12, false) == 0);
     }
+
+    @Test
+    public void testLogfact()
+    {
+        Assert.assertEquals(0, this.hyper.logfact(0), 0.0);
+        Assert.assertEquals(0, this.hyper.logfact(1), 0.0);
+        Assert.assertEquals(Math.log(120), this.hyper.logfact(5), 1e-12);
+
+        /* Values beyond the initial table */
+        double lf = this.hyper.logfact(100000);
+        Assert.assertEquals(lf + Math.log(100001), this.hyper.logfact(100001), 1e-6);
+
+        /* Values beyond the maximal table size are calculated by lgamma, which continues the table seamlessly */
+        int max = 1 << 18;
+        Assert.assertEquals(this.hyper.logfact(max - 1) + Math.log(max), this.hyper.logfact(max), 1e-6);
+        int big = 1 << 25;
+        Assert.assertEquals(this.hyper.logfact(big - 1) + Math.log(big), this.hyper.logfact(big), 1e-3);
+    }
+
+    @Test
+    public void testMemoization()
+    {
+        Hypergeometric uncached = new Hypergeometric(0);
+        Hypergeometric cached = new Hypergeometric(16);
+
+        /* Query more tuples than the cache can hold, twice */
+        for (int round = 0; round < 2; round++) {
+            for (int M = 1; M < 60; M += 3) {
+                for (int k = 0; k < 12; k++) {
+                    Assert.assertTrue(uncached.phypergeometric(1526, (double) M / 1526, 190, k) == cached
+                        .phypergeometric(1526, (double) M / 1526, 190, k));
+                    Assert.assertTrue(uncached.phyper(k, 1526, M, 190, false) == cached.phyper(k, 1526, M, 190, false));
+                    Assert.assertTrue(uncached.phyper(k, 1526, M, 190, true) == cached.phyper(k, 1526, M, 190, true));
+                }
+            }
+        }
+    }
 }
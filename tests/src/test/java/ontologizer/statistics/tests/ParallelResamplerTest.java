@@ -0,0 +1,138 @@
+package ontologizer.statistics.tests;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ontologizer.statistics.IRandomPValueCalculation;
+import ontologizer.statistics.ParallelResampler;
+import ontologizer.statistics.PValue;
+import ontologizer.statistics.WestfallYoungStepDown;
+import ontologizer.statistics.WestfallYoungStepDownCached;
+
+public class ParallelResamplerTest
+{
+    private static final int M = 20;
+
+    /**
+     * A p value calculation whose random p values are drawn uniformly.
+     */
+    private static class UniformCalculation implements IRandomPValueCalculation
+    {
+        @Override
+        public PValue[] calculateRawPValues()
+        {
+            PValue[] p = new PValue[M];
+            for (int i = 0; i < M; i++) {
+                p[i] = new PValue();
+                p[i].p = (i + 1) / (double) (M * 10);
+            }
+            return p;
+        }
+
+        @Override
+        public PValue[] calculateRandomPValues()
+        {
+            return calculateRandomPValues(new Random());
+        }
+
+        @Override
+        public PValue[] calculateRandomPValues(Random rnd)
+        {
+            PValue[] p = new PValue[M];
+            for (int i = 0; i < M; i++) {
+                p[i] = new PValue();
+                p[i].p = rnd.nextDouble();
+            }
+            return p;
+        }
+
+        @Override
+        public int currentStudySetSize()
+        {
+            return M;
+        }
+    }
+
+    private static List<Double> sample(int threads, long seed, int steps)
+    {
+        final List<Double> sampled = new ArrayList<Double>();
+        final int[] lastStep = new int[] { -1 };
+
+        new ParallelResampler(threads, seed).sample(new UniformCalculation(), steps,
+            new ParallelResampler.ISampleConsumer()
+            {
+                @Override
+                public void consume(int step, PValue[] randomP)
+                {
+                    Assert.assertEquals(lastStep[0] + 1, step);
+                    lastStep[0] = step;
+                    for (PValue p : randomP) {
+                        sampled.add(p.p);
+                    }
+                }
+            }, null);
+
+        Assert.assertEquals(steps - 1, lastStep[0]);
+        return sampled;
+    }
+
+    @Test
+    public void testReproducibleAcrossThreads()
+    {
+        List<Double> sequential = sample(1, 42, 200);
+        List<Double> parallel = sample(4, 42, 200);
+        Assert.assertEquals(sequential, parallel);
+
+        List<Double> otherSeed = sample(4, 43, 200);
+        Assert.assertFalse(sequential.equals(otherSeed));
+    }
+
+    @Test
+    public void testWestfallYoungReproducible()
+    {
+        double[][] adjusted = new double[2][];
+        int[] threads = new int[] { 1, 3 };
+
+        for (int t = 0; t < threads.length; t++) {
+            WestfallYoungStepDown wy = new WestfallYoungStepDown();
+            wy.setNumberOfResamplingSteps(100);
+            wy.setNumberOfThreads(threads[t]);
+            wy.setSeed(7L);
+
+            PValue[] p = wy.adjustPValues(new UniformCalculation());
+            adjusted[t] = new double[p.length];
+            for (int i = 0; i < p.length; i++) {
+                adjusted[t][i] = p[i].p_adjusted;
+            }
+        }
+        Assert.assertArrayEquals(adjusted[0], adjusted[1], 0);
+    }
+
+    @Test
+    public void testCachedMatchesUncached()
+    {
+        WestfallYoungStepDown wy = new WestfallYoungStepDown();
+        wy.setNumberOfResamplingSteps(100);
+        wy.setSeed(11L);
+
+        WestfallYoungStepDownCached wyc = new WestfallYoungStepDownCached();
+        wyc.setNumberOfResamplingSteps(100);
+        wyc.setSeed(11L);
+
+        PValue[] p = wy.adjustPValues(new UniformCalculation());
+        PValue[] pc = wyc.adjustPValues(new UniformCalculation());
+        for (int i = 0; i < p.length; i++) {
+            Assert.assertEquals(p[i].p_adjusted, pc[i].p_adjusted, 0);
+        }
+
+        /* Second call is served from the cache */
+        pc = wyc.adjustPValues(new UniformCalculation());
+        for (int i = 0; i < p.length; i++) {
+            Assert.assertEquals(p[i].p_adjusted, pc[i].p_adjusted, 0);
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package ontologizer.statistics.tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Random;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import ontologizer.statistics.PValue;
+import ontologizer.statistics.PackedPValueSetStore;
+import ontologizer.statistics.ResamplingCache;
+
+public class ResamplingCacheTest
+{
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException
+    {
+        this.dir = File.createTempFile("resampling", "");
+        this.dir.delete();
+        this.dir.mkdirs();
+    }
+
+    @After
+    public void tearDown()
+    {
+        File[] files = this.dir.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        this.dir.delete();
+    }
+
+    private static PackedPValueSetStore createStore(int samples, int setSize, long seed)
+    {
+        Random rnd = new Random(seed);
+        PackedPValueSetStore store = new PackedPValueSetStore(samples, setSize);
+        for (int b = 0; b < samples; b++) {
+            PValue[] p = new PValue[setSize];
+            for (int i = 0; i < setSize; i++) {
+                p[i] = new PValue();
+                p[i].p = rnd.nextDouble();
+                p[i].ignoreAtMTC = rnd.nextInt(4) == 0;
+            }
+            store.add(p);
+        }
+        return store;
+    }
+
+    @Test
+    public void testStoreAndLoad() throws IOException
+    {
+        ResamplingCache cache = new ResamplingCache(this.dir, 1 << 20);
+        String key = ResamplingCache.createKey("context", "WY", 10, 50);
+
+        Assert.assertNull(cache.load(key, 13, 50, false));
+
+        PackedPValueSetStore store = createStore(50, 13, 1);
+        cache.store(key, store);
+
+        PackedPValueSetStore loaded = cache.load(key, 13, 50, false);
+        Assert.assertNotNull(loaded);
+        Assert.assertTrue(loaded.isMapped());
+        Assert.assertEquals(50, loaded.size());
+        for (int b = 0; b < 50; b++) {
+            Assert.assertArrayEquals(store.getSample(b, null), loaded.getSample(b, null), 0);
+        }
+        loaded.close();
+
+        /* Different dimensions are rejected */
+        Assert.assertNull(cache.load(key, 13, 49, false));
+    }
+
+    @Test
+    public void testCorruptedEntry() throws IOException
+    {
+        ResamplingCache cache = new ResamplingCache(this.dir, 1 << 20);
+        String key = ResamplingCache.createKey("corrupt");
+        cache.store(key, createStore(10, 5, 2));
+
+        File file = new File(this.dir, key + ".pvs");
+        Assert.assertTrue(file.exists());
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.seek(raf.length() - 3);
+            raf.write(0x55);
+        }
+
+        Assert.assertNull(cache.load(key, 5, 10, false));
+        Assert.assertFalse(file.exists());
+    }
+
+    @Test
+    public void testEviction() throws IOException
+    {
+        /* Each entry takes a bit more than 8000 bytes */
+        ResamplingCache cache = new ResamplingCache(this.dir, 20000);
+
+        String key1 = ResamplingCache.createKey(1);
+        String key2 = ResamplingCache.createKey(2);
+        String key3 = ResamplingCache.createKey(3);
+
+        cache.store(key1, createStore(100, 10, 1));
+        new File(this.dir, key1 + ".pvs").setLastModified(System.currentTimeMillis() - 20000);
+        cache.store(key2, createStore(100, 10, 2));
+        new File(this.dir, key2 + ".pvs").setLastModified(System.currentTimeMillis() - 10000);
+
+        /* Touch the first entry, so the second one is the least recently used one */
+        cache.load(key1, 10, 100, false).close();
+        cache.store(key3, createStore(100, 10, 3));
+
+        Assert.assertTrue(new File(this.dir, key1 + ".pvs").exists());
+        Assert.assertFalse(new File(this.dir, key2 + ".pvs").exists());
+        Assert.assertTrue(new File(this.dir, key3 + ".pvs").exists());
+    }
+}
@@ -0,0 +1,89 @@
+package ontologizer.statistics.tests;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ontologizer.statistics.IRandomPValueCalculation;
+import ontologizer.statistics.PValue;
+import ontologizer.statistics.WestfallYoungStepDown;
+
+public class SequentialWestfallYoungTest
+{
+    private static final int M = 20;
+
+    /**
+     * A calculation with a few clearly significant and many clearly non-significant terms.
+     */
+    private static class Calculation implements IRandomPValueCalculation
+    {
+        private final AtomicInteger samples = new AtomicInteger();
+
+        @Override
+        public PValue[] calculateRawPValues()
+        {
+            PValue[] p = new PValue[M];
+            for (int i = 0; i < M; i++) {
+                p[i] = new PValue();
+                p[i].p = i < 3 ? 1e-7 : 0.5 + i / 100.0;
+            }
+            return p;
+        }
+
+        @Override
+        public PValue[] calculateRandomPValues()
+        {
+            return calculateRandomPValues(new Random());
+        }
+
+        @Override
+        public PValue[] calculateRandomPValues(Random rnd)
+        {
+            this.samples.incrementAndGet();
+
+            PValue[] p = new PValue[M];
+            for (int i = 0; i < M; i++) {
+                p[i] = new PValue();
+                p[i].p = rnd.nextDouble();
+            }
+            return p;
+        }
+
+        @Override
+        public int currentStudySetSize()
+        {
+            return 10;
+        }
+    }
+
+    @Test
+    public void testSequentialStopsEarly()
+    {
+        WestfallYoungStepDown full = new WestfallYoungStepDown();
+        full.setSeed(1L);
+        PValue[] fullP = full.adjustPValues(new Calculation());
+        for (int used : full.getPermutationsUsed()) {
+            Assert.assertEquals(1000, used);
+        }
+
+        WestfallYoungStepDown seq = new WestfallYoungStepDown();
+        seq.setSeed(1L);
+        seq.setSequentialAlpha(0.05);
+        seq.setSequentialBatchSize(50);
+        Calculation calc = new Calculation();
+        PValue[] seqP = seq.adjustPValues(calc);
+
+        Assert.assertTrue(calc.samples.get() < 1000);
+
+        int[] used = seq.getPermutationsUsed();
+        for (int i = 0; i < M; i++) {
+            Assert.assertTrue(used[i] <= calc.samples.get());
+            Assert.assertEquals(fullP[i].p_adjusted < 0.05, seqP[i].p_adjusted < 0.05);
+        }
+
+        /* The clearly non-significant terms are frozen after the first batch */
+        Assert.assertEquals(50, used[M - 1]);
+    }
+}
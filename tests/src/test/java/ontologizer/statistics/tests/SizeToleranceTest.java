@@ -0,0 +1,151 @@
+package ontologizer.statistics.tests;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ontologizer.statistics.AbstractResamplingTestCorrection;
+import ontologizer.statistics.FDRBySteffenCached;
+import ontologizer.statistics.IRandomPValueCalculation;
+import ontologizer.statistics.PValue;
+import ontologizer.statistics.WestfallYoungStepDownCached;
+import ontologizer.statistics.WestfallYoungStepDownCachedSecondVersion;
+
+public class SizeToleranceTest
+{
+    private static final int M = 15;
+
+    /**
+     * A p value calculation with a configurable study set size that counts the number of random samples.
+     */
+    private static class CountingCalculation implements IRandomPValueCalculation
+    {
+        private final int studySetSize;
+
+        private final AtomicInteger samples = new AtomicInteger();
+
+        public CountingCalculation(int studySetSize)
+        {
+            this.studySetSize = studySetSize;
+        }
+
+        @Override
+        public PValue[] calculateRawPValues()
+        {
+            PValue[] p = new PValue[M];
+            for (int i = 0; i < M; i++) {
+                p[i] = new PValue();
+                p[i].p = (i + 1) / (double) (M * 5);
+            }
+            return p;
+        }
+
+        @Override
+        public PValue[] calculateRandomPValues()
+        {
+            return calculateRandomPValues(new Random());
+        }
+
+        @Override
+        public PValue[] calculateRandomPValues(Random rnd)
+        {
+            this.samples.incrementAndGet();
+
+            PValue[] p = new PValue[M];
+            for (int i = 0; i < M; i++) {
+                p[i] = new PValue();
+                p[i].p = rnd.nextDouble();
+            }
+            return p;
+        }
+
+        @Override
+        public int currentStudySetSize()
+        {
+            return this.studySetSize;
+        }
+    }
+
+    private static double[] adjust(AbstractResamplingTestCorrection correction, CountingCalculation calc)
+    {
+        PValue[] p = correction.adjustPValues(calc);
+        double[] adjusted = new double[p.length];
+        for (int i = 0; i < p.length; i++) {
+            adjusted[i] = p[i].p_adjusted;
+        }
+        return adjusted;
+    }
+
+    private static void checkTolerance(AbstractResamplingTestCorrection correction)
+    {
+        correction.setNumberOfResamplingSteps(100);
+        correction.setSeed(3L);
+
+        CountingCalculation c100 = new CountingCalculation(100);
+        adjust(correction, c100);
+        Assert.assertEquals(100, c100.samples.get());
+
+        /* Without tolerance, a different size needs new samples */
+        CountingCalculation c105 = new CountingCalculation(105);
+        adjust(correction, c105);
+        Assert.assertEquals(100, c105.samples.get());
+
+        correction.resetCache();
+        correction.setSizeTolerance(10);
+        adjust(correction, new CountingCalculation(100));
+
+        c105 = new CountingCalculation(105);
+        adjust(correction, c105);
+        Assert.assertEquals(0, c105.samples.get());
+
+        CountingCalculation c95 = new CountingCalculation(95);
+        adjust(correction, c95);
+        Assert.assertEquals(0, c95.samples.get());
+
+        /* Outside of the tolerance */
+        CountingCalculation c120 = new CountingCalculation(120);
+        adjust(correction, c120);
+        Assert.assertEquals(100, c120.samples.get());
+    }
+
+    @Test
+    public void testTolerance()
+    {
+        checkTolerance(new WestfallYoungStepDownCached());
+        checkTolerance(new WestfallYoungStepDownCachedSecondVersion());
+        checkTolerance(new FDRBySteffenCached());
+    }
+
+    @Test
+    public void testTopUp()
+    {
+        WestfallYoungStepDownCached wy = new WestfallYoungStepDownCached();
+        wy.setTopUp(true);
+        wy.setSeed(5L);
+        wy.setNumberOfResamplingSteps(100);
+
+        CountingCalculation calc = new CountingCalculation(50);
+        adjust(wy, calc);
+        Assert.assertEquals(100, calc.samples.get());
+
+        /* Only the missing samples are drawn */
+        wy.setNumberOfResamplingSteps(150);
+        calc = new CountingCalculation(50);
+        double[] toppedUp = adjust(wy, calc);
+        Assert.assertEquals(50, calc.samples.get());
+
+        /* The result is the same as if all samples had been drawn at once */
+        WestfallYoungStepDownCached fresh = new WestfallYoungStepDownCached();
+        fresh.setSeed(5L);
+        fresh.setNumberOfResamplingSteps(150);
+        Assert.assertArrayEquals(adjust(fresh, new CountingCalculation(50)), toppedUp, 0);
+
+        /* Fewer steps reuse the first samples */
+        wy.setNumberOfResamplingSteps(100);
+        calc = new CountingCalculation(50);
+        adjust(wy, calc);
+        Assert.assertEquals(0, calc.samples.get());
+    }
+}
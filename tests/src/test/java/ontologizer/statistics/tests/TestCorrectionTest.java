@@ -0,0 +1,89 @@
+package ontologizer.statistics.tests;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ontologizer.statistics.AbstractDeterministicTestCorrection;
+import ontologizer.statistics.BenjaminiHochberg;
+import ontologizer.statistics.BenjaminiYekutieli;
+import ontologizer.statistics.Bonferroni;
+import ontologizer.statistics.BonferroniHolm;
+import ontologizer.statistics.IPValueCalculation;
+import ontologizer.statistics.None;
+import ontologizer.statistics.PValue;
+import ontologizer.statistics.Sidak;
+
+public class TestCorrectionTest
+{
+    private static final double[] RAW = { 0.01, 0.04, 0.03, 0.5, 0.02, 0.03 };
+
+    private static final boolean[] IGNORE = { false, false, false, true, false, false };
+
+    private static PValue[] createPValues()
+    {
+        PValue[] p = new PValue[RAW.length];
+        for (int i = 0; i < RAW.length; i++) {
+            p[i] = new PValue();
+            p[i].p = RAW[i];
+            p[i].ignoreAtMTC = IGNORE[i];
+        }
+        return p;
+    }
+
+    private static IPValueCalculation createCalculation()
+    {
+        return new IPValueCalculation()
+        {
+            @Override
+            public PValue[] calculateRawPValues()
+            {
+                return createPValues();
+            }
+
+            @Override
+            public PValue[] calculateRandomPValues()
+            {
+                return createPValues();
+            }
+
+            @Override
+            public int currentStudySetSize()
+            {
+                return 0;
+            }
+        };
+    }
+
+    @Test
+    public void testBonferroni()
+    {
+        double[] adjusted = new double[RAW.length];
+        new Bonferroni().adjust(RAW, IGNORE, adjusted);
+        Assert.assertArrayEquals(new double[] { 0.05, 0.2, 0.15, 0, 0.1, 0.15 }, adjusted, 1e-12);
+    }
+
+    @Test
+    public void testBenjaminiHochberg()
+    {
+        double[] adjusted = new double[RAW.length];
+        new BenjaminiHochberg().adjust(RAW, null, adjusted);
+        Assert.assertArrayEquals(new double[] { 0.045, 0.048, 0.045, 0.5, 0.045, 0.045 }, adjusted, 1e-12);
+    }
+
+    @Test
+    public void testAdapterMatchesBulk()
+    {
+        AbstractDeterministicTestCorrection[] corrections = { new None(), new Bonferroni(), new BonferroniHolm(),
+        new BenjaminiHochberg(), new BenjaminiYekutieli(), new Sidak() };
+
+        for (AbstractDeterministicTestCorrection correction : corrections) {
+            double[] adjusted = new double[RAW.length];
+            correction.adjust(RAW, IGNORE, adjusted);
+
+            PValue[] p = correction.adjustPValues(createCalculation());
+            for (int i = 0; i < RAW.length; i++) {
+                Assert.assertEquals(correction.getName(), adjusted[i], p[i].p_adjusted, 0.0);
+            }
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package ontologizer.tests;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import ontologizer.statistics.PValue;
+import ontologizer.statistics.PackedPValueSetStore;
+
+public class PackedPValueSetStoreTest
+{
+    private static PValue[][] createSamples(int nSets, int setSize, double ignoreFraction)
+    {
+        Random rnd = new Random(4711);
+        PValue[][] sampledPvals = new PValue[nSets][setSize];
+        for (int i = 0; i < nSets; i++) {
+            for (int j = 0; j < setSize; j++) {
+                sampledPvals[i][j] = new PValue();
+                sampledPvals[i][j].p = rnd.nextDouble();
+                sampledPvals[i][j].ignoreAtMTC = rnd.nextDouble() < ignoreFraction;
+            }
+        }
+        return sampledPvals;
+    }
+
+    private static void checkStore(PackedPValueSetStore store, PValue[][] sampledPvals, double delta)
+    {
+        int setSize = sampledPvals[0].length;
+
+        Assert.assertEquals(sampledPvals.length, store.size());
+        double[] row = new double[setSize];
+        for (int i = 0; i < sampledPvals.length; i++) {
+            store.getSample(i, row);
+            for (int j = 0; j < setSize; j++) {
+                double expected = sampledPvals[i][j].ignoreAtMTC ? 1.0 : sampledPvals[i][j].p;
+                Assert.assertEquals(expected, row[j], delta);
+                Assert.assertEquals(expected, store.get(i, j), delta);
+            }
+        }
+    }
+
+    @Test
+    public void testDense()
+    {
+        PValue[][] samples = createSamples(20, 30, 0.3);
+
+        /* Start with a too small capacity to check that the store grows */
+        PackedPValueSetStore store = new PackedPValueSetStore(3, 30);
+        for (PValue[] s : samples) {
+            store.add(s);
+        }
+        checkStore(store, samples, 0);
+    }
+
+    @Test
+    public void testSparse()
+    {
+        PValue[][] samples = createSamples(20, 30, 0.8);
+
+        PackedPValueSetStore store = new PackedPValueSetStore(3, 30, false, true);
+        Assert.assertTrue(store.isSparse());
+        for (PValue[] s : samples) {
+            store.add(s);
+        }
+        checkStore(store, samples, 0);
+    }
+
+    @Test
+    public void testSinglePrecision()
+    {
+        PValue[][] samples = createSamples(20, 30, 0.5);
+
+        PackedPValueSetStore dense = new PackedPValueSetStore(20, 30, true, false);
+        PackedPValueSetStore sparse = new PackedPValueSetStore(20, 30, true, true);
+        for (PValue[] s : samples) {
+            dense.add(s);
+            sparse.add(s);
+        }
+        checkStore(dense, samples, 1e-7);
+        checkStore(sparse, samples, 1e-7);
+    }
+
+    @Test
+    public void testMapped() throws IOException
+    {
+        PValue[][] samples = createSamples(50, 17, 0.3);
+
+        File file = File.createTempFile("packed", ".bin");
+        PackedPValueSetStore store = new PackedPValueSetStore(17, false, file, true);
+        Assert.assertTrue(store.isMapped());
+        for (PValue[] s : samples) {
+            store.add(s);
+        }
+        checkStore(store, samples, 0);
+        store.close();
+        Assert.assertFalse(file.exists());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testWrongSize()
+    {
+        PackedPValueSetStore store = new PackedPValueSetStore(3, 30);
+        store.add(createSamples(1, 29, 0)[0]);
+    }
+}
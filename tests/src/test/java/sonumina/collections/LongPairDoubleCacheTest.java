@@ -0,0 +1,44 @@
+package sonumina.collections;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LongPairDoubleCacheTest
+{
+    @Test
+    public void testGetAndPut()
+    {
+        LongPairDoubleCache cache = new LongPairDoubleCache(100);
+        Assert.assertEquals(128, cache.capacity());
+        Assert.assertTrue(Double.isNaN(cache.get(1, 2)));
+
+        cache.put(1, 2, 0.5);
+        cache.put(2, 1, 0.25);
+        Assert.assertEquals(0.5, cache.get(1, 2), 0.0);
+        Assert.assertEquals(0.25, cache.get(2, 1), 0.0);
+
+        cache.put(1, 2, 0.75);
+        Assert.assertEquals(0.75, cache.get(1, 2), 0.0);
+    }
+
+    @Test
+    public void testBounded()
+    {
+        LongPairDoubleCache cache = new LongPairDoubleCache(16);
+
+        for (int i = 0; i < 1000; i++) {
+            cache.put(i, -i, i);
+        }
+
+        int found = 0;
+        for (int i = 0; i < 1000; i++) {
+            double v = cache.get(i, -i);
+            if (!Double.isNaN(v)) {
+                Assert.assertEquals(i, v, 0.0);
+                found++;
+            }
+        }
+        Assert.assertTrue(found > 0);
+        Assert.assertTrue(found <= cache.capacity());
+    }
+}